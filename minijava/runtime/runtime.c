@@ -1,15 +1,66 @@
 #include "runtime.h"
 
+#include <signal.h>
 #include <stdio.h>
 #include <stdlib.h>
 #include <sys/resource.h>
 
+/*
+ * Compiled with MJ_FAST_RUNTIME defined (runtime_fast.o, see the Makefile),
+ * the runtime allocates from big arenas of mmap'ed pages, which are zero when
+ * first touched, and buffers its output rather than doing a printf per line.
+ */
+#ifdef MJ_FAST_RUNTIME
+#include <sys/mman.h>
+#include <unistd.h>
+
+#ifndef MAP_ANONYMOUS
+#define MAP_ANONYMOUS MAP_ANON
+#endif
+
+#define BUFFER_SIZE (64L << 20)
+#define OUTPUT_SIZE (64 << 10)
+
+static char output[OUTPUT_SIZE];
+static int outputUsed = 0;
+
+/*
+ * Write out what is in the output buffer.
+ */
+static void flush(void) {
+    int written = 0;
+    while (written < outputUsed) {
+	ssize_t n = write(1, output + written, outputUsed - written);
+	if (n <= 0)
+	    break;
+	written += n;
+    }
+    outputUsed = 0;
+}
+#else
+#define BUFFER_SIZE (1L << 20)
+#endif
+
+/*
+ * Compiled code doesn't test for null before calling a method: loading from the
+ * vtable of a null receiver faults in the first page (which is never mapped),
+ * and so does accessing a field of null. Report those like the test would have.
+ * Other faults crash as usual. (The fault is in compiled code, not in the
+ * middle of the C library, so cs411error is safe to call.)
+ */
+static void segv(int sig, siginfo_t *info, void *context) {
+    if ((unsigned long) info->si_addr < 4096)
+	cs411error(MJ_NULL_OBJECT_REFERENCE);
+    signal(sig, SIG_DFL); /* and fault again */
+}
+
 /*
  * The runtime defines a main function which calls the compiler generated main
  * function.
  */
 int main() {
     struct rlimit lim;
+    struct sigaction action;
     int res;
     
     /* Set the resource limit to give us just one second of CPU time */
@@ -21,6 +72,15 @@ int main() {
 	exit(1);
     }
 
+    action.sa_sigaction = segv;
+    action.sa_flags = SA_SIGINFO;
+    sigemptyset(&action.sa_mask);
+    sigaction(SIGSEGV, &action, NULL);
+    sigaction(SIGBUS, &action, NULL);
+
+#ifdef MJ_FAST_RUNTIME
+    atexit(flush);
+#endif
     cs411main();
     return 0;
 }
@@ -29,18 +89,74 @@ int main() {
  * The runtime defines a function to print an integer.
  */
 void cs411println(long i) {
+#ifdef MJ_FAST_RUNTIME
+    char digits[24];
+    int n = 0;
+    unsigned long u = i < 0 ? -(unsigned long) i : (unsigned long) i;
+    if (outputUsed > OUTPUT_SIZE - (int) sizeof(digits))
+	flush();
+    do {
+	digits[n++] = '0' + u % 10;
+	u /= 10;
+    } while (u != 0);
+    if (i < 0)
+	output[outputUsed++] = '-';
+    while (n > 0)
+	output[outputUsed++] = digits[--n];
+    output[outputUsed++] = '\n';
+#else
     printf("%ld\n", i);
+#endif
+}
+
+/*
+ * The allocation buffer, which the compiled code allocates from inline: the next
+ * free address, then the end. It is only zeroed memory, so allocating just takes
+ * writing the header words. When an allocation doesn't fit, the compiled code
+ * calls cs411newobject or cs411newarray, which get a new buffer.
+ */
+extern char *cs411heap[2];
+
+/*
+ * numbytes of zeroed memory.
+ */
+static char* zeroed(long numbytes) {
+#ifdef MJ_FAST_RUNTIME
+    char* memory = mmap(NULL, numbytes, PROT_READ | PROT_WRITE, MAP_PRIVATE | MAP_ANONYMOUS, -1, 0);
+    if (memory == MAP_FAILED)
+	memory = NULL;
+#else
+    char* memory = calloc(1, numbytes);
+#endif
+    if (memory == NULL) {
+	printf("Out of memory\n");
+	exit(1);
+    }
+    return memory;
+}
+
+/*
+ * Allocate numbytes of zeroed memory, from the buffer unless it is big.
+ */
+static char* allocate(long numbytes) {
+    char* block;
+    if (numbytes > BUFFER_SIZE / 8)
+	return zeroed(numbytes);
+    if (cs411heap[0] + numbytes > cs411heap[1]) {
+	/* What is left of the old buffer is wasted. */
+	cs411heap[0] = zeroed(BUFFER_SIZE);
+	cs411heap[1] = cs411heap[0] + BUFFER_SIZE;
+    }
+    block = cs411heap[0];
+    cs411heap[0] += numbytes;
+    return block;
 }
 
 /*
  * Allocate memory for an object and initialize it.
  */
 char* cs411newobject(long numbytes) {
-    char* object = malloc(numbytes);
-    int i;
-    for (i=0; i<numbytes; i++)
-	object[i] = 0;
-    return object;
+    return allocate(numbytes);
 }
 
 /*
@@ -48,28 +164,29 @@ char* cs411newobject(long numbytes) {
  * 
  * The returned pointer points to element 0 of the
  * array. The element at index[-1] position is the 
- * length of the array.
+ * length of the array, and the one before it
+ * MJ_ARRAY_HEADER. Empty arrays take one more word.
  */
 long* cs411newarray(long numElements) {
-    long* arr = malloc((numElements+1)*sizeof(long));
-    int i;
-    arr[0] = numElements;
-    arr++;
-    for (i=0; i<numElements; i++) {
-	arr[i] = 0;
-    }
-    return arr;
+    long* arr = (long*) allocate(((numElements > 0 ? numElements : 1) + 2) * sizeof(long));
+    arr[0] = MJ_ARRAY_HEADER;
+    arr[1] = numElements;
+    return arr + 2;
 }
 
 char *errors[] = {
     "No error",
     "Index out of bounds",
+    "Null object reference",
 };
 
 /*
  * Report a failure - the integer code indicates the type of failure.
  */
 void cs411error(long code) {
+#ifdef MJ_FAST_RUNTIME
+    flush();
+#endif
     /*    fprintf(stdout, "MiniJava failure %ld: %s\n", code, (code >= 0 && code < sizeof(errors) / sizeof(char *)) ? errors[code] : "Invalid error code"); */
     fprintf(stdout, "MiniJava failure %ld\n", code);
     exit(0);
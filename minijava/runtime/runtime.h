@@ -29,11 +29,15 @@ char* cs411newobject(long numbytes);
  * 
  * The returned pointer points to element 0 of the
  * array. The element at index[-1] position is the 
- * length of the array.
+ * length of the array, and the one before it
+ * MJ_ARRAY_HEADER.
  */
 long* cs411newarray(long numElements);
 
+#define MJ_ARRAY_HEADER (1)
+
 #define MJ_INDEX_OUT_OF_BOUNDS (1)
+#define MJ_NULL_OBJECT_REFERENCE (2)
 /*
  * Report a failure - the integer code indicates the type of failure.
  */
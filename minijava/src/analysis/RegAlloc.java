@@ -1,6 +1,9 @@
 package analysis;
 
 import util.DefaultIndentable;
+import analysis.implementation.PointerMaps;
+import analysis.implementation.PortfolioRegAlloc;
+import analysis.implementation.SSARegAlloc;
 import analysis.implementation.SpillingRegAlloc;
 import codegen.AssemFragment;
 import codegen.AssemProc;
@@ -36,8 +39,37 @@ import codegen.Assembly;
  */
 public abstract class RegAlloc extends DefaultIndentable {
 
+	public enum Algorithm {
+		/** Build, simplify, spill and repeat (see {@link SpillingRegAlloc}). */
+		ITERATED,
+		/** Spill up front and colour once, in SSA form (see {@link SSARegAlloc}). */
+		SSA,
+		/** Try several allocators at once and keep the cheapest result (see {@link PortfolioRegAlloc}). */
+		PORTFOLIO
+	}
+
+	private static Algorithm algorithm = Algorithm.ITERATED;
+
+	/**
+	 * Select the register allocator used from now on.
+	 */
+	public static void setAlgorithm(Algorithm algorithm) {
+		RegAlloc.algorithm = algorithm;
+	}
+
+	public static Algorithm getAlgorithm() {
+		return algorithm;
+	}
+
 	public static RegAlloc doit(AssemProc proc) {
-		return new SpillingRegAlloc(proc);
+		switch (algorithm) {
+		case SSA:
+			return new SSARegAlloc(proc);
+		case PORTFOLIO:
+			return new PortfolioRegAlloc(proc);
+		default:
+			return new SpillingRegAlloc(proc);
+		}
 	}
 
 	/**
@@ -47,15 +79,20 @@ public abstract class RegAlloc extends DefaultIndentable {
 	 * that the assembly code in the fragments gets modified by means of
 	 * side effects to use actual registers rather than
 	 * "fictional" Temp's.
+	 * <p>
+	 * It also adds the {@link PointerMaps} of the allocated procedures.
 	 *  
 	 * @param assembly
 	 */
 	public static void doit(Assembly assembly) {
+		PointerMaps maps = new PointerMaps();
 		for (AssemFragment frag : assembly) {
 			if (frag instanceof AssemProc) {
 				doit((AssemProc) frag);
+				maps.add((AssemProc) frag);
 			}
 		}
+		assembly.add(maps.getData());
 	}
 	
 	public abstract String getTrace();
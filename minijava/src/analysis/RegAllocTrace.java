@@ -0,0 +1,178 @@
+package analysis;
+
+import ir.temp.Color;
+import ir.temp.Temp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+
+import util.DefaultIndentable;
+import util.Indentable;
+import util.IndentingWriter;
+import util.List;
+
+/**
+ * Diagnostics for the register allocator.
+ * <p>
+ * The allocator records what it is doing as a list of events (rounds, spill
+ * decisions, the resulting colouring). Events keep references to the data
+ * they describe and are only rendered to text when the trace is printed.
+ * <p>
+ * How much gets recorded depends on the {@link Level}. By default nothing
+ * is recorded at all, so a normal compile doesn't pay for tracing. Use
+ * {@link #setLevel(Level)} (e.g. from a driver) to turn it on.
+ *
+ * @see analysis.implementation.SpillingRegAlloc
+ */
+public class RegAllocTrace extends DefaultIndentable {
+
+	public enum Level {
+		/** Record nothing. */
+		OFF,
+		/** Record rounds, spill decisions and colourings. */
+		SUMMARY,
+		/** Also record full dumps of the code, flow graph, liveness and interference graph of each round. */
+		DETAIL
+	}
+
+	private static Level defaultLevel = Level.OFF;
+
+	/**
+	 * Set the level for traces created from now on.
+	 */
+	public static void setLevel(Level level) {
+		defaultLevel = level;
+	}
+
+	public static Level getLevel() {
+		return defaultLevel;
+	}
+
+	private final Level level;
+	private java.util.List<Indentable> events = new ArrayList<Indentable>();
+
+	public RegAllocTrace() {
+		this(defaultLevel);
+	}
+
+	public RegAllocTrace(Level level) {
+		this.level = level;
+	}
+
+	/**
+	 * Is anything at the given level being recorded? Callers should check
+	 * this before doing any work just to produce a trace event.
+	 */
+	public boolean isOn(Level at) {
+		return at != Level.OFF && level.compareTo(at) >= 0;
+	}
+
+	public void round(final String proc, final int iteration, final int temps, final int K) {
+		if (!isOn(Level.SUMMARY)) return;
+		record(new Indentable() {
+			public void dump(IndentingWriter out) {
+				out.println("Register allocation of " + proc + " iteration " + iteration
+						+ ": " + temps + " temps, K = " + K);
+			}
+		});
+	}
+
+	/**
+	 * The allocator picked a potential spill, because no node of degree < K was left.
+	 */
+	public void potentialSpill(final Temp t, final int degree) {
+		if (!isOn(Level.SUMMARY)) return;
+		record(new Indentable() {
+			public void dump(IndentingWriter out) {
+				out.println("potential spill " + t + " (degree " + degree + ")");
+			}
+		});
+	}
+
+	/**
+	 * Temps that were actually spilled, with the spill slots they got.
+	 */
+	public void spilled(final List<Temp> spilled, final Map<Temp, Color> colorMap) {
+		if (!isOn(Level.SUMMARY) || spilled.isEmpty()) return;
+		record(new Indentable() {
+			public void dump(IndentingWriter out) {
+				out.print("Spilled");
+				out.indent();
+				for (Temp t : spilled) {
+					out.println();
+					out.print(t + " -> " + colorMap.get(t));
+				}
+				out.outdent();
+				out.println();
+			}
+		});
+	}
+
+	/**
+	 * Spilled Temps whose live ranges were split instead of being spilled.
+	 */
+	public void split(final List<Temp> split) {
+		if (!isOn(Level.SUMMARY)) return;
+		record(new Indentable() {
+			public void dump(IndentingWriter out) {
+				out.println("Split live ranges of " + split);
+			}
+		});
+	}
+
+	/**
+	 * Anything else worth mentioning.
+	 */
+	public void note(final String text) {
+		if (!isOn(Level.SUMMARY)) return;
+		record(new Indentable() {
+			public void dump(IndentingWriter out) {
+				out.println(text);
+			}
+		});
+	}
+
+	public void coloring(final Map<Temp, Color> colorMap) {
+		if (!isOn(Level.SUMMARY)) return;
+		record(new Indentable() {
+			public void dump(IndentingWriter out) {
+				java.util.List<Temp> temps = new ArrayList<Temp>(colorMap.keySet());
+				Collections.sort(temps);
+				out.println("Coloring {");
+				out.indent();
+				for (Temp t : temps) {
+					out.println(t + " : " + colorMap.get(t));
+				}
+				out.outdent();
+				out.println("}");
+			}
+		});
+	}
+
+	/**
+	 * Record a full dump of some data structure. Since the allocator modifies
+	 * these structures as it goes, they are rendered right away, but only if
+	 * the level is {@link Level#DETAIL}.
+	 */
+	public void detail(String title, Object what) {
+		if (!isOn(Level.DETAIL)) return;
+		final String text = title + "\n" + what;
+		record(new Indentable() {
+			public void dump(IndentingWriter out) {
+				out.println(text);
+			}
+		});
+	}
+
+	private void record(Indentable event) {
+		events.add(event);
+	}
+
+	@Override
+	public void dump(IndentingWriter out) {
+		for (Indentable event : events) {
+			event.dump(out);
+		}
+	}
+}
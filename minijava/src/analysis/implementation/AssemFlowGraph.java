@@ -62,6 +62,47 @@ public class AssemFlowGraph extends FlowGraph<Instr> {
 	}
 
 
+	/**
+	 * Splice a new (non-jump) instruction into the graph right before an existing
+	 * node. All control flow into the existing node now goes through the new one.
+	 */
+	public Node<Instr> insertBefore(Node<Instr> node, Instr instr) {
+		Node<Instr> inserted = newNode(instr);
+		for (Node<Instr> pred : node.pred()) {
+			rmEdge(pred, node);
+			addEdge(pred, inserted);
+		}
+		addEdge(inserted, node);
+		return inserted;
+	}
+
+	/**
+	 * Splice a new (non-jump) instruction into the graph right after an existing
+	 * non-jump node.
+	 */
+	public Node<Instr> insertAfter(Node<Instr> node, Instr instr) {
+		Node<Instr> inserted = newNode(instr);
+		for (Node<Instr> succ : node.succ()) {
+			rmEdge(node, succ);
+			addEdge(inserted, succ);
+		}
+		addEdge(node, inserted);
+		return inserted;
+	}
+
+	/**
+	 * Remove a (non-jump) node from the graph, connecting its predecessors
+	 * directly to its successor.
+	 */
+	public void remove(Node<Instr> node) {
+		for (Node<Instr> pred : node.pred()) {
+			for (Node<Instr> succ : node.succ()) {
+				addEdge(pred, succ);
+			}
+		}
+		rmNode(node);
+	}
+
 	private Instr instr(Node<Instr> node) {
 		return node.wrappee();
 	}
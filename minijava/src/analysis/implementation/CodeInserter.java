@@ -0,0 +1,146 @@
+package analysis.implementation;
+
+import static ir.tree.IR.JUMP;
+import static ir.tree.IR.LABEL;
+import ir.temp.Label;
+import ir.tree.IRStm;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import util.List;
+import analysis.FlowGraph;
+import analysis.util.graph.Node;
+import codegen.AssemProc;
+import codegen.assem.A_LABEL;
+import codegen.assem.A_OPER;
+import codegen.assem.Instr;
+import codegen.muncher.Muncher;
+
+/**
+ * Collects code to be inserted into a procedure body, before or after some of
+ * its instructions or on the control flow edges between them, and then puts it
+ * all in at once (see {@link #rewrite()}). Instructions are identified by their
+ * position in the body at the time the CodeInserter was created.
+ * <p>
+ * Code on an edge goes right after the source of the edge if control gets from
+ * there to the destination by falling through, or else right after the label of
+ * the destination if nothing else leads there. Otherwise the edge needs a block
+ * of its own, and the jump is redirected to that block.
+ */
+public class CodeInserter {
+
+	private AssemProc proc;
+	private Instr[] code;
+	private Map<Instr, Node<Instr>> nodes = new HashMap<Instr, Node<Instr>>();
+	private Map<Integer, List<Instr>> before = new HashMap<Integer, List<Instr>>();
+	private Map<Integer, List<Instr>> after = new HashMap<Integer, List<Instr>>();
+	private Map<Pair<Integer, Integer>, List<Instr>> onEdge = new LinkedHashMap<Pair<Integer, Integer>, List<Instr>>();
+
+	/**
+	 * The flow graph must describe the current procedure body.
+	 */
+	public CodeInserter(AssemProc proc, FlowGraph<Instr> fg) {
+		this.proc = proc;
+		List<Instr> body = proc.getBody();
+		code = new Instr[body.size()];
+		int i = 0;
+		for (Instr instr : body)
+			code[i++] = instr;
+		for (Node<Instr> node : fg.nodes())
+			nodes.put(node.wrappee(), node);
+	}
+
+	public void before(int i, List<Instr> instrs) {
+		add(before, i, instrs);
+	}
+
+	public void after(int i, List<Instr> instrs) {
+		add(after, i, instrs);
+	}
+
+	/**
+	 * Insert code on the edge from instruction p to instruction s. Code that
+	 * was added to the same edge earlier goes first.
+	 */
+	public void onEdge(int p, int s, List<Instr> instrs) {
+		add(onEdge, new Pair<Integer, Integer>(p, s), instrs);
+	}
+
+	/**
+	 * Put all the collected code into the procedure body.
+	 */
+	public void rewrite() {
+		List<Instr> edgeBlocks = List.empty();
+		for (Map.Entry<Pair<Integer, Integer>, List<Instr>> edge : onEdge.entrySet()) {
+			int p = edge.getKey().first;
+			int s = edge.getKey().second;
+			if (fallsThrough(p, s))
+				add(after, p, edge.getValue());
+			else if (nodes.get(code[s]).pred().size() == 1 && code[s] instanceof A_LABEL)
+				add(after, s, edge.getValue());
+			else {
+				A_OPER jump = (A_OPER) code[p];
+				Label target = ((A_LABEL) code[s]).getLabel();
+				Label block = Label.gen();
+				jump.jump = jump.jump.replace(target, block);
+				edgeBlocks = edgeBlocks.append(munch(LABEL(block)))
+						.append(edge.getValue())
+						.append(munch(JUMP(target)));
+			}
+		}
+
+		// Edge blocks go after some jmp, so nothing falls into them. If there is no
+		// jmp, jump over them at the end of the body.
+		int blocksAfter = -1;
+		for (int i = 0; i < code.length && blocksAfter < 0 && !edgeBlocks.isEmpty(); i++) {
+			List<Label> jumps = code[i].jumps();
+			boolean unconditional = jumps != null && code[i].targets().size() == jumps.size();
+			if (unconditional && !after.containsKey(i))
+				blocksAfter = i;
+		}
+		if (blocksAfter < 0 && !edgeBlocks.isEmpty()) {
+			Label end = Label.gen();
+			edgeBlocks = munch(JUMP(end)).append(edgeBlocks).append(munch(LABEL(end)));
+			blocksAfter = code.length - 2; // Right before the return sink.
+		}
+
+		List<Instr> body = List.empty();
+		for (int i = 0; i < code.length; i++) {
+			addAll(body, before.get(i));
+			body.add(code[i]);
+			addAll(body, after.get(i));
+			if (i == blocksAfter)
+				addAll(body, edgeBlocks);
+		}
+		proc.setBody(body);
+	}
+
+	/**
+	 * Does control get from p to s by falling through (rather than jumping)?
+	 */
+	private boolean fallsThrough(int p, int s) {
+		if (s != p + 1) return false;
+		Instr instr = code[p];
+		if (instr.jumps() == null) return true;
+		Instr next = code[s];
+		return next instanceof A_LABEL && !instr.targets().contains(((A_LABEL) next).getLabel());
+	}
+
+	private List<Instr> munch(IRStm stm) {
+		Muncher m = proc.newMuncher();
+		m.munch(stm);
+		return m.getInstructions();
+	}
+
+	private static <K> void add(Map<K, List<Instr>> where, K key, List<Instr> instrs) {
+		List<Instr> already = where.get(key);
+		where.put(key, already == null ? instrs : already.append(instrs));
+	}
+
+	private static void addAll(List<Instr> body, List<Instr> instrs) {
+		if (instrs != null)
+			for (Instr instr : instrs) body.add(instr);
+	}
+}
@@ -35,6 +35,17 @@ public class InterferenceGraphImplementation<N> extends InterferenceGraph {
 		}
 		
 		for (Node<N> node : fg.nodes()) {
+			addInterference(node);
+		}
+	}
+	
+	/**
+	 * Add the interference edges (and move) contributed by a single flow graph node,
+	 * according to its current liveOut set. Called for every node on construction,
+	 * and again by the register allocator for spill code that it splices into
+	 * the flow graph.
+	 */
+	public void addInterference(Node<N> node) {
 		  // move instructions
 		  if (isMove(node)) {
 		    A_MOVE move = (A_MOVE) node.wrappee();
@@ -48,15 +59,37 @@ public class InterferenceGraphImplementation<N> extends InterferenceGraph {
 		  }
 		  // non-move instructions
 		  else {
-		    for (Temp def : fg.def(node)) {
+		    for (Temp def : liveness.g.def(node)) {
+		      nodeFor(def);
 		      for (Temp liveOut : liveness.liveOut(node)) {
 		        if (!def.equals(liveOut)) {
 		          addUndirectedEdge(def, liveOut);
 		        }
 		      }
 		    }
+		    for (Temp use : liveness.g.use(node)) {
+		      nodeFor(use);
+		    }
 		  }
+	}
+	
+	/**
+	 * Remove a Temp (and any moves involving it) from the graph. Used
+	 * when a Temp is spilled and all its occurrences are rewritten.
+	 */
+	public void remove(Temp t) {
+		Node<Temp> node = nodeFor(t);
+		List<Move> kept = List.empty();
+		for (Move m : moves) {
+			if (m.src != node && m.dst != node)
+				kept.add(m);
 		}
+		moves = kept;
+		rmNode(node);
+	}
+	
+	public LivenessImplementation<N> getLiveness() {
+		return liveness;
 	}
 	
 	private boolean isMove(Node<N> node) {
@@ -0,0 +1,225 @@
+package analysis.implementation;
+
+import static ir.tree.IR.MOVE;
+import static ir.tree.IR.TEMP;
+import ir.temp.Temp;
+import ir.tree.IRStm;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import util.List;
+import analysis.implementation.LoopNest.Loop;
+import analysis.util.graph.Node;
+import codegen.AssemProc;
+import codegen.assem.Instr;
+import codegen.muncher.Muncher;
+
+/**
+ * Splits the live ranges of spilled Temps, as an alternative to spilling them
+ * everywhere.
+ * <p>
+ * Two kinds of splits are tried, in this order:
+ * <ul>
+ *   <li> Around calls: a Temp t that is live across a call is copied into a new
+ *   Temp right before the call and back right after it. Then t itself is no
+ *   longer live across any call and has all registers to choose from, while
+ *   the new Temp, which is live only across the call, gets a callee save
+ *   register or is spilled (in which case the copies become a store and a load).
+ *   <li> At loop boundaries: inside a loop t is renamed to a new Temp, and
+ *   copies are put on the edges into and out of the loop. If there is less
+ *   pressure outside the loop, the piece inside can stay in a register while
+ *   the rest is spilled.
+ * </ul>
+ * A split is only done if it looks cheaper than spilling everywhere, judging by
+ * the number of references and copies, weighted by loop depth. Every Temp (old or
+ * new) is split at most once of each kind, so repeatedly spilling and splitting
+ * terminates. Copies that turn out to be unnecessary disappear if both sides
+ * get the same colour (see {@link SimpleRegAlloc}).
+ */
+public class LiveRangeSplitter {
+
+	private AssemProc proc;
+	private Set<Temp> callSplit = new HashSet<Temp>();
+	private Set<Temp> loopSplit = new HashSet<Temp>();
+
+	// State for one round of splitting.
+	private LoopNest nest;
+	private Map<Instr, Node<Instr>> nodes;
+	private LivenessImplementation<Instr> liveness;
+	private CodeInserter inserter;
+	private Map<Pair<Integer, Integer>, List<Instr>> onEdge;
+	private Map<Pair<Integer, Integer>, List<Instr>> onEdgeIn;
+	private Map<Loop, Map<Temp, Temp>> renames;
+
+	public LiveRangeSplitter(AssemProc proc) {
+		this.proc = proc;
+	}
+
+	/**
+	 * Split the live ranges of those spilled Temps for which that seems
+	 * worthwhile, and return those Temps. The flow graph and liveness must
+	 * describe the current procedure body. If anything was split, they are
+	 * out of date afterwards.
+	 */
+	public List<Temp> split(List<Temp> spilled, AssemFlowGraph fg, LivenessImplementation<Instr> liveness) {
+		this.liveness = liveness;
+		nest = new LoopNest(proc.getBody());
+		nodes = new HashMap<Instr, Node<Instr>>();
+		for (Node<Instr> node : fg.nodes())
+			nodes.put(node.wrappee(), node);
+		inserter = new CodeInserter(proc, fg);
+		onEdge = new LinkedHashMap<Pair<Integer, Integer>, List<Instr>>();
+		onEdgeIn = new HashMap<Pair<Integer, Integer>, List<Instr>>();
+		renames = new HashMap<Loop, Map<Temp, Temp>>();
+
+		List<Temp> split = List.empty();
+		for (Temp t : spilled) {
+			if (splitAroundCalls(t) || splitAtLoops(t))
+				split.add(t);
+		}
+		if (!split.isEmpty())
+			rewrite();
+		return split;
+	}
+
+	private boolean splitAroundCalls(Temp t) {
+		if (callSplit.contains(t)) return false;
+		List<Integer> calls = List.empty();
+		double cost = 0;
+		for (int i = 0; i < nest.size(); i++) {
+			Instr instr = nest.get(i);
+			if (instr.isCall() && !instr.def().contains(t) && liveness.liveOut(node(i)).contains(t)) {
+				calls.add(i);
+				cost += 2 * nest.weight(instr);
+			}
+		}
+		if (calls.isEmpty() || cost >= references(t, null))
+			return false;
+
+		callSplit.add(t);
+		for (int call : calls) {
+			Temp piece = new Temp(t);
+			callSplit.add(piece);
+			loopSplit.add(piece);
+			inserter.before(call, move(piece, t));
+			inserter.after(call, move(t, piece));
+		}
+		return true;
+	}
+
+	private boolean splitAtLoops(Temp t) {
+		if (loopSplit.contains(t)) return false;
+		List<Loop> done = List.empty();
+		for (Loop loop : nest.loops()) {
+			if (overlaps(loop, done)) continue;
+			double inside = references(t, loop);
+			if (inside == 0) continue;
+
+			List<Pair<Integer, Integer>> entries = List.empty();
+			List<Pair<Integer, Integer>> exits = List.empty();
+			double boundary = 0;
+			for (int i = loop.head; i <= loop.tail; i++) {
+				Node<Instr> node = node(i);
+				for (Node<Instr> pred : node.pred()) {
+					int p = nest.indexOf(pred.wrappee());
+					if (!loop.contains(p) && liveness.liveIn(node).contains(t)) {
+						entries.add(new Pair<Integer, Integer>(p, i));
+						boundary += nest.weight(pred.wrappee());
+					}
+				}
+				for (Node<Instr> succ : node.succ()) {
+					int s = nest.indexOf(succ.wrappee());
+					if (!loop.contains(s) && liveness.liveIn(succ).contains(t)) {
+						exits.add(new Pair<Integer, Integer>(i, s));
+						boundary += nest.weight(succ.wrappee());
+					}
+				}
+			}
+			if (entries.isEmpty() && exits.isEmpty()) continue; // t doesn't live outside the loop.
+			if (inside <= boundary) continue;
+
+			done = List.cons(loop, done);
+			Temp piece = new Temp(t);
+			loopSplit.add(piece);
+			Map<Temp, Temp> renamed = renames.get(loop);
+			if (renamed == null) {
+				renamed = new HashMap<Temp, Temp>();
+				renames.put(loop, renamed);
+			}
+			renamed.put(t, piece);
+			for (Pair<Integer, Integer> edge : exits)
+				add(onEdge, edge, move(t, piece));
+			for (Pair<Integer, Integer> edge : entries)
+				add(onEdgeIn, edge, move(piece, t));
+		}
+		if (done.isEmpty())
+			return false;
+		loopSplit.add(t);
+		return true;
+	}
+
+	private boolean overlaps(Loop loop, List<Loop> others) {
+		for (Loop other : others)
+			if (loop.overlaps(other)) return true;
+		return false;
+	}
+
+	/**
+	 * Weighted number of references to t, inside the given loop or
+	 * anywhere if the loop is null.
+	 */
+	private double references(Temp t, Loop loop) {
+		double refs = 0;
+		int from = loop == null ? 0 : loop.head;
+		int to = loop == null ? nest.size() - 1 : loop.tail;
+		for (int i = from; i <= to; i++) {
+			Instr instr = nest.get(i);
+			if (instr.use().contains(t) || instr.def().contains(t))
+				refs += nest.weight(instr);
+		}
+		return refs;
+	}
+
+	/**
+	 * Apply the renamings and insert the copies into the procedure body.
+	 */
+	private void rewrite() {
+		for (Map.Entry<Loop, Map<Temp, Temp>> entry : renames.entrySet()) {
+			Loop loop = entry.getKey();
+			for (int i = loop.head; i <= loop.tail; i++)
+				for (Map.Entry<Temp, Temp> rename : entry.getValue().entrySet())
+					nest.get(i).rename(rename.getKey(), rename.getValue());
+		}
+
+		// Place the copies on each edge. An edge may leave one loop and enter
+		// another, then the copies out of the first loop must go first.
+		for (Map.Entry<Pair<Integer, Integer>, List<Instr>> edge : onEdgeIn.entrySet())
+			add(onEdge, edge.getKey(), edge.getValue());
+		for (Map.Entry<Pair<Integer, Integer>, List<Instr>> edge : onEdge.entrySet())
+			inserter.onEdge(edge.getKey().first, edge.getKey().second, edge.getValue());
+		inserter.rewrite();
+	}
+
+	private Node<Instr> node(int i) {
+		return nodes.get(nest.get(i));
+	}
+
+	private List<Instr> move(Temp dst, Temp src) {
+		return munch(MOVE(TEMP(dst), TEMP(src)));
+	}
+
+	private List<Instr> munch(IRStm stm) {
+		Muncher m = proc.newMuncher();
+		m.munch(stm);
+		return m.getInstructions();
+	}
+
+	private static <K> void add(Map<K, List<Instr>> where, K key, List<Instr> instrs) {
+		List<Instr> already = where.get(key);
+		where.put(key, already == null ? instrs : already.append(instrs));
+	}
+}
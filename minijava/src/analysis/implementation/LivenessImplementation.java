@@ -5,6 +5,7 @@ import ir.temp.Temp;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import util.List;
 import analysis.FlowGraph;
@@ -15,23 +16,29 @@ import analysis.util.graph.Node;
 
 public class LivenessImplementation<N> extends Liveness<N> {
 	
-  private Map<Node<N>, ActiveSet<Temp>> liveIns;
-  private Map<Node<N>, ActiveSet<Temp>> liveOuts;
+  /**
+   * Results of the analysis. The ActiveSets used to solve the dataflow
+   * equations are snapshotted into plain lists once the solution is
+   * complete, so the results can later be patched in place by the
+   * register allocator (see {@link #forget(Set)} and {@link #update(List, List)}).
+   */
+  private Map<Node<N>, List<Temp>> liveIns;
+  private Map<Node<N>, List<Temp>> liveOuts;
   
 	public LivenessImplementation(FlowGraph<N> graph) {
 		super(graph);
 		
-		liveIns = new HashMap<Node<N>, ActiveSet<Temp>>();
-		liveOuts = new HashMap<Node<N>, ActiveSet<Temp>>();
+		Map<Node<N>, ActiveSet<Temp>> ins = new HashMap<Node<N>, ActiveSet<Temp>>();
+		Map<Node<N>, ActiveSet<Temp>> outs = new HashMap<Node<N>, ActiveSet<Temp>>();
 		
 		for (Node<N> node : graph.nodes()) {
-		  liveIns.put(node, new ActiveSet<Temp>());
-		  liveOuts.put(node, new ActiveSet<Temp>());
+		  ins.put(node, new ActiveSet<Temp>());
+		  outs.put(node, new ActiveSet<Temp>());
 		}
 		
 		for (Node<N> node : graph.nodes()) {
-		  ActiveSet<Temp> liveIn = liveIns.get(node);
-		  ActiveSet<Temp> liveOut = liveOuts.get(node);
+		  ActiveSet<Temp> liveIn = ins.get(node);
+		  ActiveSet<Temp> liveOut = outs.get(node);
 		  
 		  // in
 		  liveIn.addAll(g.use(node));
@@ -39,18 +46,65 @@ public class LivenessImplementation<N> extends Liveness<N> {
 		  
 		  // out
 		  for (Node<N> succ : node.succ()) {
-		    liveOut.addAll(liveIns.get(succ));
+		    liveOut.addAll(ins.get(succ));
 		  }
 		}
+		
+		liveIns = new HashMap<Node<N>, List<Temp>>();
+		liveOuts = new HashMap<Node<N>, List<Temp>>();
+		for (Node<N> node : graph.nodes()) {
+		  liveIns.put(node, ins.get(node).getElements());
+		  liveOuts.put(node, outs.get(node).getElements());
+		}
 	}
 
 	@Override
 	public List<Temp> liveOut(Node<N> node) {
-	  return liveOuts.get(node).getElements();
+	  return liveOuts.get(node);
+	}
+
+	public List<Temp> liveIn(Node<N> node) {
+	  return liveIns.get(node);
+	}
+
+	/**
+	 * Remove some Temps from every live set. Used when the register allocator
+	 * spills Temps: they no longer exist after the spill code is inserted.
+	 */
+	public void forget(Set<Temp> temps) {
+	  for (Node<N> node : g.nodes()) {
+	    liveIns.put(node, without(liveIns.get(node), temps));
+	    liveOuts.put(node, without(liveOuts.get(node), temps));
+	  }
+	}
+
+	/**
+	 * Recompute the live sets of a straight-line run of (new or modified) nodes,
+	 * given the set of Temps live out of the last node in the run. Nodes outside
+	 * the run are not affected, as long as the liveIn of the run's first node
+	 * does not change.
+	 */
+	public void update(List<Node<N>> run, List<Temp> liveOut) {
+	  List<Temp> out = liveOut;
+	  for (Node<N> node : run.reverse()) {
+	    liveOuts.put(node, out);
+	    List<Temp> in = List.<Temp>empty().union(g.use(node));
+	    for (Temp t : out) {
+	      if (!g.def(node).contains(t) && !in.contains(t))
+	        in = List.cons(t, in);
+	    }
+	    liveIns.put(node, in);
+	    out = in;
+	  }
 	}
 
-	private List<Temp> liveIn(Node<N> node) {
-	  return liveIns.get(node).getElements();
+	private List<Temp> without(List<Temp> temps, Set<Temp> remove) {
+	  List<Temp> result = temps;
+	  for (Temp t : temps) {
+	    if (remove.contains(t))
+	      result = result.deleteAll(t);
+	  }
+	  return result;
 	}
 
 	private String shortList(List<Temp> l) {
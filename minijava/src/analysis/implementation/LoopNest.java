@@ -0,0 +1,155 @@
+package analysis.implementation;
+
+import ir.temp.Label;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import util.List;
+import codegen.assem.A_LABEL;
+import codegen.assem.Instr;
+
+/**
+ * A cheap approximation of the loop structure of a procedure, computed from
+ * its (linear) assembly code.
+ * <p>
+ * A backward jump (a jump to a label that appears earlier in the code)
+ * closes a loop, consisting of all instructions from the label up to the
+ * jump, if the jump can be reached from the label without leaving that
+ * stretch of code. (Not every backward jump is a loop: trace scheduling
+ * also puts blocks out of line that jump back into the main line.)
+ * <p>
+ * With the code generated for while loops this is exactly right. Where it
+ * isn't (e.g. when trace scheduling moves part of a loop elsewhere) the loop
+ * depths are just a bit off, so they should only be used as a heuristic.
+ */
+public class LoopNest {
+
+	/**
+	 * A loop: the instructions from index head up to and including index tail.
+	 */
+	public static class Loop {
+		public final int head;
+		public final int tail;
+		Loop(int head, int tail) {
+			this.head = head;
+			this.tail = tail;
+		}
+		public boolean contains(int i) {
+			return head <= i && i <= tail;
+		}
+		public boolean overlaps(Loop other) {
+			return head <= other.tail && other.head <= tail;
+		}
+		public int size() {
+			return tail - head + 1;
+		}
+	}
+
+	private Instr[] code;
+	private Map<Instr, Integer> index = new HashMap<Instr, Integer>();
+	private int[] depth;
+	private java.util.List<Loop> loops = new ArrayList<Loop>();
+
+	public LoopNest(List<Instr> body) {
+		code = new Instr[body.size()];
+		Map<Label, Integer> labels = new HashMap<Label, Integer>();
+		int i = 0;
+		for (Instr instr : body) {
+			code[i] = instr;
+			index.put(instr, i);
+			if (instr instanceof A_LABEL)
+				labels.put(((A_LABEL) instr).getLabel(), i);
+			i++;
+		}
+
+		Map<Integer, Integer> tails = new HashMap<Integer, Integer>();
+		for (i = 0; i < code.length; i++) {
+			for (Label target : code[i].targets()) {
+				Integer head = labels.get(target);
+				if (head != null && head <= i && reaches(head, i, labels)) {
+					Integer tail = tails.get(head);
+					if (tail == null || tail < i)
+						tails.put(head, i);
+				}
+			}
+		}
+		for (Map.Entry<Integer, Integer> loop : tails.entrySet())
+			loops.add(new Loop(loop.getKey(), loop.getValue()));
+		// Innermost loops first.
+		Collections.sort(loops, new Comparator<Loop>() {
+			public int compare(Loop a, Loop b) {
+				return a.size() - b.size();
+			}
+		});
+
+		depth = new int[code.length];
+		for (Loop loop : loops)
+			for (i = loop.head; i <= loop.tail; i++)
+				depth[i]++;
+	}
+
+	/**
+	 * Can control get from instruction "from" to instruction "to", staying within
+	 * the code in between?
+	 */
+	private boolean reaches(int from, int to, Map<Label, Integer> labels) {
+		boolean[] seen = new boolean[to - from + 1];
+		java.util.List<Integer> work = new ArrayList<Integer>();
+		work.add(from);
+		while (!work.isEmpty()) {
+			int i = work.remove(work.size() - 1);
+			if (i < from || i > to || seen[i - from]) continue;
+			if (i == to) return true;
+			seen[i - from] = true;
+			Instr instr = code[i];
+			List<Label> targets = instr.targets();
+			for (Label target : targets) {
+				Integer j = labels.get(target);
+				if (j != null) work.add(j);
+			}
+			if (instr.jumps() == null || instr.jumps().size() > targets.size())
+				work.add(i + 1); // Falls through
+		}
+		return false;
+	}
+
+	/**
+	 * Loops, sorted from small (inner) to big (outer).
+	 */
+	public java.util.List<Loop> loops() {
+		return loops;
+	}
+
+	public int size() {
+		return code.length;
+	}
+
+	public Instr get(int i) {
+		return code[i];
+	}
+
+	/**
+	 * Position of an instruction in the code, or -1 if it's not there.
+	 */
+	public int indexOf(Instr instr) {
+		Integer i = index.get(instr);
+		return i == null ? -1 : i;
+	}
+
+	public int depth(int i) {
+		return depth[i];
+	}
+
+	/**
+	 * Estimate of how often an instruction executes relative to the
+	 * procedure entry: 10 times for each loop it is in.
+	 */
+	public double weight(Instr instr) {
+		int i = indexOf(instr);
+		return i < 0 ? 1.0 : Math.pow(10, depth[i]);
+	}
+}
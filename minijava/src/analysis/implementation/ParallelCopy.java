@@ -0,0 +1,95 @@
+package analysis.implementation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import util.List;
+
+/**
+ * A parallel copy: a number of copies that (conceptually) all happen at the same
+ * time, so a location can be read by one copy and written by another. Leaving SSA
+ * form produces these: the phi functions at the start of a join point amount to a
+ * parallel copy on each incoming edge.
+ * <p>
+ * {@link #sequentialise()} turns a parallel copy into a sequence of ordinary moves.
+ * This is the algorithm from Boissinot et al., "Revisiting Out-of-SSA Translation
+ * for Correctness, Code Quality, and Efficiency" (CGO 2009).
+ *
+ * @param <L> the kind of locations copied between (e.g. Temps or registers).
+ * @param <S> what the moves are made of (instructions, or IR statements).
+ */
+public abstract class ParallelCopy<L, S> {
+
+	/**
+	 * Destination -> source. Each location is written at most once.
+	 */
+	private Map<L, L> copies = new LinkedHashMap<L, L>();
+
+	public void add(L dst, L src) {
+		if (!dst.equals(src))
+			copies.put(dst, src);
+	}
+
+	public boolean isEmpty() {
+		return copies.isEmpty();
+	}
+
+	/**
+	 * Generate the code for a single move.
+	 */
+	protected abstract List<S> move(L dst, L src);
+
+	/**
+	 * A location that none of the copies reads or writes, to break cycles
+	 * (as in swapping the contents of two locations). Only asked for if
+	 * there is a cycle.
+	 */
+	protected abstract L spare();
+
+	/**
+	 * Order the copies so that no location is overwritten before it has been read.
+	 */
+	public List<S> sequentialise() {
+		List<S> code = List.empty();
+		// Where the value originally in a location can be found now.
+		Map<L, L> loc = new HashMap<L, L>();
+		java.util.List<L> ready = new ArrayList<L>(); // Destinations that nobody needs to read anymore.
+		java.util.List<L> todo = new ArrayList<L>();
+		Set<L> done = new HashSet<L>();
+		for (Map.Entry<L, L> copy : copies.entrySet()) {
+			loc.put(copy.getValue(), copy.getValue());
+			todo.add(copy.getKey());
+		}
+		for (L dst : copies.keySet()) {
+			if (!loc.containsKey(dst))
+				ready.add(dst);
+		}
+		L spare = null;
+		while (!todo.isEmpty()) {
+			while (!ready.isEmpty()) {
+				L dst = ready.remove(ready.size() - 1);
+				L src = copies.get(dst);
+				L at = loc.get(src);
+				code = code.append(move(dst, at));
+				done.add(dst);
+				loc.put(src, dst);
+				if (at.equals(src) && copies.containsKey(src))
+					ready.add(src); // Its old value is safe in dst now.
+			}
+			L dst = todo.remove(todo.size() - 1);
+			if (!done.contains(dst)) {
+				// Not done yet, so dst is on a cycle: move its value out of the way.
+				if (spare == null)
+					spare = spare();
+				code = code.append(move(spare, dst));
+				loc.put(dst, spare);
+				ready.add(dst);
+			}
+		}
+		return code;
+	}
+}
@@ -0,0 +1,123 @@
+package analysis.implementation;
+
+import static ir.tree.IR.CONST;
+import static ir.tree.IR.DATA;
+import static ir.tree.IR.NAME;
+import static translate.Translator.L_GC_MAPS;
+import ir.frame.x86_64.InFrame;
+import ir.frame.x86_64.X86_64Frame;
+import ir.temp.Color;
+import ir.temp.Label;
+import ir.temp.Temp;
+import ir.tree.IRExp;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import translate.DataFragment;
+import util.List;
+import analysis.util.graph.Node;
+import codegen.AssemData;
+import codegen.AssemProc;
+import codegen.assem.A_LABEL;
+import codegen.assem.Instr;
+
+/**
+ * Builds the pointer maps that let a garbage collector find the references on
+ * the stack. For every call site of the register allocated procedures they say
+ * where the references that are live across the call are, and where the
+ * procedure keeps the values its caller had in the callee save registers. With
+ * that, and where each frame keeps its return address, a collector can walk the
+ * stack from the innermost frame out, and update the references when it moves
+ * objects.
+ * <p>
+ * Values live across a call are in callee save registers or spill slots. The
+ * Temps in registers are found by liveness on the allocated code, the spilled
+ * ones were recorded by {@link SpillRewriter} (see {@link AssemProc#getSpilledAcross}).
+ * <p>
+ * The maps are one data fragment, labelled {@link translate.Translator#L_GC_MAPS}:
+ * the number of call sites, then for each site
+ * <ul>
+ *   <li> the address the call returns to (a label right after the call),
+ *   <li> where the return address of the procedure is: {@link #FRAME_POINTER} for
+ *   8(%rbp), the caller's %rbp being at 0(%rbp), otherwise its offset from %rsp,
+ *   <li> the number of entries, and two words for each entry: a kind, which is
+ *   {@link #REFERENCE} or the number of the callee save register whose value in the
+ *   caller the location holds, and a location, which is a register number or (if
+ *   negative) an offset from %rbp.
+ * </ul>
+ * Registers are numbered as in x86_64 instruction encodings, see {@link #REGISTERS}.
+ */
+public class PointerMaps {
+
+	public static final int FRAME_POINTER = -1;
+	public static final int REFERENCE = -1;
+	public static final String[] REGISTERS = { "%rax", "%rcx", "%rdx", "%rbx", "%rsp", "%rbp", "%rsi", "%rdi",
+		"%r8", "%r9", "%r10", "%r11", "%r12", "%r13", "%r14", "%r15" };
+
+	private int sites = 0;
+	private List<IRExp> data = List.empty();
+
+	/**
+	 * Add the maps of the call sites of a register allocated procedure. This
+	 * puts a label after each call.
+	 */
+	public void add(AssemProc proc) {
+		AssemFlowGraph fg = new AssemFlowGraph(proc.getBody());
+		LivenessImplementation<Instr> liveness = new LivenessImplementation<Instr>(fg);
+		Map<Instr, List<Temp>> liveAcross = new HashMap<Instr, List<Temp>>();
+		for (Node<Instr> node : fg.nodes()) {
+			Instr instr = node.wrappee();
+			if (instr.isCall())
+				liveAcross.put(instr, liveness.liveOut(node));
+		}
+
+		X86_64Frame frame = (X86_64Frame) proc.getFrame();
+		int returnAddress = frame.hasFramePointer() ? FRAME_POINTER : frame.returnAddressOffset();
+		List<Instr> body = List.empty();
+		for (Instr instr : proc.getBody()) {
+			body.add(instr);
+			List<Temp> live = liveAcross.get(instr);
+			if (live == null) continue;
+
+			List<IRExp> entries = List.empty();
+			for (Temp t : live) {
+				Color color = t.getColor();
+				if (instr.def().contains(t) || color == null || !color.isRegister()) continue;
+				entries = entries.append(entry(t, register(color.toString())));
+			}
+			for (Map.Entry<Temp, Color> spilled : proc.getSpilledAcross(instr).entrySet()) {
+				InFrame slot = (InFrame) ((SpillColor) spilled.getValue()).getAccess();
+				entries = entries.append(entry(spilled.getKey(), slot.getOffset()));
+			}
+
+			Label site = Label.generate("ret");
+			body.add(new A_LABEL(site + ":", site));
+			data = data.append(List.list(NAME(site), CONST(returnAddress), CONST(entries.size() / 2)));
+			data = data.append(entries);
+			sites++;
+		}
+		proc.setBody(body);
+	}
+
+	private static List<IRExp> entry(Temp t, int location) {
+		if (t.isReference())
+			return List.list(CONST(REFERENCE), CONST(location));
+		if (t.getSaved() != null)
+			return List.list(CONST(register(t.getSaved().toString())), CONST(location));
+		return List.empty();
+	}
+
+	private static int register(String name) {
+		for (int i = 0; i < REGISTERS.length; i++)
+			if (REGISTERS[i].equals(name)) return i;
+		throw new Error("Not a register: " + name);
+	}
+
+	/**
+	 * The maps of all the procedures added so far.
+	 */
+	public AssemData getData() {
+		return new AssemData(new DataFragment(X86_64Frame.factory, DATA(L_GC_MAPS, List.cons(CONST(sites), data))));
+	}
+}
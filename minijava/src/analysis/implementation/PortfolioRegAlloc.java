@@ -0,0 +1,173 @@
+package analysis.implementation;
+
+import ir.temp.Temp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import util.IndentingWriter;
+import util.List;
+import analysis.RegAlloc;
+import analysis.RegAllocTrace;
+import codegen.AssemProc;
+import codegen.assem.A_LABEL;
+import codegen.assem.A_MOVE;
+import codegen.assem.Instr;
+
+/**
+ * Register allocation by trying several allocators and keeping the best result.
+ * <p>
+ * None of the heuristics wins on every procedure: splitting live ranges sometimes
+ * costs more copies than the spilling it avoids, and the SSA allocator spills up
+ * front where the iterated one may get away with less. So each {@link Configuration}
+ * allocates registers for its own {@link AssemProc#copy copy} of the procedure, all
+ * at the same time on a thread pool. Every result is scored by its {@link #cost}, and
+ * the cheapest is {@link AssemProc#adopt adopted} by the real procedure.
+ */
+public class PortfolioRegAlloc extends RegAlloc {
+
+	/**
+	 * The register allocators in the portfolio. If two results cost the same,
+	 * the one that comes first here wins.
+	 */
+	public enum Configuration {
+		ITERATED {
+			RegAlloc allocate(AssemProc proc) {
+				return new SpillingRegAlloc(proc);
+			}
+		},
+		ITERATED_WITHOUT_SPLITTING {
+			RegAlloc allocate(AssemProc proc) {
+				return new SpillingRegAlloc(proc, false);
+			}
+		},
+		SSA {
+			RegAlloc allocate(AssemProc proc) {
+				return new SSARegAlloc(proc);
+			}
+		};
+
+		abstract RegAlloc allocate(AssemProc proc);
+	}
+
+	/**
+	 * Threads for the allocators. They need big stacks (util.List is recursive),
+	 * and mustn't keep the compiler from exiting.
+	 */
+	private static final ExecutorService pool = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(null, r, "regalloc", 64 * 1024 * 1024);
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	/**
+	 * The result of one configuration.
+	 */
+	private static class Result {
+		final Configuration configuration;
+		final AssemProc copy;
+		final Map<Temp, Temp> originals = new HashMap<Temp, Temp>();
+		RegAlloc regAlloc;
+		double cost;
+		Result(Configuration configuration, AssemProc proc) {
+			this.configuration = configuration;
+			this.copy = proc.copy(originals);
+		}
+	}
+
+	private RegAllocTrace trace = new RegAllocTrace();
+	private Result winner;
+
+	public PortfolioRegAlloc(AssemProc proc) {
+		java.util.List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		for (final Configuration configuration : Configuration.values()) {
+			// Copy on this thread: the copies all read the same procedure.
+			final Result result = new Result(configuration, proc);
+			futures.add(pool.submit(new Callable<Result>() {
+				public Result call() {
+					Set<Instr> before = Collections.newSetFromMap(new IdentityHashMap<Instr, Boolean>());
+					for (Instr instr : result.copy.getBody())
+						before.add(instr);
+					result.regAlloc = configuration.allocate(result.copy);
+					result.cost = cost(result.copy.getBody(), before);
+					return result;
+				}
+			}));
+		}
+
+		Throwable failure = null;
+		for (Future<Result> future : futures) {
+			Result result;
+			try {
+				result = future.get();
+			} catch (ExecutionException e) {
+				if (failure == null) failure = e.getCause();
+				trace.note("Failed: " + e.getCause());
+				continue;
+			} catch (InterruptedException e) {
+				throw new Error(e);
+			}
+			trace.note(result.configuration + ": cost " + result.cost);
+			if (winner == null || result.cost < winner.cost)
+				winner = result;
+		}
+		if (winner == null) {
+			if (failure instanceof Error) throw (Error) failure;
+			throw new Error(failure);
+		}
+		trace.note("Using " + winner.configuration + " for " + proc.getLabel());
+		proc.adopt(winner.copy, winner.originals);
+	}
+
+	/**
+	 * Static estimate of how long the allocated code takes to run: the instructions
+	 * that are left, each weighted by the loop depth it is at. Labels and moves between
+	 * Temps of the same color are free. Instructions that weren't in the code before
+	 * allocation and aren't moves are spill loads and stores (or the occasional jump
+	 * around copies on a control flow edge): they count double, since most of them
+	 * go to memory.
+	 * <p>
+	 * So results differ in cost by the spill code, the moves that weren't coalesced,
+	 * and callee save registers that didn't need saving after all.
+	 */
+	static double cost(List<Instr> body, Set<Instr> before) {
+		LoopNest loops = new LoopNest(body);
+		double cost = 0;
+		for (Instr instr : body) {
+			if (instr instanceof A_LABEL) continue;
+			if (instr instanceof A_MOVE) {
+				A_MOVE move = (A_MOVE) instr;
+				if (move.dst.getColor() != null && move.dst.getColor().equals(move.src.getColor()))
+					continue;
+			}
+			double weight = loops.weight(instr);
+			if (!before.contains(instr) && !(instr instanceof A_MOVE))
+				weight *= 2;
+			cost += weight;
+		}
+		return cost;
+	}
+
+	@Override
+	public void dump(IndentingWriter out) {
+		out.println(trace);
+		if (winner != null)
+			out.println(winner.regAlloc);
+	}
+
+	public String getTrace() {
+		return winner == null ? trace.toString() : trace.toString() + winner.regAlloc.getTrace();
+	}
+}
@@ -0,0 +1,915 @@
+package analysis.implementation;
+
+import static ir.tree.IR.MOVE;
+import static ir.tree.IR.TEMP;
+import ir.frame.Frame;
+import ir.temp.Color;
+import ir.temp.Temp;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import util.DefaultIndentable;
+import util.IndentingWriter;
+import util.List;
+import analysis.RegAlloc;
+import analysis.RegAllocTrace;
+import analysis.util.graph.Node;
+import codegen.AssemProc;
+import codegen.assem.A_MOVE;
+import codegen.assem.Instr;
+import codegen.muncher.Muncher;
+
+/**
+ * Register allocation in SSA form: an alternative to {@link SpillingRegAlloc}
+ * that gets by without repeated rounds of building, simplifying and spilling.
+ * <p>
+ * In SSA form every Temp is defined once, and its definition dominates all of
+ * its uses. The interference graph is then chordal, and colouring the Temps in
+ * the order in which a preorder walk of the dominator tree meets their definitions
+ * (a perfect elimination order) never needs more colours than there are Temps live
+ * at one point. So the allocator:
+ * <ol>
+ *   <li> Spills, up front, enough Temps that no more than K (registers included)
+ *   are live at any point. Renaming doesn't change how many Temps are live anywhere,
+ *   so this is decided on the original code, and {@link SpillRewriter} does the
+ *   rewriting.
+ *   <li> Renames the Temps into SSA form. Phi functions are kept on the side, they
+ *   don't appear in the code.
+ *   <li> Colours all Temps in one pass, in dominance order.
+ *   <li> Leaves SSA form: the phi functions at a join point become a
+ *   {@link ParallelCopy} between registers on each incoming edge.
+ * </ol>
+ * Two address instructions (like "addq `s0, `d0", which uses and defines the same
+ * Temp) don't get a new name for their definition: the result has to end up in the
+ * same register anyway, and the live range stays a subtree of the dominator tree.
+ * <p>
+ * Registers are not renamed, and with them in the picture the interference graph
+ * need not be chordal anymore. Mostly this is about calls: they clobber all caller
+ * save registers, so Temps live across a call compete for the callee save registers.
+ * The up front spilling also limits how many of those are live at any point, so
+ * this rarely matters. If some Temp can't be coloured after all (or the code has
+ * a shape the renaming doesn't handle, such as unreachable instructions), the
+ * procedure is translated out of SSA form again and handed to
+ * {@link SpillingRegAlloc}.
+ */
+public class SSARegAlloc extends RegAlloc {
+
+	/**
+	 * A phi function at the start of a join point: def gets the value of args[k]
+	 * when control comes from the k-th predecessor.
+	 */
+	private static class Phi {
+		final Temp original;
+		Temp def;
+		final Temp[] args;
+		Phi(Temp original, int preds) {
+			this.original = original;
+			this.args = new Temp[preds];
+		}
+		@Override
+		public String toString() {
+			return def + " = phi" + Arrays.asList(args);
+		}
+	}
+
+	private RegAllocTrace trace = new RegAllocTrace();
+	private RegAlloc fallback;
+
+	private AssemProc proc;
+	private Frame frame;
+	private final int K;
+	/** Colours in order of preference, as in {@link SimpleRegAlloc}. */
+	private List<Color> calleeSaveFirst;
+	private List<Color> callerSaveFirst;
+
+	// The procedure body as a graph of instruction numbers.
+	private AssemFlowGraph fg;
+	private Instr[] code;
+	private int[][] preds;
+	private int[][] succs;
+	private int[] idom;
+	private int[] rpo;
+	private int[] domChildren;
+	private int[] domChildrenStart;
+	private java.util.List<java.util.List<Phi>> phis;
+
+	// Liveness and interference of the code in SSA form.
+	private Map<Temp, Integer> number = new HashMap<Temp, Integer>();
+	private java.util.List<Temp> temps = new ArrayList<Temp>();
+	private BitSet[] liveIn;
+	private BitSet[] liveOut;
+	private Map<Temp, Set<Temp>> interference = new HashMap<Temp, Set<Temp>>();
+	private Map<Temp, Set<Temp>> related = new HashMap<Temp, Set<Temp>>();
+	private Set<Temp> crossesCall = new HashSet<Temp>();
+
+	private Map<Temp, Color> colorMap = new HashMap<Temp, Color>();
+
+	public SSARegAlloc(AssemProc proc) {
+		this.proc = proc;
+		this.frame = proc.getFrame();
+		List<Color> colors = List.empty();
+		for (Temp reg : frame.registers())
+			colors.add(reg.getColor());
+		this.K = colors.size();
+		List<Color> calleeSave = List.empty();
+		for (Temp reg : frame.calleeSaveRegisters())
+			calleeSave.add(reg.getColor());
+		List<Color> others = colors;
+		for (Color color : calleeSave)
+			others = others.delete(color);
+		this.calleeSaveFirst = calleeSave.append(others);
+		this.callerSaveFirst = others.append(calleeSave);
+
+		trace.round(proc.getLabel().toString(), 1, countTemps(), K);
+		trace.detail("Code:", proc);
+		fg = new AssemFlowGraph(proc.getBody());
+		Map<Temp, List<Instr>> spillCode = spill();
+
+		buildGraph();
+		if (!dominators()) {
+			giveUp("Unreachable code or a jump to the entry", false);
+			return;
+		}
+		toSSA();
+		liveness();
+		interference();
+		trace.detail("SSA form:", ssaDump());
+
+		List<Temp> uncolored = color();
+		if (!uncolored.isEmpty()) {
+			giveUp("Could not colour " + uncolored, true);
+			return;
+		}
+		fromSSA(true);
+		trace.coloring(colorMap);
+		for (Entry<Temp, Color> entry : colorMap.entrySet())
+			entry.getKey().paint(entry.getValue());
+		SpillingRegAlloc.dropUnusedCalleeSaves(proc, spillCode);
+	}
+
+	private int countTemps() {
+		Set<Temp> all = new HashSet<Temp>();
+		for (Instr instr : proc.getBody()) {
+			for (Temp t : instr.use()) all.add(t);
+			for (Temp t : instr.def()) all.add(t);
+		}
+		return all.size();
+	}
+
+	private void giveUp(String why, boolean inSSA) {
+		trace.note(why + ": falling back to " + SpillingRegAlloc.class.getSimpleName());
+		if (inSSA)
+			fromSSA(false);
+		fallback = new SpillingRegAlloc(proc);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Spilling
+
+	/**
+	 * Spill Temps until at most K are live at every point. Right before an
+	 * instruction the Temps it uses count as live, right after it the ones it
+	 * defines.
+	 * <p>
+	 * Calls clobber the caller save registers, so a Temp that is live across
+	 * a call needs a callee save register. The same goes for the callee save
+	 * registers themselves. At most as many of those as there are callee
+	 * save registers may be live at any point, too.
+	 * <p>
+	 * Spilling a Temp helps at the points where it is live but not used or
+	 * defined by the instruction (there, a fresh Temp takes its place). Temps
+	 * are picked greedily, by the number of points they help at relative to
+	 * the number of loads and stores they need (weighted by loop depth).
+	 * <p>
+	 * Returns the spill code, for each spilled Temp.
+	 */
+	private Map<Temp, List<Instr>> spill() {
+		LivenessImplementation<Instr> liveness = new LivenessImplementation<Instr>(fg);
+		LoopNest loops = new LoopNest(proc.getBody());
+		Set<Temp> needCalleeSave = new HashSet<Temp>();
+		for (Temp reg : frame.calleeSaveRegisters())
+			needCalleeSave.add(reg);
+		for (Node<Instr> node : fg.nodes()) {
+			if (node.wrappee().isCall())
+				for (Temp t : liveness.liveOut(node))
+					if (t.getColor() == null && !node.wrappee().def().contains(t)) needCalleeSave.add(t);
+		}
+
+		java.util.List<Integer> excess = new ArrayList<Integer>();
+		Map<Temp, java.util.List<Integer>> helps = new HashMap<Temp, java.util.List<Integer>>();
+		Map<Temp, Double> cost = new HashMap<Temp, Double>();
+		for (Node<Instr> node : fg.nodes()) {
+			Instr instr = node.wrappee();
+			double weight = loops.weight(instr);
+			for (Temp t : instr.use().append(instr.def())) {
+				Double c = cost.get(t);
+				cost.put(t, c == null ? weight : c + weight);
+			}
+			overloaded(liveness.liveIn(node), instr.use(), null, K, excess, helps);
+			overloaded(liveness.liveOut(node), instr.def(), null, K, excess, helps);
+			overloaded(liveness.liveIn(node), instr.use(), needCalleeSave, frame.calleeSaveRegisters().size(), excess, helps);
+		}
+
+		List<Temp> spilled = List.empty();
+		while (true) {
+			Temp best = null;
+			double bestValue = 0;
+			for (Entry<Temp, java.util.List<Integer>> candidate : helps.entrySet()) {
+				int n = 0;
+				for (int point : candidate.getValue())
+					if (excess.get(point) > 0) n++;
+				double value = n / cost.get(candidate.getKey());
+				if (n > 0 && (best == null || value > bestValue)) {
+					best = candidate.getKey();
+					bestValue = value;
+				}
+			}
+			if (best == null) break;
+			spilled.add(best);
+			for (int point : helps.remove(best))
+				excess.set(point, excess.get(point) - 1);
+		}
+		if (spilled.isEmpty())
+			return new HashMap<Temp, List<Instr>>();
+
+		// Share spill slots between spilled Temps that don't interfere.
+		InterferenceGraphImplementation<Instr> ig = new InterferenceGraphImplementation<Instr>(fg);
+		Map<Temp, Color> slots = new HashMap<Temp, Color>();
+		List<Color> spillColors = List.empty();
+		for (Temp t : spilled) {
+			Color slot = null;
+			for (Color color : spillColors) {
+				boolean free = true;
+				for (Node<Temp> other : ig.nodeFor(t).succ())
+					if (color.equals(slots.get(other.wrappee()))) free = false;
+				if (free) {
+					slot = color;
+					break;
+				}
+			}
+			if (slot == null) {
+				slot = new SpillColor(frame);
+				spillColors = spillColors.append(List.list(slot));
+			}
+			slots.put(t, slot);
+		}
+		trace.spilled(spilled, slots);
+		return new SpillRewriter(proc, fg, ig).spill(spilled, slots);
+	}
+
+	/**
+	 * Record a point where too many Temps are live (counting only those in
+	 * the given set, unless it is null), and which Temps would help there.
+	 */
+	private void overloaded(List<Temp> live, List<Temp> referenced, Set<Temp> only, int limit,
+			java.util.List<Integer> excess, Map<Temp, java.util.List<Integer>> helps) {
+		Set<Temp> all = new HashSet<Temp>();
+		for (Temp t : live.append(referenced))
+			if (only == null || only.contains(t)) all.add(t);
+		if (all.size() <= limit) return;
+		int point = excess.size();
+		excess.add(all.size() - limit);
+		for (Temp t : all) {
+			if (t.getColor() != null || referenced.contains(t)) continue;
+			java.util.List<Integer> points = helps.get(t);
+			if (points == null) {
+				points = new ArrayList<Integer>();
+				helps.put(t, points);
+			}
+			points.add(point);
+		}
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Dominators
+
+	private void buildGraph() {
+		List<Instr> body = proc.getBody();
+		code = new Instr[body.size()];
+		Map<Instr, Integer> index = new HashMap<Instr, Integer>();
+		int i = 0;
+		for (Instr instr : body) {
+			index.put(instr, i);
+			code[i++] = instr;
+		}
+		preds = new int[code.length][];
+		succs = new int[code.length][];
+		for (Node<Instr> node : fg.nodes()) {
+			int n = index.get(node.wrappee());
+			preds[n] = indices(node.pred(), index);
+			succs[n] = indices(node.succ(), index);
+		}
+	}
+
+	private static int[] indices(List<Node<Instr>> nodes, Map<Instr, Integer> index) {
+		int[] result = new int[nodes.size()];
+		int i = 0;
+		for (Node<Instr> node : nodes)
+			result[i++] = index.get(node.wrappee());
+		return result;
+	}
+
+	/**
+	 * Compute the dominator tree, with the algorithm by Cooper, Harvey and Kennedy,
+	 * "A Simple, Fast Dominance Algorithm". Returns false if the code has a shape
+	 * we don't deal with: some instruction can't be reached, or the first one
+	 * is a jump target.
+	 */
+	private boolean dominators() {
+		int n = code.length;
+		if (n == 0 || preds[0].length > 0) return false;
+
+		// Reverse postorder, by a depth first search.
+		int[] order = new int[n];
+		int[] postorder = new int[n];
+		int[] next = new int[n];
+		int[] stack = new int[n];
+		boolean[] seen = new boolean[n];
+		int sp = 0, count = 0;
+		stack[sp++] = 0;
+		seen[0] = true;
+		while (sp > 0) {
+			int b = stack[sp - 1];
+			if (next[b] < succs[b].length) {
+				int s = succs[b][next[b]++];
+				if (!seen[s]) {
+					seen[s] = true;
+					stack[sp++] = s;
+				}
+			} else {
+				postorder[count++] = b;
+				sp--;
+			}
+		}
+		if (count < n) return false;
+		rpo = new int[n];
+		for (int k = 0; k < n; k++) {
+			rpo[k] = postorder[n - 1 - k];
+			order[rpo[k]] = k;
+		}
+
+		idom = new int[n];
+		Arrays.fill(idom, -1);
+		idom[0] = 0;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = 1; k < n; k++) {
+				int b = rpo[k];
+				int newIdom = -1;
+				for (int p : preds[b]) {
+					if (idom[p] < 0) continue;
+					newIdom = newIdom < 0 ? p : intersect(p, newIdom, order);
+				}
+				if (idom[b] != newIdom) {
+					idom[b] = newIdom;
+					changed = true;
+				}
+			}
+		}
+
+		// Children of each node in the dominator tree, in reverse postorder.
+		domChildrenStart = new int[n + 1];
+		for (int b = 1; b < n; b++)
+			domChildrenStart[idom[b] + 1]++;
+		for (int b = 0; b < n; b++)
+			domChildrenStart[b + 1] += domChildrenStart[b];
+		domChildren = new int[n];
+		int[] fill = Arrays.copyOf(domChildrenStart, n);
+		for (int k = 1; k < n; k++)
+			domChildren[fill[idom[rpo[k]]]++] = rpo[k];
+		return true;
+	}
+
+	private int intersect(int a, int b, int[] order) {
+		while (a != b) {
+			while (order[a] > order[b]) a = idom[a];
+			while (order[b] > order[a]) b = idom[b];
+		}
+		return a;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Construction of SSA form
+
+	/**
+	 * Place phi functions (at the iterated dominance frontiers of the definitions,
+	 * where the Temp is live) and rename.
+	 */
+	private void toSSA() {
+		int n = code.length;
+		LivenessImplementation<Instr> liveness = new LivenessImplementation<Instr>(fg);
+		Map<Instr, Node<Instr>> nodes = new HashMap<Instr, Node<Instr>>();
+		for (Node<Instr> node : fg.nodes())
+			nodes.put(node.wrappee(), node);
+
+		// Only Temps with more than one definition (not counting two address
+		// instructions), or that may be used before they are defined, need
+		// to be renamed.
+		Map<Temp, java.util.List<Integer>> defSites = new HashMap<Temp, java.util.List<Integer>>();
+		for (int b = 0; b < n; b++) {
+			for (Temp t : code[b].def()) {
+				if (t.getColor() != null || code[b].use().contains(t)) continue;
+				java.util.List<Integer> sites = defSites.get(t);
+				if (sites == null) {
+					sites = new ArrayList<Integer>();
+					defSites.put(t, sites);
+				}
+				if (!sites.contains(b))
+					sites.add(b);
+			}
+		}
+		Set<Temp> liveAtEntry = new HashSet<Temp>();
+		for (Temp t : liveness.liveIn(nodes.get(code[0])))
+			if (t.getColor() == null) liveAtEntry.add(t);
+		Set<Temp> renamed = new HashSet<Temp>();
+		for (Entry<Temp, java.util.List<Integer>> entry : defSites.entrySet())
+			if (entry.getValue().size() > 1 || liveAtEntry.contains(entry.getKey()))
+				renamed.add(entry.getKey());
+
+		java.util.List<java.util.List<Integer>> frontier = dominanceFrontiers();
+		phis = new ArrayList<java.util.List<Phi>>(n);
+		for (int b = 0; b < n; b++)
+			phis.add(new ArrayList<Phi>(0));
+		for (Temp t : renamed) {
+			boolean[] hasPhi = new boolean[n];
+			java.util.List<Integer> work = new ArrayList<Integer>(defSites.get(t));
+			while (!work.isEmpty()) {
+				int d = work.remove(work.size() - 1);
+				for (int b : frontier.get(d)) {
+					if (hasPhi[b] || !liveness.liveIn(nodes.get(code[b])).contains(t)) continue;
+					hasPhi[b] = true;
+					phis.get(b).add(new Phi(t, preds[b].length));
+					work.add(b);
+				}
+			}
+		}
+
+		rename(renamed, liveAtEntry);
+	}
+
+	private java.util.List<java.util.List<Integer>> dominanceFrontiers() {
+		java.util.List<java.util.List<Integer>> frontier = new ArrayList<java.util.List<Integer>>(code.length);
+		for (int b = 0; b < code.length; b++)
+			frontier.add(new ArrayList<Integer>(0));
+		for (int b = 0; b < code.length; b++) {
+			if (preds[b].length < 2) continue;
+			for (int p : preds[b]) {
+				for (int runner = p; runner != idom[b]; runner = idom[runner]) {
+					java.util.List<Integer> df = frontier.get(runner);
+					if (df.isEmpty() || df.get(df.size() - 1) != b)
+						df.add(b);
+				}
+			}
+		}
+		return frontier;
+	}
+
+	/**
+	 * Rename along a preorder walk of the dominator tree, keeping a stack of the
+	 * current names of each Temp. A Temp that may be used before it is defined
+	 * keeps its own name for the value it has on entry.
+	 */
+	private void rename(Set<Temp> renamed, Set<Temp> liveAtEntry) {
+		Map<Temp, java.util.List<Temp>> names = new HashMap<Temp, java.util.List<Temp>>();
+		for (Temp t : renamed) {
+			java.util.List<Temp> stack = new ArrayList<Temp>();
+			if (liveAtEntry.contains(t))
+				stack.add(t);
+			names.put(t, stack);
+		}
+		java.util.List<java.util.List<Temp>> pushed = new ArrayList<java.util.List<Temp>>(code.length);
+		for (int b = 0; b < code.length; b++)
+			pushed.add(null);
+
+		int[] work = new int[2 * code.length];
+		int sp = 0;
+		work[sp++] = 0;
+		while (sp > 0) {
+			int b = work[--sp];
+			if (b < 0) {
+				// Leaving the subtree of ~b.
+				for (Temp t : pushed.get(~b)) {
+					java.util.List<Temp> stack = names.get(t);
+					stack.remove(stack.size() - 1);
+				}
+				continue;
+			}
+			java.util.List<Temp> defined = new ArrayList<Temp>();
+			for (Phi phi : phis.get(b)) {
+				phi.def = new Temp(phi.original);
+				names.get(phi.original).add(phi.def);
+				defined.add(phi.original);
+			}
+			Instr instr = code[b];
+			List<Temp> uses = instr.use();
+			for (Temp t : uses) {
+				if (!renamed.contains(t)) continue;
+				Temp current = current(names, t);
+				if (!current.equals(t))
+					instr.rename(t, current);
+			}
+			for (Temp t : instr.def()) {
+				if (!renamed.contains(t) || uses.contains(t) || !instr.def().contains(t)) continue;
+				Temp fresh = new Temp(t);
+				instr.rename(t, fresh);
+				names.get(t).add(fresh);
+				defined.add(t);
+			}
+			for (int s : succs[b]) {
+				int k = position(b, preds[s]);
+				for (Phi phi : phis.get(s))
+					phi.args[k] = current(names, phi.original);
+			}
+			pushed.set(b, defined);
+			work[sp++] = ~b;
+			for (int c = domChildrenStart[b]; c < domChildrenStart[b + 1]; c++)
+				work[sp++] = domChildren[c];
+		}
+	}
+
+	private static Temp current(Map<Temp, java.util.List<Temp>> names, Temp t) {
+		java.util.List<Temp> stack = names.get(t);
+		return stack.isEmpty() ? t : stack.get(stack.size() - 1);
+	}
+
+	private static int position(int b, int[] nodes) {
+		for (int k = 0; k < nodes.length; k++)
+			if (nodes[k] == b) return k;
+		throw new Error("Not a predecessor: " + b);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Liveness and interference in SSA form
+
+	private int number(Temp t) {
+		Integer i = number.get(t);
+		if (i == null) {
+			i = temps.size();
+			number.put(t, i);
+			temps.add(t);
+		}
+		return i;
+	}
+
+	private BitSet bits(List<Temp> ts) {
+		BitSet set = new BitSet();
+		for (Temp t : ts)
+			set.set(number(t));
+		return set;
+	}
+
+	/**
+	 * The phi functions at a join point define their Temps on entry to it, and
+	 * use their arguments at the end of the predecessors.
+	 */
+	private void liveness() {
+		int n = code.length;
+		BitSet[] use = new BitSet[n];
+		BitSet[] def = new BitSet[n];
+		BitSet[] phiDefs = new BitSet[n];
+		BitSet[] phiUses = new BitSet[n];
+		for (int b = 0; b < n; b++) {
+			use[b] = bits(code[b].use());
+			def[b] = bits(code[b].def());
+			phiDefs[b] = new BitSet();
+			phiUses[b] = new BitSet();
+		}
+		for (int s = 0; s < n; s++) {
+			for (Phi phi : phis.get(s)) {
+				phiDefs[s].set(number(phi.def));
+				for (int k = 0; k < preds[s].length; k++)
+					phiUses[preds[s][k]].set(number(phi.args[k]));
+			}
+		}
+
+		liveIn = new BitSet[n];
+		liveOut = new BitSet[n];
+		for (int b = 0; b < n; b++) {
+			liveIn[b] = new BitSet();
+			liveOut[b] = new BitSet();
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = n - 1; k >= 0; k--) {
+				int b = rpo[k];
+				BitSet out = (BitSet) phiUses[b].clone();
+				for (int s : succs[b]) {
+					BitSet in = (BitSet) liveIn[s].clone();
+					in.andNot(phiDefs[s]);
+					out.or(in);
+				}
+				BitSet in = (BitSet) out.clone();
+				in.andNot(def[b]);
+				in.or(use[b]);
+				liveOut[b] = out;
+				if (!in.equals(liveIn[b])) {
+					liveIn[b] = in;
+					changed = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Two Temps interfere if one is live where the other is defined (except
+	 * the source of a move at its destination). Phi functions define their Temps
+	 * at the start of the join point, and all Temps live on entry to the
+	 * procedure are defined there.
+	 */
+	private void interference() {
+		for (int b = 0; b < code.length; b++) {
+			Instr instr = code[b];
+			Temp src = instr instanceof A_MOVE ? ((A_MOVE) instr).src : null;
+			List<Temp> defs = instr.def();
+			for (Temp d : defs) {
+				for (int i = liveOut[b].nextSetBit(0); i >= 0; i = liveOut[b].nextSetBit(i + 1)) {
+					Temp live = temps.get(i);
+					if (!live.equals(src)) interfere(d, live);
+				}
+				for (Temp other : defs) interfere(d, other);
+			}
+			if (src != null) {
+				relate(((A_MOVE) instr).dst, src);
+			}
+			if (instr.isCall()) {
+				for (int i = liveOut[b].nextSetBit(0); i >= 0; i = liveOut[b].nextSetBit(i + 1))
+					if (!defs.contains(temps.get(i))) crossesCall.add(temps.get(i));
+			}
+			java.util.List<Phi> here = phis.get(b);
+			for (Phi phi : here) {
+				for (int i = liveIn[b].nextSetBit(0); i >= 0; i = liveIn[b].nextSetBit(i + 1))
+					interfere(phi.def, temps.get(i));
+				for (Phi other : here)
+					interfere(phi.def, other.def);
+				for (Temp arg : phi.args)
+					relate(phi.def, arg);
+			}
+		}
+		for (int i = liveIn[0].nextSetBit(0); i >= 0; i = liveIn[0].nextSetBit(i + 1))
+			for (int j = liveIn[0].nextSetBit(0); j >= 0; j = liveIn[0].nextSetBit(j + 1))
+				interfere(temps.get(i), temps.get(j));
+	}
+
+	private void interfere(Temp a, Temp b) {
+		if (a.equals(b)) return;
+		add(interference, a, b);
+		add(interference, b, a);
+	}
+
+	private void relate(Temp a, Temp b) {
+		if (a.equals(b)) return;
+		add(related, a, b);
+		add(related, b, a);
+	}
+
+	private static void add(Map<Temp, Set<Temp>> map, Temp a, Temp b) {
+		Set<Temp> set = map.get(a);
+		if (set == null) {
+			set = new HashSet<Temp>();
+			map.put(a, set);
+		}
+		set.add(b);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Colouring
+
+	/**
+	 * Colour every Temp at its definition, in dominance order. Returns the
+	 * Temps for which no register was left.
+	 */
+	private List<Temp> color() {
+		List<Temp> failed = List.empty();
+		for (int i = liveIn[0].nextSetBit(0); i >= 0; i = liveIn[0].nextSetBit(i + 1))
+			failed = color(temps.get(i), failed);
+		int[] work = new int[code.length];
+		int sp = 0;
+		work[sp++] = 0;
+		while (sp > 0) {
+			int b = work[--sp];
+			for (Phi phi : phis.get(b))
+				failed = color(phi.def, failed);
+			for (Temp t : code[b].def())
+				failed = color(t, failed);
+			for (int c = domChildrenStart[b]; c < domChildrenStart[b + 1]; c++)
+				work[sp++] = domChildren[c];
+		}
+		return failed;
+	}
+
+	private List<Temp> color(Temp t, List<Temp> failed) {
+		if (getColor(t) != null || failed.contains(t)) return failed;
+		Set<Color> taken = new HashSet<Color>();
+		Set<Temp> neighbours = interference.get(t);
+		if (neighbours != null)
+			for (Temp other : neighbours) {
+				Color color = getColor(other);
+				if (color != null) taken.add(color);
+			}
+		// Colours of move related Temps first, so the move disappears.
+		Set<Temp> partners = related.get(t);
+		if (partners != null)
+			for (Temp other : partners) {
+				Color color = getColor(other);
+				if (color != null && color.isRegister() && !taken.contains(color)) {
+					colorMap.put(t, color);
+					return failed;
+				}
+			}
+		for (Color color : crossesCall.contains(t) ? calleeSaveFirst : callerSaveFirst) {
+			if (!taken.contains(color)) {
+				colorMap.put(t, color);
+				return failed;
+			}
+		}
+		return List.cons(t, failed);
+	}
+
+	private Color getColor(Temp t) {
+		Color color = t.getColor();
+		return color != null ? color : colorMap.get(t);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Leaving SSA form
+
+	/**
+	 * Replace the phi functions by copies on the incoming edges: between
+	 * registers if the Temps have been coloured, otherwise (when giving up)
+	 * between Temps.
+	 */
+	private void fromSSA(boolean colored) {
+		if (colored)
+			coalescePhis();
+		CodeInserter inserter = new CodeInserter(proc, fg);
+		for (int s = 0; s < code.length; s++) {
+			if (phis.get(s).isEmpty()) continue;
+			for (int k = 0; k < preds[s].length; k++) {
+				int p = preds[s][k];
+				ParallelCopy<?, Instr> copy = colored ? new RegisterCopy(phis.get(s), k, p) : tempCopy(phis.get(s), k);
+				if (!copy.isEmpty())
+					inserter.onEdge(p, s, copy.sequentialise());
+			}
+		}
+		inserter.rewrite();
+	}
+
+	/**
+	 * A phi function and an argument that got the same colour need no copy. Give
+	 * them the same name too, so that the code still makes sense in terms of Temps
+	 * (e.g. when the interference graph is rebuilt from it).
+	 */
+	private void coalescePhis() {
+		Map<Temp, Temp> parent = new HashMap<Temp, Temp>();
+		for (java.util.List<Phi> here : phis)
+			for (Phi phi : here)
+				for (Temp arg : phi.args)
+					if (getColor(phi.def).equals(getColor(arg)))
+						parent.put(find(parent, arg), find(parent, phi.def));
+		if (parent.isEmpty()) return;
+		for (Instr instr : code) {
+			for (Temp t : instr.use().append(instr.def())) {
+				Temp r = find(parent, t);
+				if (!r.equals(t)) instr.rename(t, r);
+			}
+		}
+		for (java.util.List<Phi> here : phis)
+			for (Phi phi : here) {
+				phi.def = find(parent, phi.def);
+				for (int k = 0; k < phi.args.length; k++)
+					phi.args[k] = find(parent, phi.args[k]);
+			}
+	}
+
+	private static Temp find(Map<Temp, Temp> parent, Temp t) {
+		Temp p = parent.get(t);
+		if (p == null || p.equals(t)) return t;
+		Temp root = find(parent, p);
+		parent.put(t, root);
+		return root;
+	}
+
+	private ParallelCopy<Temp, Instr> tempCopy(java.util.List<Phi> here, int k) {
+		ParallelCopy<Temp, Instr> copy = new ParallelCopy<Temp, Instr>() {
+			@Override
+			protected List<Instr> move(Temp dst, Temp src) {
+				return munch(MOVE(TEMP(dst), TEMP(src)));
+			}
+			@Override
+			protected Temp spare() {
+				return new Temp();
+			}
+		};
+		for (Phi phi : here)
+			copy.add(phi.def, phi.args[k]);
+		return copy;
+	}
+
+	/**
+	 * The copies for the phi functions at a join point, on the edge from its k-th
+	 * predecessor p, between registers. The moves are between the Temps of the phi
+	 * functions and their arguments: a register holds the argument until it is
+	 * written, and the phi function's Temp afterwards. A cycle of copies goes
+	 * through a register that is free on the edge, or through memory if there
+	 * is none.
+	 */
+	private class RegisterCopy extends ParallelCopy<Color, Instr> {
+		private int p;
+		private java.util.List<Phi> here;
+		private Map<Color, Temp> defs = new HashMap<Color, Temp>();
+		private Map<Color, Temp> args = new HashMap<Color, Temp>();
+		private Set<Color> written = new HashSet<Color>();
+		private Color spare;
+		private Temp spareTemp;
+
+		RegisterCopy(java.util.List<Phi> here, int k, int p) {
+			this.here = here;
+			this.p = p;
+			for (Phi phi : here) {
+				Color def = getColor(phi.def);
+				Color arg = getColor(phi.args[k]);
+				add(def, arg);
+				defs.put(def, phi.def);
+				args.put(arg, phi.args[k]);
+			}
+		}
+
+		@Override
+		protected List<Instr> move(Color dst, Color src) {
+			IRExp from = location(src, written.contains(src) ? defs.get(src) : args.get(src));
+			IRExp to = location(dst, defs.get(dst));
+			written.add(dst);
+			return munch(MOVE(to, from));
+		}
+
+		private IRExp location(Color color, Temp t) {
+			if (color != spare)
+				return TEMP(t);
+			if (spare instanceof SpillColor)
+				return ((SpillColor) spare).getLocation();
+			return TEMP(spareTemp);
+		}
+
+		@Override
+		protected Color spare() {
+			Set<Color> taken = new HashSet<Color>();
+			for (int i = liveOut[p].nextSetBit(0); i >= 0; i = liveOut[p].nextSetBit(i + 1))
+				taken.add(getColor(temps.get(i)));
+			for (Phi phi : here)
+				taken.add(getColor(phi.def));
+			for (Color color : callerSaveFirst) {
+				if (!taken.contains(color)) {
+					spare = color;
+					spareTemp = new Temp();
+					colorMap.put(spareTemp, color);
+					return spare;
+				}
+			}
+			spare = new SpillColor(frame);
+			return spare;
+		}
+	}
+
+	private List<Instr> munch(IRStm stm) {
+		Muncher m = proc.newMuncher();
+		m.munch(stm);
+		return m.getInstructions();
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+
+	private Object ssaDump() {
+		return new DefaultIndentable() {
+			@Override
+			public void dump(IndentingWriter out) {
+				for (int b = 0; b < code.length; b++) {
+					for (Phi phi : phis.get(b))
+						out.println("    " + phi);
+					out.println(code[b]);
+				}
+			}
+		};
+	}
+
+	@Override
+	public void dump(IndentingWriter out) {
+		out.println(trace);
+		if (fallback != null)
+			out.println(fallback);
+	}
+
+	public String getTrace() {
+		return fallback == null ? trace.toString() : trace.toString() + fallback.getTrace();
+	}
+}
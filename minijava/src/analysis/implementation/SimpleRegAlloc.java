@@ -18,6 +18,7 @@ import analysis.FlowGraph;
 import analysis.InterferenceGraph;
 import analysis.InterferenceGraph.Move;
 import analysis.RegAlloc;
+import analysis.RegAllocTrace;
 import analysis.util.graph.Node;
 import codegen.AssemProc;
 import codegen.assem.Instr;
@@ -25,14 +26,24 @@ import codegen.assem.Instr;
 public class SimpleRegAlloc extends RegAlloc {
 
 	private AssemProc proc;
-	private String trace = "";
+	private RegAllocTrace trace;
 	private FlowGraph<Instr> fg;
 	private InterferenceGraph ig;
+	private LivenessImplementation<Instr> liveness;
 	private Frame frame;
 
 	private Map<Temp, Color> colorMap = new HashMap<Temp, Color>();
 	private List<Temp> registers;
 	private List<Color> colors;
+	/**
+	 * The colors in order of preference, for Temps that are live across a
+	 * call, and for those that aren't. Using a caller save register for a
+	 * Temp that isn't live across a call costs nothing, while a callee save
+	 * register would have to be saved and restored by the procedure.
+	 */
+	private List<Color> calleeSaveFirst;
+	private List<Color> callerSaveFirst;
+	private Set<Temp> crossesCall = new HashSet<Temp>();
 	private List<Color> spillColors = List.empty();
 	private int iteration;
 
@@ -46,11 +57,23 @@ public class SimpleRegAlloc extends RegAlloc {
 	private Set<Temp> precoloured = new HashSet<Temp>();
   private java.util.List<Temp> simplifyCandidates = new ArrayList<Temp>();
   private java.util.List<Temp> spillCandidates = new ArrayList<Temp>();
+  /**
+   * For each Temp, the Temps it is moved to or from. Coloring tries their
+   * colours first, so that the move can be dropped. 
+   */
   private Map<Temp, Set<Temp>> moveRelatedRegisters = new HashMap<Temp, Set<Temp>>();
+  private Map<Temp, Double> spillCost = new HashMap<Temp, Double>();
+  
+  /**
+   * Simplify "removes" nodes from the graph by recording them here and updating
+   * the degree of their neighbours, rather than really removing them. That way
+   * the graph survives the simplify phase and needn't be rebuilt for select.
+   */
+  private Set<Temp> simplified = new HashSet<Temp>();
+  private Map<Temp, Integer> degree = new HashMap<Temp, Integer>();
   
 	@Override
 	public void dump(IndentingWriter out) {
-		out.println(trace);
 		out.println("Coloring {");
 		out.indent();
 		for (Temp temp : colorMap.keySet()) {
@@ -74,13 +97,23 @@ public class SimpleRegAlloc extends RegAlloc {
 	}
 
 	public SimpleRegAlloc(AssemProc proc) {
-		this(proc, 1);
+		this(proc, FlowGraph.build(proc.getBody()), new RegAllocTrace());
 	}
 
-	public SimpleRegAlloc(AssemProc proc, int iteration) {
+	@SuppressWarnings("unchecked")
+	private SimpleRegAlloc(AssemProc proc, FlowGraph<Instr> fg, RegAllocTrace trace) {
+		this(proc, fg, (InterferenceGraphImplementation<Instr>) fg.getInterferenceGraph(), 1, trace);
+	}
+
+	/**
+	 * Allocate registers using an already built flow graph and interference graph.
+	 * The graphs are not modified, so the caller may patch them up after spilling
+	 * and run another round on them (see {@link SpillingRegAlloc}).
+	 */
+	public SimpleRegAlloc(AssemProc proc, FlowGraph<Instr> fg, InterferenceGraphImplementation<Instr> ig, int iteration, RegAllocTrace trace) {
 		this.proc = proc;
 		this.iteration = iteration;
-		this.trace += proc.toString();
+		this.trace = trace;
 		this.frame = proc.getFrame();
 		this.registers = frame.registers();
 		this.K = registers.size();
@@ -88,15 +121,29 @@ public class SimpleRegAlloc extends RegAlloc {
 		this.colors = List.empty();
 		for (Temp reg : registers) 
 			colors.add(reg.getColor());
+		List<Color> calleeSave = List.empty();
+		for (Temp reg : frame.calleeSaveRegisters())
+			calleeSave.add(reg.getColor());
+		List<Color> others = colors;
+		for (Color color : calleeSave)
+			others = others.delete(color);
+		this.calleeSaveFirst = calleeSave.append(others);
+		this.callerSaveFirst = others.append(calleeSave);
 
-		build();
-		this.trace += "\n" + "Flow graph:\n" + fg.toString();
-		this.trace += ig.toString();
+		this.fg = fg;
+		this.ig = ig;
+		this.liveness = ig.getLiveness();
+		this.ig.name = proc.getLabel().toString() + " round " + iteration;
+		trace.round(proc.getLabel().toString(), iteration, ig.nodes().size(), K);
+		trace.detail("Code:", proc);
+		trace.detail("Flow graph:", fg);
+		trace.detail("Interference graph:", ig);
 
 		process();
 
-		build(); // must rebuild the graph, since simplify should destroy it.
 		color(colorOrdering);
+		trace.spilled(spilled, colorMap);
+		trace.coloring(colorMap);
 	}
 
 	private void color(List<Temp> toColor) {
@@ -105,11 +152,13 @@ public class SimpleRegAlloc extends RegAlloc {
 		boolean success;
 
 		List<Color> moveRelatedColors = List.empty();
-		List<Color> nonMoveRelatedColors = colors;
+		List<Color> nonMoveRelatedColors = crossesCall.contains(t) ? calleeSaveFirst : callerSaveFirst;
 		
 		if (moveRelatedRegisters.containsKey(t)) {
 		  for (Temp temp : moveRelatedRegisters.get(t)) {
-		    moveRelatedColors = List.cons(temp.getColor(), moveRelatedColors);
+		    Color color = getColor(temp);
+		    if (color != null && color.isRegister() && !moveRelatedColors.contains(color))
+		      moveRelatedColors = List.cons(color, moveRelatedColors);
 		  }
 		  
 		  for (Color color : moveRelatedColors) {
@@ -157,15 +206,6 @@ public class SimpleRegAlloc extends RegAlloc {
 		return true;
 	}
 
-	/**
-	 * Start by building the interference graph for the procedure body.
-	 */
-	private void build() {
-		this.fg = FlowGraph.build(proc.getBody());
-		this.ig = fg.getInterferenceGraph();
-		this.ig.name = proc.getLabel().toString() + " round " + iteration;
-	}
-
 	/**
 	 * Returns a List of Temp's (a stack really) which suggest the order
 	 * in which nodes should be assigned colors.
@@ -187,6 +227,7 @@ public class SimpleRegAlloc extends RegAlloc {
 	private void prepareForAllocation() {
 	  for (Node<Temp> node : ig.nodes()) {
 	    Temp temp = node.wrappee();
+	    degree.put(temp, node.outDegree());
 	    if (temp.getColor() != null) {
         precoloured.add(temp);
       } else if (node.outDegree() >= K) {
@@ -217,13 +258,73 @@ public class SimpleRegAlloc extends RegAlloc {
 	      }
 	      moveRelatedRegisters.get(dst).add(src);
 	    }
+	    
+	    // Between two ordinary Temps (e.g. the copies made by live range
+	    // splitting): whichever is coloured second prefers the colour of
+	    // the other.
+	    if (!precoloured.contains(src) && !precoloured.contains(dst)) {
+	      if (!moveRelatedRegisters.containsKey(src)) {
+	        moveRelatedRegisters.put(src, new HashSet<Temp>());
+	      }
+	      if (!moveRelatedRegisters.containsKey(dst)) {
+	        moveRelatedRegisters.put(dst, new HashSet<Temp>());
+	      }
+	      moveRelatedRegisters.get(src).add(dst);
+	      moveRelatedRegisters.get(dst).add(src);
+	    }
+	  }
+	  
+	  computeSpillCosts();
+	  findCallCrossings();
+	}
+	
+	private void findCallCrossings() {
+	  for (Node<Instr> node : fg.nodes()) {
+	    if (node.wrappee().isCall()) {
+	      for (Temp t : liveness.liveOut(node)) {
+	        if (!fg.def(node).contains(t))
+	          crossesCall.add(t);
+	      }
+	    }
+	  }
+	}
+	
+	/**
+	 * Estimate what spilling each Temp would cost: the number of loads and
+	 * stores needed, weighted by loop depth. Temps that are live across no
+	 * more than two instructions can't be helped by spilling, because the 
+	 * spill code would need a Temp just as long.
+	 */
+	private void computeSpillCosts() {
+	  LoopNest loops = new LoopNest(proc.getBody());
+	  Map<Temp, Integer> span = new HashMap<Temp, Integer>();
+	  for (Node<Instr> node : fg.nodes()) {
+	    double weight = loops.weight(node.wrappee());
+	    for (Temp t : fg.use(node).append(fg.def(node))) {
+	      Double cost = spillCost.get(t);
+	      spillCost.put(t, cost == null ? weight : cost + weight);
+	    }
+	    for (Temp t : liveness.liveOut(node)) {
+	      Integer n = span.get(t);
+	      span.put(t, n == null ? 1 : n + 1);
+	    }
+	  }
+	  for (Temp t : spillCost.keySet()) {
+	    Integer n = span.get(t);
+	    if (n == null || n <= 2)
+	      spillCost.put(t, Double.POSITIVE_INFINITY);
 	  }
 	}
 	
 	private void simplify() {
 	  Temp head = simplifyCandidates.remove(0);
 	  colorOrdering = List.cons(head, colorOrdering);
-    ig.rmNode(ig.nodeFor(head));
+    simplified.add(head);
+    for (Node<Temp> neighbour : ig.nodeFor(head).succ()) {
+      Temp t = neighbour.wrappee();
+      if (!simplified.contains(t))
+        degree.put(t, degree.get(t) - 1);
+    }
     checkSpill();
 	}
 	
@@ -232,15 +333,30 @@ public class SimpleRegAlloc extends RegAlloc {
     while (iterator.hasNext()) {
       Temp next = iterator.next();
       
-      if (ig.nodeFor(next).outDegree() < K) {
+      if (degree.get(next) < K) {
         simplifyCandidates.add(next);
         iterator.remove();
       }
     }
   }
 	
+	/**
+	 * Pick the candidate that is cheapest to spill relative to the number
+	 * of neighbours it frees a colour for.
+	 */
 	private void selectSpill() {
-	  Temp temp = spillCandidates.remove(0);
+	  Temp temp = null;
+	  double best = 0;
+	  for (Temp candidate : spillCandidates) {
+	    Double cost = spillCost.get(candidate);
+	    double c = (cost == null ? 0 : cost) / degree.get(candidate);
+	    if (temp == null || c < best) {
+	      temp = candidate;
+	      best = c;
+	    }
+	  }
+	  spillCandidates.remove(temp);
+	  trace.potentialSpill(temp, degree.get(temp));
 	  simplifyCandidates.add(temp);
   }
 	
@@ -274,6 +390,6 @@ public class SimpleRegAlloc extends RegAlloc {
 	}
 
 	public String getTrace() {
-		return this.toString();
+		return trace.toString();
 	}
 }
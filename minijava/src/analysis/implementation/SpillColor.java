@@ -46,6 +46,10 @@ public class SpillColor extends Color {
 		return location;
 	}
 
+	public Access getAccess() {
+		return access;
+	}
+
 	/**
 	 * A Pat<Temp> that only matches a Temp if it is colored
 	 * with a SpillColor instance.
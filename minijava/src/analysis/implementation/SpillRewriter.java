@@ -0,0 +1,184 @@
+package analysis.implementation;
+
+import static ir.tree.IR.MOVE;
+import static ir.tree.IR.TEMP;
+import ir.temp.Color;
+import ir.temp.Temp;
+import ir.tree.IRStm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import util.List;
+import analysis.util.graph.Node;
+import codegen.AssemProc;
+import codegen.assem.A_MOVE;
+import codegen.assem.Instr;
+import codegen.muncher.Muncher;
+
+/**
+ * Inserts spill code for spilled Temps directly into the assembly code of a
+ * procedure, instead of painting them and re-munching the whole procedure
+ * from its IR.
+ * <p>
+ * Every instruction that mentions a spilled Temp is rewritten to use a fresh
+ * Temp instead, which is loaded from the spill slot right before the instruction
+ * and/or stored into it right after. Moves from or to a spilled Temp become a
+ * single load or store.
+ * <p>
+ * The fresh Temps only live across one or two instructions, so only the flow
+ * graph, liveness and interference graph around the rewritten instructions
+ * need to change. These are patched in place, so the next round of register
+ * allocation can reuse them rather than rebuilding them for the whole procedure.
+ */
+public class SpillRewriter {
+
+	private AssemProc proc;
+	private AssemFlowGraph fg;
+	private InterferenceGraphImplementation<Instr> ig;
+	private LivenessImplementation<Instr> liveness;
+	private Map<Temp, List<Instr>> spillCode;
+
+	public SpillRewriter(AssemProc proc, AssemFlowGraph fg, InterferenceGraphImplementation<Instr> ig) {
+		this.proc = proc;
+		this.fg = fg;
+		this.ig = ig;
+		this.liveness = ig.getLiveness();
+	}
+
+	/**
+	 * Rewrite the procedure so that none of the spilled Temps occur in it anymore.
+	 * Each spilled Temp must be colored with a {@link SpillColor} in the colorMap.
+	 * <p>
+	 * Returns the loads and stores that were inserted for each spilled Temp.
+	 */
+	public Map<Temp, List<Instr>> spill(List<Temp> spilled, Map<Temp, Color> colorMap) {
+		spillCode = new HashMap<Temp, List<Instr>>();
+		Map<Temp, SpillColor> slots = new HashMap<Temp, SpillColor>();
+		for (Temp t : spilled)
+			slots.put(t, (SpillColor) colorMap.get(t));
+
+		for (Node<Instr> node : fg.nodes()) {
+			Instr instr = node.wrappee();
+			if (!instr.isCall()) continue;
+			for (Temp t : liveness.liveOut(node))
+				if (slots.containsKey(t) && !instr.def().contains(t))
+					proc.spilledAcross(instr, t, slots.get(t));
+		}
+		liveness.forget(slots.keySet());
+		for (Temp t : spilled)
+			ig.remove(t);
+
+		Map<Instr, List<Instr>> rewritten = new HashMap<Instr, List<Instr>>();
+		// Copy the node list, we'll be adding nodes to the graph as we go.
+		java.util.List<Node<Instr>> nodes = new ArrayList<Node<Instr>>();
+		for (Node<Instr> node : fg.nodes())
+			nodes.add(node);
+		for (Node<Instr> node : nodes) {
+			Instr instr = node.wrappee();
+			if (!mentions(instr, slots)) continue;
+
+			List<Temp> out = liveness.liveOut(node);
+			List<Instr> group = rewrite(instr, slots);
+			List<Node<Instr>> spliced = splice(node, group);
+			liveness.update(spliced, out);
+			for (Node<Instr> n : spliced)
+				ig.addInterference(n);
+			rewritten.put(instr, group);
+		}
+
+		List<Instr> body = List.empty();
+		for (Instr instr : proc.getBody()) {
+			List<Instr> group = rewritten.get(instr);
+			if (group == null)
+				body.add(instr);
+			else
+				for (Instr i : group) body.add(i);
+		}
+		proc.setBody(body);
+		return spillCode;
+	}
+
+	private boolean mentions(Instr instr, Map<Temp, SpillColor> slots) {
+		for (Temp t : instr.use())
+			if (slots.containsKey(t)) return true;
+		for (Temp t : instr.def())
+			if (slots.containsKey(t)) return true;
+		return false;
+	}
+
+	/**
+	 * Compute the instructions that replace a given instruction.
+	 */
+	private List<Instr> rewrite(Instr instr, Map<Temp, SpillColor> slots) {
+		if (instr instanceof A_MOVE) {
+			A_MOVE move = (A_MOVE) instr;
+			SpillColor src = slots.get(move.src);
+			SpillColor dst = slots.get(move.dst);
+			if (dst == null)
+				return record(move.src, munch(MOVE(TEMP(move.dst), src.getLocation())));
+			if (src == null)
+				return record(move.dst, munch(MOVE(dst.getLocation(), TEMP(move.src))));
+			if (src == dst)
+				return List.empty(); // Same spill slot: nothing to do.
+			Temp t = new Temp(move.src);
+			List<Instr> load = record(move.src, munch(MOVE(TEMP(t), src.getLocation())));
+			return load.append(record(move.dst, munch(MOVE(dst.getLocation(), TEMP(t)))));
+		}
+
+		List<Instr> loads = List.empty();
+		List<Instr> stores = List.empty();
+		List<Temp> done = List.empty();
+		for (Temp t : instr.use().append(instr.def())) {
+			SpillColor slot = slots.get(t);
+			if (slot == null || done.contains(t)) continue;
+			done = List.cons(t, done);
+			Temp fresh = new Temp(t);
+			if (instr.use().contains(t))
+				loads = loads.append(record(t, munch(MOVE(TEMP(fresh), slot.getLocation()))));
+			if (instr.def().contains(t))
+				stores = stores.append(record(t, munch(MOVE(slot.getLocation(), TEMP(fresh)))));
+			instr.rename(t, fresh);
+		}
+		return loads.append(List.list(instr)).append(stores);
+	}
+
+	private List<Instr> record(Temp spilled, List<Instr> code) {
+		List<Instr> already = spillCode.get(spilled);
+		spillCode.put(spilled, already == null ? code : already.append(code));
+		return code;
+	}
+
+	private List<Instr> munch(IRStm stm) {
+		Muncher m = proc.newMuncher();
+		m.munch(stm);
+		return m.getInstructions();
+	}
+
+	/**
+	 * Put the replacement instructions for a node into the flow graph, and
+	 * return the nodes for them in execution order.
+	 */
+	private List<Node<Instr>> splice(Node<Instr> node, List<Instr> group) {
+		Instr instr = node.wrappee();
+		List<Node<Instr>> nodes = List.empty();
+		boolean after = false;
+		Node<Instr> last = node;
+		for (Instr i : group) {
+			if (i == instr) {
+				after = true;
+				nodes.add(node);
+			}
+			else if (after) {
+				last = fg.insertAfter(last, i);
+				nodes.add(last);
+			}
+			else
+				nodes.add(fg.insertBefore(node, i));
+		}
+		if (!group.contains(instr))
+			fg.remove(node);
+		return nodes;
+	}
+}
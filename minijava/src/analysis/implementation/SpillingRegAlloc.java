@@ -3,27 +3,52 @@ package analysis.implementation;
 import ir.temp.Color;
 import ir.temp.Temp;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import util.IndentingWriter;
+import util.List;
 
 import codegen.AssemProc;
+import codegen.assem.Instr;
 
 import analysis.RegAlloc;
+import analysis.RegAllocTrace;
 
 
 /**
  * A slightly better implementation of Register allocation. It properly
- * deals with spilled temps by rewriting the procedure body and trying again.
+ * deals with spilled temps by inserting spill code into the procedure body
+ * and trying again.
+ * <p>
+ * Before spilling a Temp everywhere, {@link LiveRangeSplitter} tries to split
+ * its live range, so that only part of it needs to be spilled.
+ * <p>
+ * The flow graph, liveness and interference graph are built only once, unless
+ * live ranges are split. After each round, {@link SpillRewriter} patches them
+ * in place around the spill code it inserts.
  */
 public class SpillingRegAlloc extends RegAlloc {
 	// Records the result of each iteration: for debugging.
-	private String trace = "";
+	private RegAllocTrace trace = new RegAllocTrace();
 
 	public SpillingRegAlloc(AssemProc proc) {
-		SimpleRegAlloc simple = new SimpleRegAlloc(proc);
-		int lastSpilled = Integer.MAX_VALUE;
+		this(proc, true);
+	}
+
+	/**
+	 * @param splitLiveRanges whether to try {@link LiveRangeSplitter} before spilling.
+	 */
+	public SpillingRegAlloc(AssemProc proc, boolean splitLiveRanges) {
+		AssemFlowGraph fg = new AssemFlowGraph(proc.getBody());
+		InterferenceGraphImplementation<Instr> ig = new InterferenceGraphImplementation<Instr>(fg);
+		SpillRewriter rewriter = new SpillRewriter(proc, fg, ig);
+		LiveRangeSplitter splitter = new LiveRangeSplitter(proc);
+		Map<Temp, List<Instr>> spillCode = new HashMap<Temp, List<Instr>>();
 		int iteration = 1;
+		SimpleRegAlloc simple = new SimpleRegAlloc(proc, fg, ig, iteration, trace);
+		int lastSpilled = Integer.MAX_VALUE;
 		while (!simple.getSpilled().isEmpty()) {
 			// If we have more spills this time than last time, we aren't making good progress
 			if (simple.getSpilled().size() >= lastSpilled && iteration > 4) {
@@ -31,19 +56,23 @@ public class SpillingRegAlloc extends RegAlloc {
 				System.out.println(simple);
 				throw new Error("More spilled registers this time (" + simple.getSpilled().size() + ") than last time (" + lastSpilled + ")");
 			}
-			// We'll paint the spilled Temp's with their spill color.
-			// This permanently marks them as spilled so when we 
-			// rewrite the code we can deal with them specially.
-			// (We'll simply add a special munching rule that matches spilled
-			// TEMP nodes to our IR Munching rules.
 			lastSpilled = simple.getSpilled().size();
-			for (Temp spilled : simple.getSpilled()) {
-				spilled.paint(simple.getColorMap().get(spilled));
-			}
-			trace += "Register allocation iteration " + iteration + "\n" + simple.toString();
 			iteration++;
-			proc.rewrite();
-			simple = new SimpleRegAlloc(proc);
+			List<Temp> spilled = simple.getSpilled();
+			List<Temp> split = splitLiveRanges ? splitter.split(spilled, fg, ig.getLiveness()) : List.<Temp>empty();
+			if (!split.isEmpty()) {
+				// Splitting changes liveness all over the place: start afresh.
+				// Progress is measured from here on.
+				trace.split(split);
+				for (Temp t : split)
+					spilled = spilled.delete(t);
+				fg = new AssemFlowGraph(proc.getBody());
+				ig = new InterferenceGraphImplementation<Instr>(fg);
+				rewriter = new SpillRewriter(proc, fg, ig);
+				lastSpilled = Integer.MAX_VALUE;
+			}
+			spillCode.putAll(rewriter.spill(spilled, simple.getColorMap()));
+			simple = new SimpleRegAlloc(proc, fg, ig, iteration, trace);
 		}
 
 		// The last allocation should be good, with no spills!
@@ -51,7 +80,38 @@ public class SpillingRegAlloc extends RegAlloc {
 		for (Entry<Temp, Color> entry : simple.getColorMap().entrySet()) {
 			entry.getKey().paint(entry.getValue());
 		}
-		trace += "Register allocation iteration " + iteration + "\n" + simple.toString();
+		dropUnusedCalleeSaves(proc, spillCode);
+	}
+
+	/**
+	 * procEntryExit1 saves and restores every callee save register. Remove
+	 * that code for the registers that the procedure doesn't modify after all.
+	 */
+	static void dropUnusedCalleeSaves(AssemProc proc, Map<Temp, List<Instr>> spillCode) {
+		for (Entry<Temp, Temp> saved : proc.getFrame().getSavedRegisters().entrySet()) {
+			Color reg = saved.getKey().getColor();
+			// The save and restore: moves, or a store and a load if the Temp was spilled.
+			List<Instr> code = spillCode.get(saved.getValue());
+			if (code == null) {
+				code = List.empty();
+				for (Instr instr : proc.getBody())
+					if (instr.def().contains(saved.getValue()) || instr.use().contains(saved.getValue()))
+						code.add(instr);
+			}
+			if (code.size() != 2) continue; // Not what we expected (e.g. split): leave it alone.
+
+			boolean used = false;
+			for (Instr instr : proc.getBody()) {
+				if (code.contains(instr)) continue;
+				for (Temp def : instr.def())
+					if (reg.equals(def.getColor())) used = true;
+			}
+			if (!used) {
+				for (Instr instr : code)
+					proc.remove(instr);
+				proc.forgetSpilled(saved.getValue());
+			}
+		}
 	}
 
 	@Override
@@ -61,6 +121,6 @@ public class SpillingRegAlloc extends RegAlloc {
 	}
 
 	public String getTrace() {
-		return trace;
+		return trace.toString();
 	}
 }
@@ -117,6 +117,8 @@ public class Graph<N> extends DefaultIndentable {
 		for (Node<N> succ : node.succ())
 			rmEdge(node, succ);
 		mynodes = mynodes.delete(node);
+		if (nodeMap != null && nodeMap.get(node.wrappee()) == node)
+			nodeMap.remove(node.wrappee());
 	}
 
 	/**
@@ -6,6 +6,10 @@ public class InstanceOf extends Expression {
   
   public final String identifier;
   public final String className;
+  /**
+   * The static type of the identifier, set by the type checking phase.
+   */
+  private Type identifierType;
   
   public InstanceOf(String identifier, String className) {
     super();
@@ -13,6 +17,14 @@ public class InstanceOf extends Expression {
     this.className = className;
   }
 
+  public Type getIdentifierType() {
+    return identifierType;
+  }
+
+  public void setIdentifierType(Type identifierType) {
+    this.identifierType = identifierType;
+  }
+
   @Override
   public <R> R accept(Visitor<R> v) {
     return v.visit(this);
@@ -6,12 +6,24 @@ public class TypeCoercion extends Expression {
   
   public final String type;
   public final String id;
+  /**
+   * The static type of the identifier, set by the type checking phase.
+   */
+  private Type identifierType;
   
   public TypeCoercion(String type, String id) {
     this.type = type;
     this.id = id;
   }
 
+  public Type getIdentifierType() {
+    return identifierType;
+  }
+
+  public void setIdentifierType(Type identifierType) {
+    this.identifierType = identifierType;
+  }
+
   @Override
   public <R> R accept(Visitor<R> v) {
     return v.visit(this);
@@ -18,6 +18,7 @@ import codegen.muncher.Muncher;
 import codegen.x86_64.X86_64Muncher;
 import translate.DataFragment;
 import translate.ProcFragment;
+import translate.Translator;
 import util.IndentingWriter;
 import util.List;
 import util.Utils;
@@ -39,6 +40,8 @@ public class AssemData extends AssemFragment {
 	@Override
 	public void dump(IndentingWriter out) {
 		out.println(".data");
+		if (getLabel().equals(Translator.L_HEAP))
+			out.println(".globl " + getLabel()); // The runtime refills it.
 
 		out.indent();
 
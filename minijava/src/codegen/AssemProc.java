@@ -1,5 +1,8 @@
 package codegen;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import translate.ProcFragment;
 import util.IndentingWriter;
 import util.List;
@@ -8,6 +11,7 @@ import static util.List.cons;
 import util.Utils;
 import ir.frame.Frame;
 import ir.frame.x86_64.X86_64Frame;
+import ir.temp.Color;
 import ir.temp.Label;
 import ir.temp.Temp;
 import ir.tree.IRStm;
@@ -34,6 +38,11 @@ public class AssemProc extends AssemFragment {
 	private Frame frame;
 	private ProcFragment procIR;
 	private List<Instr> asmBody;
+	/**
+	 * The spilled Temps that are live across each call, and the spill slots they
+	 * are in, as the register allocator recorded them (for the pointer maps).
+	 */
+	private Map<Instr, Map<Temp, Color>> spilledAcross = new HashMap<Instr, Map<Temp, Color>>();
 
 	public AssemProc(ProcFragment procIR) {
 		this.frame = procIR.getFrame();
@@ -41,6 +50,12 @@ public class AssemProc extends AssemFragment {
 		rewrite(); // Actually not "re" writing, but writing for the first time :-)
 	}
 
+	private AssemProc(Frame frame, ProcFragment procIR, List<Instr> asmBody) {
+		this.frame = frame;
+		this.procIR = procIR;
+		this.asmBody = asmBody;
+	}
+
 	@Override
 	public void dump(IndentingWriter out) {
  		out.println(".text");
@@ -83,10 +98,114 @@ public class AssemProc extends AssemFragment {
 		return asmBody;
 	}
 
+	/**
+	 * Replace the whole body at once, e.g. after the register allocator
+	 * has spliced spill code into it. Cheaper than many calls to
+	 * {@link #replace(Instr, Instr)}.
+	 */
+	public void setBody(List<Instr> asmBody) {
+		this.asmBody = asmBody;
+	}
+
 	public Frame getFrame() {
 		return frame;
 	}
 
+	/**
+	 * Record that the spilled Temp t is live across the call, in the given spill slot.
+	 */
+	public void spilledAcross(Instr call, Temp t, Color slot) {
+		Map<Temp, Color> spilled = spilledAcross.get(call);
+		if (spilled == null) {
+			spilled = new HashMap<Temp, Color>();
+			spilledAcross.put(call, spilled);
+		}
+		spilled.put(t, slot);
+	}
+
+	/**
+	 * The spilled Temps that are live across a call, and their spill slots.
+	 */
+	public Map<Temp, Color> getSpilledAcross(Instr call) {
+		Map<Temp, Color> spilled = spilledAcross.get(call);
+		return spilled == null ? new HashMap<Temp, Color>() : spilled;
+	}
+
+	/**
+	 * Forget that t was spilled, because the code that stores and loads it is gone.
+	 */
+	public void forgetSpilled(Temp t) {
+		for (Map<Temp, Color> spilled : spilledAcross.values())
+			spilled.remove(t);
+	}
+
+	/**
+	 * A copy of this procedure that can be worked on (e.g. register allocated)
+	 * without affecting this one, even on another thread. The copy has its own
+	 * frame and instructions, and a fresh Temp for each Temp of this procedure
+	 * that isn't colored yet. For each of those, originals gets an entry from
+	 * the fresh Temp to the one it replaces.
+	 * <p>
+	 * Don't {@link #rewrite()} the copy: its IR still mentions the original Temps.
+	 */
+	public AssemProc copy(Map<Temp, Temp> originals) {
+		Map<Temp, Temp> fresh = new HashMap<Temp, Temp>();
+		List<Instr> body = List.empty();
+		Map<Instr, Instr> copies = new HashMap<Instr, Instr>();
+		for (Instr instr : asmBody) {
+			Instr copy = instr.copy();
+			copies.put(instr, copy);
+			for (Temp t : instr.use().append(instr.def())) {
+				if (t.getColor() != null) continue;
+				Temp f = fresh.get(t);
+				if (f == null) {
+					f = new Temp(t);
+					fresh.put(t, f);
+					originals.put(f, t);
+				}
+				copy.rename(t, f);
+			}
+			body.add(copy);
+		}
+		Frame frameCopy = frame.copy();
+		for (Map.Entry<Temp, Temp> saved : frameCopy.getSavedRegisters().entrySet()) {
+			Temp f = fresh.get(saved.getValue());
+			if (f != null) saved.setValue(f);
+		}
+		AssemProc result = new AssemProc(frameCopy, procIR, body);
+		for (Map.Entry<Instr, Map<Temp, Color>> call : spilledAcross.entrySet())
+			for (Map.Entry<Temp, Color> spilled : call.getValue().entrySet())
+				result.spilledAcross(copies.get(call.getKey()), spilled.getKey(), spilled.getValue());
+		return result;
+	}
+
+	/**
+	 * Make a {@link #copy(Map)} of this procedure the real thing: take over its body
+	 * and the locals allocated in its frame, putting the original Temps back in place
+	 * of the fresh ones. The original Temps are painted in the colors the fresh ones
+	 * got.
+	 */
+	public void adopt(AssemProc copy, Map<Temp, Temp> originals) {
+		for (Map.Entry<Temp, Temp> entry : originals.entrySet()) {
+			if (entry.getKey().getColor() != null)
+				entry.getValue().paint(entry.getKey().getColor());
+		}
+		for (Instr instr : copy.getBody()) {
+			for (Temp t : instr.use().append(instr.def())) {
+				Temp original = originals.get(t);
+				if (original != null) instr.rename(t, original);
+			}
+		}
+		frame.adopt(copy.frame);
+		this.asmBody = copy.getBody();
+		spilledAcross.clear();
+		for (Map.Entry<Instr, Map<Temp, Color>> call : copy.spilledAcross.entrySet())
+			for (Map.Entry<Temp, Color> spilled : call.getValue().entrySet()) {
+				Temp original = originals.get(spilled.getKey());
+				spilledAcross(call.getKey(), original == null ? spilled.getKey() : original, spilled.getValue());
+			}
+	}
+
 	/**
 	 * After doing register allocation with spilled registers. You can use
 	 * this method to rewrite the instructions in the body from the IR. 
@@ -30,7 +30,8 @@ public class Assembly extends DefaultIndentable implements Iterable<AssemFragmen
 	}
 
 	public void add(AssemFragment code) {
-		fragments.add(code);
+		// Append, rather than add: the list may have been iterated over already.
+		fragments = fragments.append(List.list(code));
 	}
 
 	@Override
@@ -0,0 +1,23 @@
+package codegen.assem;
+
+import util.List;
+import ir.temp.Temp;
+
+/**
+ * A call of a procedure: the register allocator and the pointer maps need to
+ * know where calls are (what is live across them), see {@link #isCall()}.
+ */
+public class A_CALL extends A_OPER {
+
+   public A_CALL(String a, List<Temp> d, List<Temp> s) {
+      super(a, d, s);
+   }
+
+   @Override
+   public boolean isCall() {return true;}
+   @Override
+   public Instr copy() {
+      return new A_CALL(assem, dst, src);
+   }
+
+}
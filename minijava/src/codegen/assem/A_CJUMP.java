@@ -0,0 +1,24 @@
+package codegen.assem;
+
+import util.List;
+import ir.temp.Label;
+import ir.temp.Temp;
+
+/**
+ * A conditional jump: it jumps to its target, or falls through to the next
+ * label. Both are in its jumps(), but only the target in its {@link #targets()}.
+ */
+public class A_CJUMP extends A_OPER {
+
+   public A_CJUMP(String a, Label target, Label next) {
+      super(a, List.<Temp>empty(), List.<Temp>empty(), List.list(target, next));
+   }
+
+   @Override
+   public List<Label> targets() {return List.list(jump.get(0));}
+   @Override
+   public Instr copy() {
+      return new A_CJUMP(assem, jump.get(0), jump.get(1));
+   }
+
+}
@@ -30,6 +30,13 @@ public class A_LABEL extends Instr {
 	public List<Temp> def()    {return List.empty();}
 	@Override
 	public List<Label> jumps() {return null;}
+	@Override
+	public void rename(Temp from, Temp to) {
+	}
+	@Override
+	public Instr copy() {
+		return new A_LABEL(assem, label);
+	}
 
 	public Label getLabel() {
 		return label;
@@ -16,6 +16,13 @@ public class A_MOVE extends Instr {
 	public List<Temp> use()    {return list(src);}
 	public List<Temp> def()    {return list(dst);}
 	public List<Label> jumps() {return null;}
+	public void rename(Temp from, Temp to) {
+		if (dst.equals(from)) dst = to;
+		if (src.equals(from)) src = to;
+	}
+	public Instr copy() {
+		return new A_MOVE(assem, dst, src);
+	}
 
 	@Override
 	public void dump(IndentingWriter out) {
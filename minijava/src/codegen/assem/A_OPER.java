@@ -31,5 +31,14 @@ public class A_OPER extends Instr {
    public List<Temp> def() {return dst;}
    @Override
    public List<Label> jumps() {return jump;}
+   @Override
+   public void rename(Temp from, Temp to) {
+      dst = rename(dst, from, to);
+      src = rename(src, from, to);
+   }
+   @Override
+   public Instr copy() {
+      return new A_OPER(assem, dst, src, jump);
+   }
 
 }
@@ -51,6 +51,50 @@ public abstract class Instr extends DefaultIndentable {
 	 */
 	public abstract List<Label> jumps();
 
+	/**
+	 * The labels that the instruction really jumps to: its jumps(), except the
+	 * next instruction that a conditional jump falls through to. Empty if it
+	 * isn't a jump.
+	 */
+	public List<Label> targets() {
+		List<Label> jumps = jumps();
+		return jumps == null ? List.<Label>empty() : jumps;
+	}
+
+	/**
+	 * Whether the instruction calls a procedure, which may change the caller
+	 * save registers (see A_CALL).
+	 */
+	public boolean isCall() {
+		return false;
+	}
+
+	/**
+	 * Replace every occurrence of a Temp in the use and def lists of this
+	 * instruction by another Temp. The register allocator uses this to
+	 * rewrite spilled Temps in place.
+	 */
+	public abstract void rename(Temp from, Temp to);
+
+	/**
+	 * A new instruction just like this one. The Temps and labels are shared, but
+	 * renaming Temps in the copy doesn't affect this instruction.
+	 */
+	public abstract Instr copy();
+
+	/**
+	 * Helper for {@link #rename(Temp, Temp)}: "functional" replacement of
+	 * all occurrences of a Temp in a list.
+	 */
+	protected static List<Temp> rename(List<Temp> temps, Temp from, Temp to) {
+		if (temps==null || !temps.contains(from))
+			return temps;
+		List<Temp> renamed = List.empty();
+		for (Temp t : temps)
+			renamed.add(t.equals(from) ? to : t);
+		return renamed;
+	}
+
 	public String format() {
 		List<Temp> dst = def();
 		List<Temp> src = use();
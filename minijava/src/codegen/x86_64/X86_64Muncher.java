@@ -19,6 +19,8 @@ import ir.tree.IRStm;
 import util.IndentingWriter;
 import util.List;
 import analysis.implementation.SpillColor;
+import codegen.assem.A_CALL;
+import codegen.assem.A_CJUMP;
 import codegen.assem.A_LABEL;
 import codegen.assem.A_MOVE;
 import codegen.assem.A_OPER;
@@ -326,6 +328,14 @@ public class X86_64Muncher extends Muncher {
       }
     });
     
+    sm.add(new MunchRule<IRStm, Void>(MOVE(TEMP(_t_), MEM(PLUS(_l_, CONST(_i_))))) {
+      @Override
+      protected Void trigger(Muncher m, Matched c) {
+        m.emit(A_MOV_FROM_MEM(c.get(_i_), m.munch(c.get(_l_)), c.get(_t_)));
+        return null;
+      }
+    });
+
     sm.add(new MunchRule<IRStm, Void>(MOVE(MEM(PLUS(_l_, CONST(_i_))), CONST(_i2_))) {
       @Override
       protected Void trigger(Muncher m, Matched c) {
@@ -456,7 +466,7 @@ public class X86_64Muncher extends Muncher {
     for (int i = 0; i < Math.min(arguments.size(), nargs); ++i) {
       args.add(arguments.get(i));
     }
-    return new A_OPER("call    " + fun, callerSave.append(arguments),
+    return new A_CALL("call    " + fun, callerSave.append(arguments),
         special.append(args));
   }
   
@@ -465,7 +475,7 @@ public class X86_64Muncher extends Muncher {
     for (int i = 0; i < Math.min(arguments.size(), nargs); ++i) {
       args.add(arguments.get(i));
     }
-    return new A_OPER("call    *`s2", callerSave.append(arguments),
+    return new A_CALL("call    *`s2", callerSave.append(arguments),
         special.append(List.list(ptr)).append(args));
   }
 
@@ -505,7 +515,7 @@ public class X86_64Muncher extends Muncher {
       default:
         throw new Error("Missing case?");
     }
-    return new A_OPER(opCode + "     `j0", noTemps, noTemps, list(thn, els));
+    return new A_CJUMP(opCode + "     `j0", thn, els);
   }
 
   private static Instr A_CMP(Temp l, Temp r) {
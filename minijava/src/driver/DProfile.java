@@ -0,0 +1,51 @@
+package driver;
+
+import java.io.File;
+
+import util.Utils;
+import x86_64sim.Sim;
+import x86_64sim.State;
+
+/**
+ * Compile a program, simulate it with the profiler, and write the profile next
+ * to it: a JSON report (.profile.json), folded stacks for flame graphs (.folded)
+ * and the classes of the receivers of the calls (.receivers, which
+ * translate.Translator#setReceiverProfile takes, read with
+ * translate.ReceiverProfile#read).
+ */
+public class DProfile {
+
+	public static void profile(File program) throws Exception {
+		Compiler compiler = new Compiler();
+
+		File assemFile = new File(Utils.changeSuffix(program, "s"));
+		System.out.println("compiling: "+program);
+		compiler.compile(program, assemFile);
+		State state = Sim.profile(Utils.getContents(assemFile));
+		System.out.println("Program output:\n" + state.result);
+
+		File report = new File(Utils.changeSuffix(program, "profile.json"));
+		File folded = new File(Utils.changeSuffix(program, "folded"));
+		File receivers = new File(Utils.changeSuffix(program, "receivers"));
+		state.profiler.writeReport(report, state);
+		state.profiler.writeFoldedStacks(folded);
+		state.profiler.writeReceivers(receivers);
+		System.out.println(">>>>>  " + report);
+		System.out.println(">>>>>  " + folded);
+		System.out.println(">>>>>  " + receivers);
+	}
+
+	/**
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		String program = args[0];
+		try {
+			profile(new File(program));
+		} catch (Exception e) {
+			System.out.println("Compilation problem");
+			e.printStackTrace();
+		}
+	}
+
+}
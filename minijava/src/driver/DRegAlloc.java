@@ -25,6 +25,7 @@ import codegen.CodeGenerator;
 import analysis.FlowGraph;
 import analysis.InterferenceGraph;
 import analysis.RegAlloc;
+import analysis.RegAllocTrace;
 import analysis.util.graph.Node;
 
 
@@ -53,7 +54,8 @@ public class DRegAlloc {
 		Fragments translated = Translator.translate(architecture, program);
 
 		CodeGenerator cogen = new CodeGenerator();
-
+		if (beVerbose)
+			RegAllocTrace.setLevel(RegAllocTrace.Level.DETAIL);
 
 		for (AssemFragment frag : cogen.apply(translated)) {
 			AssemProc proc = (AssemProc) frag;
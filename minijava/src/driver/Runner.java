@@ -8,6 +8,32 @@ import util.RunCommand;
 
 public class Runner {
 
+	/**
+	 * The runtime libraries to link with (build them in runtime/, with make).
+	 */
+	public enum Runtime {
+		/** Allocates with calloc and prints with printf. */
+		STANDARD("runtime/runtime.o"),
+		/** Allocates from mmap'ed arenas, and buffers its output until exit (or an error). */
+		FAST("runtime/runtime_fast.o");
+
+		private final String objFile;
+
+		private Runtime(String objFile) {
+			this.objFile = objFile;
+		}
+	}
+
+	private final Runtime runtime;
+
+	public Runner() {
+		this(Runtime.STANDARD);
+	}
+
+	public Runner(Runtime runtime) {
+		this.runtime = runtime;
+	}
+
 	/**
 	 * Use gcc and as to create an object file, link it into
      * an executable and then run it.
@@ -89,7 +115,7 @@ public class Runner {
 	}
 
 	protected File runtimeLib() {
-		return new File("runtime/runtime.o");
+		return new File(runtime.objFile);
 	}
 
 }
@@ -164,6 +164,7 @@ public class Canon {
 	static ESEQ reorder_exp (IRExp e) {
 		if (e instanceof CALL) {
 			Temp t = new Temp();
+			t.setReference(e.isReference());
 			StmExpList x = reorder(e.kids());
 			IRExp newe = e.build(x.exps);
 			
@@ -184,6 +185,7 @@ public class Canon {
 			IRExp a = exps.head();
 			if (a instanceof CALL) {
 				Temp t = new Temp();
+				t.setReference(a.isReference());
 				IRExp e = new ESEQ(new MOVE(new TEMP(t), a),
 						new TEMP(t));
 				return reorder(List.cons(e, exps.tail()));
@@ -195,6 +197,7 @@ public class Canon {
 							List.cons(aa.exp,bb.exps));
 				else {
 					Temp t = new Temp();
+					t.setReference(aa.exp.isReference());
 					return new StmExpList(
 							seq(aa.stm, 
 									seq(new MOVE(new TEMP(t),aa.exp),
@@ -1,5 +1,8 @@
 package ir.frame;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import util.DefaultIndentable;
 import util.IndentingWriter;
 import util.List;
@@ -28,6 +31,19 @@ public abstract class Frame extends DefaultIndentable {
 		this.formals = formals;
 	}
 
+	/**
+	 * Copy constructor for {@link #copy()}. The copy gets its own map of
+	 * saved registers.
+	 */
+	protected Frame(Frame other) {
+		this.label = other.label;
+		this.formals = other.formals;
+		this.savedRegisters.putAll(other.savedRegisters);
+		this.invokeNull = other.invokeNull;
+		this.boundsFail = other.boundsFail;
+		this.done = other.done;
+	}
+
 	public final Label getLabel() { return label; }
 	
 	public final List<Access> getFormals() {
@@ -41,6 +57,25 @@ public abstract class Frame extends DefaultIndentable {
 	 * Allocate space for a local variable in this frame.
 	 */
 	public abstract Access allocLocal(boolean escapes);
+
+	/**
+	 * A copy of this frame, for working on a copy of the procedure (see
+	 * {@link codegen.AssemProc#copy}). Locals allocated in the copy don't
+	 * take up space in this frame, unless it {@link #adopt}s them.
+	 */
+	public abstract Frame copy();
+
+	/**
+	 * Take over the locals allocated in a copy of this frame since it was made.
+	 */
+	public abstract void adopt(Frame copy);
+
+	/**
+	 * Allocate the locals of another frame in this one, e.g. those of a
+	 * procedure that is inlined into this one: the offset from {@link #FP()} of
+	 * each of them in this frame, by their offset in the other.
+	 */
+	public abstract Map<Integer, Integer> mergeLocals(Frame other);
 	
 	///////////////////////////////////////////////////////////////////
 	/// Chapter 7 additions: (for translation to IR phase)
@@ -95,6 +130,24 @@ public abstract class Frame extends DefaultIndentable {
 	 */
 	public abstract List<Temp> registers();
 
+	/**
+	 * Returns the subset of {@link #registers()} whose contents a procedure must
+	 * preserve for its caller. All other (non-special) registers may be
+	 * overwritten by a call.
+	 */
+	public abstract List<Temp> calleeSaveRegisters();
+
+	/**
+	 * The Temps that procEntryExit1 copied the callee save registers into,
+	 * by register. The register allocator uses this to drop the saving and
+	 * restoring of registers that the procedure doesn't use after all.
+	 */
+	public Map<Temp, Temp> getSavedRegisters() {
+		return savedRegisters;
+	}
+
+	protected Map<Temp, Temp> savedRegisters = new LinkedHashMap<Temp, Temp>();
+
 	/**
 	 * Prints architecture and frame dependent code for the entry
 	 * sequence that implements the "view shift" and allocates space
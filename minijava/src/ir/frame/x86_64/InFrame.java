@@ -5,7 +5,7 @@ import static ir.tree.IR.PLUS;
 import ir.frame.Access;
 import ir.tree.IRExp;
 
-class InFrame extends Access {
+public class InFrame extends Access {
 	
 	private int offset;
 
@@ -13,6 +13,13 @@ class InFrame extends Access {
 		this.offset = offset;
 	}
 	
+	/**
+	 * Where the local is, relative to the frame pointer.
+	 */
+	public int getOffset() {
+		return offset;
+	}
+
 	@Override
 	public String toString() {
 		return offset+"(%rbp)";
@@ -18,6 +18,9 @@ import ir.tree.IR;
 import ir.tree.IRExp;
 import ir.tree.IRStm;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /* Stack frame layout: 
  First 6 out arguments go in registers
  ESP+0  -->       outArg[7]
@@ -95,6 +98,12 @@ public class X86_64Frame extends Frame {
 		super(Label.generate("dummy"), allocFormals(0));
 	}
 
+	private X86_64Frame(X86_64Frame other) {
+		super(other);
+		this.nextLocalOffset = other.nextLocalOffset;
+		this.maxOutArgs = other.maxOutArgs;
+	}
+
 	private static List<Access> allocFormals(int nFormals) {
 		List<Access> formals = List.list();
 		for (int i = 0; i < nFormals; ++i) {
@@ -115,6 +124,28 @@ public class X86_64Frame extends Frame {
 		}
 	}
 
+	@Override
+	public Frame copy() {
+		return new X86_64Frame(this);
+	}
+
+	@Override
+	public void adopt(Frame copy) {
+		X86_64Frame other = (X86_64Frame) copy;
+		nextLocalOffset = other.nextLocalOffset;
+		maxOutArgs = Math.max(maxOutArgs, other.maxOutArgs);
+	}
+
+	@Override
+	public Map<Integer, Integer> mergeLocals(Frame other) {
+		Map<Integer, Integer> offsets = new HashMap<Integer, Integer>();
+		for (int offset = FIRST_LOCAL_OFFSET; offset != ((X86_64Frame) other).nextLocalOffset; offset += LOCAL_INCREMENT) {
+			offsets.put(offset, nextLocalOffset);
+			nextLocalOffset += LOCAL_INCREMENT;
+		}
+		return offsets;
+	}
+
 	@Override
 	public IRExp FP() {
 		return TEMP(FP);
@@ -150,7 +181,10 @@ public class X86_64Frame extends Frame {
 		postAmble = IR.LABEL(done);
 		if (true) {
 			for (Temp reg : calleeSave) {
-				IRExp saveSpot = allocLocal(false).exp(FP());
+				Temp saved = new Temp();
+				saved.setSaved(reg);
+				savedRegisters.put(reg, saved);
+				IRExp saveSpot = TEMP(saved);
 				preAmble = IR.SEQ(preAmble, 
 						MOVE(saveSpot, TEMP(reg)));
 				postAmble = SEQ(postAmble,
@@ -198,6 +232,11 @@ public class X86_64Frame extends Frame {
 		return special.append(calleeSave).append(arguments).append(callerSave);
 	}
 
+	@Override
+	public List<Temp> calleeSaveRegisters() {
+		return calleeSave;
+	}
+
 	public static List<Temp> allregisters() {
 		return special.append(calleeSave).append(arguments).append(callerSave);
 	}
@@ -225,6 +264,22 @@ public class X86_64Frame extends Frame {
 		return f.size() > arguments.size();
 	}
 	
+	/**
+	 * Whether the procedure sets up %rbp as a frame pointer (see {@link #entrySequence}).
+	 * If so the return address is at 8(%rbp) and the caller's %rbp at 0(%rbp).
+	 */
+	public boolean hasFramePointer() {
+		return localsSpace() > 0 || inArgsOnStack();
+	}
+
+	/**
+	 * Where the return address is relative to %rsp in the body of a procedure
+	 * that has no frame pointer.
+	 */
+	public int returnAddressOffset() {
+		return maxOutArgs > 0 ? WORD_SIZE : 0;
+	}
+
 	/**
 	 * Emit code that goes at the top of the procedure body
 	 * to set up the stack frame. This is done every time 
@@ -237,7 +292,7 @@ public class X86_64Frame extends Frame {
 		int localsSpace = localsSpace();
 		if (localsSpace % 16 != 0)
 			localsSpace += 8;
-		if (localsSpace > 0 || inArgsOnStack()) {
+		if (hasFramePointer()) {
 			out.println("pushq  %rbp");
 			out.println("movq   %rsp, %rbp");
 			if (localsSpace > 0)
@@ -249,7 +304,7 @@ public class X86_64Frame extends Frame {
 
 	@Override
 	public void exitSequence(IndentingWriter out) {
-		if (localsSpace() > 0 || inArgsOnStack())
+		if (hasFramePointer())
 			out.println("leave");
 		else if (maxOutArgs > 0)
 			out.println("addq   $8, %rsp");
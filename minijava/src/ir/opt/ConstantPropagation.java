@@ -0,0 +1,354 @@
+package ir.opt;
+
+import static ir.tree.IR.CONST;
+import static ir.tree.IR.EXP;
+import static ir.tree.IR.JUMP;
+import static ir.tree.IR.MOVE;
+import ir.canon.BasicBlocks;
+import ir.temp.Label;
+import ir.temp.Temp;
+import ir.tree.BINOP;
+import ir.tree.CJUMP;
+import ir.tree.CJUMP.RelOp;
+import ir.tree.CMOVE;
+import ir.tree.CONST;
+import ir.tree.EXP;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.JUMP;
+import ir.tree.LABEL;
+import ir.tree.MEM;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.TEMP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import translate.Fragment;
+import translate.Fragments;
+import translate.ProcFragment;
+import util.List;
+
+/**
+ * Sparse conditional constant propagation over the basic blocks of each
+ * procedure of a program (Wegman and Zadeck's algorithm, with the values of
+ * the Temps kept per block rather than in SSA form).
+ * <p>
+ * Starting from the first block, only the blocks that a jump that can be taken
+ * leads to are visited: a CJUMP whose operands are constants only goes one way.
+ * A Temp is a constant at the start of a block if all the blocks that can jump
+ * there leave it that constant. Then the Temps that are constants are replaced
+ * by their values, the BINOPs, CJUMPs and CMOVEs that only have constants are
+ * folded, the blocks that can't run are dropped, and so are the moves of
+ * constants into Temps that nothing uses any more.
+ * <p>
+ * Only the Temps of the procedure that aren't references are propagated:
+ * registers can change in calls, and a reference must stay in its Temp for the
+ * garbage collector (see Temp#isReference). Values are folded as the machine
+ * computes them (in 64 bits), but only when the result is an int.
+ */
+public class ConstantPropagation {
+
+	private final ArrayList<List<IRStm>> blocks = new ArrayList<List<IRStm>>();
+	private final Map<Label, Integer> index = new HashMap<Label, Integer>();
+	/** The blocks that can jump to each block (so far). */
+	private final ArrayList<Set<Integer>> executable = new ArrayList<Set<Integer>>();
+	/** The constant Temps at the end of each block, null if it can't run (so far). */
+	private final ArrayList<Map<Temp, Integer>> out = new ArrayList<Map<Temp, Integer>>();
+
+	public static void propagate(Fragments fragments) {
+		for (Fragment fragment : fragments)
+			if (fragment instanceof ProcFragment)
+				propagate((ProcFragment) fragment);
+	}
+
+	private static void propagate(ProcFragment proc) {
+		BasicBlocks basicBlocks = proc.getBasicBlocks();
+		ConstantPropagation propagation = new ConstantPropagation(basicBlocks);
+		propagation.solve();
+		List<IRStm> body = propagation.rewrite(basicBlocks.doneLabel);
+		if (body != null)
+			proc.setLinearizedBody(body);
+	}
+
+	private ConstantPropagation(BasicBlocks basicBlocks) {
+		for (List<IRStm> block : basicBlocks.blocks) {
+			index.put(((LABEL) block.head()).getLabel(), blocks.size());
+			blocks.add(block);
+			executable.add(new HashSet<Integer>());
+			out.add(null);
+		}
+	}
+
+	private void solve() {
+		Set<Integer> work = new LinkedHashSet<Integer>();
+		work.add(0);
+		while (!work.isEmpty()) {
+			int b = work.iterator().next();
+			work.remove(b);
+			Map<Temp, Integer> values = in(b);
+			IRStm last = null;
+			for (IRStm stm : blocks.get(b)) {
+				transfer(stm, values);
+				last = stm;
+			}
+			boolean changed = !values.equals(out.get(b));
+			out.set(b, values);
+			for (Label target : successors(last, values)) {
+				Integer s = index.get(target);
+				if (s == null) continue; // the end of the procedure
+				if (executable.get(s).add(b) || changed)
+					work.add(s);
+			}
+		}
+	}
+
+	/**
+	 * The constant Temps at the start of block b: those that all the blocks
+	 * that can jump there leave the same constant.
+	 */
+	private Map<Temp, Integer> in(int b) {
+		Map<Temp, Integer> values = new HashMap<Temp, Integer>();
+		if (b == 0) return values; // Nothing is known when the procedure starts.
+		boolean first = true;
+		for (int p : executable.get(b)) {
+			if (first) {
+				values.putAll(out.get(p));
+				first = false;
+			} else {
+				values.entrySet().retainAll(out.get(p).entrySet());
+			}
+		}
+		return values;
+	}
+
+	/** Updates values for what stm does. */
+	private static void transfer(IRStm stm, Map<Temp, Integer> values) {
+		if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+			MOVE move = (MOVE) stm;
+			assign(((TEMP) move.dst).temp, eval(move.src, values), values);
+		} else if (stm instanceof CMOVE && ((CMOVE) stm).dst instanceof TEMP) {
+			CMOVE cmove = (CMOVE) stm;
+			Temp t = ((TEMP) cmove.dst).temp;
+			Integer value = eval(cmove.src, values);
+			Boolean taken = test(cmove.relop, cmove.left, cmove.right, values);
+			if (taken == null) {
+				if (value == null || !value.equals(values.get(t)))
+					values.remove(t);
+			} else if (taken) {
+				assign(t, value, values);
+			}
+		}
+	}
+
+	private static void assign(Temp t, Integer value, Map<Temp, Integer> values) {
+		if (value != null && isPropagated(t))
+			values.put(t, value);
+		else
+			values.remove(t);
+	}
+
+	private static boolean isPropagated(Temp t) {
+		return t.getColor() == null && !t.isReference();
+	}
+
+	/** Where the jump that ends a block can go. */
+	private static List<Label> successors(IRStm jump, Map<Temp, Integer> values) {
+		if (jump instanceof CJUMP) {
+			CJUMP cjump = (CJUMP) jump;
+			Boolean taken = test(cjump.relop, cjump.left, cjump.right, values);
+			if (taken == null)
+				return List.list(cjump.iftrue, cjump.iffalse);
+			return List.list(taken ? cjump.iftrue : cjump.iffalse);
+		}
+		return jump.jumps();
+	}
+
+	/** The value of e, if it is a constant (and e only computes it). */
+	private static Integer eval(IRExp e, Map<Temp, Integer> values) {
+		if (e instanceof CONST)
+			return ((CONST) e).getValue();
+		if (e instanceof TEMP)
+			return values.get(((TEMP) e).temp);
+		if (e instanceof BINOP) {
+			BINOP binop = (BINOP) e;
+			Integer l = eval(binop.left, values);
+			Integer r = eval(binop.right, values);
+			return l == null || r == null ? null : fold(binop.binop, l, r);
+		}
+		return null;
+	}
+
+	private static Integer fold(BINOP.Op op, long l, long r) {
+		long v;
+		switch (op) {
+		case PLUS:    v = l + r; break;
+		case MINUS:   v = l - r; break;
+		case MUL:     v = l * r; break;
+		case DIV:
+			if (r == 0) return null; // It fails when it runs, so let it.
+			v = l / r; break;
+		case AND:     v = l & r; break;
+		case OR:      v = l | r; break;
+		case XOR:     v = l ^ r; break;
+		case LSHIFT:  v = l << (r & 63); break;
+		case RSHIFT:  v = l >>> (r & 63); break;
+		case ARSHIFT: v = l >> (r & 63); break;
+		default: throw new Error("Missing case? " + op);
+		}
+		return v == (int) v ? Integer.valueOf((int) v) : null;
+	}
+
+	/** Whether the condition holds, if its operands are constants; null if not. */
+	private static Boolean test(RelOp relop, IRExp left, IRExp right, Map<Temp, Integer> values) {
+		Integer l = eval(left, values);
+		Integer r = eval(right, values);
+		if (l == null || r == null) return null;
+		long a = l, b = r;
+		// Flipping the sign bits compares (64 bit) unsigned values as signed ones.
+		long ua = a ^ Long.MIN_VALUE, ub = b ^ Long.MIN_VALUE;
+		switch (relop) {
+		case EQ:  return a == b;
+		case NE:  return a != b;
+		case LT:  return a < b;
+		case GT:  return a > b;
+		case LE:  return a <= b;
+		case GE:  return a >= b;
+		case ULT: return ua < ub;
+		case UGT: return ua > ub;
+		case ULE: return ua <= ub;
+		case UGE: return ua >= ub;
+		default: throw new Error("Missing case? " + relop);
+		}
+	}
+
+	/**
+	 * The blocks that can run, with the constants folded in, as a linearized
+	 * body again; or null if nothing changed.
+	 */
+	private List<IRStm> rewrite(Label doneLabel) {
+		ArrayList<IRStm> stms = new ArrayList<IRStm>();
+		boolean changed = false;
+		for (int b = 0; b < blocks.size(); b++) {
+			if (out.get(b) == null) {
+				changed = true;
+				continue;
+			}
+			Map<Temp, Integer> values = in(b);
+			for (IRStm stm : blocks.get(b)) {
+				IRStm folded = fold(stm, values);
+				transfer(stm, values);
+				changed |= folded != stm;
+				// The end of the procedure follows (when the body is made into blocks again).
+				if (folded instanceof JUMP && isJumpTo((JUMP) folded, doneLabel))
+					continue;
+				if (folded != null)
+					stms.add(folded);
+			}
+		}
+
+		Set<Temp> used = new HashSet<Temp>();
+		for (IRStm stm : stms) {
+			for (IRExp kid : stm.kids())
+				uses(kid, used);
+			if (stm instanceof CMOVE && ((CMOVE) stm).dst instanceof TEMP)
+				used.add(((TEMP) ((CMOVE) stm).dst).temp); // It keeps it, if it doesn't move.
+		}
+		List<IRStm> body = List.list();
+		for (IRStm stm : stms) {
+			if (isDeadConstant(stm, used)) {
+				changed = true;
+				continue;
+			}
+			body.add(stm);
+		}
+		return changed ? body : null;
+	}
+
+	private static boolean isJumpTo(JUMP jump, Label label) {
+		return label != null && jump.exp instanceof NAME && ((NAME) jump.exp).label == label;
+	}
+
+	private static void uses(IRExp e, Set<Temp> used) {
+		if (e instanceof TEMP)
+			used.add(((TEMP) e).temp);
+		for (IRExp kid : e.kids())
+			uses(kid, used);
+	}
+
+	/** Whether stm moves a constant into a Temp that isn't used. */
+	private static boolean isDeadConstant(IRStm stm, Set<Temp> used) {
+		if (!(stm instanceof MOVE) || !(((MOVE) stm).dst instanceof TEMP) || !(((MOVE) stm).src instanceof CONST))
+			return false;
+		Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+		return isPropagated(t) && !used.contains(t);
+	}
+
+	/**
+	 * stm with the constants of values folded in (stm itself if there are
+	 * none), null if it does nothing.
+	 */
+	private static IRStm fold(IRStm stm, Map<Temp, Integer> values) {
+		if (stm instanceof CJUMP) {
+			CJUMP cjump = (CJUMP) stm;
+			Boolean taken = test(cjump.relop, cjump.left, cjump.right, values);
+			if (taken != null)
+				return JUMP(taken ? cjump.iftrue : cjump.iffalse);
+			IRExp left = substitute(cjump.left, values), right = substitute(cjump.right, values);
+			if (left == cjump.left && right == cjump.right) return stm;
+			return new CJUMP(cjump.relop, left, right, cjump.iftrue, cjump.iffalse);
+		}
+		if (stm instanceof CMOVE) {
+			CMOVE cmove = (CMOVE) stm;
+			Boolean taken = test(cmove.relop, cmove.left, cmove.right, values);
+			IRExp src = substitute(cmove.src, values);
+			if (taken != null && cmove.dst instanceof TEMP) {
+				if (taken)
+					return MOVE(cmove.dst, src);
+				if (!src.mentionsMemOrCall())
+					return null;
+			}
+			IRExp left = substitute(cmove.left, values), right = substitute(cmove.right, values);
+			if (left == cmove.left && right == cmove.right && src == cmove.src) return stm;
+			return new CMOVE(cmove.relop, left, right, substituteDst(cmove.dst, values), src);
+		}
+		if (stm instanceof MOVE) {
+			MOVE move = (MOVE) stm;
+			IRExp dst = substituteDst(move.dst, values), src = substitute(move.src, values);
+			if (dst == move.dst && src == move.src) return stm;
+			return MOVE(dst, src);
+		}
+		if (stm instanceof EXP) {
+			IRExp e = substitute(((EXP) stm).exp, values);
+			return e == ((EXP) stm).exp ? stm : EXP(e);
+		}
+		return stm;
+	}
+
+	/** The destination of a move: a Temp stays, the address of a MEM is folded. */
+	private static IRExp substituteDst(IRExp dst, Map<Temp, Integer> values) {
+		if (!(dst instanceof MEM)) return dst;
+		IRExp address = substitute(((MEM) dst).exp, values);
+		return address == ((MEM) dst).exp ? dst : dst.build(List.list(address));
+	}
+
+	/** e with the constants of values folded in (e itself if there are none). */
+	private static IRExp substitute(IRExp e, Map<Temp, Integer> values) {
+		Integer value = eval(e, values);
+		if (value != null)
+			return e instanceof CONST ? e : CONST(value);
+		boolean changed = false;
+		List<IRExp> kids = List.list();
+		for (IRExp kid : e.kids()) {
+			IRExp substituted = substitute(kid, values);
+			changed |= substituted != kid;
+			kids.add(substituted);
+		}
+		return changed ? e.build(kids) : e;
+	}
+}
@@ -0,0 +1,304 @@
+package ir.opt;
+
+import static ir.tree.IR.EXP;
+import static ir.tree.IR.JUMP;
+import static ir.tree.IR.LABEL;
+import static ir.tree.IR.MOVE;
+import static ir.tree.IR.PLUS;
+import static ir.tree.IR.TEMP;
+import ir.frame.Frame;
+import ir.temp.Label;
+import ir.temp.Temp;
+import ir.tree.BINOP;
+import ir.tree.CALL;
+import ir.tree.CJUMP;
+import ir.tree.CMOVE;
+import ir.tree.CONST;
+import ir.tree.EXP;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.JUMP;
+import ir.tree.LABEL;
+import ir.tree.MEM;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.TEMP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import translate.Fragment;
+import translate.Fragments;
+import translate.ProcFragment;
+import util.List;
+
+/**
+ * Inlines the procedures of a program that are small where they are called
+ * directly (CALL(NAME(procedure)), which is how the translator calls methods
+ * that are the only ones a call can run, see translate.Translator#setDevirtualization).
+ * It works on the linearized bodies of the procedures.
+ * <p>
+ * The body of a procedure, as frame.procEntryExit1 made it, saves the callee
+ * save registers, moves the arguments into the formals, moves its result into
+ * frame.RV(), and at the frame's done label restores the registers. Inlined,
+ * what is between those is copied with fresh Temps and Labels: the arguments
+ * are moved into (the copies of) the formals, the result into the Temp of the
+ * call, and the done label becomes where the code after the call continues.
+ * The locals the procedure has in its frame get a place in the caller's.
+ * <p>
+ * Callees are inlined into each procedure before it is inlined itself (as far
+ * as recursion allows), so small procedures that call small procedures are
+ * inlined all the way.
+ */
+public class Inliner {
+
+	/** Procedures with at most this many statements (not counting labels) are inlined. */
+	public static final int BUDGET = 12;
+	/** Procedures stop growing by inlining when they have this many more statements. */
+	public static final int GROWTH = 400;
+
+	private final Map<Label, ProcFragment> procedures = new HashMap<Label, ProcFragment>();
+	/** The procedures done (or being done: for recursion). */
+	private final Set<Label> visited = new HashSet<Label>();
+	/** The inlinable part of each procedure done, null if it isn't. */
+	private final Map<Label, Callee> callees = new HashMap<Label, Callee>();
+
+	public static void inline(Fragments fragments) {
+		Inliner inliner = new Inliner();
+		for (Fragment fragment : fragments)
+			if (fragment instanceof ProcFragment)
+				inliner.procedures.put(((ProcFragment) fragment).getLabel(), (ProcFragment) fragment);
+		for (Fragment fragment : fragments)
+			if (fragment instanceof ProcFragment)
+				inliner.visit((ProcFragment) fragment);
+	}
+
+	private void visit(ProcFragment proc) {
+		if (!visited.add(proc.getLabel())) return;
+		List<IRStm> body = List.list();
+		int grown = 0;
+		for (IRStm stm : proc.getLinearizedBody()) {
+			CALL call = directCall(stm);
+			ProcFragment callee = call == null ? null : procedures.get(((NAME) call.func).label);
+			if (callee != null && callee != proc && grown < GROWTH) {
+				Callee inlined = callee(callee);
+				if (inlined != null) {
+					TEMP result = stm instanceof MOVE ? (TEMP) ((MOVE) stm).dst : null;
+					// A register (the caller's RV()) only gets the result at the end.
+					TEMP to = result != null && result.temp.getColor() == null ? result : TEMP(new Temp());
+					to.temp.setReference(to.temp.isReference() || call.isReference());
+					for (IRStm copied : inlined.copy(proc.getFrame(), call.args, to))
+						body.add(copied);
+					if (result != null && to != result)
+						body.add(MOVE(result, to));
+					grown += inlined.size;
+					continue;
+				}
+			}
+			body.add(stm);
+		}
+		if (grown > 0)
+			proc.setLinearizedBody(body);
+	}
+
+	private Callee callee(ProcFragment proc) {
+		visit(proc);
+		if (!callees.containsKey(proc.getLabel()))
+			callees.put(proc.getLabel(), Callee.of(proc));
+		return callees.get(proc.getLabel());
+	}
+
+	/**
+	 * The direct call the statement makes (MOVE(TEMP, CALL(NAME)) or
+	 * EXP(CALL(NAME)), as the linearized code has them), or null.
+	 */
+	private static CALL directCall(IRStm stm) {
+		IRExp e = null;
+		if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+			e = ((MOVE) stm).src;
+		else if (stm instanceof EXP)
+			e = ((EXP) stm).exp;
+		if (e instanceof CALL && ((CALL) e).func instanceof NAME)
+			return (CALL) e;
+		return null;
+	}
+
+	/**
+	 * The part of the body of a procedure that is copied where it is inlined.
+	 */
+	private static class Callee {
+		final Frame frame;
+		final java.util.List<Temp> formals = new ArrayList<Temp>();
+		final java.util.List<IRStm> body = new ArrayList<IRStm>();
+		final Temp rv;
+		int size = 0;
+
+		private Callee(Frame frame) {
+			this.frame = frame;
+			this.rv = ((TEMP) frame.RV()).temp;
+		}
+
+		/**
+		 * The inlinable part of the procedure, or null if it is too big, or
+		 * doesn't look as expected.
+		 */
+		static Callee of(ProcFragment proc) {
+			Frame frame = proc.getFrame();
+			Callee callee = new Callee(frame);
+			List<IRStm> stms = proc.getLinearizedBody();
+			int formals = frame.getFormals().size();
+			for (int i = 0; i < formals; i++)
+				callee.formals.add(((TEMP) frame.getFormal(i).exp(frame.FP())).temp);
+
+			int formal = 0;
+			boolean done = false;
+			for (IRStm stm : stms) {
+				if (isSaveOrRestore(stm)) continue;
+				if (done) return null; // Something after the done label.
+				if (formal < formals) {
+					// The arguments go into the formals first.
+					if (!(stm instanceof MOVE) || !isTemp(((MOVE) stm).dst, callee.formals.get(formal)))
+						return null;
+					formal++;
+					continue;
+				}
+				if (stm instanceof LABEL && ((LABEL) stm).label == frame.done) {
+					done = true;
+					continue;
+				}
+				if (mentionsRV(stm, callee.rv)) return null;
+				if (!(stm instanceof LABEL) && ++callee.size > BUDGET) return null;
+				callee.body.add(stm);
+			}
+			return done ? callee : null;
+		}
+
+		private static boolean isSaveOrRestore(IRStm stm) {
+			if (!(stm instanceof MOVE)) return false;
+			MOVE move = (MOVE) stm;
+			return (move.dst instanceof TEMP && ((TEMP) move.dst).temp.getSaved() != null)
+					|| (move.src instanceof TEMP && ((TEMP) move.src).temp.getSaved() != null);
+		}
+
+		private static boolean isTemp(IRExp e, Temp t) {
+			return e instanceof TEMP && ((TEMP) e).temp == t;
+		}
+
+		/**
+		 * Whether the statement uses the return value register, other than to
+		 * move the result into it.
+		 */
+		private static boolean mentionsRV(IRStm stm, Temp rv) {
+			if (stm instanceof MOVE && isTemp(((MOVE) stm).dst, rv))
+				return ((MOVE) stm).src.mentions(rv);
+			for (IRExp kid : stm.kids())
+				if (kid.mentions(rv)) return true;
+			return stm instanceof CMOVE && isTemp(((CMOVE) stm).dst, rv);
+		}
+
+		/**
+		 * A copy of the body for a call in a procedure of the frame, with fresh
+		 * Temps and Labels, that puts its result in the Temp result.
+		 */
+		List<IRStm> copy(Frame into, List<IRExp> args, TEMP result) {
+			Copy copy = new Copy(frame, into, rv, result);
+			List<IRStm> stms = List.list();
+			for (int i = 0; i < formals.size(); i++)
+				stms.add(MOVE(copy.rename(TEMP(formals.get(i))), args.get(i)));
+			for (IRStm stm : body)
+				stms.add(copy.rename(stm));
+			stms.add(LABEL(copy.rename(frame.done)));
+			return stms;
+		}
+	}
+
+	/**
+	 * Renames the Temps and Labels of one copy of an inlined body.
+	 */
+	private static class Copy {
+		private final Temp fp;
+		private final Temp rv;
+		private final TEMP result;
+		private final Map<Temp, Temp> temps = new HashMap<Temp, Temp>();
+		private final Map<Label, Label> labels = new HashMap<Label, Label>();
+		private final Map<Integer, Integer> locals;
+
+		Copy(Frame from, Frame into, Temp rv, TEMP result) {
+			this.fp = ((TEMP) from.FP()).temp;
+			this.rv = rv;
+			this.result = result;
+			this.locals = into.mergeLocals(from);
+		}
+
+		Label rename(Label label) {
+			Label copy = labels.get(label);
+			if (copy == null) {
+				copy = Label.gen();
+				labels.put(label, copy);
+			}
+			return copy;
+		}
+
+		IRStm rename(IRStm stm) {
+			if (stm instanceof LABEL)
+				return LABEL(rename(((LABEL) stm).label));
+			if (stm instanceof JUMP) {
+				JUMP jump = (JUMP) stm;
+				if (!(jump.exp instanceof NAME))
+					throw new Error("Can't inline a computed jump: " + jump);
+				return JUMP(rename(((NAME) jump.exp).label));
+			}
+			if (stm instanceof CJUMP) {
+				CJUMP cjump = (CJUMP) stm;
+				return new CJUMP(cjump.relop, rename(cjump.left), rename(cjump.right),
+						rename(cjump.iftrue), rename(cjump.iffalse));
+			}
+			if (stm instanceof MOVE) {
+				MOVE move = (MOVE) stm;
+				IRExp dst = move.dst instanceof TEMP && ((TEMP) move.dst).temp == rv ? result : rename(move.dst);
+				return MOVE(dst, rename(move.src));
+			}
+			if (stm instanceof CMOVE) {
+				CMOVE cmove = (CMOVE) stm;
+				return new CMOVE(cmove.relop, rename(cmove.left), rename(cmove.right),
+						rename(cmove.dst), rename(cmove.src));
+			}
+			if (stm instanceof EXP)
+				return EXP(rename(((EXP) stm).exp));
+			throw new Error("Can't inline " + stm);
+		}
+
+		/** Names (of procedures, data, the labels of jumps) stay the same. */
+		IRExp rename(IRExp e) {
+			if (e instanceof TEMP) {
+				Temp t = ((TEMP) e).temp;
+				if (t.getColor() != null) return e; // a register (the frame pointer)
+				Temp copy = temps.get(t);
+				if (copy == null) {
+					copy = new Temp(t);
+					temps.put(t, copy);
+				}
+				return TEMP(copy);
+			}
+			if (e instanceof MEM && isLocal(((MEM) e).exp)) {
+				int offset = ((CONST) ((BINOP) ((MEM) e).exp).right).getValue();
+				return e.build(List.list(PLUS(TEMP(fp), locals.get(offset))));
+			}
+			List<IRExp> kids = List.list();
+			for (IRExp kid : e.kids())
+				kids.add(rename(kid));
+			return e.build(kids);
+		}
+
+		/** Whether e is the address of a local in the frame: FP() plus the offset. */
+		private boolean isLocal(IRExp e) {
+			if (!(e instanceof BINOP)) return false;
+			BINOP plus = (BINOP) e;
+			return plus.binop == BINOP.Op.PLUS && plus.left instanceof TEMP && ((TEMP) plus.left).temp == fp
+					&& plus.right instanceof CONST && locals.containsKey(((CONST) plus.right).getValue());
+		}
+	}
+}
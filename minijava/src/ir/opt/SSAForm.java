@@ -0,0 +1,856 @@
+package ir.opt;
+
+import static ir.tree.IR.JUMP;
+import static ir.tree.IR.LABEL;
+import static ir.tree.IR.MOVE;
+import static ir.tree.IR.TEMP;
+import ir.canon.BasicBlocks;
+import ir.temp.Label;
+import ir.temp.Temp;
+import ir.tree.CJUMP;
+import ir.tree.CMOVE;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.JUMP;
+import ir.tree.LABEL;
+import ir.tree.MEM;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.TEMP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import translate.ProcFragment;
+import util.DefaultIndentable;
+import util.IndentingWriter;
+import util.List;
+import analysis.implementation.ParallelCopy;
+
+/**
+ * The basic blocks of a procedure (see ProcFragment#getBasicBlocks) in SSA
+ * form: every Temp is assigned at most once, and that assignment dominates all
+ * of its uses. Where values of a Temp meet, at the start of a block, a phi
+ * function picks the one of the predecessor that control comes from. The phi
+ * functions are kept on the side, they don't appear in the IR.
+ * <p>
+ * It is built as analysis.implementation.SSARegAlloc builds the SSA form of
+ * the assembly code: the dominator tree by the algorithm of Cooper, Harvey and
+ * Kennedy, phi functions at the iterated dominance frontiers of the assignments
+ * of a Temp where it is live (pruned SSA form), and renaming along a preorder
+ * walk of the dominator tree. Blocks that can't be reached are dropped.
+ * <p>
+ * Registers (precolored Temps) are not renamed, nor are the Temps that a CMOVE
+ * assigns: it may also keep their old value. Temps assigned once before any use
+ * already are in SSA form and keep their names. A Temp that may be used before
+ * it is assigned keeps its name for the value it has when the procedure starts.
+ * <p>
+ * {@link #toLinearized()} leaves SSA form again. A phi function and an
+ * argument that don't interfere get the same Temp (copy coalescing); for the
+ * other arguments, the phi functions of a block become a {@link ParallelCopy}
+ * at the end of the predecessor, in a block of its own if the predecessor can
+ * also go elsewhere.
+ */
+public class SSAForm extends DefaultIndentable {
+
+	/**
+	 * A phi function at the start of a block: dst gets the value of args[k]
+	 * when control comes from the k-th predecessor of the block.
+	 */
+	public static class Phi {
+		public final Temp original;
+		public Temp dst;
+		public final Temp[] args;
+		Phi(Temp original, int preds) {
+			this.original = original;
+			this.args = new Temp[preds];
+		}
+	}
+
+	public static class Block {
+		public final Label label;
+		/** The statements of the block: its LABEL first, a jump last. */
+		public final java.util.List<IRStm> stms;
+		public final java.util.List<Phi> phis = new ArrayList<Phi>();
+		private final java.util.List<Block> preds = new ArrayList<Block>();
+		private final java.util.List<Block> succs = new ArrayList<Block>();
+		private Block idom;
+		/** The blocks it immediately dominates, in reverse postorder. */
+		private final java.util.List<Block> children = new ArrayList<Block>();
+		/** Position in reverse postorder, and the preorder interval of its subtree of the dominator tree. */
+		private int order, first, last;
+
+		Block(java.util.List<IRStm> stms) {
+			this.label = ((LABEL) stms.get(0)).label;
+			this.stms = stms;
+		}
+
+		public java.util.List<Block> getPreds() {
+			return preds;
+		}
+
+		public java.util.List<Block> getSuccs() {
+			return succs;
+		}
+
+		/** The immediate dominator, null for the first block. */
+		public Block getIdom() {
+			return idom == this ? null : idom;
+		}
+
+		public java.util.List<Block> getChildren() {
+			return children;
+		}
+
+		public boolean dominates(Block other) {
+			return first <= other.first && other.first <= last;
+		}
+
+		@Override
+		public String toString() {
+			return label.toString();
+		}
+	}
+
+	/** Where the procedure ends (see BasicBlocks#doneLabel), or null. */
+	private final Label doneLabel;
+	/** The blocks, the first one first, otherwise as in the linearized code. */
+	private final java.util.List<Block> blocks = new ArrayList<Block>();
+	/** The blocks in reverse postorder. */
+	private final java.util.List<Block> rpo = new ArrayList<Block>();
+
+	public SSAForm(ProcFragment proc) {
+		BasicBlocks basicBlocks = proc.getBasicBlocks();
+		doneLabel = basicBlocks.doneLabel;
+		Map<Label, Block> byLabel = new HashMap<Label, Block>();
+		java.util.List<Block> all = new ArrayList<Block>();
+		for (List<IRStm> stms : basicBlocks.blocks) {
+			java.util.List<IRStm> copy = new ArrayList<IRStm>();
+			for (IRStm stm : stms)
+				copy.add(stm);
+			Block block = new Block(copy);
+			byLabel.put(block.label, block);
+			all.add(block);
+		}
+		if (jumpsTo(all, all.get(0).label)) {
+			// The first block must not be a join point.
+			Label entry = Label.gen();
+			java.util.List<IRStm> stms = new ArrayList<IRStm>();
+			stms.add(LABEL(entry));
+			stms.add(JUMP(all.get(0).label));
+			Block block = new Block(stms);
+			byLabel.put(entry, block);
+			all.add(0, block);
+		}
+		reachable(all.get(0), byLabel);
+		for (Block block : all)
+			if (block.order >= 0) blocks.add(block);
+		for (Block block : rpo)
+			for (Block succ : block.succs)
+				succ.preds.add(block);
+		dominators();
+		toSSA();
+	}
+
+	public java.util.List<Block> getBlocks() {
+		return blocks;
+	}
+
+	/** The blocks in a preorder walk of the dominator tree (each before those it dominates). */
+	public java.util.List<Block> getDominatorOrder() {
+		Block[] preorder = new Block[blocks.size()];
+		for (Block block : blocks)
+			preorder[block.first] = block;
+		return java.util.Arrays.asList(preorder);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Control flow and dominators
+
+	private static boolean jumpsTo(java.util.List<Block> blocks, Label label) {
+		for (Block block : blocks)
+			if (targets(last(block)).contains(label)) return true;
+		return false;
+	}
+
+	private static IRStm last(Block block) {
+		return block.stms.get(block.stms.size() - 1);
+	}
+
+	private static List<Label> targets(IRStm jump) {
+		if (jump instanceof CJUMP)
+			return List.list(((CJUMP) jump).iftrue, ((CJUMP) jump).iffalse);
+		return jump.jumps();
+	}
+
+	/**
+	 * Link up the blocks that can be reached from entry with their successors,
+	 * and number them in reverse postorder (the others get -1).
+	 */
+	private void reachable(Block entry, Map<Label, Block> byLabel) {
+		for (Block block : byLabel.values())
+			block.order = -1;
+		java.util.List<Block> postorder = new ArrayList<Block>();
+		java.util.List<Block> stack = new ArrayList<Block>();
+		java.util.List<Integer> next = new ArrayList<Integer>();
+		Set<Block> seen = new HashSet<Block>();
+		stack.add(entry);
+		next.add(0);
+		seen.add(entry);
+		link(entry, byLabel);
+		while (!stack.isEmpty()) {
+			int top = stack.size() - 1;
+			Block b = stack.get(top);
+			int k = next.get(top);
+			if (k < b.succs.size()) {
+				next.set(top, k + 1);
+				Block s = b.succs.get(k);
+				if (seen.add(s)) {
+					link(s, byLabel);
+					stack.add(s);
+					next.add(0);
+				}
+			} else {
+				postorder.add(b);
+				stack.remove(top);
+				next.remove(top);
+			}
+		}
+		for (int k = postorder.size() - 1; k >= 0; k--) {
+			Block b = postorder.get(k);
+			b.order = rpo.size();
+			rpo.add(b);
+		}
+	}
+
+	/** The successors of a block: where its jump can go, other than the end of the procedure. */
+	private static void link(Block b, Map<Label, Block> byLabel) {
+		for (Label target : targets(last(b))) {
+			Block s = byLabel.get(target);
+			if (s != null && !b.succs.contains(s))
+				b.succs.add(s);
+		}
+	}
+
+	/**
+	 * The dominator tree, with the algorithm by Cooper, Harvey and Kennedy,
+	 * "A Simple, Fast Dominance Algorithm".
+	 */
+	private void dominators() {
+		Block entry = rpo.get(0);
+		entry.idom = entry;
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = 1; k < rpo.size(); k++) {
+				Block b = rpo.get(k);
+				Block idom = null;
+				for (Block p : b.preds) {
+					if (p.idom == null) continue;
+					idom = idom == null ? p : intersect(p, idom);
+				}
+				if (b.idom != idom) {
+					b.idom = idom;
+					changed = true;
+				}
+			}
+		}
+		for (int k = 1; k < rpo.size(); k++)
+			rpo.get(k).idom.children.add(rpo.get(k));
+
+		// Number the dominator tree in preorder, for dominance tests.
+		int count = 0;
+		java.util.List<Block> stack = new ArrayList<Block>();
+		stack.add(entry);
+		while (!stack.isEmpty()) {
+			Block b = stack.remove(stack.size() - 1);
+			b.first = count++;
+			for (int c = b.children.size() - 1; c >= 0; c--)
+				stack.add(b.children.get(c));
+		}
+		for (int k = rpo.size() - 1; k >= 0; k--) {
+			Block b = rpo.get(k);
+			b.last = b.first;
+			for (Block c : b.children)
+				b.last = Math.max(b.last, c.last);
+		}
+	}
+
+	private static Block intersect(Block a, Block b) {
+		while (a != b) {
+			while (a.order > b.order) a = a.idom;
+			while (b.order > a.order) b = b.idom;
+		}
+		return a;
+	}
+
+	private java.util.List<java.util.List<Block>> dominanceFrontiers() {
+		java.util.List<java.util.List<Block>> frontier = new ArrayList<java.util.List<Block>>(rpo.size());
+		for (int k = 0; k < rpo.size(); k++)
+			frontier.add(new ArrayList<Block>(0));
+		for (Block b : rpo) {
+			if (b.preds.size() < 2) continue;
+			for (Block p : b.preds) {
+				for (Block runner = p; runner != b.idom; runner = runner.idom) {
+					java.util.List<Block> df = frontier.get(runner.order);
+					if (df.isEmpty() || df.get(df.size() - 1) != b)
+						df.add(b);
+				}
+			}
+		}
+		return frontier;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Uses and definitions
+
+	/** The Temp a statement assigns (CMOVEs aside), or null. */
+	private static Temp def(IRStm stm) {
+		if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP)
+			return ((TEMP) ((MOVE) stm).dst).temp;
+		return null;
+	}
+
+	/** The Temp a CMOVE may assign, or null. */
+	private static Temp conditionalDef(IRStm stm) {
+		if (stm instanceof CMOVE && ((CMOVE) stm).dst instanceof TEMP)
+			return ((TEMP) ((CMOVE) stm).dst).temp;
+		return null;
+	}
+
+	/** The Temps a statement reads (a CMOVE its destination, too). */
+	private static Set<Temp> uses(IRStm stm) {
+		Set<Temp> uses = new HashSet<Temp>();
+		for (IRExp kid : stm.kids())
+			uses(kid, uses);
+		if (conditionalDef(stm) != null)
+			uses.add(conditionalDef(stm));
+		return uses;
+	}
+
+	private static void uses(IRExp e, Set<Temp> uses) {
+		if (e instanceof TEMP)
+			uses.add(((TEMP) e).temp);
+		for (IRExp kid : e.kids())
+			uses(kid, uses);
+	}
+
+	/**
+	 * The Temps live at the start of each block (by reverse postorder number).
+	 * Phi functions assign their Temps at the start of their block, and use
+	 * their arguments at the end of the predecessors.
+	 */
+	private java.util.List<Set<Temp>> liveIn() {
+		int n = rpo.size();
+		java.util.List<Set<Temp>> use = new ArrayList<Set<Temp>>(n);
+		java.util.List<Set<Temp>> def = new ArrayList<Set<Temp>>(n);
+		java.util.List<Set<Temp>> phiDefs = new ArrayList<Set<Temp>>(n);
+		java.util.List<Set<Temp>> phiUses = new ArrayList<Set<Temp>>(n);
+		java.util.List<Set<Temp>> liveIn = new ArrayList<Set<Temp>>(n);
+		for (Block b : rpo) {
+			Set<Temp> u = new HashSet<Temp>(), d = new HashSet<Temp>();
+			for (IRStm stm : b.stms) {
+				for (Temp t : uses(stm))
+					if (!d.contains(t)) u.add(t);
+				if (def(stm) != null) d.add(def(stm));
+			}
+			use.add(u);
+			def.add(d);
+			phiDefs.add(new HashSet<Temp>());
+			phiUses.add(new HashSet<Temp>());
+			liveIn.add(new HashSet<Temp>());
+		}
+		for (Block s : rpo)
+			for (Phi phi : s.phis) {
+				phiDefs.get(s.order).add(phi.dst);
+				for (int k = 0; k < s.preds.size(); k++)
+					phiUses.get(s.preds.get(k).order).add(phi.args[k]);
+			}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (int k = n - 1; k >= 0; k--) {
+				Block b = rpo.get(k);
+				Set<Temp> in = liveOut(b, liveIn, phiDefs, phiUses);
+				in.removeAll(def.get(k));
+				in.addAll(use.get(k));
+				if (!in.equals(liveIn.get(k))) {
+					liveIn.set(k, in);
+					changed = true;
+				}
+			}
+		}
+		return liveIn;
+	}
+
+	private static Set<Temp> liveOut(Block b, java.util.List<Set<Temp>> liveIn,
+			java.util.List<Set<Temp>> phiDefs, java.util.List<Set<Temp>> phiUses) {
+		Set<Temp> out = phiUses == null ? new HashSet<Temp>() : new HashSet<Temp>(phiUses.get(b.order));
+		for (Block s : b.succs) {
+			for (Temp t : liveIn.get(s.order))
+				if (phiDefs == null || !phiDefs.get(s.order).contains(t)) out.add(t);
+		}
+		return out;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Construction of SSA form
+
+	private void toSSA() {
+		// Temps assigned more than once (CMOVEs aside), or that may be used
+		// before they are assigned, are renamed.
+		Map<Temp, java.util.List<Block>> defSites = new HashMap<Temp, java.util.List<Block>>();
+		Map<Temp, Integer> defs = new HashMap<Temp, Integer>();
+		Set<Temp> conditional = new HashSet<Temp>();
+		for (Block b : rpo) {
+			for (IRStm stm : b.stms) {
+				if (conditionalDef(stm) != null) conditional.add(conditionalDef(stm));
+				Temp t = def(stm);
+				if (t == null || t.getColor() != null) continue;
+				java.util.List<Block> sites = defSites.get(t);
+				if (sites == null) {
+					sites = new ArrayList<Block>();
+					defSites.put(t, sites);
+					defs.put(t, 0);
+				}
+				if (!sites.contains(b))
+					sites.add(b);
+				defs.put(t, defs.get(t) + 1);
+			}
+		}
+		java.util.List<Set<Temp>> liveIn = liveIn();
+		Set<Temp> liveAtEntry = liveIn.get(0);
+		Set<Temp> renamed = new HashSet<Temp>();
+		for (Temp t : defSites.keySet())
+			if (!conditional.contains(t) && (defs.get(t) > 1 || liveAtEntry.contains(t)))
+				renamed.add(t);
+
+		java.util.List<java.util.List<Block>> frontier = dominanceFrontiers();
+		for (Temp t : renamed) {
+			Set<Block> hasPhi = new HashSet<Block>();
+			java.util.List<Block> work = new ArrayList<Block>(defSites.get(t));
+			while (!work.isEmpty()) {
+				Block d = work.remove(work.size() - 1);
+				for (Block b : frontier.get(d.order)) {
+					if (hasPhi.contains(b) || !liveIn.get(b.order).contains(t)) continue;
+					hasPhi.add(b);
+					b.phis.add(new Phi(t, b.preds.size()));
+					work.add(b);
+				}
+			}
+		}
+		rename(renamed, liveAtEntry);
+	}
+
+	/**
+	 * Rename along a preorder walk of the dominator tree, keeping a stack of the
+	 * names of each Temp; the current one is on top.
+	 */
+	private void rename(Set<Temp> renamed, Set<Temp> liveAtEntry) {
+		Map<Temp, java.util.List<Temp>> names = new HashMap<Temp, java.util.List<Temp>>();
+		Map<Temp, Temp> current = new HashMap<Temp, Temp>();
+		for (Temp t : renamed) {
+			names.put(t, new ArrayList<Temp>());
+			current.put(t, t);
+		}
+		Map<Block, java.util.List<Temp>> pushed = new HashMap<Block, java.util.List<Temp>>();
+		java.util.List<Block> work = new ArrayList<Block>();
+		java.util.List<Boolean> leaving = new ArrayList<Boolean>();
+		work.add(rpo.get(0));
+		leaving.add(false);
+		while (!work.isEmpty()) {
+			Block b = work.remove(work.size() - 1);
+			if (leaving.remove(leaving.size() - 1)) {
+				for (Temp t : pushed.get(b)) {
+					java.util.List<Temp> stack = names.get(t);
+					stack.remove(stack.size() - 1);
+					current.put(t, stack.isEmpty() ? t : stack.get(stack.size() - 1));
+				}
+				continue;
+			}
+			java.util.List<Temp> defined = new ArrayList<Temp>();
+			for (Phi phi : b.phis) {
+				phi.dst = new Temp(phi.original);
+				push(phi.original, phi.dst, names, current, defined);
+			}
+			for (int i = 0; i < b.stms.size(); i++) {
+				IRStm stm = substitute(b.stms.get(i), current);
+				Temp t = def(stm);
+				if (t != null && renamed.contains(t)) {
+					Temp fresh = new Temp(t);
+					push(t, fresh, names, current, defined);
+					stm = MOVE(TEMP(fresh), ((MOVE) stm).src);
+				}
+				b.stms.set(i, stm);
+			}
+			for (Block s : b.succs) {
+				int k = s.preds.indexOf(b);
+				for (Phi phi : s.phis)
+					phi.args[k] = current.get(phi.original);
+			}
+			pushed.put(b, defined);
+			work.add(b);
+			leaving.add(true);
+			for (int c = b.children.size() - 1; c >= 0; c--) {
+				work.add(b.children.get(c));
+				leaving.add(false);
+			}
+		}
+	}
+
+	private static void push(Temp t, Temp name, Map<Temp, java.util.List<Temp>> names,
+			Map<Temp, Temp> current, java.util.List<Temp> defined) {
+		names.get(t).add(name);
+		current.put(t, name);
+		defined.add(t);
+	}
+
+	/**
+	 * stm with its uses of Temps replaced (stm itself if none are): what it
+	 * assigns stays, except for the address of a MEM.
+	 */
+	static IRStm substitute(IRStm stm, Map<Temp, Temp> names) {
+		if (stm instanceof MOVE) {
+			MOVE move = (MOVE) stm;
+			IRExp dst = move.dst instanceof MEM ? substitute(move.dst, names) : move.dst;
+			IRExp src = substitute(move.src, names);
+			return dst == move.dst && src == move.src ? stm : MOVE(dst, src);
+		}
+		if (stm instanceof CMOVE) {
+			CMOVE cmove = (CMOVE) stm;
+			IRExp dst = cmove.dst instanceof MEM ? substitute(cmove.dst, names) : cmove.dst;
+			IRExp left = substitute(cmove.left, names), right = substitute(cmove.right, names);
+			IRExp src = substitute(cmove.src, names);
+			if (dst == cmove.dst && left == cmove.left && right == cmove.right && src == cmove.src)
+				return stm;
+			return new CMOVE(cmove.relop, left, right, dst, src);
+		}
+		boolean changed = false;
+		List<IRExp> kids = List.list();
+		for (IRExp kid : stm.kids()) {
+			IRExp substituted = substitute(kid, names);
+			changed |= substituted != kid;
+			kids.add(substituted);
+		}
+		return changed ? stm.build(kids) : stm;
+	}
+
+	static IRExp substitute(IRExp e, Map<Temp, Temp> names) {
+		if (e instanceof TEMP) {
+			Temp name = names.get(((TEMP) e).temp);
+			return name == null || name == ((TEMP) e).temp ? e : TEMP(name);
+		}
+		boolean changed = false;
+		List<IRExp> kids = List.list();
+		for (IRExp kid : e.kids()) {
+			IRExp substituted = substitute(kid, names);
+			changed |= substituted != kid;
+			kids.add(substituted);
+		}
+		return changed ? e.build(kids) : e;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Verification
+
+	/**
+	 * Check that the blocks are well formed and in SSA form: each Temp (other
+	 * than registers, and those that CMOVEs assign) is assigned at most once,
+	 * where it dominates all of its uses. Throws an Error if not.
+	 */
+	public void verify() {
+		Set<Temp> conditional = new HashSet<Temp>();
+		for (Block b : blocks)
+			for (IRStm stm : b.stms)
+				if (conditionalDef(stm) != null) conditional.add(conditionalDef(stm));
+		// Where each Temp is assigned: the block, and the statement (-1 for a phi function).
+		Map<Temp, Block> defBlock = new HashMap<Temp, Block>();
+		Map<Temp, Integer> defIndex = new HashMap<Temp, Integer>();
+		for (Block b : blocks) {
+			if (!(b.stms.get(0) instanceof LABEL) || ((LABEL) b.stms.get(0)).label != b.label)
+				fail(b, "doesn't start with its label");
+			if (!last(b).isJump())
+				fail(b, "doesn't end with a jump");
+			for (int i = 1; i < b.stms.size() - 1; i++)
+				if (b.stms.get(i) instanceof LABEL || b.stms.get(i).isJump())
+					fail(b, "has a label or jump inside: " + b.stms.get(i));
+			for (Block s : b.succs)
+				if (!targets(last(b)).contains(s.label))
+					fail(b, "doesn't jump to its successor " + s);
+			for (Phi phi : b.phis) {
+				if (phi.args.length != b.preds.size())
+					fail(b, "has a phi function for " + phi.original + " with the wrong number of arguments");
+				define(phi.dst, b, -1, defBlock, defIndex);
+			}
+			for (int i = 0; i < b.stms.size(); i++) {
+				Temp t = def(b.stms.get(i));
+				if (t != null && t.getColor() == null && !conditional.contains(t))
+					define(t, b, i, defBlock, defIndex);
+			}
+		}
+		for (Block b : blocks) {
+			for (int i = 0; i < b.stms.size(); i++)
+				for (Temp t : uses(b.stms.get(i)))
+					if (defBlock.containsKey(t) && !(defBlock.get(t) == b ? defIndex.get(t) < i : defBlock.get(t).dominates(b)))
+						fail(b, "uses " + t + " where its assignment doesn't dominate it: " + b.stms.get(i));
+			for (Phi phi : b.phis)
+				for (int k = 0; k < phi.args.length; k++) {
+					Temp t = phi.args[k];
+					if (t == null)
+						fail(b, "has a phi function for " + phi.original + " without an argument from " + b.preds.get(k));
+					if (defBlock.containsKey(t) && !defBlock.get(t).dominates(b.preds.get(k)))
+						fail(b, "has a phi function using " + t + ", which isn't assigned on the way from " + b.preds.get(k));
+				}
+		}
+	}
+
+	private static void define(Temp t, Block b, int i, Map<Temp, Block> defBlock, Map<Temp, Integer> defIndex) {
+		if (defBlock.containsKey(t))
+			fail(b, "assigns " + t + " again");
+		defBlock.put(t, b);
+		defIndex.put(t, i);
+	}
+
+	private static void fail(Block b, String why) {
+		throw new Error("Not in SSA form: block " + b + " " + why);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Leaving SSA form
+
+	/**
+	 * The procedure out of SSA form, as a linearized body again (see
+	 * ProcFragment#setLinearizedBody).
+	 */
+	public List<IRStm> toLinearized() {
+		Map<Temp, Temp> names = coalesce(interference());
+
+		List<IRStm> body = List.list();
+		List<IRStm> edges = List.list();
+		Block exit = null;
+		for (Block b : blocks) {
+			IRStm jump = last(b);
+			if (jump instanceof JUMP && isJumpTo((JUMP) jump, doneLabel)) {
+				exit = b; // Goes last: the end of the procedure follows it.
+				continue;
+			}
+			for (int i = 0; i < b.stms.size() - 1; i++)
+				body.add(rename(b.stms.get(i), names));
+			for (Block s : b.succs) {
+				List<IRStm> copies = copies(s, s.preds.indexOf(b), names);
+				if (copies.isEmpty()) continue;
+				if (!(jump instanceof CJUMP)) {
+					for (IRStm copy : copies)
+						body.add(copy);
+					continue;
+				}
+				// On an edge of its own (the CJUMP may still need what they overwrite).
+				Label edge = Label.gen();
+				edges.add(LABEL(edge));
+				for (IRStm copy : copies)
+					edges.add(copy);
+				edges.add(JUMP(s.label));
+				CJUMP cjump = (CJUMP) jump;
+				jump = new CJUMP(cjump.relop, cjump.left, cjump.right,
+						cjump.iftrue == s.label ? edge : cjump.iftrue,
+						cjump.iffalse == s.label ? edge : cjump.iffalse);
+			}
+			body.add(rename(jump, names));
+		}
+		for (IRStm stm : edges)
+			body.add(stm);
+		if (exit != null)
+			for (int i = 0; i < exit.stms.size() - 1; i++)
+				body.add(rename(exit.stms.get(i), names));
+		return body;
+	}
+
+	/** stm with all its Temps renamed: those it assigns, too. */
+	private static IRStm rename(IRStm stm, Map<Temp, Temp> names) {
+		IRStm renamed = substitute(stm, names);
+		if (def(stm) != null && names.containsKey(def(stm)))
+			return MOVE(TEMP(names.get(def(stm))), ((MOVE) renamed).src);
+		Temp t = conditionalDef(stm);
+		if (t != null && names.containsKey(t)) {
+			CMOVE cmove = (CMOVE) renamed;
+			return new CMOVE(cmove.relop, cmove.left, cmove.right, TEMP(names.get(t)), cmove.src);
+		}
+		return renamed;
+	}
+
+	private static boolean isJumpTo(JUMP jump, Label label) {
+		return label != null && jump.exp instanceof NAME && ((NAME) jump.exp).label == label;
+	}
+
+	/** The copies for the phi functions of s, on the edge from its k-th predecessor. */
+	private static List<IRStm> copies(Block s, int k, Map<Temp, Temp> names) {
+		ParallelCopy<Temp, IRStm> copy = new ParallelCopy<Temp, IRStm>() {
+			@Override
+			protected List<IRStm> move(Temp dst, Temp src) {
+				return List.list(MOVE(TEMP(dst), TEMP(src)));
+			}
+			@Override
+			protected Temp spare() {
+				return new Temp();
+			}
+		};
+		for (Phi phi : s.phis)
+			copy.add(name(names, phi.dst), name(names, phi.args[k]));
+		return copy.sequentialise();
+	}
+
+	private static Temp name(Map<Temp, Temp> names, Temp t) {
+		Temp name = names.get(t);
+		return name == null ? t : name;
+	}
+
+	/**
+	 * Which Temps interfere: one is live where the other is assigned (except
+	 * the source of a move at its destination). Phi functions assign their
+	 * Temps at the start of the block, and all Temps live when the procedure
+	 * starts have their values there.
+	 */
+	private Map<Temp, Set<Temp>> interference() {
+		java.util.List<Set<Temp>> liveIn = liveIn();
+		java.util.List<Set<Temp>> phiDefs = new ArrayList<Set<Temp>>();
+		java.util.List<Set<Temp>> phiUses = new ArrayList<Set<Temp>>();
+		for (int k = 0; k < rpo.size(); k++) {
+			phiDefs.add(new HashSet<Temp>());
+			phiUses.add(new HashSet<Temp>());
+		}
+		for (Block s : rpo)
+			for (Phi phi : s.phis) {
+				phiDefs.get(s.order).add(phi.dst);
+				for (int k = 0; k < s.preds.size(); k++)
+					phiUses.get(s.preds.get(k).order).add(phi.args[k]);
+			}
+
+		Map<Temp, Set<Temp>> interference = new HashMap<Temp, Set<Temp>>();
+		for (Block b : rpo) {
+			Set<Temp> live = liveOut(b, liveIn, phiDefs, phiUses);
+			for (int i = b.stms.size() - 1; i >= 0; i--) {
+				IRStm stm = b.stms.get(i);
+				Temp d = def(stm) != null ? def(stm) : conditionalDef(stm);
+				if (d != null) {
+					IRExp src = stm instanceof MOVE ? ((MOVE) stm).src : null;
+					for (Temp t : live)
+						if (!(src instanceof TEMP && ((TEMP) src).temp == t))
+							interfere(interference, d, t);
+					if (def(stm) != null)
+						live.remove(d);
+				}
+				live.addAll(uses(stm));
+			}
+			for (Phi phi : b.phis) {
+				for (Temp t : live)
+					interfere(interference, phi.dst, t);
+				for (Phi other : b.phis)
+					interfere(interference, phi.dst, other.dst);
+			}
+		}
+		for (Temp t : liveIn.get(0))
+			for (Temp other : liveIn.get(0))
+				interfere(interference, t, other);
+		return interference;
+	}
+
+	private static void interfere(Map<Temp, Set<Temp>> interference, Temp a, Temp b) {
+		if (a == b) return;
+		add(interference, a, b);
+		add(interference, b, a);
+	}
+
+	private static void add(Map<Temp, Set<Temp>> map, Temp a, Temp b) {
+		Set<Temp> set = map.get(a);
+		if (set == null) {
+			set = new HashSet<Temp>();
+			map.put(a, set);
+		}
+		set.add(b);
+	}
+
+	/**
+	 * Give each phi function and its arguments one name, unless some of them
+	 * interfere (or only some are references). Returns the new name of each
+	 * Temp that gets one.
+	 */
+	private Map<Temp, Temp> coalesce(Map<Temp, Set<Temp>> interference) {
+		Map<Temp, Temp> parent = new HashMap<Temp, Temp>();
+		Map<Temp, java.util.List<Temp>> members = new HashMap<Temp, java.util.List<Temp>>();
+		for (Block b : blocks)
+			for (Phi phi : b.phis)
+				for (Temp arg : phi.args) {
+					Temp a = find(parent, phi.dst), c = find(parent, arg);
+					if (a == c || a.isReference() != c.isReference() || a.getColor() != null || c.getColor() != null)
+						continue;
+					java.util.List<Temp> as = members(members, a), cs = members(members, c);
+					if (interfere(interference, as, cs)) continue;
+					parent.put(c, a);
+					as.addAll(cs);
+					members.remove(c);
+				}
+		Map<Temp, Temp> names = new HashMap<Temp, Temp>();
+		for (Temp t : parent.keySet())
+			names.put(t, find(parent, t));
+		return names;
+	}
+
+	private static java.util.List<Temp> members(Map<Temp, java.util.List<Temp>> members, Temp root) {
+		java.util.List<Temp> list = members.get(root);
+		if (list == null) {
+			list = new ArrayList<Temp>();
+			list.add(root);
+			members.put(root, list);
+		}
+		return list;
+	}
+
+	private static boolean interfere(Map<Temp, Set<Temp>> interference, java.util.List<Temp> as, java.util.List<Temp> bs) {
+		for (Temp a : as) {
+			Set<Temp> others = interference.get(a);
+			if (others == null) continue;
+			for (Temp b : bs)
+				if (others.contains(b)) return true;
+		}
+		return false;
+	}
+
+	private static Temp find(Map<Temp, Temp> parent, Temp t) {
+		Temp p = parent.get(t);
+		if (p == null || p == t) return t;
+		Temp root = find(parent, p);
+		parent.put(t, root);
+		return root;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Dumping
+
+	/**
+	 * The blocks, each with its phi functions after its label, as
+	 * "dst <- PHI(predecessor: argument, ...)".
+	 */
+	@Override
+	public void dump(IndentingWriter out) {
+		out.println("SSA {");
+		out.indent();
+		for (Block b : blocks) {
+			out.println(b.stms.get(0));
+			for (Phi phi : b.phis) {
+				StringBuilder args = new StringBuilder();
+				for (int k = 0; k < phi.args.length; k++) {
+					if (k > 0) args.append(", ");
+					args.append(b.preds.get(k)).append(": ").append(phi.args[k]);
+				}
+				out.println(phi.dst + " <- PHI(" + args + ")");
+			}
+			for (int i = 1; i < b.stms.size(); i++)
+				out.println(b.stms.get(i));
+		}
+		out.outdent();
+		out.print("}");
+	}
+}
@@ -0,0 +1,586 @@
+package ir.opt;
+
+import static ir.tree.IR.CONST;
+import static ir.tree.IR.MOVE;
+import static ir.tree.IR.TEMP;
+import ir.temp.Temp;
+import ir.tree.BINOP;
+import ir.tree.CALL;
+import ir.tree.CJUMP;
+import ir.tree.CJUMP.RelOp;
+import ir.tree.CMOVE;
+import ir.tree.CONST;
+import ir.tree.EXP;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.MEM;
+import ir.tree.MOVE;
+import ir.tree.NAME;
+import ir.tree.TEMP;
+import ir.opt.SSAForm.Block;
+import ir.opt.SSAForm.Phi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import translate.Fragment;
+import translate.Fragments;
+import translate.ProcFragment;
+import translate.TranslatorLabels;
+import util.List;
+
+/**
+ * Global value numbering of the procedures of a program, on their SSA form
+ * (see {@link SSAForm}), as in the dominator-based value numbering of Briggs,
+ * Cooper and Simpson, "Value Numbering": along a preorder walk of the
+ * dominator tree, an expression that was computed in a block that dominates
+ * (or earlier in the same block) is replaced by the Temp that holds its value.
+ * An expression is known by its operators and the value numbers of its Temps;
+ * the value number of a Temp that is a copy of another is that of the other.
+ * Only Temps that are assigned once, and not by a CMOVE, have a value number.
+ * <p>
+ * Loads are values, too, as long as no store or call may have changed the
+ * word they read. Which ones may is decided by the type of what is accessed
+ * (see MEM.Kind): a store into an array element doesn't change fields, a store
+ * into a field doesn't change the other fields, nor the lengths of arrays. The
+ * vtables and lengths of arrays never change (calls don't change them either),
+ * so the length that a bounds check loads, or the vtable of a receiver, is
+ * loaded once. A load that nothing earlier computes is moved into a fresh Temp
+ * right before its statement, for loads after it to use; after a store, loads
+ * of what it stored use the Temp (or constant) that it stored. Where control
+ * flows together, what any block on the way from the immediate dominator may
+ * store counts as stored (the block itself, too, for a loop); calls of the
+ * runtime's error function don't return, so they don't count.
+ * <p>
+ * A Temp is not null after an access of its fields (which would have failed),
+ * nor where a test that it isn't null decided to go: such tests of it again
+ * are decided (they compare constants, for ConstantPropagation to fold).
+ */
+public class ValueNumbering {
+
+	/**
+	 * The offsets from a Temp that fail when it is null: those below the heap
+	 * (see x86_64sim.Memory).
+	 */
+	private static final int NULL_PAGE = 4096;
+	/** The class of all memory: unknown stores change it. */
+	private static final String ANY = "*";
+
+	private final SSAForm ssa;
+	private final Temp fp;
+	/** The Temps that are assigned more than once, or by a CMOVE: they have no value number. */
+	private final Set<Temp> unstable = new HashSet<Temp>();
+	/** The value number of each Temp that is a copy of another: the other (with its value number). */
+	private final Map<Temp, Temp> leaders = new HashMap<Temp, Temp>();
+	/** The base plus constant offset that each Temp (assigned once) is. */
+	private final Map<Temp, BINOP> addresses = new HashMap<Temp, BINOP>();
+	/** The Temp (or constant) that has the value of each expression, where it is available. */
+	private final Map<String, IRExp> available = new HashMap<String, IRExp>();
+	/** The Temps (value numbers) that aren't null. */
+	private final Set<Temp> nonNull = new HashSet<Temp>();
+	/** The classes of memory (see {@link #location}) each block may change. */
+	private final Map<Block, Set<String>> stores = new HashMap<Block, Set<String>>();
+	/** The version of each class of memory: loads of different versions are different. */
+	private Map<String, Integer> memory;
+	private int versions = 0;
+	private boolean changed = false;
+
+	/** What the current block made available, to be taken back after its dominator subtree. */
+	private java.util.List<String> added;
+	private java.util.List<Temp> addedNonNull;
+
+	private ValueNumbering(ProcFragment proc) {
+		this.ssa = new SSAForm(proc);
+		this.fp = ((TEMP) proc.getFrame().FP()).temp;
+	}
+
+	public static void number(Fragments fragments) {
+		for (Fragment fragment : fragments)
+			if (fragment instanceof ProcFragment) {
+				ProcFragment proc = (ProcFragment) fragment;
+				ValueNumbering numbering = new ValueNumbering(proc);
+				if (numbering.number())
+					proc.setLinearizedBody(numbering.ssa.toLinearized());
+			}
+	}
+
+	/** Number the blocks of the SSA form, returns whether anything got replaced. */
+	private boolean number() {
+		Set<Temp> defined = new HashSet<Temp>();
+		for (Block b : ssa.getBlocks()) {
+			for (Phi phi : b.phis)
+				if (!defined.add(phi.dst)) unstable.add(phi.dst);
+			Set<String> changes = new HashSet<String>();
+			for (IRStm stm : b.stms) {
+				if (stm instanceof MOVE && ((MOVE) stm).dst instanceof TEMP) {
+					Temp t = ((TEMP) ((MOVE) stm).dst).temp;
+					if (!defined.add(t)) unstable.add(t);
+				} else if (stm instanceof CMOVE && ((CMOVE) stm).dst instanceof TEMP) {
+					unstable.add(((TEMP) ((CMOVE) stm).dst).temp);
+				}
+				changes(stm, changes);
+			}
+			stores.put(b, changes);
+		}
+
+		Map<Block, Map<String, Integer>> memoryAtEnd = new HashMap<Block, Map<String, Integer>>();
+		Map<Block, java.util.List<String>> addedBy = new HashMap<Block, java.util.List<String>>();
+		Map<Block, java.util.List<Temp>> nonNullBy = new HashMap<Block, java.util.List<Temp>>();
+		java.util.List<Block> work = new ArrayList<Block>();
+		java.util.List<Boolean> leaving = new ArrayList<Boolean>();
+		work.add(ssa.getBlocks().get(0));
+		leaving.add(false);
+		while (!work.isEmpty()) {
+			Block b = work.remove(work.size() - 1);
+			if (leaving.remove(leaving.size() - 1)) {
+				for (String key : addedBy.get(b))
+					available.remove(key);
+				for (Temp t : nonNullBy.get(b))
+					nonNull.remove(t);
+				continue;
+			}
+			added = new ArrayList<String>();
+			addedNonNull = new ArrayList<Temp>();
+			Block idom = b.getIdom();
+			memory = idom == null ? new HashMap<String, Integer>() : new HashMap<String, Integer>(memoryAtEnd.get(idom));
+			if (b.getPreds().size() > 1) {
+				for (String clazz : storesBetween(idom, b))
+					change(clazz);
+			} else if (idom != null) {
+				notNullOnEdge(idom, b);
+			}
+			number(b);
+			memoryAtEnd.put(b, memory);
+			addedBy.put(b, added);
+			nonNullBy.put(b, addedNonNull);
+			work.add(b);
+			leaving.add(true);
+			for (int c = b.getChildren().size() - 1; c >= 0; c--) {
+				work.add(b.getChildren().get(c));
+				leaving.add(false);
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * The classes of memory that the blocks on the paths from idom to b (not
+	 * idom itself) may change.
+	 */
+	private Set<String> storesBetween(Block idom, Block b) {
+		Set<String> changes = new HashSet<String>();
+		Set<Block> visited = new HashSet<Block>();
+		java.util.List<Block> work = new ArrayList<Block>(b.getPreds());
+		while (!work.isEmpty()) {
+			Block p = work.remove(work.size() - 1);
+			if (p == idom || !visited.add(p)) continue;
+			changes.addAll(stores.get(p));
+			work.addAll(p.getPreds());
+		}
+		return changes;
+	}
+
+	/** If the jump of pred tests that a Temp isn't null, and goes to b if it isn't, it isn't in b. */
+	private void notNullOnEdge(Block pred, Block b) {
+		IRStm jump = pred.stms.get(pred.stms.size() - 1);
+		if (!(jump instanceof CJUMP)) return;
+		CJUMP cjump = (CJUMP) jump;
+		Temp t = nullTest(cjump);
+		if (t == null || cjump.iftrue == cjump.iffalse) return;
+		if (b.label == (cjump.relop == RelOp.NE ? cjump.iftrue : cjump.iffalse))
+			notNull(t);
+	}
+
+	/** The Temp that a jump tests for null (comparing it with 0 for (in)equality), or null. */
+	private static Temp nullTest(CJUMP cjump) {
+		if (cjump.relop != RelOp.EQ && cjump.relop != RelOp.NE) return null;
+		if (cjump.left instanceof TEMP && isZero(cjump.right))
+			return ((TEMP) cjump.left).temp;
+		if (cjump.right instanceof TEMP && isZero(cjump.left))
+			return ((TEMP) cjump.right).temp;
+		return null;
+	}
+
+	private static boolean isZero(IRExp e) {
+		return e instanceof CONST && ((CONST) e).getValue() == 0;
+	}
+
+	private void notNull(Temp t) {
+		if (!isStable(t)) return;
+		Temp leader = leader(t);
+		if (nonNull.add(leader))
+			addedNonNull.add(leader);
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Statements
+
+	private void number(Block b) {
+		java.util.List<IRStm> stms = new ArrayList<IRStm>();
+		for (IRStm stm : b.stms) {
+			java.util.List<IRStm> before = new ArrayList<IRStm>();
+			IRStm numbered = number(stm, before);
+			stms.addAll(before);
+			stms.add(numbered);
+		}
+		b.stms.clear();
+		b.stms.addAll(stms);
+	}
+
+	/**
+	 * The statement with what is available replaced, and what it computes made
+	 * available. Loads it does first go into before.
+	 */
+	private IRStm number(IRStm stm, java.util.List<IRStm> before) {
+		if (stm instanceof MOVE) {
+			MOVE move = (MOVE) stm;
+			if (move.dst instanceof TEMP)
+				return assign(move, ((TEMP) move.dst).temp, before);
+			MEM dst = (MEM) move.dst;
+			MEM address = (MEM) dst.build(List.list(number(dst.exp, before, true)));
+			IRExp src = number(move.src, before, true);
+			String held = src instanceof BINOP && !src.isReference() && key(address) != null
+					? expression((BINOP) src) : null;
+			if (held != null)
+				// Into a Temp, for the loads of what is stored.
+				src = hold(src, held, before);
+			store(address, src);
+			return address == dst && src == move.src ? stm : MOVE(address, src);
+		}
+		if (stm instanceof CMOVE) {
+			CMOVE cmove = (CMOVE) stm;
+			IRExp left = number(cmove.left, before, true);
+			IRExp right = number(cmove.right, before, true);
+			// The source is only evaluated if the condition holds: it can't be moved before.
+			IRExp src = number(cmove.src, before, false);
+			IRExp dst = cmove.dst;
+			if (dst instanceof MEM) {
+				dst = dst.build(List.list(number(((MEM) dst).exp, before, true)));
+				// Not a store(): if the condition fails, nothing was accessed, so
+				// the base may still be null.
+				String[] location = location((MEM) dst);
+				change(location == null ? ANY : stored(location));
+			}
+			if (left == cmove.left && right == cmove.right && dst == cmove.dst && src == cmove.src)
+				return stm;
+			return new CMOVE(cmove.relop, left, right, dst, src);
+		}
+		if (stm instanceof CJUMP) {
+			CJUMP cjump = (CJUMP) stm;
+			IRExp left = number(cjump.left, before, true);
+			IRExp right = number(cjump.right, before, true);
+			CJUMP numbered = left == cjump.left && right == cjump.right ? cjump
+					: new CJUMP(cjump.relop, left, right, cjump.iftrue, cjump.iffalse);
+			Temp tested = nullTest(numbered);
+			if (tested != null && isStable(tested) && nonNull.contains(leader(tested))) {
+				changed = true;
+				// Decided: not null, so not equal.
+				return new CJUMP(numbered.relop, CONST(1), CONST(0), cjump.iftrue, cjump.iffalse);
+			}
+			return numbered;
+		}
+		if (stm instanceof EXP) {
+			EXP exp = (EXP) stm;
+			IRExp e = number(exp.exp, before, true);
+			if (e instanceof CALL) called((CALL) e);
+			return e == exp.exp ? stm : new EXP(e);
+		}
+		return stm; // LABEL, JUMP
+	}
+
+	/** MOVE(TEMP t, src) */
+	private IRStm assign(MOVE move, Temp t, java.util.List<IRStm> before) {
+		IRExp src;
+		if (move.src instanceof MEM && isStable(t) && t.isReference() == move.src.isReference()) {
+			// The load into t: t can hold it for the other loads.
+			MEM load = (MEM) move.src;
+			MEM address = (MEM) load.build(List.list(number(load.exp, before, true)));
+			src = load(address);
+			if (src == null) {
+				src = address;
+				String key = key(address);
+				if (key != null) add(key, TEMP(t));
+				accessed(address);
+			}
+		} else {
+			src = number(move.src, before, true);
+		}
+		if (src instanceof CALL) called((CALL) src);
+		if (isStable(t)) {
+			if (src instanceof TEMP && isStable(((TEMP) src).temp)) {
+				leaders.put(t, leader(((TEMP) src).temp));
+			} else if (src instanceof BINOP || src instanceof CONST || src instanceof NAME) {
+				String key = src instanceof BINOP ? expression((BINOP) src) : key(src);
+				IRExp holder = key == null ? null : available.get(key);
+				if (holder instanceof TEMP)
+					// The same address (which isn't replaced, see number(IRExp, ...)).
+					leaders.put(t, leader(((TEMP) holder).temp));
+				else if (key != null)
+					add(key, TEMP(t));
+				if (isOffset(src))
+					addresses.put(t, (BINOP) src);
+			}
+		}
+		return src == move.src ? move : MOVE(move.dst, src);
+	}
+
+	/** A store of src (null if not known) into dst. */
+	private void store(MEM dst, IRExp src) {
+		String[] location = location(dst);
+		if (location == null) {
+			change(ANY);
+			return;
+		}
+		change(stored(location));
+		accessed(dst);
+		String key = key(dst);
+		if (key == null || src == null) return;
+		if (src instanceof TEMP ? isStable(((TEMP) src).temp) && src.isReference() == dst.isReference()
+				: (src instanceof CONST || src instanceof NAME))
+			add(key, src);
+	}
+
+	/**
+	 * The memory that a call may change: what a method may store into (or
+	 * allocate from), and the references in the frame that the garbage
+	 * collector moves.
+	 */
+	private static final String[] CALLED = {"F", "E", "G", "S"};
+
+	private void called(CALL call) {
+		if (!returns(call)) return;
+		for (String clazz : CALLED)
+			change(clazz);
+	}
+
+	/** Whether the call returns: the runtime's error function doesn't. */
+	private static boolean returns(CALL call) {
+		return !(call.func instanceof NAME && ((NAME) call.func).label == TranslatorLabels.L_ERROR);
+	}
+
+	/** Record the classes of memory that the statement may change. */
+	private void changes(IRStm stm, Set<String> changes) {
+		MEM dst = null;
+		if (stm instanceof MOVE && ((MOVE) stm).dst instanceof MEM)
+			dst = (MEM) ((MOVE) stm).dst;
+		else if (stm instanceof CMOVE && ((CMOVE) stm).dst instanceof MEM)
+			dst = (MEM) ((CMOVE) stm).dst;
+		if (dst != null) {
+			String[] location = location(dst);
+			String clazz = location == null ? ANY : stored(location);
+			if (clazz != null) changes.add(clazz);
+		}
+		for (IRExp kid : stm.kids())
+			if (kid instanceof CALL && returns((CALL) kid))
+				for (String clazz : CALLED)
+					changes.add(clazz);
+	}
+
+	/**
+	 * The class a store into the location changes: the field at that offset
+	 * (all fields if the offset isn't known), all elements, one word of the
+	 * frame or of a global. Lengths and headers are only stored into new
+	 * arrays and objects, that nothing has loaded from yet, so they keep
+	 * their versions.
+	 */
+	private static String stored(String[] location) {
+		String family = location[0];
+		if (family.equals("L") || family.equals("H") || family.equals("V"))
+			return null;
+		return family.equals("E") ? family : location[1];
+	}
+
+	private void change(String clazz) {
+		if (clazz != null)
+			memory.put(clazz, ++versions);
+	}
+
+	private int version(String clazz) {
+		Integer version = memory.get(clazz);
+		return version == null ? 0 : version;
+	}
+
+	///////////////////////////////////////////////////////////////////////////
+	// Expressions
+
+	/**
+	 * The expression with what is available replaced. Loads that aren't are
+	 * moved into fresh Temps (in before) if hoist, to be available after.
+	 */
+	private IRExp number(IRExp e, java.util.List<IRStm> before, boolean hoist) {
+		if (e instanceof TEMP || e instanceof CONST || e instanceof NAME)
+			return e;
+		boolean kidsChanged = false;
+		List<IRExp> kids = List.list();
+		for (IRExp kid : e.kids()) {
+			IRExp numbered = number(kid, before, hoist);
+			kidsChanged |= numbered != kid;
+			kids.add(numbered);
+		}
+		IRExp numbered = kidsChanged ? e.build(kids) : e;
+		if (numbered instanceof MEM) {
+			MEM load = (MEM) numbered;
+			IRExp value = load(load);
+			if (value != null) return value;
+			String key = key(load);
+			if (key == null || !hoist) return load;
+			accessed(load);
+			return hold(load, key, before);
+		}
+		if (numbered instanceof BINOP && !numbered.isReference()) {
+			String key = expression((BINOP) numbered);
+			IRExp holder = key == null ? null : available.get(key);
+			if (holder != null && !holder.isReference()) {
+				changed = true;
+				return holder;
+			}
+		}
+		return numbered;
+	}
+
+	/** A fresh Temp that e is moved into (in before), available as key. */
+	private TEMP hold(IRExp e, String key, java.util.List<IRStm> before) {
+		Temp t = new Temp();
+		t.setReference(e.isReference());
+		before.add(MOVE(TEMP(t), e));
+		add(key, TEMP(t));
+		return TEMP(t);
+	}
+
+	/** What holds the value a load reads, if it is available; null otherwise. */
+	private IRExp load(MEM load) {
+		String key = key(load);
+		if (key == null || !available.containsKey(key)) return null;
+		IRExp value = available.get(key);
+		// The garbage collector only updates the Temps it knows hold references.
+		if (value instanceof TEMP && value.isReference() != load.isReference()) return null;
+		changed = true;
+		return value;
+	}
+
+	/** After an access of its fields, a Temp isn't null: it would have failed. */
+	private void accessed(MEM access) {
+		IRExp base = base(access.exp);
+		int offset = offset(access.exp);
+		if (base instanceof TEMP && 0 <= offset && offset < NULL_PAGE)
+			notNull(((TEMP) base).temp);
+	}
+
+	private void add(String key, IRExp value) {
+		if (available.containsKey(key)) return;
+		available.put(key, value);
+		added.add(key);
+	}
+
+	private boolean isStable(Temp t) {
+		return t == fp || (t.getColor() == null && !unstable.contains(t));
+	}
+
+	private Temp leader(Temp t) {
+		Temp leader = leaders.get(t);
+		return leader == null ? t : leader;
+	}
+
+	/**
+	 * What an expression computes, as a string: the same for expressions
+	 * that compute the same value. null if that isn't known (it uses a
+	 * Temp without a value number, calls, or loads from unknown memory).
+	 */
+	private String key(IRExp e) {
+		if (e instanceof CONST)
+			return Integer.toString(((CONST) e).getValue());
+		if (e instanceof NAME)
+			return "&" + ((NAME) e).label;
+		if (e instanceof TEMP) {
+			Temp t = ((TEMP) e).temp;
+			return isStable(t) ? leader(t).toString() : null;
+		}
+		if (e instanceof BINOP) {
+			String expression = expression((BINOP) e);
+			IRExp holder = expression == null ? null : available.get(expression);
+			return holder instanceof TEMP ? leader(((TEMP) holder).temp).toString() : expression;
+		}
+		if (e instanceof MEM) {
+			MEM load = (MEM) e;
+			String[] location = location(load);
+			String address = key(load.exp);
+			if (location == null || address == null) return null;
+			return "MEM" + location[1] + "@" + version(location[0]) + "." + version(location[1])
+					+ "." + version(ANY) + "(" + address + ")";
+		}
+		return null;
+	}
+
+	/** The operator and the keys of the operands of binop, or null. */
+	private String expression(BINOP binop) {
+		String left = key(binop.left), right = key(binop.right);
+		if (left == null || right == null) return null;
+		if (isCommutative(binop.binop) && left.compareTo(right) > 0) {
+			String swap = left;
+			left = right;
+			right = swap;
+		}
+		return binop.binop + "(" + left + "," + right + ")";
+	}
+
+	private static boolean isCommutative(BINOP.Op op) {
+		return op == BINOP.Op.PLUS || op == BINOP.Op.MUL || op == BINOP.Op.AND
+				|| op == BINOP.Op.OR || op == BINOP.Op.XOR;
+	}
+
+	/**
+	 * The class of memory that a MEM accesses, as {family, class}: a word of
+	 * the frame ("S", "S" offset) or of a global ("G", "G" label offset) by its
+	 * address; otherwise by its kind, a field ("F", "F" offset), an element,
+	 * length, header or vtable entry ("E", "L", "H", "V"). null if the MEM may
+	 * access anything.
+	 */
+	private String[] location(MEM m) {
+		IRExp address = m.exp;
+		IRExp base = base(address);
+		int offset = offset(address);
+		if (base instanceof TEMP && ((TEMP) base).temp == fp)
+			return new String[] {"S", "S" + offset};
+		if (base instanceof NAME)
+			return new String[] {"G", "G" + ((NAME) base).label + "+" + offset};
+		switch (m.getKind()) {
+		case FIELD:
+			return new String[] {"F", base != address ? "F" + offset : "F"};
+		case ELEMENT:
+			return new String[] {"E", "E"};
+		case LENGTH:
+			return new String[] {"L", "L"};
+		case HEADER:
+			return new String[] {"H", "H"};
+		case VTABLE:
+			return new String[] {"V", "V"};
+		default:
+			return null;
+		}
+	}
+
+	/** Whether e is a base plus a constant offset. */
+	private static boolean isOffset(IRExp e) {
+		return e instanceof BINOP && ((BINOP) e).binop == BINOP.Op.PLUS && ((BINOP) e).right instanceof CONST;
+	}
+
+	/**
+	 * The base of an address that is a base plus a constant offset (or a Temp
+	 * assigned one), the address itself otherwise.
+	 */
+	private IRExp base(IRExp address) {
+		if (address instanceof TEMP && addresses.containsKey(((TEMP) address).temp))
+			address = addresses.get(((TEMP) address).temp);
+		return isOffset(address) ? ((BINOP) address).left : address;
+	}
+
+	/** The offset of an address from its base, see {@link #base(IRExp)}. */
+	private int offset(IRExp address) {
+		if (address instanceof TEMP && addresses.containsKey(((TEMP) address).temp))
+			address = addresses.get(((TEMP) address).temp);
+		return isOffset(address) ? ((CONST) ((BINOP) address).right).getValue() : 0;
+	}
+}
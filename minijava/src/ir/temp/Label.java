@@ -2,6 +2,7 @@ package ir.temp;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import util.Utils;
 
@@ -26,7 +27,7 @@ public class Label  {
 	private static Map<String, Label> labels = new HashMap<String, Label>();
 
 	private String name;
-	private static int count;
+	private static final AtomicInteger count = new AtomicInteger();
 
 	/**
 	 * a printable representation of the label, for use in assembly 
@@ -63,14 +64,14 @@ public class Label  {
 	 * debugging).
 	 */
 	public static Label generate(String debugName) {
-		return new Label(debugName+"_"+count++);
+		return new Label(debugName+"_"+count.getAndIncrement());
 	}
 
 	/**
 	 * Retrieve the label with a given name. A new label will be created
 	 * only if a label with this name does not yet exist.
 	 */
-	public static Label get(String name) {
+	public static synchronized Label get(String name) {
 		Label existing = labels.get(name);
 		if (existing!=null) return existing;
 		Label newLabel = new Label(name);
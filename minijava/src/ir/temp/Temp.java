@@ -2,15 +2,25 @@ package ir.temp;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.Assert;
 
 public class Temp implements Comparable<Temp> {
-	private static int count;
+	/** Atomic, so Temps can be made on more than one thread (see RegAlloc.Algorithm.PORTFOLIO). */
+	private static final AtomicInteger count = new AtomicInteger();
 	
 	protected Color color = null;
 
 	private String name;
+
+	/** Whether this Temp holds a reference: a pointer to a heap object or array, or null. */
+	private boolean reference = false;
+	/**
+	 * The callee save register whose value on entry this Temp holds (see
+	 * {@link ir.frame.Frame#getSavedRegisters()}), or null.
+	 */
+	private Temp saved = null;
 	
 	private static String ndigit(int n, int digits) {
 		String s = Integer.toString(n);
@@ -24,7 +34,17 @@ public class Temp implements Comparable<Temp> {
 		return name;
 	}
 	public Temp() { 
-		name="t"+ndigit(count++, 3);
+		name="t"+ndigit(count.getAndIncrement(), 3);
+	}
+
+	/**
+	 * Create a new Temp that holds the same kind of value as another one (a
+	 * reference, a saved register or neither), e.g. a piece of its live range.
+	 */
+	public Temp(Temp like) {
+		this();
+		this.reference = like.reference;
+		this.saved = like.saved;
 	}
 	
 	/**
@@ -63,6 +83,26 @@ public class Temp implements Comparable<Temp> {
 		this.color = color;
 	}
 	
+	/**
+	 * Whether this Temp holds a pointer into the heap (or null). The garbage
+	 * collector has to find, and update, every reference that is live across a call.
+	 */
+	public boolean isReference() {
+		return reference;
+	}
+
+	public void setReference(boolean reference) {
+		this.reference = reference;
+	}
+
+	public Temp getSaved() {
+		return saved;
+	}
+
+	public void setSaved(Temp register) {
+		this.saved = register;
+	}
+
 	public String getName() {
 		return name;
 	}
@@ -29,6 +29,15 @@ public class BINOP extends IRExp {
 		binop=b; left=l; right=r; 
 	}
 
+	/**
+	 * Adding to or subtracting from a reference gives an address inside the same
+	 * object or array (the IR only does that for fields and array elements).
+	 */
+	@Override
+	public boolean isReference() {
+		return (binop == Op.PLUS || binop == Op.MINUS) && left.isReference();
+	}
+
 	@Override
 	public void dump(IndentingWriter out) {
 		out.print("BINOP(");
@@ -10,6 +10,8 @@ import ir.visitor.Visitor;
 public class CALL extends IRExp {
 	public IRExp func;
 	public List<IRExp> args;
+	/** Whether the call returns a reference, see {@link IR#REF(IRExp)}. */
+	boolean reference = false;
 	
 	public CALL(IRExp f, List<IRExp> a) {func=f; args=a;}
 	
@@ -29,7 +31,14 @@ public class CALL extends IRExp {
 
 	@Override
 	public IRExp build(List<IRExp> kids) {
-		return new CALL(kids.head(), kids.tail());
+		CALL result = new CALL(kids.head(), kids.tail());
+		result.reference = reference;
+		return result;
+	}
+
+	@Override
+	public boolean isReference() {
+		return reference;
 	}
 
 	@Override
@@ -117,10 +117,18 @@ public class CJUMP extends IRStm {
 			return l.isLT(r)?iftrue:iffalse;
 		case GE:
 			return l.isLT(r)?iffalse:iftrue;
+		case GT:
+			return r.isLT(l)?iftrue:iffalse;
+		case LE:
+			return r.isLT(l)?iffalse:iftrue;
 		case ULT:
 			return l.isULT(r)?iftrue:iffalse;
 		case UGE:
 			return l.isULT(r)?iffalse:iftrue;
+		case UGT:
+			return r.isULT(l)?iftrue:iffalse;
+		case ULE:
+			return r.isULT(l)?iffalse:iftrue;
 		case NE:
 			return l.isEQ(r)?iffalse:iftrue;
 		case EQ:
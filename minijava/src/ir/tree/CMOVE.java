@@ -22,7 +22,7 @@ public class CMOVE extends IRStm {
 	@Override
 	public IRStm build(List<IRExp> kids) {
 		if (dst instanceof MEM)
-			return new CMOVE(relop, kids.get(0), kids.get(1), new MEM(kids.get(2)), kids.get(3));
+			return new CMOVE(relop, kids.get(0), kids.get(1), dst.build(List.list(kids.get(2))), kids.get(3));
 		else
 			return new CMOVE(relop, kids.get(0), kids.get(1), dst, kids.get(2));
 	}
@@ -75,6 +75,10 @@ public class CMOVE extends IRStm {
 			if (l.isEQ(r))
 				dst.set(src.interp(env), env);
 			return null;
+		case ULE:
+			if (!r.isULT(l))
+				dst.set(src.interp(env), env);
+			return null;
 		default:
 			throw new Error("Missing case? "+relop);
 		}
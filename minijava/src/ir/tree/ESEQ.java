@@ -31,6 +31,10 @@ public class ESEQ extends IRExp {
 		throw new Error("Not applicable to ESEQ");
 	}
 	@Override
+	public boolean isReference() {
+		return exp.isReference();
+	}
+	@Override
 	public Word interp(X86_64SimFrame env) {
 		throw new Error("ESEQ is not atomic! Can only interp atomic statments!\n" +
 				        "  (linearized IR should not have any ESEQ!)");
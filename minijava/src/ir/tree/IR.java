@@ -80,6 +80,7 @@ public class IR {
 	}
 
 	public static MEM MEM(IRExp e) { return new MEM(e); }
+	public static MEM MEM(IRExp e, MEM.Kind kind) { return new MEM(e, kind); }
 
 	public static IRExp MINUS(IRExp l, int r) {
 		return BINOP(Op.MINUS, l, CONST(r));
@@ -143,6 +144,24 @@ public class IR {
 		return new TEMP(name);
 	}
 
+	/**
+	 * Mark the value of a load, a call or a Temp as a reference into the heap, so
+	 * that the garbage collector can find it. Returns e.
+	 */
+	public static IRExp REF(IRExp e) {
+		if (e instanceof MEM)
+			((MEM) e).reference = true;
+		else if (e instanceof CALL)
+			((CALL) e).reference = true;
+		else if (e instanceof TEMP)
+			((TEMP) e).temp.setReference(true);
+		else if (e instanceof ESEQ)
+			REF(((ESEQ) e).exp);
+		else
+			throw new Error("Can't mark " + e + " as a reference");
+		return e;
+	}
+
 	public static IRData DATA(Label l, List<IRExp> data) {
 		return new IRData(l, data);
 	}
@@ -2,14 +2,41 @@ package ir.tree;
 
 import util.IndentingWriter;
 import util.List;
+import ir.interp.Int;
+import ir.interp.Interp;
 import ir.interp.Ptr;
 import ir.interp.Word;
 import ir.interp.X86_64SimFrame;
 import ir.visitor.Visitor;
+import translate.TranslatorLabels;
 
 public class MEM extends IRExp {
+	/**
+	 * What the translator knows a MEM accesses, for the optimizations to tell
+	 * which stores can change what a load reads (see ir.opt.ValueNumbering).
+	 * Accesses of different kinds never overlap.
+	 */
+	public enum Kind {
+		/** Anything (the frame, the allocation buffer, ...). */
+		UNKNOWN,
+		/** A field of an object, at the offset from the object. */
+		FIELD,
+		/** An element of an array. */
+		ELEMENT,
+		/** The length of an array: only stored when the array is made. */
+		LENGTH,
+		/** The vtable (or array header) of an object: only stored when it is made. */
+		HEADER,
+		/** A word of a vtable: never stored. */
+		VTABLE
+	}
+
 	public final IRExp exp;
-	public MEM(IRExp e) {exp=e;}
+	/** Whether the word loaded is a reference, see {@link IR#REF(IRExp)}. */
+	boolean reference = false;
+	private final Kind kind;
+	public MEM(IRExp e) {this(e, Kind.UNKNOWN);}
+	public MEM(IRExp e, Kind kind) {exp=e; this.kind=kind;}
 	@Override
 	public void dump(IndentingWriter out) {
 		out.print("MEM(");
@@ -18,7 +45,16 @@ public class MEM extends IRExp {
 	}
 	@Override
 	public IRExp build(List<IRExp> kids) {
-		return new MEM(kids.head());
+		MEM result = new MEM(kids.head(), kind);
+		result.reference = reference;
+		return result;
+	}
+	@Override
+	public boolean isReference() {
+		return reference;
+	}
+	public Kind getKind() {
+		return kind;
 	}
 	@Override
 	public List<IRExp> kids() {
@@ -28,8 +64,13 @@ public class MEM extends IRExp {
 	public Word interp(X86_64SimFrame env) {
 		//Subtle point: we only get here if the MEM is being read.
 		//The interp for MOVE treats the MEM case in its dst explicitly.
-		Ptr p = (Ptr) exp.interp(env);
-		return p.get();
+		Word address = exp.interp(env);
+		if (address instanceof Int && address.asInt() == 0) {
+			// Fail like a null dereference in the compiled code does.
+			Interp interp = env.getInterp();
+			interp.getProcLabel(TranslatorLabels.L_ERROR).call(interp, List.list(IR.NULL_OBJECT_REFERENCE.interp(env)));
+		}
+		return ((Ptr) address).get();
 	}
 	
 	@Override
@@ -28,7 +28,7 @@ public class MOVE extends IRStm {
 	@Override
 	public IRStm build(List<IRExp> kids) {
 		if (dst instanceof MEM)
-			return new MOVE(new MEM(kids.get(0)), kids.get(1));
+			return new MOVE(dst.build(List.list(kids.get(0))), kids.get(1));
 		else 
 			return new MOVE(dst, kids.head());
 	}
@@ -55,6 +55,11 @@ public class TEMP extends IRExp {
 		return temp.equals(t);
 	}
 	
+	@Override
+	public boolean isReference() {
+		return temp.isReference();
+	}
+
 	@Override 
 	public List<Temp> use() {
 		return List.list(temp);
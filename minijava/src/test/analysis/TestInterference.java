@@ -1,10 +1,34 @@
 package test.analysis;
 
 import test.analysis.TestFlowGraphs;
+import translate.Translator;
+import util.SampleCode;
+import ir.temp.Color;
 import ir.temp.Temp;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import codegen.AssemFragment;
 import codegen.AssemProc;
+import codegen.CodeGenerator;
+import codegen.assem.A_MOVE;
 import codegen.assem.Instr;
 import analysis.FlowGraph;
+import analysis.implementation.AssemFlowGraph;
+import analysis.implementation.InterferenceGraphImplementation;
+import analysis.implementation.LiveRangeSplitter;
+import analysis.implementation.LoopNest;
+import analysis.implementation.SpillColor;
+import analysis.implementation.SpillRewriter;
 import analysis.util.graph.Graph;
 import analysis.util.graph.Node;
 import junit.framework.Assert;
@@ -39,6 +63,118 @@ public class TestInterference extends TestFlowGraphs {
 		
 	}
 
+	/**
+	 * SpillRewriter patches the liveness and interference graph it is given
+	 * around the spill code: they must be the same as those built from scratch
+	 * for the rewritten procedure.
+	 */
+	@Test
+	public void spillPatchesLivenessAndInterference() throws Exception {
+		for (File program : SampleCode.sampleJavaFiles())
+			for (AssemFragment frag : new CodeGenerator().apply(Translator.translate(architecture, program)))
+				if (frag instanceof AssemProc)
+					spillAndCompare((AssemProc) frag);
+	}
+
+	/** Spill the two Temps that interfere most. */
+	private void spillAndCompare(AssemProc proc) {
+		AssemFlowGraph fg = new AssemFlowGraph(proc.getBody());
+		InterferenceGraphImplementation<Instr> ig = new InterferenceGraphImplementation<Instr>(fg);
+		java.util.List<Node<Temp>> candidates = new ArrayList<Node<Temp>>();
+		for (Node<Temp> node : ig.nodes())
+			if (node.wrappee().getColor() == null)
+				candidates.add(node);
+		Collections.sort(candidates, new Comparator<Node<Temp>>() {
+			@Override
+			public int compare(Node<Temp> a, Node<Temp> b) {
+				return b.outDegree() - a.outDegree();
+			}
+		});
+		util.List<Temp> spilled = util.List.empty();
+		Map<Temp, Color> colorMap = new HashMap<Temp, Color>();
+		for (Node<Temp> node : candidates.subList(0, Math.min(2, candidates.size()))) {
+			spilled.add(node.wrappee());
+			colorMap.put(node.wrappee(), new SpillColor(proc.getFrame()));
+		}
+		new SpillRewriter(proc, fg, ig).spill(spilled, colorMap);
+
+		AssemFlowGraph rebuilt = new AssemFlowGraph(proc.getBody());
+		InterferenceGraphImplementation<Instr> rebuiltIg = new InterferenceGraphImplementation<Instr>(rebuilt);
+		Assert.assertEquals(liveOuts(rebuilt, rebuiltIg), liveOuts(fg, ig));
+		Assert.assertEquals(edges(rebuiltIg), edges(ig));
+	}
+
+	@Test
+	public void spilledTempUsedInLoopIsSplit() throws Exception {
+		String program =
+				"class Loops {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Sum().run(10));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Sum {\n" +
+				"  public int run(int n) {\n" +
+				"    int i; int s;\n" +
+				"    i = 0; s = 0;\n" +
+				"    while (i < n) { s = s + n; i = i + 1; }\n" +
+				"    return s + n;\n" +
+				"  }\n" +
+				"}\n";
+		for (AssemFragment frag : new CodeGenerator().apply(Translator.translate(architecture, program)))
+			if (frag instanceof AssemProc && ((AssemProc) frag).getLabel().toString().endsWith("run"))
+				splitAndCheck((AssemProc) frag);
+	}
+
+	/**
+	 * Spill every Temp that is used in the loop and lives outside it: each
+	 * must be split, so that only copies refer to it inside the loop.
+	 */
+	private void splitAndCheck(AssemProc proc) {
+		AssemFlowGraph fg = new AssemFlowGraph(proc.getBody());
+		InterferenceGraphImplementation<Instr> ig = new InterferenceGraphImplementation<Instr>(fg);
+		LoopNest.Loop loop = new LoopNest(proc.getBody()).loops().get(0);
+		Node<Instr> head = null;
+		for (Node<Instr> node : fg.nodes())
+			if (node.wrappee() == proc.getBody().get(loop.head))
+				head = node;
+		Set<Temp> inLoop = new HashSet<Temp>();
+		util.List<Temp> spilled = util.List.empty();
+		for (int i = loop.head; i <= loop.tail; i++)
+			for (Temp t : proc.getBody().get(i).use())
+				if (t.getColor() == null && ig.getLiveness().liveIn(head).contains(t) && inLoop.add(t))
+					spilled.add(t);
+		Assert.assertFalse(spilled.isEmpty());
+
+		util.List<Temp> split = new LiveRangeSplitter(proc).split(spilled, fg, ig.getLiveness());
+		Assert.assertEquals(spilled.toString(), split.toString());
+		loop = new LoopNest(proc.getBody()).loops().get(0);
+		for (int i = loop.head; i <= loop.tail; i++) {
+			Instr instr = proc.getBody().get(i);
+			for (Temp t : split)
+				if (instr.use().contains(t) || instr.def().contains(t))
+					Assert.assertTrue(instr instanceof A_MOVE);
+		}
+	}
+
+	private static Map<Instr, Set<Temp>> liveOuts(AssemFlowGraph fg, InterferenceGraphImplementation<Instr> ig) {
+		Map<Instr, Set<Temp>> liveOuts = new HashMap<Instr, Set<Temp>>();
+		for (Node<Instr> node : fg.nodes()) {
+			Set<Temp> out = new HashSet<Temp>();
+			for (Temp t : ig.getLiveness().liveOut(node))
+				out.add(t);
+			liveOuts.put(node.wrappee(), out);
+		}
+		return liveOuts;
+	}
+
+	private static Set<String> edges(Graph<Temp> g) {
+		Set<String> edges = new HashSet<String>();
+		for (Node<Temp> node : g.nodes())
+			for (Node<Temp> succ : node.succ())
+				edges.add(node.wrappee() + " - " + succ.wrappee());
+		return edges;
+	}
+
 	private <N> boolean isNonReflexive(Graph<N> g) {
 		for (Node<N> node : g.nodes())
 			if (node.goesTo(node)) return false;
@@ -0,0 +1,23 @@
+package test.analysis;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import analysis.RegAlloc;
+import analysis.RegAlloc.Algorithm;
+
+/**
+ * The same checks as TestRegAlloc, but with the portfolio register
+ * allocator (see {@link analysis.implementation.PortfolioRegAlloc}).
+ */
+public class TestPortfolioRegAlloc extends TestRegAlloc {
+
+	@BeforeClass public static void usePortfolio() {
+		RegAlloc.setAlgorithm(Algorithm.PORTFOLIO);
+	}
+
+	@AfterClass public static void useDefault() {
+		RegAlloc.setAlgorithm(Algorithm.ITERATED);
+	}
+
+}
@@ -1,13 +1,26 @@
 package test.analysis;
 
 import test.analysis.TestFlowGraphs;
+import translate.Translator;
 import util.List;
+import ir.frame.x86_64.X86_64Frame;
 import ir.temp.Color;
 import ir.temp.Temp;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import codegen.AssemFragment;
 import codegen.AssemProc;
+import codegen.CodeGenerator;
+import codegen.assem.Instr;
 import analysis.FlowGraph;
 import analysis.InterferenceGraph;
 import analysis.RegAlloc;
+import analysis.implementation.AssemFlowGraph;
+import analysis.implementation.LivenessImplementation;
 import analysis.util.graph.Node;
 import junit.framework.Assert;
 
@@ -55,4 +68,70 @@ public class TestRegAlloc extends TestFlowGraphs {
 		
 	}
 	
+	@Test
+	public void leafSavesNoCalleeSaveRegisters() throws Exception {
+		AssemProc proc = compile("Cell_get",
+				"class Leaf {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Cell().get());\n" +
+				"  }\n" +
+				"}\n" +
+				"class Cell {\n" +
+				"  int v;\n" +
+				"  public int get() { return v + 1; }\n" +
+				"}\n");
+		RegAlloc.doit(proc);
+		System.out.println(proc);
+		for (Temp reg : X86_64Frame.calleeSave)
+			Assert.assertFalse(proc.toString().contains(reg.toString()));
+	}
+
+	@Test
+	public void liveAcrossCallGetsCalleeSaveRegister() throws Exception {
+		AssemProc proc = compile("Caller_run",
+				"class Across {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Caller().run(4));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Caller {\n" +
+				"  public int run(int n) {\n" +
+				"    int x; int y;\n" +
+				"    x = n * 3;\n" +
+				"    y = this.twice(n);\n" +
+				"    return x + y;\n" +
+				"  }\n" +
+				"  public int twice(int n) { System.out.println(n); return n + n; }\n" +
+				"}\n");
+		RegAlloc.doit(proc);
+		System.out.println(proc);
+
+		// Check on the allocated code, as some allocators rename Temps. The
+		// copies of the callee save registers themselves may well be spilled.
+		Set<Temp> ignore = new HashSet<Temp>(proc.getFrame().getSavedRegisters().values());
+		for (Temp reg : proc.getFrame().registers())
+			ignore.add(reg);
+		Set<Color> calleeSave = new HashSet<Color>();
+		for (Temp reg : X86_64Frame.calleeSave)
+			calleeSave.add(reg.getColor());
+		AssemFlowGraph fg = new AssemFlowGraph(proc.getBody());
+		LivenessImplementation<Instr> liveness = new LivenessImplementation<Instr>(fg);
+		int across = 0;
+		for (Node<Instr> node : fg.nodes())
+			if (node.wrappee().isCall())
+				for (Temp t : liveness.liveOut(node))
+					if (!ignore.contains(t) && !node.wrappee().def().contains(t)) {
+						Assert.assertTrue(t + " is not in a callee save register", calleeSave.contains(t.getColor()));
+						across++;
+					}
+		Assert.assertTrue(across > 0);
+	}
+
+	private AssemProc compile(String label, String program) throws Exception {
+		for (AssemFragment frag : new CodeGenerator().apply(Translator.translate(architecture, program)))
+			if (frag instanceof AssemProc && ((AssemProc) frag).getLabel().toString().equals(label))
+				return (AssemProc) frag;
+		throw new Error("No procedure " + label);
+	}
+
 }
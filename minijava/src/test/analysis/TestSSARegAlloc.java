@@ -0,0 +1,23 @@
+package test.analysis;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import analysis.RegAlloc;
+import analysis.RegAlloc.Algorithm;
+
+/**
+ * The same checks as TestRegAlloc, but with the SSA based register
+ * allocator (see {@link analysis.implementation.SSARegAlloc}).
+ */
+public class TestSSARegAlloc extends TestRegAlloc {
+
+	@BeforeClass public static void useSSA() {
+		RegAlloc.setAlgorithm(Algorithm.SSA);
+	}
+
+	@AfterClass public static void useDefault() {
+		RegAlloc.setAlgorithm(Algorithm.ITERATED);
+	}
+
+}
@@ -0,0 +1,51 @@
+package test.codegen;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+
+import translate.Fragments;
+import x86_64sim.CacheModel;
+import x86_64sim.Sim;
+import x86_64sim.State;
+
+/**
+ * The same tests as TestSimulateFinal, through small caches (so that lines get
+ * evicted) with either replacement policy: caching must not change what a run
+ * does, and the counts of the levels must agree with each other.
+ */
+public class TestSimulateCaches extends TestSimulateFinal {
+
+	private static CacheModel small(CacheModel.Replacement replacement) {
+		return new CacheModel().setL1I(256, 2, 16).setL1D(256, 4, 16).setL2(1024, 4, 32).setReplacement(replacement);
+	}
+
+	@BeforeClass public static void enableCaches() {
+		CacheModel.setEnabled(small(CacheModel.Replacement.LRU));
+	}
+
+	@AfterClass public static void disableCaches() {
+		CacheModel.setEnabled(null);
+	}
+
+	@Override
+	protected String test(Fragments ir_fragments) {
+		String program = assemble(ir_fragments);
+		State lru = Sim.ulate(program, false);
+		State plru;
+		CacheModel.setEnabled(small(CacheModel.Replacement.PLRU));
+		try {
+			plru = Sim.ulate(program, false);
+		} finally {
+			CacheModel.setEnabled(small(CacheModel.Replacement.LRU));
+		}
+		Assert.assertEquals(lru.result, plru.result);
+		for (State state : new State[] { lru, plru }) {
+			CacheModel.Caches caches = state.caches;
+			Assert.assertEquals(state.instructionsExecuted, caches.getHits("L1I") + caches.getMisses("L1I"));
+			Assert.assertEquals(caches.getMisses("L1I") + caches.getMisses("L1D"), caches.getHits("L2") + caches.getMisses("L2"));
+		}
+		return lru.result;
+	}
+
+}
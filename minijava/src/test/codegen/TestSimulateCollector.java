@@ -0,0 +1,117 @@
+package test.codegen;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import translate.Fragments;
+import util.SampleCode;
+import x86_64sim.Collector;
+import x86_64sim.Memory;
+import x86_64sim.Sim;
+import x86_64sim.State;
+
+import codegen.Assembly;
+import codegen.CodeGenerator;
+
+import analysis.RegAlloc;
+import analysis.RegAlloc.Algorithm;
+
+/**
+ * The same tests as TestSimulateFinal, collecting the garbage at every allocation;
+ * and a program that allocates much more than its heap of a few pages holds,
+ * with each register allocator (they all emit pointer maps).
+ */
+public class TestSimulateCollector extends TestSimulateFinal {
+
+	private static final long SMALL_HEAP = 12 * Memory.PAGE_SIZE;
+
+	/** Builds and throws away a tree of 63 objects and arrays, 100 times. */
+	private static final String CHURN =
+			"class Churn {\n" +
+			"  public static void main(String[] a) {\n" +
+			"    System.out.println(new Work().run(100));\n" +
+			"  }\n" +
+			"}\n" +
+			"class Tree {\n" +
+			"  Tree left; Tree right; boolean leaf; int value; int[] data;\n" +
+			"  public Tree build(int depth, int v) {\n" +
+			"    Tree l; Tree r; int[] d;\n" +
+			"    d = new int[2];\n" +
+			"    d[0] = v; d[1] = depth;\n" +
+			"    value = v;\n" +
+			"    data = d;\n" +
+			"    if (depth < 1) leaf = true;\n" +
+			"    else {\n" +
+			"      leaf = false;\n" +
+			"      l = new Tree();\n" +
+			"      l = l.build(depth - 1, v * 2);\n" +
+			"      r = new Tree().build(depth - 1, v * 2 + 1);\n" +
+			"      left = l; right = r;\n" +
+			"    }\n" +
+			"    return this;\n" +
+			"  }\n" +
+			"  public int sum() {\n" +
+			"    int s;\n" +
+			"    s = value + data[0] + data[1] + data.length;\n" +
+			"    if (!leaf) s = s + left.sum() + right.sum(); else {}\n" +
+			"    return s;\n" +
+			"  }\n" +
+			"}\n" +
+			"class Work {\n" +
+			"  public int run(int rounds) {\n" +
+			"    int i; int total; Tree keep; Tree t;\n" +
+			"    keep = new Tree().build(4, 1);\n" +
+			"    i = 0; total = 0;\n" +
+			"    while (i < rounds) {\n" +
+			"      t = new Tree().build(5, i);\n" +
+			"      total = total + t.sum() - keep.sum();\n" +
+			"      i = i + 1;\n" +
+			"    }\n" +
+			"    return total + keep.sum();\n" +
+			"  }\n" +
+			"}\n";
+
+	private State last;
+
+	@Before public void stress() {
+		Collector.setStress(true);
+	}
+
+	@After public void defaults() {
+		Collector.setStress(false);
+		State.setMemorySize(State.DEFAULT_HEAP_SIZE, State.DEFAULT_STACK_SIZE);
+		RegAlloc.setAlgorithm(Algorithm.ITERATED);
+	}
+
+	@Override
+	protected String test(Fragments ir_fragments) {
+		CodeGenerator cogen = new CodeGenerator();
+		Assembly assembly = cogen.apply(ir_fragments);
+		RegAlloc.doit(assembly);
+		last = Sim.ulate(assembly.toString(), false);
+		Assert.assertNotNull("No pointer maps", last.collector);
+		return last.result;
+	}
+
+	@Test public void sampleCodeWithOtherAllocators() throws Exception {
+		for (Algorithm algorithm : new Algorithm[] { Algorithm.SSA, Algorithm.PORTFOLIO }) {
+			RegAlloc.setAlgorithm(algorithm);
+			for (File f : SampleCode.sampleJavaFiles())
+				test(f);
+		}
+	}
+
+	@Test public void churn() throws Exception {
+		Collector.setStress(false);
+		State.setMemorySize(SMALL_HEAP, State.DEFAULT_STACK_SIZE);
+		for (Algorithm algorithm : Algorithm.values()) {
+			RegAlloc.setAlgorithm(algorithm);
+			test("13555080\n", CHURN);
+			Assert.assertTrue(algorithm + " didn't collect", last.collector.getCollections() > 10);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package test.codegen;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+
+import translate.Fragments;
+import x86_64sim.CostModel;
+import x86_64sim.Sim;
+import x86_64sim.State;
+
+/**
+ * The same tests as TestSimulateFinal, with the {@link CostModel} estimating cycles:
+ * timing a run must not change what it does.
+ */
+public class TestSimulateCycles extends TestSimulateFinal {
+
+	@BeforeClass public static void enableCostModel() {
+		CostModel.setEnabled(new CostModel());
+	}
+
+	@AfterClass public static void disableCostModel() {
+		CostModel.setEnabled(null);
+	}
+
+	@Override
+	protected String test(Fragments ir_fragments) {
+		String program = assemble(ir_fragments);
+		State gshare = Sim.ulate(program, false);
+		State bimodal;
+		CostModel.setEnabled(new CostModel().setPredictor(CostModel.Predictor.BIMODAL, 10, 0));
+		try {
+			bimodal = Sim.ulate(program, false);
+		} finally {
+			CostModel.setEnabled(new CostModel());
+		}
+		Assert.assertEquals(gshare.result, bimodal.result);
+		Assert.assertEquals(gshare.instructionsExecuted, bimodal.instructionsExecuted);
+		Assert.assertTrue(gshare.timing.getCycles() >= gshare.instructionsExecuted);
+		Assert.assertTrue(bimodal.timing.getCycles() >= bimodal.instructionsExecuted);
+		Assert.assertTrue(bimodal.timing.getMispredicted() <= bimodal.timing.getBranches());
+		return gshare.result;
+	}
+
+}
@@ -75,11 +75,20 @@ public class TestSimulateFinal extends TestTranslate {
 		return null; // doesn't matter right now.
 	}
 
-	protected String test(Fragments ir_fragments) {
+	/**
+	 * Generate the code for the fragments and allocate its registers. A subclass
+	 * that runs a program several ways must generate the code only once: doing it
+	 * again from the same fragments gives other code.
+	 */
+	protected String assemble(Fragments ir_fragments) {
 		CodeGenerator cogen = new CodeGenerator();
 		Assembly assembly = cogen.apply(ir_fragments);
 		RegAlloc.doit(assembly);
-		String program = assembly.toString();
+		return assembly.toString();
+	}
+
+	protected String test(Fragments ir_fragments) {
+		String program = assemble(ir_fragments);
 		State state = null;
 		String result;
 		try {
@@ -93,6 +102,10 @@ public class TestSimulateFinal extends TestTranslate {
 		System.out.print(program);
 		System.out.println("Static: " + state.p.countInstructions() + " instructions generated");
 		System.out.println("Dynamic: " + state.instructionsExecuted + " instructions executed");
+		if (state.timing != null)
+			System.out.println("Cycles: " + state.timing);
+		if (state.caches != null)
+			System.out.println("Caches: " + state.caches);
 		System.out.println("Output:");
 		System.out.print(result);
 		return result;
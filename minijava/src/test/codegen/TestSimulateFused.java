@@ -0,0 +1,83 @@
+package test.codegen;
+
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import translate.Fragments;
+import translate.Translator;
+import x86_64sim.Fusion;
+import x86_64sim.Sim;
+import x86_64sim.State;
+import x86_64sim.instruction.Fused;
+import x86_64sim.jit.Jit;
+
+/**
+ * The same tests as TestSimulateFinal, but each program is run with and without
+ * {@link Fusion}, only interpreting so that the superinstructions do the work:
+ * the output and the number of instructions executed must be the same. And a
+ * table made by {@link Fusion#profile} must fuse what the profile saw.
+ */
+public class TestSimulateFused extends TestSimulateFinal {
+
+	private static final String LOOP =
+			"class Loop {\n" +
+			"  public static void main(String[] a) {\n" +
+			"    System.out.println(new Sum().run(100));\n" +
+			"  }\n" +
+			"}\n" +
+			"class Sum {\n" +
+			"  public int run(int n) {\n" +
+			"    int i; int s;\n" +
+			"    i = 0; s = 0;\n" +
+			"    while (i < n) { s = s + i * i; i = i + 1; }\n" +
+			"    return s;\n" +
+			"  }\n" +
+			"}\n";
+
+	@After public void defaults() {
+		Fusion.setTable(Fusion.DEFAULT);
+		Fusion.setEnabled(true);
+		Jit.setEnabled(true);
+	}
+
+	@Test public void profiledTable() throws Exception {
+		String program = assemble(Translator.translate(architecture, LOOP));
+		Fusion.setEnabled(false);
+		State profiled = Sim.profile(program);
+		List<String> table = Fusion.profile(profiled.p, profiled.profiler.getExecuted(), 3);
+		Assert.assertFalse(table.isEmpty());
+
+		Fusion.setEnabled(true);
+		Fusion.setTable(table);
+		State fused = Sim.ulate(program, false);
+		Assert.assertEquals(profiled.result, fused.result);
+		Assert.assertEquals(profiled.instructionsExecuted, fused.instructionsExecuted);
+		int superinstructions = 0;
+		for (int pc = 0; pc < fused.p.countInstructions(); pc++) {
+			if (!(fused.p.code(pc) instanceof Fused)) continue;
+			String sequence = "";
+			for (int i = 0; i < ((Fused) fused.p.code(pc)).length(); i++)
+				sequence += (i == 0 ? "" : " ") + fused.p.instruction(pc + i).getClass().getSimpleName();
+			Assert.assertTrue(sequence, table.contains(sequence));
+			superinstructions++;
+		}
+		Assert.assertTrue(superinstructions > 0);
+	}
+
+	@Override
+	protected String test(Fragments ir_fragments) {
+		String program = assemble(ir_fragments);
+		Jit.setEnabled(false);
+		Fusion.setEnabled(false);
+		State plain = Sim.ulate(program, false);
+		Fusion.setEnabled(true);
+		State fused = Sim.ulate(program, false);
+		Assert.assertEquals(plain.result, fused.result);
+		Assert.assertEquals(plain.instructionsExecuted, fused.instructionsExecuted);
+		return fused.result;
+	}
+
+}
@@ -0,0 +1,34 @@
+package test.codegen;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+
+import translate.Fragments;
+import x86_64sim.Sim;
+import x86_64sim.State;
+import x86_64sim.jit.Jit;
+
+/**
+ * The same tests as TestSimulateFinal, but each program is also run with the
+ * simulator only interpreting (see {@link x86_64sim.jit.Jit}). The output and
+ * the number of instructions executed must be the same either way.
+ */
+public class TestSimulateInterpreted extends TestSimulateFinal {
+
+	@AfterClass public static void useJit() {
+		Jit.setEnabled(true);
+	}
+
+	@Override
+	protected String test(Fragments ir_fragments) {
+		String program = assemble(ir_fragments);
+		Jit.setEnabled(true);
+		State jitted = Sim.ulate(program, false);
+		Jit.setEnabled(false);
+		State interpreted = Sim.ulate(program, false);
+		Assert.assertEquals(jitted.result, interpreted.result);
+		Assert.assertEquals(jitted.instructionsExecuted, interpreted.instructionsExecuted);
+		return interpreted.result;
+	}
+
+}
@@ -0,0 +1,100 @@
+package test.codegen;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import x86_64sim.Sim;
+import x86_64sim.State;
+
+/**
+ * Simulated programs that need more memory than a few pages, or that access
+ * memory they shouldn't.
+ */
+public class TestSimulateMemory {
+
+	/** Print the depth of a recursion of %rdi calls. */
+	private static String recursion(long depth) {
+		return ".text\n" +
+				"cs411main:\n" +
+				"   pushq  %rbp\n" +
+				"   movq   %rsp, %rbp\n" +
+				"   movq   $" + depth + ", %rdi\n" +
+				"   call   depth\n" +
+				"   movq   %rax, %rdi\n" +
+				"   call   cs411println\n" +
+				"   leave\n" +
+				"   ret\n" +
+				"depth:\n" +
+				"   pushq  %rbp\n" +
+				"   movq   %rsp, %rbp\n" +
+				"   cmpq   $0, %rdi\n" +
+				"   je     base\n" +
+				"   subq   $1, %rdi\n" +
+				"   call   depth\n" +
+				"   addq   $1, %rax\n" +
+				"   leave\n" +
+				"   ret\n" +
+				"base:\n" +
+				"   movq   $0, %rax\n" +
+				"   leave\n" +
+				"   ret\n";
+	}
+
+	@After public void defaultMemorySize() {
+		State.setMemorySize(State.DEFAULT_HEAP_SIZE, State.DEFAULT_STACK_SIZE);
+	}
+
+	@Test public void largeArray() {
+		String program = ".text\n" +
+				"cs411main:\n" +
+				"   pushq  %rbp\n" +
+				"   movq   %rsp, %rbp\n" +
+				"   movq   $1000000, %rdi\n" +
+				"   call   cs411newarray\n" +
+				"   movq   $42, %rdi\n" +
+				"   movq   %rdi, 7999992(%rax)\n" +
+				"   movq   7999992(%rax), %rdi\n" +
+				"   call   cs411println\n" +
+				"   leave\n" +
+				"   ret\n";
+		Assert.assertEquals("42\n", Sim.ulate(program).result);
+	}
+
+	@Test public void deepRecursion() {
+		Assert.assertEquals("100000\n", Sim.ulate(recursion(100000)).result);
+	}
+
+	@Test public void stackOverflow() {
+		State.setMemorySize(State.DEFAULT_HEAP_SIZE, 4096);
+		String result = Sim.ulate(recursion(1000)).result;
+		Assert.assertTrue(result, result.contains("stack overflow"));
+	}
+
+	@Test public void nullDereference() {
+		String program = ".text\n" +
+				"cs411main:\n" +
+				"   pushq  %rbp\n" +
+				"   movq   %rsp, %rbp\n" +
+				"   movq   $0, %rax\n" +
+				"   movq   8(%rax), %rdi\n" +
+				"   call   cs411println\n" +
+				"   leave\n" +
+				"   ret\n";
+		Assert.assertEquals("MiniJava failure 2\n", Sim.ulate(program).result);
+	}
+
+	@Test public void outOfHeap() {
+		State.setMemorySize(4096, State.DEFAULT_STACK_SIZE);
+		String program = ".text\n" +
+				"cs411main:\n" +
+				"   pushq  %rbp\n" +
+				"   movq   %rsp, %rbp\n" +
+				"   movq   $1000, %rdi\n" +
+				"   call   cs411newarray\n" +
+				"   leave\n" +
+				"   ret\n";
+		String result = Sim.ulate(program).result;
+		Assert.assertTrue(result, result.contains("out of heap"));
+	}
+}
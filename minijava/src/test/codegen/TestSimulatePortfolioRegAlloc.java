@@ -0,0 +1,23 @@
+package test.codegen;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import analysis.RegAlloc;
+import analysis.RegAlloc.Algorithm;
+
+/**
+ * The same tests as TestSimulateFinal, but with the portfolio register
+ * allocator (see {@link analysis.implementation.PortfolioRegAlloc}).
+ */
+public class TestSimulatePortfolioRegAlloc extends TestSimulateFinal {
+
+	@BeforeClass public static void usePortfolio() {
+		RegAlloc.setAlgorithm(Algorithm.PORTFOLIO);
+	}
+
+	@AfterClass public static void useDefault() {
+		RegAlloc.setAlgorithm(Algorithm.ITERATED);
+	}
+
+}
@@ -0,0 +1,98 @@
+package test.codegen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import translate.Fragments;
+import translate.ReceiverProfile;
+import translate.Translator;
+import x86_64sim.Profiler;
+import x86_64sim.Sim;
+import x86_64sim.State;
+
+/**
+ * The same tests as TestSimulateFinal, but also run with the {@link Profiler}: the
+ * profiled run must do just what the plain one does, and its counts must add up.
+ * And a program compiled again with the classes of the receivers that the profile
+ * saw, which calls the method of the class it mostly gets directly.
+ */
+public class TestSimulateProfiled extends TestSimulateFinal {
+
+	/** Both kinds of shapes are created, but only squares get their area in the loop. */
+	private static final String SHAPES =
+			"class Shapes {\n" +
+			"  public static void main(String[] a) {\n" +
+			"    System.out.println(new Loop().run(100));\n" +
+			"  }\n" +
+			"}\n" +
+			"class Shape { public int area(int x) { return 0; } }\n" +
+			"class Square extends Shape { public int area(int x) { return x * x; } }\n" +
+			"class Line extends Shape { public int area(int x) { return x; } }\n" +
+			"class Loop {\n" +
+			"  public int run(int n) {\n" +
+			"    Shape s; Shape l; int i; int total;\n" +
+			"    s = new Square(); l = new Line();\n" +
+			"    i = 0; total = 0;\n" +
+			"    while (i < n) {\n" +
+			"      total = total + s.area(i);\n" +
+			"      i = i + 1;\n" +
+			"    }\n" +
+			"    return total + l.area(3);\n" +
+			"  }\n" +
+			"}\n";
+
+	@After public void defaults() {
+		Translator.setReceiverProfile(null);
+		Translator.setInlining(true);
+	}
+
+	private String compile(String program) throws Exception {
+		return assemble(Translator.translate(architecture, program));
+	}
+
+	@Test public void guardedDevirtualization() throws Exception {
+		Translator.setInlining(false); // to see the direct call
+		String plain = compile(SHAPES);
+		Assert.assertFalse(plain.contains("call    Square_area"));
+		State profiled = Sim.profile(plain);
+		ByteArrayOutputStream receivers = new ByteArrayOutputStream();
+		profiled.profiler.writeReceivers(new PrintStream(receivers));
+		Assert.assertTrue(receivers.toString(), receivers.toString().contains("Loop_run Square_area Square 100\n"));
+
+		Translator.setReceiverProfile(new ReceiverProfile(receivers.toString()));
+		String guarded = compile(SHAPES);
+		Assert.assertTrue(guarded.contains("call    Square_area"));
+		Assert.assertFalse(guarded.contains("call    Line_area"));
+		Assert.assertEquals("328353\n", Sim.ulate(guarded, false).result);
+	}
+
+	@Override
+	protected String test(Fragments ir_fragments) {
+		String program = assemble(ir_fragments);
+		State plain = Sim.ulate(program, false);
+		State profiled = Sim.profile(program);
+		Assert.assertEquals(plain.result, profiled.result);
+		Assert.assertEquals(plain.instructionsExecuted, profiled.instructionsExecuted);
+
+		Profiler profiler = profiled.profiler;
+		long executed = 0;
+		for (long count : profiler.getExecuted())
+			executed += count;
+		Assert.assertEquals(profiled.instructionsExecuted, executed);
+		String main = profiled.p.getFunctionAt(profiled.p.findMain());
+		Assert.assertEquals(profiled.instructionsExecuted, profiler.getInclusive(main, profiled));
+
+		ByteArrayOutputStream folded = new ByteArrayOutputStream();
+		profiler.writeFoldedStacks(new PrintStream(folded));
+		long stacks = 0;
+		for (String line : folded.toString().split("\n"))
+			stacks += Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+		Assert.assertEquals(profiled.instructionsExecuted, stacks);
+		return plain.result;
+	}
+
+}
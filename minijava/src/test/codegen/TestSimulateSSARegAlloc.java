@@ -0,0 +1,23 @@
+package test.codegen;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+
+import analysis.RegAlloc;
+import analysis.RegAlloc.Algorithm;
+
+/**
+ * The same tests as TestSimulateFinal, but with the SSA based register
+ * allocator (see {@link analysis.implementation.SSARegAlloc}).
+ */
+public class TestSimulateSSARegAlloc extends TestSimulateFinal {
+
+	@BeforeClass public static void useSSA() {
+		RegAlloc.setAlgorithm(Algorithm.SSA);
+	}
+
+	@AfterClass public static void useDefault() {
+		RegAlloc.setAlgorithm(Algorithm.ITERATED);
+	}
+
+}
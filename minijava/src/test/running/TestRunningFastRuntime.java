@@ -0,0 +1,14 @@
+package test.running;
+
+import driver.Runner;
+
+/**
+ * The same tests as TestRunning, linked with the fast runtime (which has to be
+ * built first, see runtime/Makefile).
+ */
+public class TestRunningFastRuntime extends TestRunning {
+
+	public TestRunningFastRuntime() {
+		runner = new Runner(Runner.Runtime.FAST);
+	}
+}
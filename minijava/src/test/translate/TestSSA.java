@@ -0,0 +1,48 @@
+package test.translate;
+
+import ir.opt.SSAForm;
+
+import org.junit.Test;
+
+import translate.Fragment;
+import translate.Fragments;
+import translate.ProcFragment;
+
+/**
+ * This runs all the same tests as the TestTranslate test suite, with each
+ * procedure taken into SSA form (which must pass the verifier) and out of it
+ * again before the IR is simulated.
+ */
+public class TestSSA extends TestTranslate {
+
+	@Override
+	protected void transform(Fragments translated) {
+		for (Fragment fragment : translated) {
+			if (!(fragment instanceof ProcFragment)) continue;
+			ProcFragment proc = (ProcFragment) fragment;
+			SSAForm ssa = new SSAForm(proc);
+			if (dumpIR())
+				System.out.println(ssa);
+			ssa.verify();
+			proc.setLinearizedBody(ssa.toLinearized());
+		}
+	}
+
+	@Test
+	public void swaps() throws Exception {
+		test("144\n",
+				"class Swaps {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Fib().run(10));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Fib {\n" +
+				"  public int run(int n) {\n" +
+				"    int a; int b; int t; int i;\n" +
+				"    a = 1; b = 2; i = 0;\n" +
+				"    while (i < n) { t = a; a = b; b = t + b; i = i + 1; }\n" +
+				"    return a;\n" +
+				"  }\n" +
+				"}\n");
+	}
+}
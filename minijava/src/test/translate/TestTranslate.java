@@ -4,6 +4,9 @@ import ir.frame.Frame;
 import ir.frame.x86_64.X86_64Frame;
 import ir.interp.Interp;
 import ir.interp.InterpMode;
+import ir.tree.IRExp;
+import ir.tree.IRStm;
+import ir.tree.MEM;
 
 import java.io.File;
 
@@ -12,7 +15,9 @@ import junit.framework.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import translate.Fragment;
 import translate.Fragments;
+import translate.ProcFragment;
 import translate.Translator;
 import typechecker.TypeCheckerException;
 import util.SampleCode;
@@ -79,6 +84,240 @@ public class TestTranslate {
 		}
 	}
 	
+	@Test
+	public void subtypeTests() throws Exception {
+		test("3\n3\n1010011\n",
+				"class Subtypes {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Tests().run());\n" +
+				"  }\n" +
+				"}\n" +
+				"class A { public int id() { return 1; } }\n" +
+				"class B extends A { public int id() { return 2; } }\n" +
+				"class C extends B { public int id() { return 3; } }\n" +
+				"class D extends A { public int id() { return 4; } }\n" +
+				"class Tests {\n" +
+				"  public int run() {\n" +
+				"    A a; B b; int n;\n" +
+				"    n = 0;\n" +
+				"    a = new C();\n" +
+				"    if (a instanceof A) n = n + 1; else {}\n" +
+				"    if (a instanceof B) n = n + 10; else {}\n" +
+				"    if (a instanceof D) n = n + 100; else {}\n" +
+				"    b = (B) a;\n" +
+				"    System.out.println(b.id());\n" +
+				"    a = (A) b;\n" +
+				"    System.out.println(a.id());\n" +
+				"    if (b instanceof D) n = n + 10000000; else {}\n" +
+				"    a = new D();\n" +
+				"    if (a instanceof B) n = n + 1000; else {}\n" +
+				"    if (a instanceof A) n = n + 10000; else {}\n" +
+				"    a = new B();\n" +
+				"    if (a instanceof C) n = n + 100000; else {}\n" +
+				"    if (a instanceof B) n = n + 1000000; else {}\n" +
+				"    return n;\n" +
+				"  }\n" +
+				"}\n");
+	}
+
+	@Test
+	public void devirtualization() throws Exception {
+		String program =
+				"class Devirtualization {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Shapes().run());\n" +
+				"  }\n" +
+				"}\n" +
+				"class Base { public int f() { return 1; } }\n" +
+				"class Derived extends Base { public int f() { return 2; } }\n" +
+				"class Square { public int area() { return 4; } }\n" +
+				"class Shapes {\n" +
+				"  public int run() {\n" +
+				"    Base b; Square q;\n" +
+				"    b = new Base(); q = new Square();\n" +
+				"    return b.f() + q.area();\n" +
+				"  }\n" +
+				"}\n";
+		test("5\n", program);
+		Translator.setInlining(false); // to see the calls
+		try {
+			// Derived overrides f, but no Derived is ever created.
+			String ir = linearized(program, "Shapes_run");
+			Assert.assertTrue(ir, ir.contains("CALL(NAME(Base_f)"));
+			Assert.assertTrue(ir, ir.contains("CALL(NAME(Square_area)"));
+			Translator.setDevirtualization(false);
+			ir = linearized(program, "Shapes_run");
+			Assert.assertFalse(ir, ir.contains("CALL(NAME(Base_f)"));
+			Assert.assertFalse(ir, ir.contains("CALL(NAME(Square_area)"));
+		} finally {
+			Translator.setDevirtualization(true);
+			Translator.setInlining(true);
+		}
+	}
+
+	@Test
+	public void inlining() throws Exception {
+		String program =
+				"class Inlining {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Cells().run());\n" +
+				"  }\n" +
+				"}\n" +
+				"class Cell {\n" +
+				"  int v; Cell next;\n" +
+				"  public int get() { return v; }\n" +
+				"  public int set(int x) { v = x; return x; }\n" +
+				"  public Cell link(Cell c) { next = c; return this; }\n" +
+				"  public Cell getNext() { return next; }\n" +
+				"  public int max(int a, int b) { int m; if (a < b) m = b; else m = a; return m; }\n" +
+				"}\n" +
+				"class Cells {\n" +
+				"  public int run() {\n" +
+				"    Cell a; Cell b; int t;\n" +
+				"    a = new Cell(); b = new Cell();\n" +
+				"    t = a.set(3) + b.set(4);\n" +
+				"    a = a.link(b);\n" +
+				"    System.out.println(a.getNext().get());\n" +
+				"    System.out.println(a.max(a.get(), b.get()) + a.max(b.get(), a.get()));\n" +
+				"    return t;\n" +
+				"  }\n" +
+				"}\n";
+		test("4\n8\n7\n", program);
+		String ir = linearized(program, "Cells_run");
+		Assert.assertFalse(ir, ir.contains("CALL(NAME(Cell_"));
+		Translator.setInlining(false);
+		try {
+			ir = linearized(program, "Cells_run");
+			Assert.assertTrue(ir, ir.contains("CALL(NAME(Cell_get)"));
+			Assert.assertTrue(ir, ir.contains("CALL(NAME(Cell_set)"));
+		} finally {
+			Translator.setInlining(true);
+		}
+	}
+
+	@Test
+	public void constantPropagation() throws Exception {
+		String program =
+				"class ConstantPropagation {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Consts().run(5));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Consts {\n" +
+				"  public int run(int n) {\n" +
+				"    int size; int i; int s; boolean debug; int[] a;\n" +
+				"    size = 4; debug = false; i = 0; s = 0;\n" +
+				"    a = new int[size * 2];\n" +
+				"    System.out.println(a.length);\n" +
+				"    while (i < a.length) { a[i] = i * size; i = i + 1; }\n" +
+				"    if (debug) System.out.println(0 - 1); else {}\n" +
+				"    i = 0;\n" +
+				"    while (i < size) {\n" +
+				"      if (size < 3) s = s + 100; else s = s + a[i];\n" +
+				"      i = i + 1;\n" +
+				"    }\n" +
+				"    return s + n;\n" +
+				"  }\n" +
+				"}\n";
+		test("8\n29\n", program);
+		// Both ifs are decided: the debug output and the s + 100 are gone.
+		String ir = linearized(program, "Consts_run");
+		Assert.assertEquals(ir, 1, count(ir, "CALL(NAME(cs411println)"));
+		Assert.assertEquals(ir, 0, count(ir, "CONST 100"));
+		Translator.setConstantPropagation(false);
+		try {
+			String unfolded = linearized(program, "Consts_run");
+			Assert.assertEquals(unfolded, 2, count(unfolded, "CALL(NAME(cs411println)"));
+			Assert.assertEquals(unfolded, 1, count(unfolded, "CONST 100"));
+			Assert.assertTrue(count(ir, "CJUMP(") <= count(unfolded, "CJUMP(") - 2);
+		} finally {
+			Translator.setConstantPropagation(true);
+		}
+	}
+
+	@Test
+	public void valueNumbering() throws Exception {
+		String program =
+				"class ValueNumbering {\n" +
+				"  public static void main(String[] a) {\n" +
+				"    System.out.println(new Counter().run(3));\n" +
+				"  }\n" +
+				"}\n" +
+				"class Counter {\n" +
+				"  int[] a; int count; int total;\n" +
+				"  public int run(int n) {\n" +
+				"    int i; int s;\n" +
+				"    a = new int[n + 2];\n" +
+				"    count = 0; total = 0; i = 0;\n" +
+				"    while (i < a.length) { a[i] = count + i; count = count + 1; i = i + 1; }\n" +
+				"    System.out.println(count + a[a.length - 1]);\n" +
+				"    s = this.bump();\n" +
+				"    System.out.println(count + s);\n" +
+				"    i = 0;\n" +
+				"    while (i < a.length) { total = total + a[i]; a[i] = total; i = i + 1; }\n" +
+				"    return total + a[a.length - 1] + count;\n" +
+				"  }\n" +
+				"  public int bump() { count = count + 10; return count; }\n" +
+				"}\n";
+		test("13\n30\n55\n", program);
+		int numbered = lengthLoads(procedure(program, "Counter_run"));
+		Translator.setValueNumbering(false);
+		try {
+			Assert.assertTrue(numbered < lengthLoads(procedure(program, "Counter_run")));
+		} finally {
+			Translator.setValueNumbering(true);
+		}
+	}
+
+	/**
+	 * Rewrite the translated IR before it is simulated: a subclass can test an
+	 * optimization (see ir.opt) by overriding this.
+	 */
+	protected void transform(Fragments translated) {
+	}
+
+	/**
+	 * One procedure of a program, to check what the translator did to it.
+	 */
+	protected static ProcFragment procedure(String program, String label) throws Exception {
+		for (Fragment frag : Translator.translate(architecture, program))
+			if (frag instanceof ProcFragment && ((ProcFragment) frag).getLabel().toString().equals(label))
+				return (ProcFragment) frag;
+		throw new Error("No procedure " + label);
+	}
+
+	/**
+	 * The linearized IR of one procedure of a program, a statement per line.
+	 */
+	protected static String linearized(String program, String label) throws Exception {
+		StringBuilder ir = new StringBuilder();
+		for (IRStm stm : procedure(program, label).getLinearizedBody())
+			ir.append(stm.onOneLine()).append('\n');
+		return ir.toString();
+	}
+
+	private static int lengthLoads(ProcFragment proc) {
+		int loads = 0;
+		for (IRStm stm : proc.getLinearizedBody())
+			for (IRExp e : stm.kids())
+				loads += lengthLoads(e);
+		return loads;
+	}
+
+	private static int lengthLoads(IRExp e) {
+		int loads = e instanceof MEM && ((MEM) e).getKind() == MEM.Kind.LENGTH ? 1 : 0;
+		for (IRExp k : e.kids())
+			loads += lengthLoads(k);
+		return loads;
+	}
+
+	private static int count(String text, String what) {
+		int count = 0;
+		for (int i = text.indexOf(what); i >= 0; i = text.indexOf(what, i + 1))
+			count++;
+		return count;
+	}
+
 	protected Fragments test(File program) throws TypeCheckerException, Exception {
 		System.out.println("Translating: "+program);
 		String expected = Utils.getExpected(program);
@@ -89,6 +328,7 @@ public class TestTranslate {
 	protected Fragments test(String expected, File program)
 			throws TypeCheckerException, Exception {
 		Fragments translated = Translator.translate(architecture, program);
+		transform(translated);
 		if (dumpIR()) {
 			System.out.println("VVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVV");
 			System.out.println(translated);
@@ -114,6 +354,7 @@ public class TestTranslate {
 		System.out.println("Translating program: ");
 		System.out.println(program);
 		Fragments translated = Translator.translate(architecture, program);
+		transform(translated);
 		if (dumpIR()) {
 			System.out.println("VVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVVV");
 			System.out.println(translated);
@@ -61,6 +61,16 @@ public class ProcFragment extends Fragment {
 		return linearizedBody;
 	}
 	
+	/**
+	 * Replace the linearized body with one that an optimization made of it
+	 * (see ir.opt), which the basic blocks and the trace are then made from.
+	 */
+	public void setLinearizedBody(List<IRStm> linearized) {
+		linearizedBody = linearized;
+		blocks = null;
+		traceScheduled = null;
+	}
+	
 	public BasicBlocks getBasicBlocks() {
 		if (blocks==null) {
 			blocks = new BasicBlocks(getLinearizedBody());
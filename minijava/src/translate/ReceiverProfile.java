@@ -0,0 +1,79 @@
+package translate;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import util.Utils;
+
+/**
+ * The classes of the receivers of the method calls of a run of the program:
+ * how often each function (caller) called each method (callee) on an object of
+ * each class. The simulator's profiler writes them (see
+ * x86_64sim.Profiler#writeReceivers), one "caller callee class count" line each,
+ * with the labels of the functions and classes.
+ * <p>
+ * Given one (see {@link Translator#setReceiverProfile}), the translator calls
+ * the method directly where one class dominates the receivers of a call that
+ * could run several, after checking that the receiver is of that class.
+ */
+public class ReceiverProfile {
+
+	/**
+	 * The share of the calls that a class must have to be worth guarding for:
+	 * the other calls pay for the check, on top of the call through the vtable.
+	 */
+	public static final double DOMINANT = 0.75;
+
+	/** Caller -> "callee class" -> calls. */
+	private final Map<String, Map<String, Long>> calls = new HashMap<String, Map<String, Long>>();
+
+	public ReceiverProfile(String profile) {
+		for (String line : profile.split("\n")) {
+			if (line.trim().isEmpty()) continue;
+			String[] fields = line.trim().split("\\s+");
+			if (fields.length != 4)
+				throw new Error("Not a receiver profile line: " + line);
+			add(fields[0], fields[1], fields[2], Long.parseLong(fields[3]));
+		}
+	}
+
+	public static ReceiverProfile read(File file) {
+		return new ReceiverProfile(Utils.getContents(file));
+	}
+
+	public void add(String caller, String callee, String receiver, long count) {
+		Map<String, Long> sites = calls.get(caller);
+		if (sites == null) {
+			sites = new HashMap<String, Long>();
+			calls.put(caller, sites);
+		}
+		String key = callee + " " + receiver;
+		Long before = sites.get(key);
+		sites.put(key, before == null ? count : before + count);
+	}
+
+	/**
+	 * The class of at least {@link #DOMINANT} of the receivers of the calls that
+	 * the caller made to any of the callees, or null if there is none (or no
+	 * such calls at all).
+	 */
+	public String dominantReceiver(String caller, Set<String> callees) {
+		Map<String, Long> sites = calls.get(caller);
+		if (sites == null) return null;
+		Map<String, Long> byClass = new HashMap<String, Long>();
+		long total = 0;
+		for (Map.Entry<String, Long> site : sites.entrySet()) {
+			String[] calleeReceiver = site.getKey().split(" ");
+			if (!callees.contains(calleeReceiver[0])) continue;
+			Long before = byClass.get(calleeReceiver[1]);
+			byClass.put(calleeReceiver[1], before == null ? site.getValue() : before + site.getValue());
+			total += site.getValue();
+		}
+		for (Map.Entry<String, Long> receiver : byClass.entrySet())
+			if (receiver.getValue() >= DOMINANT * total)
+				return receiver.getKey();
+		return null;
+	}
+}
@@ -51,4 +51,117 @@ public class Translator {
 	public static final Label L_NEW_OBJECT = Label.get("cs411newobject");
 	public static final Label L_NEW_ARRAY = Label.get("cs411newarray");
 	public static final Label L_ERROR = Label.get("cs411error");
+
+	private static boolean implicitNullChecks = true;
+
+	/**
+	 * Whether method calls leave the null check of their receiver to the
+	 * hardware, in programs translated from now on. Loading the method from the
+	 * vtable of a null receiver then faults in the unmapped first page, which the
+	 * runtime (and the simulator) report as a failure with code
+	 * NULL_OBJECT_REFERENCE, as it would have been. Otherwise each call compares
+	 * its receiver with null first.
+	 */
+	public static void setImplicitNullChecks(boolean implicit) {
+		implicitNullChecks = implicit;
+	}
+
+	public static boolean getImplicitNullChecks() {
+		return implicitNullChecks;
+	}
+
+	private static boolean devirtualization = true;
+
+	/**
+	 * Whether method calls that can only run one method call it directly, rather
+	 * than through the vtable of the receiver, in programs translated from now
+	 * on. Which methods a call can run is decided from the class of the receiver
+	 * and the classes the program creates objects of (rapid type analysis).
+	 */
+	public static void setDevirtualization(boolean devirtualize) {
+		devirtualization = devirtualize;
+	}
+
+	public static boolean getDevirtualization() {
+		return devirtualization;
+	}
+
+	private static boolean inlining = true;
+
+	/**
+	 * Whether small procedures are inlined where they are called directly, in
+	 * programs translated from now on (see ir.opt.Inliner).
+	 */
+	public static void setInlining(boolean inline) {
+		inlining = inline;
+	}
+
+	public static boolean getInlining() {
+		return inlining;
+	}
+
+	private static boolean constantPropagation = true;
+
+	/**
+	 * Whether the constants in Temps are propagated, and what they decide
+	 * folded, in programs translated from now on (see ir.opt.ConstantPropagation).
+	 */
+	public static void setConstantPropagation(boolean propagate) {
+		constantPropagation = propagate;
+	}
+
+	public static boolean getConstantPropagation() {
+		return constantPropagation;
+	}
+
+	private static boolean valueNumbering = true;
+
+	/**
+	 * Whether what procedures compute (and load) again is replaced by what has
+	 * it already, in programs translated from now on (see ir.opt.ValueNumbering).
+	 */
+	public static void setValueNumbering(boolean number) {
+		valueNumbering = number;
+	}
+
+	public static boolean getValueNumbering() {
+		return valueNumbering;
+	}
+
+	private static ReceiverProfile receiverProfile = null;
+
+	/**
+	 * The classes of the receivers of the calls in a run of the program, for
+	 * programs translated from now on (null for none): calls that could run
+	 * several methods but mostly get objects of one class test for it, and call
+	 * its method directly (see {@link ReceiverProfile}).
+	 */
+	public static void setReceiverProfile(ReceiverProfile profile) {
+		receiverProfile = profile;
+	}
+
+	public static ReceiverProfile getReceiverProfile() {
+		return receiverProfile;
+	}
+
+	/*
+	 * The allocation buffer: where the next object or array goes, then where the
+	 * buffer ends. Generated code allocates from it inline, and only calls
+	 * L_NEW_OBJECT or L_NEW_ARRAY, which refill it, when that doesn't fit. The
+	 * memory in the buffer is zero.
+	 * <p>
+	 * So that a collector can walk the heap, every block starts with a word that
+	 * says what it is: objects with their class, arrays with ARRAY_HEADER, then
+	 * their length. Empty arrays take a word of padding.
+	 */
+	public static final Label L_HEAP = Label.get("cs411heap");
+	public static final int ARRAY_HEADER = 1;
+
+	/*
+	 * Tables for a garbage collector (the simulator has one): the layout of the
+	 * objects of each class, and the references live at each call site (which
+	 * the register allocator emits, see analysis.implementation.PointerMaps).
+	 */
+	public static final Label L_GC_CLASSES = Label.get("cs411gcclasses");
+	public static final Label L_GC_MAPS = Label.get("cs411gcmaps");
 }
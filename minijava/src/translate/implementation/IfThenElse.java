@@ -31,12 +31,15 @@ public class IfThenElse extends TRExp {
   @Override
   public IRExp unEx() {
     TEMP temp = TEMP(new Temp());
+    IRExp thnEx = thn.unEx();
+    IRExp elsEx = els.unEx();
+    temp.temp.setReference(thnEx.isReference() || elsEx.isReference());
     return ESEQ(SEQ(test.unCx(t, f),
                     LABEL(t),
-                    MOVE(temp, thn.unEx()),
+                    MOVE(temp, thnEx),
                     JUMP(join),
                     LABEL(f),
-                    MOVE(temp, els.unEx()),
+                    MOVE(temp, elsEx),
                     LABEL(join)),
                 temp);
   }
@@ -1,7 +1,11 @@
 package translate.implementation;
 
 import ir.frame.Frame;
+import ir.opt.ConstantPropagation;
+import ir.opt.Inliner;
+import ir.opt.ValueNumbering;
 import translate.Fragments;
+import translate.Translator;
 import typechecker.TypeChecked;
 import typechecker.implementation.ClassEntry;
 import typechecker.implementation.TypeCheckerImplementation;
@@ -24,7 +28,14 @@ public class TranslateImplementation {
 	public Fragments translate() {
 		TranslateVisitor vis = new TranslateVisitor(table, frameFactory);
 		program.accept(vis);
-		return vis.getResult();
+		Fragments result = vis.getResult();
+		if (Translator.getInlining())
+			Inliner.inline(result);
+		if (Translator.getValueNumbering())
+			ValueNumbering.number(result);
+		if (Translator.getConstantPropagation())
+			ConstantPropagation.propagate(result);
+		return result;
 	}
 
 }
@@ -1,7 +1,10 @@
 package translate.implementation;
 
 import static ir.tree.IR.*;
+import static translate.Translator.ARRAY_HEADER;
 import static translate.Translator.L_ERROR;
+import static translate.Translator.L_GC_CLASSES;
+import static translate.Translator.L_HEAP;
 import static translate.Translator.L_MAIN;
 import static translate.Translator.L_NEW_ARRAY;
 import static translate.Translator.L_NEW_OBJECT;
@@ -15,17 +18,23 @@ import ir.tree.CJUMP.RelOp;
 import ir.tree.IRData;
 import ir.tree.IRExp;
 import ir.tree.IRStm;
+import ir.tree.MEM.Kind;
 import ir.tree.NAME;
 import ir.tree.TEMP;
 
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.Set;
 
 import translate.DataFragment;
 import translate.Fragment;
 import translate.Fragments;
 import translate.ProcFragment;
+import translate.ReceiverProfile;
+import translate.Translator;
 import typechecker.implementation.ClassEntry;
 import util.FunTable;
 import util.ImpTable;
@@ -64,6 +73,13 @@ public class TranslateVisitor implements Visitor<TRExp> {
 	private ClassEntry currentClass;
 	
 	private static final String OBJECT_CLASS = "Object";
+	/**
+	 * The words before the methods in a vtable: the superclass's vtable, and the
+	 * number of the class (see {@link ClassEntry#getNumber()}), for subtype tests.
+	 */
+	private static final int VTABLE_HEADER = 2;
+	/** Bigger arrays are always allocated by the runtime, rather than inline. */
+	private static final int MAX_INLINE_ARRAY = 1 << 24;
 
 	public TranslateVisitor(ImpTable<ClassEntry> table, Frame frameFactory) {
 		frags = new Fragments(frameFactory);
@@ -87,6 +103,17 @@ public class TranslateVisitor implements Visitor<TRExp> {
 	  envs.push(envs.pop().insert(name, access));
 	}
 
+	private static boolean isReference(Type type) {
+	  return type instanceof ObjectType || type instanceof IntArrayType;
+	}
+
+	/**
+	 * Mark e as a reference if values of the type are (see {@link ir.tree.IR#REF(IRExp)}).
+	 */
+	private static IRExp typed(Type type, IRExp e) {
+	  return isReference(type) ? REF(e) : e;
+	}
+
 	////// Visitor ///////////////////////////////////////////////
 
 	@Override
@@ -107,9 +134,35 @@ public class TranslateVisitor implements Visitor<TRExp> {
 	  for (ClassDecl clazz : n.classes) {
 	    clazz.accept(this);
 	  }
+	  frags.add(new DataFragment(frameFactory, DATA(L_GC_CLASSES, classLayouts(n))));
+	  // Empty, so that the first allocation refills it.
+	  frags.add(new DataFragment(frameFactory, DATA(L_HEAP, List.list(CONST(0), CONST(0)))));
 	  return new Nx(NOP);
 	}
 
+	/**
+	 * For the garbage collector: the number of classes, then for each its label
+	 * (which objects point to), its size in words and the offsets of its
+	 * reference fields, preceded by their number.
+	 */
+	private List<IRExp> classLayouts(Program n) {
+	  List<IRExp> layouts = List.list(CONST(n.classes.size()));
+	  int wordSize = frameFactory.wordSize();
+	  for (ClassDecl clazz : n.classes) {
+	    java.util.List<Type> fields = table.lookup(clazz.name).getFieldTypes();
+	    List<IRExp> offsets = List.list();
+	    for (int i = 0; i < fields.size(); i++) {
+	      if (isReference(fields.get(i)))
+	        offsets.add(CONST((i + 1) * wordSize));
+	    }
+	    layouts = layouts.append(List.list(NAME(Label.get(clazz.name)),
+	                                       CONST(fields.size() + 1),
+	                                       CONST(offsets.size())))
+	                     .append(offsets);
+	  }
+	  return layouts;
+	}
+
 	@Override
 	public TRExp visit(BooleanType n) {
 	  return new Nx(NOP);
@@ -185,7 +238,8 @@ public class TranslateVisitor implements Visitor<TRExp> {
 	  
 	  if (var == null) {
 	    int offset = currentClass.getOffsetOfField(n.name);
-	    return new Ex(MEM(PLUS(new This().accept(this).unEx(), (offset + 1) * frame.wordSize())));
+	    return new Ex(typed(currentClass.lookupField(n.name),
+	                        MEM(PLUS(new This().accept(this).unEx(), (offset + 1) * frame.wordSize()), Kind.FIELD)));
 	  }
 	  
     return new Ex(var.exp(frame.FP()));
@@ -215,8 +269,9 @@ public class TranslateVisitor implements Visitor<TRExp> {
   @Override
   public TRExp visit(ClassDecl n) {
     currentClass = table.lookup(n.name);
-    // add superclass label
-    List<IRExp> methods = List.list(NAME(Label.get(n.superName.isEmpty() ? OBJECT_CLASS : n.superName)));
+    // add superclass label, and class number
+    List<IRExp> methods = List.list(NAME(Label.get(n.superName.isEmpty() ? OBJECT_CLASS : n.superName)),
+                                    CONST(currentClass.getNumber()));
     
     // building superclass virtual method table
     if (!n.superName.isEmpty()) {
@@ -226,7 +281,8 @@ public class TranslateVisitor implements Visitor<TRExp> {
           
           if (data.getLabel().toString().equals(Label.get(n.superName).toString())) {
             Iterator<IRExp> iterator = data.iterator();
-            iterator.next();  // ignore superclass's superclass label
+            for (int i = 0; i < VTABLE_HEADER; i++)
+              iterator.next();  // ignore superclass's superclass label and number
             while (iterator.hasNext()) {
               methods = methods.append(List.list(iterator.next()));
             }
@@ -243,8 +299,8 @@ public class TranslateVisitor implements Visitor<TRExp> {
       
       if (!n.superName.isEmpty()) {
         // try to find overriden methods, if any
-        // start from tail to ignore superclass's superclass label
-        for (IRExp exp : methods.tail()) {
+        // start from tail to ignore superclass label and class number
+        for (IRExp exp : methods.tail().tail()) {
           String superMethodName = ((NAME) exp).label.toString().split("_")[Utils.macOS() ? 2 : 1];
           if (superMethodName.equals(method.name)) {
             methods = methods.replace(exp, methodExp);
@@ -272,9 +328,13 @@ public class TranslateVisitor implements Visitor<TRExp> {
     frames.push(frame); 
 
     // params
+    REF(frame.getFormal(0).exp(frame.FP()));
     for (int i = 0; i < n.formals.size(); i++) {
       // first position is reserved for receiver object
-      putEnv(n.formals.elementAt(i).name, frame.getFormal(i + 1));
+      VarDecl formal = n.formals.elementAt(i);
+      putEnv(formal.name, frame.getFormal(i + 1));
+      if (isReference(formal.type))
+        REF(frame.getFormal(i + 1).exp(frame.FP()));
     }
     
     IRStm inits = NOP;
@@ -283,7 +343,7 @@ public class TranslateVisitor implements Visitor<TRExp> {
       Access var = frame.allocLocal(false);
       putEnv(local.name, var);
       // initialize local variables to 0
-      inits = SEQ(inits, MOVE(var.exp(frame.FP()), CONST(0)));
+      inits = SEQ(inits, MOVE(typed(local.type, var.exp(frame.FP())), CONST(0)));
     }
   
     // body
@@ -342,7 +402,8 @@ public class TranslateVisitor implements Visitor<TRExp> {
                                          new LessThan(new IntegerLiteral(-1), n.index)).accept(this),
                                  new Nx(MOVE(MEM(PLUS(array.accept(this).unEx(),
                                                       MUL(n.index.accept(this).unEx(),
-                                                          frames.peek().wordSize()))),
+                                                          frames.peek().wordSize())),
+                                                 Kind.ELEMENT),
                                              n.value.accept(this).unEx())),
                                  new Ex(CALL(L_ERROR, INDEX_OUT_OF_BOUND))).unNx());
   }
@@ -354,7 +415,7 @@ public class TranslateVisitor implements Visitor<TRExp> {
 
   @Override
   public TRExp visit(ArrayLength n) {
-    return new Ex(MEM(MINUS(n.array.accept(this).unEx(), frames.peek().wordSize())));
+    return new Ex(MEM(MINUS(n.array.accept(this).unEx(), frames.peek().wordSize()), Kind.LENGTH));
   }
 
   @Override
@@ -363,48 +424,200 @@ public class TranslateVisitor implements Visitor<TRExp> {
                                          new LessThan(new IntegerLiteral(-1), n.index)).accept(this),
                                  new Ex(MEM(PLUS(n.array.accept(this).unEx(),
                                                  MUL(n.index.accept(this).unEx(),
-                                                     frames.peek().wordSize())))),
+                                                     frames.peek().wordSize())),
+                                            Kind.ELEMENT)),
                                  new Ex(CALL(L_ERROR, INDEX_OUT_OF_BOUND))).unEx());
   }
 
   @Override
   public TRExp visit(Call n) {
-    List<IRExp> args = List.list(n.receiver.accept(this).unEx());
+    TEMP receiver = TEMP(new Temp());
+    REF(receiver);
+    List<IRExp> args = List.list((IRExp) receiver);
     for (Expression arg : n.rands) {
       args.add(arg.accept(this).unEx());
     }
     
-    // + 1 to ignore the superclass label
-    int methodOffset = table.lookup(n.receiver.getType().toString()).getOffsetOfMethod(n.name) + 1;
-    // there should be an uniform way of dealing with this and super in terms of method address
-    // but this will do for now
-    IRExp vmt = (n.receiver instanceof Super) ? MEM(n.receiver.accept(this).unEx())
-                                              : n.receiver.accept(this).unEx();
-    return new Ex(new IfThenElse(new Ex(n.receiver.accept(this).unEx()),
-                                 new Ex(CALL(MEM(PLUS(MEM(vmt),
-                                                      methodOffset * frames.peek().wordSize())),
-                                             args)),
-                                 new Ex(CALL(L_ERROR, NULL_OBJECT_REFERENCE))).unEx());
+    ClassEntry clazz = table.lookup(n.receiver.getType().toString());
+    Label target = null;
+    ClassEntry expected = null;
+    if (Translator.getDevirtualization()) {
+      if (n.receiver instanceof Super) {
+        // a call on super runs the superclass's method, whatever the object
+        target = method(clazz.implementationOf(n.name), n.name);
+      } else {
+        Set<String> targets = targets(clazz, n.name);
+        if (targets.size() == 1)
+          target = Label.get(targets.iterator().next());
+        else if (targets.size() > 1)
+          expected = expectedReceiver(clazz, targets);
+      }
+    }
+    // ignore the superclass label and class number
+    int methodOffset = clazz.getOffsetOfMethod(n.name) + VTABLE_HEADER;
+    IRExp call;
+    if (target != null) {
+      call = typed(n.getType(), CALL(NAME(target), args));
+    } else if (expected != null) {
+      call = guardedCall(n, expected, receiver, args, methodOffset);
+    } else {
+      // there should be an uniform way of dealing with this and super in terms of method address
+      // but this will do for now
+      IRExp vmt = (n.receiver instanceof Super) ? MEM(receiver, Kind.HEADER) : receiver;
+      call = typed(n.getType(),
+                   CALL(MEM(PLUS(MEM(vmt, n.receiver instanceof Super ? Kind.VTABLE : Kind.HEADER),
+                                 methodOffset * frames.peek().wordSize()),
+                            Kind.VTABLE),
+                        args));
+    }
+    IRStm evaluate = MOVE(receiver, n.receiver.accept(this).unEx());
+    if (n.receiver instanceof This || n.receiver instanceof Super || n.receiver instanceof NewObject
+        // The load of the vtable faults if the receiver is null (see Translator.setImplicitNullChecks),
+        // a direct call has to check.
+        || (target == null && Translator.getImplicitNullChecks()))
+      return new Ex(ESEQ(evaluate, call));
+    return new Ex(ESEQ(evaluate,
+                       new IfThenElse(new Ex(receiver),
+                                      new Ex(call),
+                                      new Ex(CALL(L_ERROR, NULL_OBJECT_REFERENCE))).unEx()));
   }
 
+  /**
+   * The methods that a call of methodName on an object of the class can run.
+   * Only the classes that the program creates objects of count (rapid type
+   * analysis): the receiver is one of those that are subclasses of the class,
+   * or null.
+   */
+  private Set<String> targets(ClassEntry clazz, String methodName) {
+    Set<String> targets = new HashSet<String>();
+    for (Entry<String, ClassEntry> entry : table) {
+      ClassEntry subclass = entry.getValue();
+      if (subclass.isInstantiated() && subclass.isSubclassOf(clazz))
+        targets.add(method(subclass.implementationOf(methodName), methodName).toString());
+    }
+    return targets;
+  }
+
+  /**
+   * The class that the receiver of a call from the current method, to one of
+   * the targets, mostly had in the receiver profile, or null if there is no
+   * profile or no such class.
+   */
+  private ClassEntry expectedReceiver(ClassEntry clazz, Set<String> targets) {
+    ReceiverProfile profile = Translator.getReceiverProfile();
+    if (profile == null)
+      return null;
+    String expected = profile.dominantReceiver(frames.peek().getLabel().toString(), targets);
+    if (expected == null || !table.containsKey(expected))
+      return null;
+    ClassEntry receiverClass = table.lookup(expected);
+    // The profile may be of another version of the program.
+    return receiverClass.isInstantiated() && receiverClass.isSubclassOf(clazz) ? receiverClass : null;
+  }
+
+  /**
+   * A call that compares the vtable of the receiver with that of the expected
+   * class, and calls its method directly if they are the same, or the method
+   * in the vtable otherwise. Like the call without the guard, it loads the
+   * vtable before it evaluates the arguments (which it keeps in temps).
+   */
+  private IRExp guardedCall(Call n, ClassEntry expected, TEMP receiver, List<IRExp> args, int methodOffset) {
+    TEMP vtable = TEMP(new Temp());
+    IRStm evaluate = MOVE(vtable, MEM(receiver, Kind.HEADER));
+    List<IRExp> temps = List.list((IRExp) receiver);
+    int i = 0;
+    for (IRExp arg : args) {
+      if (i++ == 0) continue; // the receiver
+      TEMP temp = TEMP(new Temp());
+      if (arg.isReference()) REF(temp);
+      evaluate = SEQ(evaluate, MOVE(temp, arg));
+      temps.add(temp);
+    }
+    TEMP result = TEMP(new Temp());
+    Label direct = Label.gen();
+    Label indirect = Label.gen();
+    Label join = Label.gen();
+    return typed(n.getType(),
+                 ESEQ(SEQ(evaluate,
+                          CJUMP(RelOp.EQ, vtable, NAME(Label.get(expected.className)), direct, indirect),
+                          LABEL(direct),
+                          MOVE(typed(n.getType(), result),
+                               typed(n.getType(), CALL(NAME(method(expected.implementationOf(n.name), n.name)), temps))),
+                          JUMP(join),
+                          LABEL(indirect),
+                          MOVE(result, typed(n.getType(),
+                                             CALL(MEM(PLUS(vtable, methodOffset * frames.peek().wordSize()), Kind.VTABLE),
+                                                  temps))),
+                          LABEL(join)),
+                      result));
+  }
+
+  private static Label method(ClassEntry clazz, String methodName) {
+    return Label.get(clazz.className + "_" + methodName);
+  }
+
+  /*
+   * Allocation is inline, from the allocation buffer (see Translator.L_HEAP):
+   * bump its pointer if the block fits, and otherwise call the runtime.
+   */
+
   @Override
   public TRExp visit(NewArray n) {
-    return new Ex(CALL(L_NEW_ARRAY, n.size.accept(this).unEx()));
+    int wordSize = frames.peek().wordSize();
+    TEMP size = TEMP(new Temp());
+    TEMP block = TEMP(new Temp());
+    TEMP end = TEMP(new Temp());
+    TEMP array = TEMP(new Temp());
+    REF(block);
+    REF(array);
+    Label check = Label.gen();
+    Label fast = Label.gen();
+    Label slow = Label.gen();
+    Label join = Label.gen();
+    // Empty (and negative) sizes are for the runtime too, like the big ones.
+    return new Ex(ESEQ(SEQ(MOVE(size, n.size.accept(this).unEx()),
+                           CJUMP(RelOp.UGE, MINUS(size, 1), CONST(MAX_INLINE_ARRAY), slow, check),
+                           LABEL(check),
+                           MOVE(block, MEM(NAME(L_HEAP))),
+                           MOVE(end, PLUS(block, PLUS(MUL(size, wordSize), 2 * wordSize))),
+                           CJUMP(RelOp.GT, end, MEM(PLUS(NAME(L_HEAP), wordSize)), slow, fast),
+                           LABEL(fast),
+                           MOVE(MEM(NAME(L_HEAP)), end),
+                           MOVE(MEM(block, Kind.HEADER), CONST(ARRAY_HEADER)),
+                           MOVE(MEM(PLUS(block, wordSize), Kind.LENGTH), size),
+                           MOVE(array, PLUS(block, 2 * wordSize)),
+                           JUMP(join),
+                           LABEL(slow),
+                           MOVE(array, CALL(L_NEW_ARRAY, size)),
+                           LABEL(join)),
+                       array));
   }
 
   @Override
   public TRExp visit(NewObject n) {
     ClassEntry clazz = table.lookup(n.typeName);
-    int numBytes = frames.peek().wordSize();
+    int wordSize = frames.peek().wordSize();
+    int numBytes = wordSize;
     while (clazz != null) {
-      numBytes += clazz.getNumOfFields() * frames.peek().wordSize();
+      numBytes += clazz.getNumOfFields() * wordSize;
       clazz = clazz.getSuperClass();
     }
     
-    TEMP temp = TEMP(new Temp());
-    return new Ex(ESEQ(SEQ(MOVE(temp, CALL(L_NEW_OBJECT, CONST(numBytes))),
-                           MOVE(MEM(temp), NAME(Label.get(n.typeName)))),
-                       temp));
+    TEMP object = TEMP(new Temp());
+    REF(object);
+    Label fast = Label.gen();
+    Label slow = Label.gen();
+    Label join = Label.gen();
+    return new Ex(ESEQ(SEQ(MOVE(object, MEM(NAME(L_HEAP))),
+                           CJUMP(RelOp.GT, PLUS(object, numBytes), MEM(PLUS(NAME(L_HEAP), wordSize)), slow, fast),
+                           LABEL(fast),
+                           MOVE(MEM(NAME(L_HEAP)), PLUS(object, numBytes)),
+                           JUMP(join),
+                           LABEL(slow),
+                           MOVE(object, CALL(L_NEW_OBJECT, CONST(numBytes))),
+                           LABEL(join),
+                           MOVE(MEM(object, Kind.HEADER), NAME(Label.get(n.typeName)))),
+                       object));
   }
 
   @Override
@@ -413,36 +626,54 @@ public class TranslateVisitor implements Visitor<TRExp> {
     return new Ex(frame.getFormal(0).exp(frame.FP()));
   }
 
+  /**
+   * The object is an instance of the class if the number of its class is in the
+   * range of the class's subclasses (see {@link ClassEntry#getNumber()}). When
+   * the class has no subclasses, its vtable is compared instead, which saves a load.
+   * <p>
+   * The static type of the variable often decides it without looking at the
+   * object: if it is a subclass of the class, any object is an instance (null
+   * isn't); if the class isn't a subclass of it either, no object is.
+   */
   @Override
   public TRExp visit(InstanceOf n) {
-    IdentifierExp id = new IdentifierExp(n.identifier);
-    Label t = Label.gen();
-    Label f = Label.gen();
-    Label body = Label.gen();
-    Label test = Label.gen();
-    Label join = Label.gen();
-    TEMP classLabel = TEMP(new Temp());
+    ClassEntry clazz = table.lookup(n.className);
+    ClassEntry known = table.lookup(n.getIdentifierType().toString());
+    if (!known.isSubclassOf(clazz) && !clazz.isSubclassOf(known))
+      return new Ex(FALSE);
+    IRExp object = new IdentifierExp(n.identifier).accept(this).unEx();
     TEMP result = TEMP(new Temp());
-    
-    return new Ex(ESEQ(SEQ(MOVE(classLabel, MEM(id.accept(this).unEx())),
-                           LABEL(test),
-                           CJUMP(RelOp.EQ, classLabel, NAME(Label.get(n.className)), t, body),
-                           LABEL(body),
-                           MOVE(classLabel, MEM(classLabel)),
-                           CJUMP(RelOp.EQ, classLabel, CONST(0), f, test),
-                           LABEL(t),
-                           MOVE(result, TRUE),
-                           JUMP(join),
-                           LABEL(f),
-                           MOVE(result, FALSE),
-                           LABEL(join)),
-                       result));
+    IRStm test;
+    if (known.isSubclassOf(clazz))
+      test = CMOVE(RelOp.NE, object, CONST(0), result, TRUE);
+    else if (clazz.getLastSubclass() == clazz.getNumber())
+      test = CMOVE(RelOp.EQ, MEM(object, Kind.HEADER), NAME(Label.get(n.className)), result, TRUE);
+    else
+      test = CMOVE(RelOp.ULE,
+                   MINUS(MEM(PLUS(MEM(object, Kind.HEADER), frames.peek().wordSize()), Kind.VTABLE),
+                         clazz.getNumber()),
+                   CONST(clazz.getLastSubclass() - clazz.getNumber()),
+                   result, TRUE);
+    return new Ex(ESEQ(SEQ(MOVE(result, FALSE), test), result));
   }
 
+  /**
+   * Upcasts need no test, and casts to a class that isn't a subclass of the
+   * static type always fail.
+   */
   @Override
   public TRExp visit(TypeCoercion n) {
-    return new Ex(new IfThenElse(new InstanceOf(n.id, n.type).accept(this),
-                                 new IdentifierExp(n.id).accept(this),
+    ClassEntry clazz = table.lookup(n.type);
+    ClassEntry known = table.lookup(n.getIdentifierType().toString());
+    TRExp object = new IdentifierExp(n.id).accept(this);
+    if (known.isSubclassOf(clazz))
+      return object;
+    if (!clazz.isSubclassOf(known))
+      return new Ex(ESEQ(EXP(CALL(L_ERROR, INCOMPATIBLE_TYPE)), object.unEx()));
+    InstanceOf test = new InstanceOf(n.id, n.type);
+    test.setIdentifierType(n.getIdentifierType());
+    return new Ex(new IfThenElse(test.accept(this),
+                                 object,
                                  new Ex(CALL(L_ERROR, INCOMPATIBLE_TYPE))).unEx());
   }
 
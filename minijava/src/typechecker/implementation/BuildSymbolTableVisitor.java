@@ -37,6 +37,7 @@ public class BuildSymbolTableVisitor extends DefaultVisitor<ImpTable<ClassEntry>
 	public ImpTable<ClassEntry> visit(Program n) {
 	  n.mainClass.accept(this);
 	  n.classes.accept(this);
+	  ClassEntry.number(symbolTable);
 	  return symbolTable;
 	}
 	
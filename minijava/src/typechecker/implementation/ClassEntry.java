@@ -1,8 +1,10 @@
 package typechecker.implementation;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 
 import util.DefaultIndentable;
@@ -17,6 +19,14 @@ public class ClassEntry extends DefaultIndentable {
   private final ImpTable<Type> fields;
   private final ImpTable<MethodEntry> methods;
   private ClassEntry superClass;
+  /**
+   * The number of the class in a preorder walk of the class hierarchy, and the
+   * biggest number of its subclasses: the numbers of its subclasses (itself
+   * included) are those from number to lastSubclass.
+   */
+  private int number, lastSubclass;
+  /** Whether the program creates objects of this class (with new). */
+  private boolean instantiated;
   
   ClassEntry(String className, ImpTable<Type> fields, ImpTable<MethodEntry> methods) {
     this.className = className;
@@ -32,6 +42,66 @@ public class ClassEntry extends DefaultIndentable {
     return superClass;
   }
   
+  /**
+   * Number the classes of a program (see {@link #getNumber()}), once their
+   * superclasses are set.
+   */
+  static void number(ImpTable<ClassEntry> classes) {
+    Map<ClassEntry, List<ClassEntry>> subclasses = new HashMap<ClassEntry, List<ClassEntry>>();
+    List<ClassEntry> roots = new ArrayList<ClassEntry>();
+    for (Entry<String, ClassEntry> entry : classes) {
+      ClassEntry clazz = entry.getValue();
+      if (clazz.superClass == null) {
+        roots.add(clazz);
+        continue;
+      }
+      if (!subclasses.containsKey(clazz.superClass))
+        subclasses.put(clazz.superClass, new ArrayList<ClassEntry>());
+      subclasses.get(clazz.superClass).add(clazz);
+    }
+    int next = 1;
+    for (ClassEntry root : roots)
+      next = root.number(next, subclasses);
+  }
+  
+  private int number(int next, Map<ClassEntry, List<ClassEntry>> subclasses) {
+    number = next++;
+    if (subclasses.containsKey(this))
+      for (ClassEntry subclass : subclasses.get(this))
+        next = subclass.number(next, subclasses);
+    lastSubclass = next - 1;
+    return next;
+  }
+  
+  /**
+   * The number of the class in a preorder walk of the class hierarchy. A class
+   * is a subclass of another if its number is between the other's and the
+   * other's {@link #getLastSubclass()}: it takes two compares, or one unsigned
+   * one, rather than a walk up the superclasses.
+   */
+  public int getNumber() {
+    return number;
+  }
+  
+  public int getLastSubclass() {
+    return lastSubclass;
+  }
+  
+  /**
+   * Whether this class is other, or extends it (indirectly).
+   */
+  public boolean isSubclassOf(ClassEntry other) {
+    return other.number <= number && number <= other.lastSubclass;
+  }
+  
+  void setInstantiated() {
+    instantiated = true;
+  }
+  
+  public boolean isInstantiated() {
+    return instantiated;
+  }
+  
   void insertField(String fieldName, Type fieldType) throws DuplicateException {
     fields.put(fieldName, fieldType);
   }
@@ -40,7 +110,7 @@ public class ClassEntry extends DefaultIndentable {
     methods.put(methodName, methodEntry);
   }
   
-  Type lookupField(String fieldName) {
+  public Type lookupField(String fieldName) {
     if (fields.containsKey(fieldName)) {
       return fields.lookup(fieldName);
     }
@@ -60,6 +130,15 @@ public class ClassEntry extends DefaultIndentable {
     return superClass != null ? superClass.lookupMethod(methodName) : null;
   }
   
+  /**
+   * The class whose method objects of this class run when it is called: this
+   * one, or the superclass it inherits the method from.
+   */
+  public ClassEntry implementationOf(String methodName) {
+    MethodEntry method = lookupMethod(methodName);
+    return method == null ? null : method.getEnclosedClass();
+  }
+  
   boolean containsMethod(String methodName) {
     return methods.containsKey(methodName) || (superClass != null && superClass.containsMethod(methodName));
   }
@@ -86,6 +165,21 @@ public class ClassEntry extends DefaultIndentable {
     return allFields.indexOf(fieldName);
   }
   
+  /**
+   * Types of all the fields of an object of this class (including those of its
+   * parent classes), in the order of their offsets.
+   */
+  public List<Type> getFieldTypes() {
+    List<Type> types = new ArrayList<Type>();
+    for (ClassEntry c = this; c != null; c = c.superClass) {
+      List<Type> own = new ArrayList<Type>();
+      for (Entry<String, Type> field : c.fields)
+        own.add(field.getValue());
+      types.addAll(0, own);
+    }
+    return types;
+  }
+
   public int getOffsetOfMethod(String methodName) {
     List<String> methodNames = new ArrayList<String>();
     ClassEntry superClass = this.superClass;
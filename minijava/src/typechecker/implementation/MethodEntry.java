@@ -23,6 +23,10 @@ public class MethodEntry extends DefaultIndentable {
     variables = new ImpTable<Type>();
   }
   
+  ClassEntry getEnclosedClass() {
+    return enclosedClass;
+  }
+  
   MethodSignature getMethodSignature() {
     return methodSignature;
   }
@@ -1,8 +1,5 @@
 package typechecker.implementation;
 
-import java.util.HashSet;
-import java.util.Set;
-
 import typechecker.ErrorReport;
 import typechecker.implementation.MethodEntry.MethodSignature;
 import util.ImpTable;
@@ -70,16 +67,9 @@ public class TypeCheckVisitor implements Visitor<Type> {
 	  // both are object types
 	  if ((expected instanceof ObjectType) && (actual instanceof ObjectType)) {
   	  // check subtyping
-  	  ObjectType expectedObjectType = (ObjectType) expected;
-  	  ObjectType actualObjectType = (ObjectType) actual;
-  	  Set<String> actualObjectTypes = new HashSet<String>();
-  	  ClassEntry clazz = symbolTable.lookup(actualObjectType.name);
-  	  while (clazz != null) {
-  	    actualObjectTypes.add(clazz.className);
-  	    clazz = clazz.getSuperClass();
-  	  }
-  	  
-  	  return actualObjectTypes.contains(expectedObjectType.name);
+  	  ClassEntry expectedClass = symbolTable.lookup(((ObjectType) expected).name);
+  	  ClassEntry actualClass = symbolTable.lookup(((ObjectType) actual).name);
+  	  return expectedClass != null && actualClass != null && actualClass.isSubclassOf(expectedClass);
 	  }
 	  
 	  // one is object and the other is not
@@ -324,6 +314,8 @@ public class TypeCheckVisitor implements Visitor<Type> {
   public Type visit(NewObject n) {
     if (!symbolTable.containsKey(n.typeName)) {
       errors.undefinedId(n.typeName);
+    } else {
+      symbolTable.lookup(n.typeName).setInstantiated();
     }
     
     n.setType(new ObjectType(n.typeName));
@@ -344,6 +336,7 @@ public class TypeCheckVisitor implements Visitor<Type> {
     if (!(idType instanceof ObjectType)) {
       errors.typeError(id, new ObjectType("object"), idType);
     }
+    n.setIdentifierType(idType);
     
     // check class is defined
     if (!symbolTable.containsKey(n.className)) {
@@ -361,6 +354,7 @@ public class TypeCheckVisitor implements Visitor<Type> {
     if (!(idType instanceof ObjectType)) {
       errors.typeError(id, new ObjectType("object"), idType);
     }
+    n.setIdentifierType(idType);
     
     if (!symbolTable.containsKey(n.type)) {
       errors.undefinedId(n.type);
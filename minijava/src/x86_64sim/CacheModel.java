@@ -0,0 +1,303 @@
+package x86_64sim;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A cache hierarchy for the simulator: separate level 1 instruction and data caches
+ * in front of a unified level 2, each set associative with LRU or tree pseudo-LRU
+ * replacement. It counts hits and misses per level, per function, and for data per
+ * allocation site (the address of the call that allocated the object or array),
+ * to see what object layout, traversal order and code placement do to locality.
+ * <p>
+ * Instructions are numbered, not placed at byte addresses, so for fetches each is
+ * taken to be {@link #INSTRUCTION_SIZE} bytes long, with the code at
+ * {@link #CODE_BASE}, away from the data. Writes allocate their line like reads;
+ * write backs are not counted.
+ * <p>
+ * Enable a model with {@link #setEnabled}: runs started from then on get a
+ * {@link Caches} ({@link State#caches}), and are only interpreted.
+ */
+public class CacheModel {
+
+	public static final long CODE_BASE = 0x100000L;
+	public static final int INSTRUCTION_SIZE = 4;
+
+	private static CacheModel enabled = null;
+
+	/**
+	 * Simulate this hierarchy for simulations started from now on, or
+	 * none at all if it is null.
+	 */
+	public static void setEnabled(CacheModel model) {
+		enabled = model;
+	}
+
+	public static CacheModel getEnabled() {
+		return enabled;
+	}
+
+	public enum Replacement {
+		/** Evict the least recently used line of the set. */
+		LRU,
+		/** Follow a binary tree of bits to a not recently used line (ways must be a power of 2). */
+		PLRU
+	}
+
+	/** Size, associativity, line size of L1I, L1D, L2. */
+	private int[][] geometry = { { 32 * 1024, 8, 64 }, { 32 * 1024, 8, 64 }, { 256 * 1024, 4, 64 } };
+	private Replacement replacement = Replacement.LRU;
+
+	static final int L1I = 0, L1D = 1, L2 = 2;
+	private static final String[] levelNames = { "L1I", "L1D", "L2" };
+
+	/**
+	 * The default hierarchy, something like a current x86_64's (without L3).
+	 */
+	public CacheModel() {
+	}
+
+	public CacheModel setL1I(int size, int ways, int lineSize) {
+		return setLevel(L1I, size, ways, lineSize);
+	}
+
+	public CacheModel setL1D(int size, int ways, int lineSize) {
+		return setLevel(L1D, size, ways, lineSize);
+	}
+
+	public CacheModel setL2(int size, int ways, int lineSize) {
+		return setLevel(L2, size, ways, lineSize);
+	}
+
+	private CacheModel setLevel(int level, int size, int ways, int lineSize) {
+		if (Integer.bitCount(lineSize) != 1 || ways <= 0 || size % (ways * lineSize) != 0)
+			throw new Error(levelNames[level] + ": size " + size + " isn't a multiple of " + ways + " ways of " + lineSize + " byte lines");
+		geometry[level] = new int[] { size, ways, lineSize };
+		return this;
+	}
+
+	public CacheModel setReplacement(Replacement replacement) {
+		this.replacement = replacement;
+		return this;
+	}
+
+	/**
+	 * Start simulating the caches for a run of the state, with all of them empty.
+	 */
+	Caches start(State state) {
+		return new Caches(state);
+	}
+
+	/**
+	 * One level of cache.
+	 */
+	static class Cache {
+		final int lineBits, sets, ways;
+		final Replacement replacement;
+		/** The line held by each way of each set (set * ways + way), -1 if none. */
+		private final long[] lines;
+		/** LRU: when each way was last used. PLRU: the tree bits of each set. */
+		private final long[] used;
+		private long now;
+		long hits, misses;
+
+		Cache(int[] geometry, Replacement replacement) {
+			this.lineBits = Integer.numberOfTrailingZeros(geometry[2]);
+			this.ways = geometry[1];
+			this.sets = geometry[0] / (ways * geometry[2]);
+			this.replacement = replacement;
+			if (replacement == Replacement.PLRU && (Integer.bitCount(ways) != 1 || ways > 64))
+				throw new Error("Pseudo-LRU needs a power of 2 ways, up to 64, not " + ways);
+			lines = new long[sets * ways];
+			Arrays.fill(lines, -1);
+			used = new long[replacement == Replacement.LRU ? sets * ways : sets];
+		}
+
+		/**
+		 * Look up the line of address, and bring it in if it isn't there.
+		 * @return whether it was there
+		 */
+		boolean access(long address) {
+			long line = address >>> lineBits;
+			int set = (int) (line % sets);
+			int base = set * ways;
+			for (int way = 0; way < ways; way++)
+				if (lines[base + way] == line) {
+					touch(set, way);
+					hits++;
+					return true;
+				}
+			int victim = victim(set);
+			lines[base + victim] = line;
+			touch(set, victim);
+			misses++;
+			return false;
+		}
+
+		private int victim(int set) {
+			int base = set * ways;
+			for (int way = 0; way < ways; way++)
+				if (lines[base + way] == -1) return way;
+			if (replacement == Replacement.LRU) {
+				int oldest = 0;
+				for (int way = 1; way < ways; way++)
+					if (used[base + way] < used[base + oldest]) oldest = way;
+				return oldest;
+			}
+			// Each tree node's bit points to the half that was used less recently.
+			long bits = used[set];
+			int node = 1;
+			while (node < ways)
+				node = 2 * node + (int) ((bits >>> node) & 1);
+			return node - ways;
+		}
+
+		private void touch(int set, int way) {
+			if (replacement == Replacement.LRU) {
+				used[set * ways + way] = ++now;
+				return;
+			}
+			// Point every node on the way to this line away from it.
+			long bits = used[set];
+			for (int node = way + ways; node > 1; node /= 2) {
+				int parent = node / 2;
+				if ((node & 1) == 0)
+					bits |= 1L << parent;
+				else
+					bits &= ~(1L << parent);
+			}
+			used[set] = bits;
+		}
+	}
+
+	/**
+	 * The caches of one run, and what happened in them.
+	 */
+	public class Caches {
+		private final State state;
+		private final Cache[] levels = new Cache[3];
+		/** The instruction being executed, to charge its data accesses to. */
+		private int at;
+		/** Hits and misses in each level, by function: [level][function * 2 + (hit ? 0 : 1)]. */
+		private final long[][] byFunction;
+		/** Data hits and misses, by allocation site: L1D hits, L1D misses, L2 hits, L2 misses. */
+		private final Map<String, long[]> bySite = new TreeMap<String, long[]>();
+		/**
+		 * Heap allocations so far, in address order (the heap is a bump allocator).
+		 * A garbage collection moves the objects, and they are forgotten.
+		 */
+		private long[] allocated = new long[16];
+		private String[] sites = new String[16];
+		private int allocations = 0;
+
+		private Caches(State state) {
+			this.state = state;
+			for (int level = 0; level < levels.length; level++)
+				levels[level] = new Cache(geometry[level], replacement);
+			byFunction = new long[levels.length][2 * (state.p.symbolCount() + 1)];
+		}
+
+		/**
+		 * Fetch the instruction at address at, which is about to execute.
+		 */
+		void fetch(int at) {
+			this.at = at;
+			access(L1I, CODE_BASE + (long) at * INSTRUCTION_SIZE, null);
+		}
+
+		/**
+		 * A read or a write of the data at address by the instruction being executed.
+		 */
+		void data(long address) {
+			String name = site(address);
+			long[] site = bySite.get(name);
+			if (site == null) {
+				site = new long[4];
+				bySite.put(name, site);
+			}
+			access(L1D, address, site);
+		}
+
+		private void access(int first, long address, long[] site) {
+			int function = state.p.symbolIndex(at) + 1;
+			boolean hit = levels[first].access(address);
+			byFunction[first][2 * function + (hit ? 0 : 1)]++;
+			if (site != null) site[hit ? 0 : 1]++;
+			if (hit) return;
+			hit = levels[L2].access(address);
+			byFunction[L2][2 * function + (hit ? 0 : 1)]++;
+			if (site != null) site[hit ? 2 : 3]++;
+		}
+
+		/**
+		 * The instruction being executed has allocated the heap block at address.
+		 */
+		void allocated(long address) {
+			if (allocations > 0 && address <= allocated[allocations - 1])
+				allocations = 0;
+			if (allocations == allocated.length) {
+				allocated = Arrays.copyOf(allocated, 2 * allocations);
+				sites = Arrays.copyOf(sites, 2 * allocations);
+			}
+			allocated[allocations] = address;
+			sites[allocations++] = state.p.getFunctionAt(at) + "@" + at;
+		}
+
+		private String site(long address) {
+			if (state.ram.inStack(address))
+				return "stack";
+			int i = Arrays.binarySearch(allocated, 0, allocations, address);
+			if (i < 0) i = -i - 2;
+			return i < 0 ? "static" : sites[i];
+		}
+
+		public long getHits(String level) {
+			return levels[level(level)].hits;
+		}
+
+		public long getMisses(String level) {
+			return levels[level(level)].misses;
+		}
+
+		private int level(String name) {
+			for (int level = 0; level < levelNames.length; level++)
+				if (levelNames[level].equals(name)) return level;
+			throw new Error("No cache " + name);
+		}
+
+		/**
+		 * Hits and misses of each level, by function, and of the data caches by allocation site.
+		 */
+		public void writeReport(PrintStream out) {
+			out.println("Caches: " + this);
+			out.println("By function:");
+			for (int function = 0; function < byFunction[0].length / 2; function++) {
+				StringBuilder line = new StringBuilder();
+				boolean any = false;
+				for (int level = 0; level < levels.length; level++) {
+					long hits = byFunction[level][2 * function], misses = byFunction[level][2 * function + 1];
+					any |= hits + misses > 0;
+					line.append("  " + levelNames[level] + " " + hits + "/" + misses);
+				}
+				if (any)
+					out.println("  " + (function == 0 ? "unknown" : state.p.symbolName(function - 1)) + line);
+			}
+			out.println("By allocation site:");
+			for (Map.Entry<String, long[]> site : bySite.entrySet()) {
+				long[] counts = site.getValue();
+				out.println("  " + site.getKey() + "  L1D " + counts[0] + "/" + counts[1] + "  L2 " + counts[2] + "/" + counts[3]);
+			}
+		}
+
+		/** Hits/misses of each level. */
+		@Override
+		public String toString() {
+			StringBuilder s = new StringBuilder();
+			for (int level = 0; level < levels.length; level++)
+				s.append((level == 0 ? "" : ", ") + levelNames[level] + " " + levels[level].hits + "/" + levels[level].misses);
+			return s.append(" hits/misses").toString();
+		}
+	}
+}
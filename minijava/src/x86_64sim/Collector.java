@@ -0,0 +1,318 @@
+package x86_64sim;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A semispace copying garbage collector for the simulated heap. The heap after the
+ * static data is split in two halves; objects and arrays are bump allocated in
+ * one of them, and when it is full the live ones are copied into the other one
+ * (Cheney's algorithm), which then becomes the one to allocate in.
+ * <p>
+ * The compiler says where the references are. The roots are found by walking the
+ * stack with the pointer maps it emits for each call site (see
+ * analysis.implementation.PointerMaps, for the format), starting at the call of
+ * cs411newobject or cs411newarray that ran out of memory. References inside
+ * objects are found with the layouts of the classes (the table translate emits
+ * under cs411gcclasses); arrays only hold ints. A reference may point inside an
+ * object or array (e.g. at an element), as long as it is within it.
+ * <p>
+ * The compiled code allocates most objects and arrays itself (see
+ * {@link State#alloc}), so where they are is found by walking the heap: each
+ * starts with its class, or for an array {@link #ARRAY_HEADER} and its length.
+ * <p>
+ * Programs without those tables (e.g. code that isn't register allocated) are not
+ * collected: they just have the whole heap.
+ */
+public class Collector {
+
+	private static final String MAPS = "cs411gcmaps", CLASSES = "cs411gcclasses";
+	/** Codes in the pointer maps. */
+	private static final int FRAME_POINTER = -1, REFERENCE = -1;
+	/** The first word of an array, as translate.Translator.ARRAY_HEADER. */
+	static final long ARRAY_HEADER = 1;
+	/** The registers, numbered as in the pointer maps. */
+	private static final String[] ENCODING = { "%rax", "%rcx", "%rdx", "%rbx", "%rsp", "%rbp", "%rsi", "%rdi",
+		"%r8", "%r9", "%r10", "%r11", "%r12", "%r13", "%r14", "%r15" };
+
+	private static boolean stress = false;
+
+	/**
+	 * Collect at every allocation, rather than only when the heap is full, in
+	 * simulations started from now on: to test the pointer maps of every call site
+	 * that allocates.
+	 */
+	public static void setStress(boolean stress) {
+		Collector.stress = stress;
+	}
+
+	private final State state;
+	private final Memory ram;
+	private final boolean stressed = stress;
+	/** State register number of each register in the maps. */
+	private final int[] registers = new int[ENCODING.length];
+	/** Return address -> where the return address of the frame is, then kind, location pairs. */
+	private final Map<Long, int[]> maps = new HashMap<Long, int[]>();
+	/** Class (the address its objects point to) -> size in words, then offsets of the reference fields. */
+	private final Map<Long, int[]> classes = new HashMap<Long, int[]>();
+
+	/** The size of a semispace, and the start of the one allocated in, and of the other. */
+	private final long semispace;
+	private long current, other;
+
+	private int collections = 0;
+	private long bytesCopied = 0;
+
+	/**
+	 * A collector for the heap of the state, which has just been loaded, or
+	 * null if the program has no pointer maps.
+	 */
+	static Collector start(State state) {
+		long maps = state.p.runtimeAddress(MAPS), classes = state.p.runtimeAddress(CLASSES);
+		if (maps == Program.UNDEFINED || classes == Program.UNDEFINED)
+			return null;
+		return new Collector(state, maps, classes);
+	}
+
+	private Collector(State state, long mapsAt, long classesAt) {
+		this.state = state;
+		this.ram = state.ram;
+		for (int r = 0; r < ENCODING.length; r++)
+			registers[r] = state.p.register(ENCODING[r]);
+
+		long at = mapsAt;
+		long sites = ram.read(at);
+		at += Memory.SIZEOF_LONG;
+		for (long i = 0; i < sites; i++) {
+			long site = ram.read(at);
+			int entries = (int) ram.read(at + 2 * Memory.SIZEOF_LONG);
+			int[] map = new int[1 + 2 * entries];
+			map[0] = (int) ram.read(at + Memory.SIZEOF_LONG);
+			at += 3 * Memory.SIZEOF_LONG;
+			for (int e = 1; e < map.length; e++, at += Memory.SIZEOF_LONG)
+				map[e] = (int) ram.read(at);
+			maps.put(site, map);
+		}
+
+		at = classesAt;
+		long count = ram.read(at);
+		at += Memory.SIZEOF_LONG;
+		for (long i = 0; i < count; i++) {
+			long clazz = ram.read(at);
+			int[] layout = new int[1 + (int) ram.read(at + 2 * Memory.SIZEOF_LONG)];
+			layout[0] = (int) ram.read(at + Memory.SIZEOF_LONG);
+			at += 3 * Memory.SIZEOF_LONG;
+			for (int f = 1; f < layout.length; f++, at += Memory.SIZEOF_LONG)
+				layout[f] = (int) ram.read(at);
+			classes.put(clazz, layout);
+		}
+
+		current = Memory.roundUp(state.hp);
+		semispace = ((ram.maxheap - current) / 2) & -Memory.PAGE_SIZE;
+		other = current + semispace;
+		state.hp = current;
+		state.heapLimit = current + semispace;
+	}
+
+	public int getCollections() {
+		return collections;
+	}
+
+	public long getBytesCopied() {
+		return bytesCopied;
+	}
+
+	/**
+	 * Whether to collect before allocating size bytes.
+	 */
+	boolean wanted(long size) {
+		return stressed || state.hp + size > state.heapLimit;
+	}
+
+	/**
+	 * Whether every allocation should go to the runtime (to collect at each).
+	 */
+	boolean isStressed() {
+		return stressed;
+	}
+
+	/**
+	 * Copy everything reachable into the other semispace, and continue allocating there.
+	 */
+	void collect() {
+		CacheModel.Caches caches = ram.caches;
+		ram.caches = null; // The program doesn't access this memory, the collector does.
+		Blocks from = walk(current, state.hp);
+		Blocks blocks = new Blocks();
+		long top = other;
+
+		for (long location : roots()) {
+			long value = read(location);
+			long moved = forward(value, from, blocks);
+			if (moved != value) write(location, moved);
+		}
+		// The copied blocks are the queue of those still to scan.
+		for (int b = 0; b < blocks.count; b++) {
+			if (blocks.array[b]) continue;
+			long object = blocks.start[b];
+			int[] layout = classes.get(ram.read(object));
+			for (int f = 1; f < layout.length; f++) {
+				long value = ram.read(object + layout[f]);
+				long moved = forward(value, from, blocks);
+				if (moved != value) ram.write(object + layout[f], moved);
+			}
+		}
+		if (blocks.count > 0)
+			top = blocks.start[blocks.count - 1] + blocks.size[blocks.count - 1];
+
+		ram.release(current, current + semispace);
+		long swap = current;
+		current = other;
+		other = swap;
+		state.hp = top;
+		state.heapLimit = current + semispace;
+		collections++;
+		ram.caches = caches;
+	}
+
+	/**
+	 * The objects and arrays from start up to end, which they fill.
+	 */
+	private Blocks walk(long start, long end) {
+		Blocks blocks = new Blocks();
+		for (long at = start; at < end; at += blocks.size[blocks.count - 1]) {
+			long header = ram.read(at);
+			if (header == ARRAY_HEADER) {
+				long length = ram.read(at + Memory.SIZEOF_LONG);
+				blocks.add(at, (Math.max(length, 1) + 2) * Memory.SIZEOF_LONG, true);
+			} else {
+				int[] layout = classes.get(header);
+				if (layout == null)
+					throw new Error("Heap block at " + at + " is neither an object nor an array");
+				blocks.add(at, layout[0] * (long) Memory.SIZEOF_LONG, false);
+			}
+		}
+		return blocks;
+	}
+
+	/**
+	 * Where a reference points after the collection: the block it points into is
+	 * copied to the end of blocks, unless it was already.
+	 */
+	private long forward(long value, Blocks from, Blocks blocks) {
+		if (value < current || value >= current + semispace)
+			return value; // null, or not a heap reference after all
+		int b = from.find(value);
+		if (b < 0 || value >= from.start[b] + from.size[b])
+			throw new Error("Reference " + value + " doesn't point into an object or array");
+		if (from.moved[b] == 0) {
+			long to = blocks.count == 0 ? other : blocks.start[blocks.count - 1] + blocks.size[blocks.count - 1];
+			for (long w = 0; w < from.size[b]; w += Memory.SIZEOF_LONG)
+				ram.write(to + w, ram.read(from.start[b] + w));
+			blocks.add(to, from.size[b], from.array[b]);
+			from.moved[b] = to;
+			bytesCopied += from.size[b];
+		}
+		return from.moved[b] + (value - from.start[b]);
+	}
+
+	/**
+	 * The locations of the references on the stack: addresses, or registers as ~(register number).
+	 * <p>
+	 * Walks the frames from the innermost one out. For each, locations says where the
+	 * values that the frame has in the callee save registers are: in the registers
+	 * themselves, unless a frame further in has saved them somewhere else.
+	 */
+	private Set<Long> roots() {
+		Set<Long> roots = new LinkedHashSet<Long>();
+		long[][] locations = new long[ENCODING.length][];
+		for (int r = 0; r < ENCODING.length; r++)
+			locations[r] = new long[] { ~registers[r] };
+		long site = state.pc;
+		long sp = state.getReg(State.RSP), bp = state.getReg(State.RBP);
+		while (true) {
+			int[] map = maps.get(site);
+			if (map == null)
+				throw new Error("No pointer map for the call returning to " + site + " in " + state.p.getFunctionAt(site));
+			long[][] caller = locations.clone();
+			for (int e = 1; e < map.length; e += 2) {
+				int kind = map[e], where = map[e + 1];
+				long[] at = where >= 0 ? locations[where] : new long[] { bp + where };
+				if (kind == REFERENCE) {
+					for (long location : at)
+						roots.add(location);
+				} else if (caller[kind] == locations[kind]) {
+					caller[kind] = at;
+				} else {
+					long[] both = Arrays.copyOf(caller[kind], caller[kind].length + at.length);
+					System.arraycopy(at, 0, both, caller[kind].length, at.length);
+					caller[kind] = both;
+				}
+			}
+			long returnAddress;
+			if (map[0] == FRAME_POINTER) {
+				returnAddress = ram.read(bp + Memory.SIZEOF_LONG);
+				sp = bp + 2 * Memory.SIZEOF_LONG;
+				bp = ram.read(bp);
+			} else {
+				returnAddress = ram.read(sp + map[0]);
+				sp = sp + map[0] + Memory.SIZEOF_LONG;
+			}
+			if (returnAddress == State.DONE)
+				return roots;
+			site = returnAddress;
+			locations = caller;
+		}
+	}
+
+	private long read(long location) {
+		return location < 0 ? state.getReg(~(int) location) : ram.read(location);
+	}
+
+	private void write(long location, long value) {
+		if (location < 0)
+			state.setReg(~(int) location, value);
+		else
+			ram.write(location, value);
+	}
+
+	/** Collections, and how much they copied. */
+	@Override
+	public String toString() {
+		return collections + " collections, " + bytesCopied + " bytes copied";
+	}
+
+	/**
+	 * The heap blocks in a semispace, in address order.
+	 */
+	private static class Blocks {
+		long[] start = new long[64], size = new long[64];
+		boolean[] array = new boolean[64];
+		/** Where each block was copied to, 0 if it wasn't (yet). */
+		long[] moved = new long[64];
+		int count = 0;
+
+		void add(long address, long bytes, boolean isArray) {
+			if (count == start.length) {
+				start = Arrays.copyOf(start, 2 * count);
+				size = Arrays.copyOf(size, 2 * count);
+				array = Arrays.copyOf(array, 2 * count);
+				moved = Arrays.copyOf(moved, 2 * count);
+			}
+			start[count] = address;
+			size[count] = bytes;
+			array[count++] = isArray;
+		}
+
+		/**
+		 * The last block that starts at or before address, or -1.
+		 */
+		int find(long address) {
+			int b = Arrays.binarySearch(start, 0, count, address);
+			return b >= 0 ? b : -b - 2;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package x86_64sim;
+
+/**
+ * The condition of a conditional jump or move, decoded once when the
+ * instruction is loaded rather than compared as a string each time it runs.
+ */
+public enum Condition {
+	L, E, G, LE, NE, GE, B, A, BE, AE;
+
+	public static Condition parse(String condition) {
+		for (Condition c : values())
+			if (c.toString().equals(condition)) return c;
+		throw new Error("Illegal condition in branch " + condition);
+	}
+
+	/**
+	 * Does the condition hold after comparing conditionl with conditionr?
+	 */
+	public boolean holds(long conditionl, long conditionr) {
+		switch (this) {
+		case L:  return conditionl < conditionr;
+		case B:  return unsignedCompare(conditionl, conditionr) < 0;
+		case E:  return conditionl == conditionr;
+		case G:  return conditionl > conditionr;
+		case A:  return unsignedCompare(conditionl, conditionr) > 0;
+		case LE: return conditionl <= conditionr;
+		case BE: return unsignedCompare(conditionl, conditionr) <= 0;
+		case NE: return conditionl != conditionr;
+		case GE: return conditionr < 0 || conditionl >= conditionr;
+		case AE: return unsignedCompare(conditionl, conditionr) >= 0;
+		}
+		throw new Error("Unreachable");
+	}
+
+	/**
+	 * Negative, zero or positive as conditionl is below, equal to or above conditionr.
+	 * Public for compiled code (see {@link x86_64sim.jit.Jit}).
+	 */
+	public static long unsignedCompare(long conditionl, long conditionr) {
+		// Flipping the sign bits orders them as signed numbers like they are unsigned.
+		long l = conditionl ^ Long.MIN_VALUE, r = conditionr ^ Long.MIN_VALUE;
+		return l < r ? -1 : l == r ? 0 : 1;
+	}
+
+	@Override
+	public String toString() {
+		return name().toLowerCase();
+	}
+}
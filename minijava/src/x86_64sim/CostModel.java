@@ -0,0 +1,192 @@
+package x86_64sim;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import x86_64sim.instruction.CJmp;
+import x86_64sim.instruction.Call;
+import x86_64sim.instruction.Instruction;
+
+/**
+ * A rough timing model for the simulator, to compare code by estimated cycles
+ * rather than by instructions executed, which makes a multiply, a load, a call
+ * and a mispredicted branch all cost the same.
+ * <p>
+ * Each instruction costs its latency (by instruction class, 1 unless set otherwise),
+ * plus a penalty for each memory access it makes, plus a penalty if it is a
+ * conditional jump that the branch predictor gets wrong. Instructions are assumed
+ * to run one after the other, without overlap: the estimate is meant for comparing
+ * two versions of the code, not for predicting a real machine. Unconditional jumps,
+ * calls and returns are assumed to be predicted right.
+ * <p>
+ * Enable a model with {@link #setEnabled}: runs started from then on get a
+ * {@link Timing} ({@link State#timing}), and are only interpreted.
+ */
+public class CostModel {
+
+	private static CostModel enabled = null;
+
+	/**
+	 * Estimate cycles with this model for simulations started from now on, or
+	 * not at all if it is null.
+	 */
+	public static void setEnabled(CostModel model) {
+		enabled = model;
+	}
+
+	public static CostModel getEnabled() {
+		return enabled;
+	}
+
+	public enum Predictor {
+		/** A 2 bit saturating counter per (hashed) branch address. */
+		BIMODAL,
+		/** 2 bit counters indexed by the branch address xor the global branch history. */
+		GSHARE
+	}
+
+	/** Instruction class (simple name) -> cycles. */
+	private Map<String, Integer> latencies = new HashMap<String, Integer>();
+	private int loadPenalty = 4;
+	private int storePenalty = 1;
+	private int mispredictPenalty = 15;
+	private Predictor predictor = Predictor.GSHARE;
+	private int tableBits = 12;
+	private int historyBits = 8;
+
+	/**
+	 * The default model: something like a current x86_64 with its data in the L1 cache.
+	 */
+	public CostModel() {
+		setLatency("MulI2R", 3);
+		setLatency("MulIR2R", 3);
+		setLatency("MulR2R", 3);
+		setLatency("DivR", 40);
+		setLatency("Call", 2);
+		setLatency("Ret", 2);
+	}
+
+	public CostModel setLatency(String instruction, int cycles) {
+		latencies.put(instruction, cycles);
+		return this;
+	}
+
+	/** Extra cycles for each read from memory. */
+	public CostModel setLoadPenalty(int cycles) {
+		loadPenalty = cycles;
+		return this;
+	}
+
+	/** Extra cycles for each write to memory. */
+	public CostModel setStorePenalty(int cycles) {
+		storePenalty = cycles;
+		return this;
+	}
+
+	public CostModel setMispredictPenalty(int cycles) {
+		mispredictPenalty = cycles;
+		return this;
+	}
+
+	/**
+	 * The branch predictor, with 2^tableBits counters, and for
+	 * {@link Predictor#GSHARE} historyBits of global history.
+	 */
+	public CostModel setPredictor(Predictor predictor, int tableBits, int historyBits) {
+		this.predictor = predictor;
+		this.tableBits = tableBits;
+		this.historyBits = historyBits;
+		return this;
+	}
+
+	/**
+	 * Start timing a run.
+	 */
+	public Timing start() {
+		return new Timing();
+	}
+
+	/**
+	 * Memory accesses (reads, writes) by instruction class. Calls only write when they
+	 * go somewhere: the runtime's functions are simulated without a call.
+	 */
+	private static final Map<String, int[]> accesses = new HashMap<String, int[]>();
+	static {
+		for (String read : new String[] { "MoveM2R", "MoveIM2R", "AddIM2R", "CmpI2M", "CmpM2R", "CmpR2M", "Leave", "Ret" })
+			accesses.put(read, new int[] { 1, 0 });
+		for (String write : new String[] { "MoveR2M", "MoveR2IM", "MoveI2M", "MoveI2IM", "Push", "Call" })
+			accesses.put(write, new int[] { 0, 1 });
+	}
+
+	/**
+	 * The estimate for one run.
+	 */
+	public class Timing {
+		private long cycles, branches, mispredicted;
+		/** Latency, loads, stores of each instruction class seen so far. */
+		private final Map<Class<?>, int[]> costs = new HashMap<Class<?>, int[]>();
+		private final byte[] counters = new byte[1 << tableBits];
+		private int history;
+
+		private Timing() {
+			// Weakly not taken
+			java.util.Arrays.fill(counters, (byte) 1);
+		}
+
+		/**
+		 * Charge for the instruction i at address at, which the state has just executed.
+		 */
+		void executed(int at, Instruction i, State state) {
+			int[] cost = cost(i.getClass());
+			cycles += cost[0];
+			if (cost[1] > 0)
+				cycles += loadPenalty;
+			if (cost[2] > 0 && !(i instanceof Call && state.pc == at + 1))
+				cycles += storePenalty;
+			if (i instanceof CJmp)
+				branch(at, state.pc != at + 1);
+		}
+
+		private int[] cost(Class<?> c) {
+			int[] cost = costs.get(c);
+			if (cost == null) {
+				Integer latency = latencies.get(c.getSimpleName());
+				int[] access = accesses.get(c.getSimpleName());
+				cost = new int[] { latency == null ? 1 : latency, access == null ? 0 : access[0], access == null ? 0 : access[1] };
+				costs.put(c, cost);
+			}
+			return cost;
+		}
+
+		private void branch(int at, boolean taken) {
+			int mask = counters.length - 1;
+			int index = predictor == Predictor.GSHARE ? (at ^ history) & mask : at & mask;
+			boolean predicted = counters[index] >= 2;
+			if (taken && counters[index] < 3) counters[index]++;
+			if (!taken && counters[index] > 0) counters[index]--;
+			history = ((history << 1) | (taken ? 1 : 0)) & ((1 << historyBits) - 1);
+			branches++;
+			if (predicted != taken) {
+				mispredicted++;
+				cycles += mispredictPenalty;
+			}
+		}
+
+		public long getCycles() {
+			return cycles;
+		}
+
+		public long getBranches() {
+			return branches;
+		}
+
+		public long getMispredicted() {
+			return mispredicted;
+		}
+
+		@Override
+		public String toString() {
+			return cycles + " estimated, " + mispredicted + " of " + branches + " branches mispredicted";
+		}
+	}
+}
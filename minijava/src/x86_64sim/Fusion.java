@@ -0,0 +1,148 @@
+package x86_64sim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import x86_64sim.instruction.CJmp;
+import x86_64sim.instruction.Call;
+import x86_64sim.instruction.Fused;
+import x86_64sim.instruction.Instruction;
+import x86_64sim.instruction.Jmp;
+import x86_64sim.instruction.Ret;
+
+/**
+ * Replaces frequent sequences of instructions with {@link Fused superinstructions}
+ * when a program is loaded, so the simulator dispatches once for the whole sequence.
+ * <p>
+ * The table says which sequences to fuse, by the names of their instruction
+ * classes (e.g. "CmpI2R CJmp"). The default is the usual code of the muncher and
+ * the frame; {@link #profile} makes a table from what a program actually ran.
+ * <p>
+ * A sequence is only fused within a basic block: no part but the first may have
+ * a label, and no part but the last may jump, call or return. The instructions
+ * after the first keep their own addresses, so the program can still be entered
+ * there (e.g. by the {@link x86_64sim.jit.Jit}).
+ */
+public class Fusion {
+
+	private static boolean enabled = true;
+
+	/**
+	 * Turn fusion on or off for programs loaded from now on.
+	 */
+	public static void setEnabled(boolean enabled) {
+		Fusion.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static final List<String> DEFAULT = Collections.unmodifiableList(Arrays.asList(
+			"CmpR2R MoveI2R CMovR2R",
+			"Push MoveR2R SubI2R",
+			"CmpI2R CJmp",
+			"CmpR2R CJmp",
+			"MoveM2R CmpR2R",
+			"MoveM2R MoveM2R",
+			"MoveR2R AddI2R",
+			"Leave Ret"));
+
+	private static List<String[]> table = parse(DEFAULT);
+
+	/**
+	 * Fuse these sequences from now on. Where sequences overlap, the longest
+	 * wins, then the one that comes first.
+	 */
+	public static void setTable(List<String> sequences) {
+		table = parse(sequences);
+	}
+
+	private static List<String[]> parse(List<String> sequences) {
+		List<String[]> parsed = new ArrayList<String[]>();
+		for (String sequence : sequences)
+			parsed.add(sequence.trim().split("\\s+"));
+		Collections.sort(parsed, new Comparator<String[]>() {
+			public int compare(String[] a, String[] b) {
+				return b.length - a.length; // stable, so the order is kept otherwise
+			}
+		});
+		return parsed;
+	}
+
+	/**
+	 * Fuse the predecoded code of a program.
+	 */
+	static void apply(Program p) {
+		if (!enabled) return;
+		List<String[]> table = Fusion.table;
+		for (int pc = 0; pc < p.code.length; pc++) {
+			for (String[] sequence : table) {
+				if (matches(p, pc, sequence)) {
+					Instruction[] parts = new Instruction[sequence.length];
+					for (int i = 0; i < parts.length; i++)
+						parts[i] = p.code[pc + i];
+					p.code[pc] = Fused.of(parts);
+					pc += parts.length - 1;
+					break;
+				}
+			}
+		}
+	}
+
+	private static boolean matches(Program p, int pc, String[] sequence) {
+		if (!canFuse(p, pc, sequence.length)) return false;
+		for (int i = 0; i < sequence.length; i++)
+			if (!p.code[pc + i].getClass().getSimpleName().equals(sequence[i]))
+				return false;
+		return true;
+	}
+
+	private static boolean canFuse(Program p, int pc, int length) {
+		if (pc + length > p.code.length) return false;
+		for (int i = 1; i < length; i++)
+			if (p.labelled.get(pc + i) || isControl(p.code[pc + i - 1]))
+				return false;
+		return true;
+	}
+
+	private static boolean isControl(Instruction i) {
+		return i instanceof CJmp || i instanceof Jmp || i instanceof Call || i instanceof Ret;
+	}
+
+	/**
+	 * A table for programs like p: the pairs and triples of instructions that ran
+	 * most often, at most size of them, the most frequent first. executed[pc] is how
+	 * often the instruction at pc ran (e.g. from the {@link x86_64sim.State#step()
+	 * interpreter} with fusion turned off).
+	 */
+	public static List<String> profile(Program p, long[] executed, int size) {
+		final Map<String, Long> counts = new HashMap<String, Long>();
+		for (int pc = 0; pc < p.instructions.size(); pc++) {
+			long count = executed[pc];
+			String sequence = p.instructions.get(pc).getClass().getSimpleName();
+			for (int length = 2; length <= 3; length++) {
+				if (pc + length > p.instructions.size()) break;
+				if (p.labelled.get(pc + length - 1) || isControl(p.instructions.get(pc + length - 2))) break;
+				count = Math.min(count, executed[pc + length - 1]);
+				sequence += " " + p.instructions.get(pc + length - 1).getClass().getSimpleName();
+				Long before = counts.get(sequence);
+				counts.put(sequence, (before == null ? 0 : before) + count);
+			}
+		}
+		List<String> sequences = new ArrayList<String>(counts.keySet());
+		Collections.sort(sequences, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return counts.get(b).compareTo(counts.get(a));
+			}
+		});
+		while (sequences.size() > size || !sequences.isEmpty() && counts.get(sequences.get(sequences.size() - 1)) == 0)
+			sequences.remove(sequences.size() - 1);
+		return sequences;
+	}
+}
@@ -1,52 +1,130 @@
 package x86_64sim;
 
+/**
+ * The simulated address space: a heap from minheap up, then a gap of guard pages,
+ * then a stack that grows down from maxstack. Memory is allocated a page at a time,
+ * when it is first written, so heap and stack can be large (gigabytes) for what
+ * the program actually uses.
+ * <p>
+ * Nothing is mapped below the heap, so dereferencing null (plus a field offset)
+ * fails, with the failure code the runtime reports for a null object reference
+ * (compiled code relies on that, see translate.Translator.setImplicitNullChecks);
+ * as does running the stack into the guard pages.
+ */
 public class Memory {
-	long [] heap, stack;
-	long minheap;
-	public long maxheap;
-	long minstack, maxstack;
 	public static final int SIZEOF_LONG = 8;
-	Memory(long minheap, long maxheap, long minstack, long maxstack) {
+	public static final int PAGE_SIZE = 4096;
+	static final int PAGE_BITS = 12;
+	/** Each entry of the page directory covers 2^REGION_BITS bytes, in a table of pages. */
+	private static final int REGION_BITS = 24;
+	private static final int REGION_MASK = (1 << (REGION_BITS - PAGE_BITS)) - 1;
+	/** Pages between the heap and the stack, to catch stack overflow. */
+	static final int GUARD_PAGES = 16;
+	/** What accessing the memory below the heap fails with, as cs411error(2) does. */
+	static final String NULL_DEREFERENCE = "MiniJava failure 2\n";
+
+	public final long minheap, maxheap;
+	public final long minstack, maxstack;
+	/** Pages by address: directory[address >>> REGION_BITS][page in region]; null if never written. */
+	private final long[][][] directory;
+	/** Sees every access, if a {@link CacheModel} is enabled. */
+	CacheModel.Caches caches;
+
+	/**
+	 * Map heapSize bytes from minheap, and a stack of stackSize bytes above it
+	 * (both rounded up to pages).
+	 */
+	Memory(long minheap, long heapSize, long stackSize) {
 		this.minheap = minheap;
-		this.maxheap = maxheap;
-		this.heap = new long[(int) ((maxheap - minheap)/SIZEOF_LONG)];
-		this.minstack = minstack;
-		this.maxstack = maxstack;
-		this.stack = new long[(int) ((maxstack - minstack)/SIZEOF_LONG)];
+		this.maxheap = roundUp(minheap + heapSize);
+		this.minstack = maxheap + GUARD_PAGES * PAGE_SIZE;
+		this.maxstack = minstack + roundUp(stackSize);
+		long regions = ((maxstack - 1) >>> REGION_BITS) + 1;
+		if (regions > Integer.MAX_VALUE)
+			throw new Error("Can't simulate a memory of " + maxstack + " bytes");
+		this.directory = new long[(int) regions][][];
 	}
-	
+
+	static long roundUp(long address) {
+		return (address + PAGE_SIZE - 1) & -PAGE_SIZE;
+	}
+
 	private boolean inHeap(long address) {
-		return minheap <= address && address <= maxheap;
+		return minheap <= address && address < maxheap;
 	}
-	private boolean inStack(long address) {
-		return minstack <= address && address <= maxstack;
+	public boolean inStack(long address) {
+		return minstack <= address && address < maxstack;
 	}
+
+	/**
+	 * The page of an aligned address, or null if it is unmapped or was never written.
+	 */
+	private long[] page(long address) {
+		long region = address >>> REGION_BITS;
+		if (region >= directory.length) return null;
+		long[][] pages = directory[(int) region];
+		return pages == null ? null : pages[(int) (address >>> PAGE_BITS) & REGION_MASK];
+	}
+
 	public long read(long address) {
-		if (address % SIZEOF_LONG != 0) { 
-			throw new Error("Read at address " + address + " fails, bad alignment");
-		}
-		if (inHeap(address)) {
-			int arrayindex = (int) ((address - minheap) / SIZEOF_LONG);
-			return heap[arrayindex];
-		} else if (inStack(address)) {
-			int arrayindex = (int) ((address - minstack) / SIZEOF_LONG);
-			return stack[arrayindex];			
+		if (caches != null)
+			caches.data(address);
+		if ((address & (SIZEOF_LONG - 1)) == 0) {
+			long[] page = page(address);
+			if (page != null)
+				return page[(int) (address & (PAGE_SIZE - 1)) / SIZEOF_LONG];
 		} else {
-			throw new Error("Read at address " + address + " out of bounds");
+			throw new Error("Read at address " + address + " fails, bad alignment");
 		}
+		check("Read", address);
+		return 0;
 	}
 	public void write(long address, long value) {
-		if (address % SIZEOF_LONG != 0) { 
+		if (caches != null)
+			caches.data(address);
+		if ((address & (SIZEOF_LONG - 1)) == 0) {
+			long[] page = page(address);
+			if (page == null) {
+				check("Write", address);
+				page = allocate(address);
+			}
+			page[(int) (address & (PAGE_SIZE - 1)) / SIZEOF_LONG] = value;
+		} else {
 			throw new Error("Write at address " + address + " fails, bad alignment");
 		}
-		if (inHeap(address)) {
-			int arrayindex = (int) ((address - minheap) / SIZEOF_LONG);
-			heap[arrayindex] = value; 
-		} else if (inStack(address)) {
-			int arrayindex = (int) ((address - minstack) / SIZEOF_LONG);
-			stack[arrayindex] = value; 			
-		} else {
-			throw new Error("Write at address " + address + " out of bounds");
+	}
+
+	private long[] allocate(long address) {
+		int region = (int) (address >>> REGION_BITS);
+		if (directory[region] == null)
+			directory[region] = new long[REGION_MASK + 1][];
+		long[] page = new long[PAGE_SIZE / SIZEOF_LONG];
+		directory[region][(int) (address >>> PAGE_BITS) & REGION_MASK] = page;
+		return page;
+	}
+
+	/**
+	 * Give back the pages from address from up to to (both page aligned): they
+	 * read as zeroes again.
+	 */
+	void release(long from, long to) {
+		for (long address = from; address < to; address += PAGE_SIZE) {
+			long[][] pages = directory[(int) (address >>> REGION_BITS)];
+			if (pages != null)
+				pages[(int) (address >>> PAGE_BITS) & REGION_MASK] = null;
 		}
 	}
+
+	/**
+	 * Fail an access to address unless it is mapped.
+	 */
+	private void check(String access, long address) {
+		if (inHeap(address) || inStack(address))
+			return;
+		if (0 <= address && address < minheap)
+			throw new Error(NULL_DEREFERENCE);
+		if (maxheap <= address && address < minstack)
+			throw new Error(access + " at address " + address + " fails, stack overflow");
+		throw new Error(access + " at address " + address + " out of bounds");
+	}
 }
@@ -0,0 +1,371 @@
+package x86_64sim;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import x86_64sim.instruction.CJmp;
+import x86_64sim.instruction.Call;
+import x86_64sim.instruction.Instruction;
+import x86_64sim.instruction.Jmp;
+import x86_64sim.instruction.Ret;
+
+/**
+ * Records where a simulated program spends its instructions: how often each
+ * instruction and basic block runs, which way each conditional jump goes, and the
+ * dynamic call graph, with the instructions executed in each function by itself
+ * (exclusive) and together with everything it calls (inclusive).
+ * <p>
+ * Set {@link State#profiler} before running. The report is JSON
+ * ({@link #writeReport}), and the calling contexts can also be written as folded
+ * stacks ({@link #writeFoldedStacks}), one "main;caller;callee count" line each,
+ * as flame graph tools read them. Functions are the text labels that
+ * {@link Program#symbolIndex(long)} knows.
+ * <p>
+ * It also records the classes of the receivers of the calls each function makes
+ * (the data label that the first word of the object in %rdi points to), which
+ * the compiler can use to devirtualize them ({@link #writeReceivers}).
+ */
+public class Profiler {
+
+	private final Program p;
+	private final long[] executed;
+	private final long[] taken;
+	private final long[] inclusive, exclusive, calls;
+	/** How many activations of each function are on the stack (for recursion). */
+	private final int[] active;
+	private final Map<Long, Edge> edges = new HashMap<Long, Edge>();
+	/** "caller callee receiverClass" -> calls. */
+	private final Map<String, Long> receivers = new TreeMap<String, Long>();
+
+	/** A caller -> callee edge of the call graph. */
+	private static class Edge {
+		final int caller, callee;
+		long calls, inclusive;
+		int active;
+		Edge(int caller, int callee) {
+			this.caller = caller;
+			this.callee = callee;
+		}
+	}
+
+	/** A node of the calling context tree, for the folded stacks. */
+	private static class Context {
+		final int function;
+		final Context parent;
+		final Map<Integer, Context> children = new TreeMap<Integer, Context>();
+		long self;
+		Context(int function, Context parent) {
+			this.function = function;
+			this.parent = parent;
+		}
+		Context child(int function) {
+			Context child = children.get(function);
+			if (child == null) {
+				child = new Context(function, this);
+				children.put(function, child);
+			}
+			return child;
+		}
+	}
+
+	/** The call stack: function, instructionsExecuted when it was called, edge it was called by. */
+	private int[] stack = new int[64];
+	private long[] started = new long[64];
+	private Edge[] calledBy = new Edge[64];
+	private int depth = -1;
+	private Context root, context;
+
+	public Profiler(Program p) {
+		this.p = p;
+		int n = p.countInstructions();
+		executed = new long[n];
+		taken = new long[n];
+		int functions = p.symbolCount() + 1; // and one for code before the first label
+		inclusive = new long[functions];
+		exclusive = new long[functions];
+		calls = new long[functions];
+		active = new int[functions];
+	}
+
+	/**
+	 * Count the instruction i at address at, which the state has just executed.
+	 */
+	void executed(int at, Instruction i, State state) {
+		if (depth < 0) {
+			root = context = new Context(function(at), null);
+			enter(function(at), state.instructionsExecuted - 1, null);
+		}
+		executed[at]++;
+		exclusive[stack[depth]]++;
+		context.self++;
+		if (i instanceof CJmp) {
+			if (state.pc != at + 1) taken[at]++;
+		} else if (i instanceof Call) {
+			// The runtime's functions are simulated in place: they don't go anywhere.
+			if (state.pc != at + 1) {
+				int caller = stack[depth], callee = function(state.pc);
+				Edge edge = edge(caller, callee);
+				edge.calls++;
+				receiver(caller, callee, state);
+				context = context.child(callee);
+				enter(callee, state.instructionsExecuted, edge);
+			}
+		} else if (i instanceof Ret && depth > 0) {
+			leave(state.instructionsExecuted);
+			context = context.parent;
+		}
+	}
+
+	/**
+	 * Count the class of the receiver of a call, if %rdi holds an object.
+	 */
+	private void receiver(int caller, int callee, State state) {
+		Memory ram = state.ram;
+		long object = state.getReg(State.RDI);
+		if (object < ram.minheap || object >= ram.maxheap || (object & (Memory.SIZEOF_LONG - 1)) != 0)
+			return;
+		CacheModel.Caches caches = ram.caches;
+		ram.caches = null; // The program doesn't read this, the profiler does.
+		String clazz = p.dataLabelAt(ram.read(object));
+		ram.caches = caches;
+		if (clazz == null)
+			return;
+		String key = name(caller) + " " + name(callee) + " " + clazz;
+		Long calls = receivers.get(key);
+		receivers.put(key, calls == null ? 1 : calls + 1);
+	}
+
+	private int function(long pc) {
+		return p.symbolIndex(pc) + 1;
+	}
+
+	private Edge edge(int caller, int callee) {
+		long key = (long) caller << 32 | callee;
+		Edge edge = edges.get(key);
+		if (edge == null) {
+			edge = new Edge(caller, callee);
+			edges.put(key, edge);
+		}
+		return edge;
+	}
+
+	private void enter(int function, long now, Edge edge) {
+		depth++;
+		if (depth == stack.length) {
+			stack = Arrays.copyOf(stack, 2 * depth);
+			started = Arrays.copyOf(started, 2 * depth);
+			calledBy = Arrays.copyOf(calledBy, 2 * depth);
+		}
+		stack[depth] = function;
+		started[depth] = now;
+		calledBy[depth] = edge;
+		calls[function]++;
+		active[function]++;
+		if (edge != null) edge.active++;
+	}
+
+	/**
+	 * Return from the function on top of the stack. Only the outermost activation
+	 * of a (recursive) function or edge counts towards its inclusive instructions.
+	 */
+	private void leave(long now) {
+		int function = stack[depth];
+		long elapsed = now - started[depth];
+		if (--active[function] == 0)
+			inclusive[function] += elapsed;
+		Edge edge = calledBy[depth];
+		if (edge != null && --edge.active == 0)
+			edge.inclusive += elapsed;
+		depth--;
+	}
+
+	/**
+	 * Inclusive counts, as if the functions still on the stack returned now.
+	 */
+	private long[] inclusive(long now) {
+		long[] result = inclusive.clone();
+		boolean[] seen = new boolean[result.length];
+		for (int d = 0; d <= depth; d++) {
+			if (seen[stack[d]]) continue;
+			seen[stack[d]] = true;
+			result[stack[d]] += now - started[d];
+		}
+		return result;
+	}
+
+	private String name(int function) {
+		return function == 0 ? "unknown" : p.symbolName(function - 1);
+	}
+
+	private boolean isLeader(int pc) {
+		if (pc == 0 || p.isLabelled(pc)) return true;
+		Instruction before = p.instruction(pc - 1);
+		return before instanceof CJmp || before instanceof Jmp || before instanceof Call || before instanceof Ret;
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// Reports
+
+	public long getExecuted(int pc) {
+		return executed[pc];
+	}
+
+	/**
+	 * The execution count of each instruction, by address (e.g. for {@link Fusion#profile}).
+	 */
+	public long[] getExecuted() {
+		return executed.clone();
+	}
+
+	public long getExclusive(String function) {
+		return exclusive[indexOf(function)];
+	}
+
+	public long getInclusive(String function, State state) {
+		return inclusive(state.instructionsExecuted)[indexOf(function)];
+	}
+
+	private int indexOf(String function) {
+		for (int f = 0; f < calls.length; f++)
+			if (name(f).equals(function)) return f;
+		throw new Error("No function " + function);
+	}
+
+	public void writeReport(File file, State state) throws FileNotFoundException {
+		PrintStream out = new PrintStream(file);
+		writeReport(out, state);
+		out.close();
+	}
+
+	public void writeReport(PrintStream out, State state) {
+		long[] inclusive = inclusive(state.instructionsExecuted);
+		out.println("{");
+		out.println("  \"instructionsExecuted\": " + state.instructionsExecuted + ",");
+
+		out.println("  \"functions\": [");
+		List<String> items = new ArrayList<String>();
+		for (int f = 0; f < calls.length; f++) {
+			if (calls[f] == 0 && exclusive[f] == 0) continue;
+			items.add("    {\"name\": " + quote(name(f))
+					+ ", \"address\": " + (f == 0 ? 0 : p.symbolAddress(f - 1))
+					+ ", \"calls\": " + calls[f]
+					+ ", \"inclusive\": " + inclusive[f]
+					+ ", \"exclusive\": " + exclusive[f] + "}");
+		}
+		list(out, items, ",");
+
+		out.println("  \"callGraph\": [");
+		items.clear();
+		List<Long> keys = new ArrayList<Long>(edges.keySet());
+		Collections.sort(keys);
+		for (Long key : keys) {
+			Edge edge = edges.get(key);
+			long inclusiveCount = edge.inclusive;
+			for (int d = 0; d <= depth; d++)
+				if (calledBy[d] == edge) {
+					inclusiveCount += state.instructionsExecuted - started[d];
+					break;
+				}
+			items.add("    {\"caller\": " + quote(name(edge.caller))
+					+ ", \"callee\": " + quote(name(edge.callee))
+					+ ", \"calls\": " + edge.calls
+					+ ", \"inclusive\": " + inclusiveCount + "}");
+		}
+		list(out, items, ",");
+
+		out.println("  \"blocks\": [");
+		items.clear();
+		for (int start = 0; start < executed.length; ) {
+			int end = start + 1;
+			while (end < executed.length && !isLeader(end))
+				end++;
+			if (executed[start] > 0)
+				items.add("    {\"start\": " + start + ", \"end\": " + end
+						+ ", \"function\": " + quote(name(function(start)))
+						+ ", \"count\": " + executed[start] + "}");
+			start = end;
+		}
+		list(out, items, ",");
+
+		out.println("  \"branches\": [");
+		items.clear();
+		for (int pc = 0; pc < executed.length; pc++) {
+			if (!(p.instruction(pc) instanceof CJmp) || executed[pc] == 0) continue;
+			items.add("    {\"address\": " + pc
+					+ ", \"function\": " + quote(name(function(pc)))
+					+ ", \"instruction\": " + quote(p.instruction(pc).toString().trim())
+					+ ", \"taken\": " + taken[pc]
+					+ ", \"notTaken\": " + (executed[pc] - taken[pc]) + "}");
+		}
+		list(out, items, ",");
+
+		out.println("  \"instructions\": [");
+		items.clear();
+		for (int pc = 0; pc < executed.length; pc++) {
+			if (executed[pc] == 0) continue;
+			items.add("    {\"address\": " + pc
+					+ ", \"instruction\": " + quote(p.instruction(pc).toString().trim())
+					+ ", \"count\": " + executed[pc] + "}");
+		}
+		list(out, items, "");
+		out.println("}");
+	}
+
+	private static void list(PrintStream out, List<String> items, String after) {
+		for (int i = 0; i < items.size(); i++)
+			out.println(items.get(i) + (i + 1 < items.size() ? "," : ""));
+		out.println("  ]" + after);
+	}
+
+	private static String quote(String s) {
+		StringBuilder q = new StringBuilder("\"");
+		for (char c : s.toCharArray()) {
+			if (c == '"' || c == '\\') q.append('\\').append(c);
+			else if (c == '\t') q.append("\\t");
+			else if (c == '\n') q.append("\\n");
+			else q.append(c);
+		}
+		return q.append('"').toString();
+	}
+
+	/**
+	 * The classes of the receivers of the calls, one "caller callee class count"
+	 * line for each the run saw (see translate.ReceiverProfile).
+	 */
+	public void writeReceivers(File file) throws FileNotFoundException {
+		PrintStream out = new PrintStream(file);
+		writeReceivers(out);
+		out.close();
+	}
+
+	public void writeReceivers(PrintStream out) {
+		for (Map.Entry<String, Long> receiver : receivers.entrySet())
+			out.println(receiver.getKey() + " " + receiver.getValue());
+	}
+
+	public void writeFoldedStacks(File file) throws FileNotFoundException {
+		PrintStream out = new PrintStream(file);
+		writeFoldedStacks(out);
+		out.close();
+	}
+
+	public void writeFoldedStacks(PrintStream out) {
+		if (root != null)
+			writeFoldedStacks(out, root, name(root.function));
+	}
+
+	private void writeFoldedStacks(PrintStream out, Context context, String stack) {
+		if (context.self > 0)
+			out.println(stack + " " + context.self);
+		for (Context child : context.children.values())
+			writeFoldedStacks(out, child, stack + ";" + name(child.function));
+	}
+}
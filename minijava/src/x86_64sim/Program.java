@@ -1,6 +1,10 @@
 package x86_64sim;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,6 +12,7 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import x86_64sim.instruction.Instruction;
+import x86_64sim.jit.Jit;
 
 import junit.framework.Assert;
 
@@ -16,21 +21,136 @@ import junit.framework.Assert;
 public class Program {
 	List<Instruction> instructions;
 	Map<String, Long> labels;
+	/** The labels of the static data, by address. */
+	Map<Long, String> dataLabels = new HashMap<Long, String>();
 	Map<Long, Long> staticData = new HashMap<Long, Long>();
 	Map<Long, String> relocationData = new HashMap<Long, String>();
 	boolean inText = true;
 	long pc;
 	long dc = State.HEAP_BASE;
+	/**
+	 * Register numbers: the machine registers first, in the order of State.regs, then
+	 * any Temps that the program uses as registers.
+	 */
+	Map<String, Integer> registers = new HashMap<String, Integer>();
+	/** The instructions, by address, after {@link #predecode()}. */
+	Instruction[] code;
+
+	/** Addresses of instructions with a label, and of those that start a function. */
+	BitSet labelled = new BitSet();
+	BitSet functions = new BitSet();
+
+	/** The address of a label that isn't defined. */
+	public static final long UNDEFINED = -1;
+
 	public Program() {
 		instructions = new ArrayList<Instruction>();
 		labels = new HashMap<String, Long>();
 		pc = 0;
+		for (String reg : State.regs)
+			register(reg);
 	}
 
 	public long getLabel(String label) {
 		return labels.get(label);
 	}
 
+	/**
+	 * The address of a label, or {@link #UNDEFINED}.
+	 */
+	public long address(String label) {
+		Long address = labels.get(label);
+		return address == null ? UNDEFINED : address;
+	}
+
+	/**
+	 * The address of a label that the runtime shares with the program (which
+	 * has a _ in front on macOS), or {@link #UNDEFINED}.
+	 */
+	public long runtimeAddress(String name) {
+		long address = address(name);
+		return address == UNDEFINED ? address("_" + name) : address;
+	}
+
+	/**
+	 * The number of a register (its index in the State's register file).
+	 */
+	public int register(String name) {
+		Integer number = registers.get(name);
+		if (number == null) {
+			number = registers.size();
+			registers.put(name, number);
+		}
+		return number;
+	}
+
+	public int registerCount() {
+		return registers.size();
+	}
+
+	/**
+	 * The (predecoded) instruction at an address, as loaded: not {@link Fusion fused}.
+	 */
+	public Instruction instruction(int pc) {
+		return instructions.get(pc);
+	}
+
+	/**
+	 * The instruction that runs at an address once the program has been predecoded:
+	 * {@link Fusion fused} if a superinstruction starts there.
+	 */
+	public Instruction code(int pc) {
+		return code[pc];
+	}
+
+	public boolean isLabelled(int pc) {
+		return labelled.get(pc);
+	}
+
+	/**
+	 * The address of the first instruction of the function that contains pc.
+	 * Functions are told apart by their labels, as in {@link #getFunctionAt(long)}.
+	 */
+	public int functionStart(int pc) {
+		int start = pc;
+		while (start > 0 && !functions.get(start))
+			start--;
+		return start;
+	}
+
+	/**
+	 * The address right after the function that contains pc.
+	 */
+	public int functionEnd(int pc) {
+		int end = functions.nextSetBit(pc + 1);
+		return end < 0 ? instructions.size() : end;
+	}
+
+	/**
+	 * Resolve register names, conditions and labels in all instructions, so that
+	 * running them doesn't have to look anything up by name, and fuse frequent
+	 * sequences. Only done for the first run of the program.
+	 */
+	void predecode() {
+		if (code != null) return;
+		code = instructions.toArray(new Instruction[instructions.size()]);
+		for (Instruction i : code)
+			i.predecode(this);
+		Fusion.apply(this);
+	}
+
+	private Jit jit;
+
+	/**
+	 * The compiler for the hot parts of this program. Every run of the program
+	 * uses the same one, so they share the compiled code.
+	 */
+	synchronized Jit getJit() {
+		if (jit == null)
+			jit = new Jit(this);
+		return jit;
+	}
+
 	public void doData() {
 		inText = false;
 	}
@@ -57,10 +177,27 @@ public class Program {
 		dc += 8;
 	}
 	public void add(String label) {
-		if (inText)
+		if (inText) {
 			labels.put(label, pc);
-		else 
+			labelled.set((int) pc);
+			m.reset(label);
+			if (!m.matches()) {
+				functions.set((int) pc);
+				symbols.add(label);
+			}
+		}
+		else {
 			labels.put(label, dc);
+			dataLabels.put(dc, label);
+		}
+	}
+
+	/**
+	 * The label of the static data at address (e.g. the class of an object, whose
+	 * first word is the address of its vtable), or null if there is none.
+	 */
+	public String dataLabelAt(long address) {
+		return dataLabels.get(address);
 	}
 
 	public void add(Instruction i) {
@@ -79,21 +216,62 @@ public class Program {
 	Pattern boringLabel = Pattern.compile(".*_[0-9]+$");
 	Matcher m = boringLabel.matcher("");
 	
+	/** Labels of functions in the text, in the order they were added. */
+	private List<String> symbols = new ArrayList<String>();
+	/** The symbol table: function labels sorted by address, see {@link #symbolIndex(long)}. */
+	private long[] symbolAddresses;
+	private String[] symbolNames;
+
+	private synchronized void buildSymbols() {
+		if (symbolNames != null) return;
+		List<String> sorted = new ArrayList<String>(symbols);
+		Collections.sort(sorted, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return labels.get(a).compareTo(labels.get(b));
+			}
+		});
+		symbolAddresses = new long[sorted.size()];
+		symbolNames = new String[sorted.size()];
+		for (int i = 0; i < symbolNames.length; i++) {
+			symbolNames[i] = sorted.get(i);
+			symbolAddresses[i] = labels.get(symbolNames[i]);
+		}
+	}
+
+	/**
+	 * The index in the symbol table of the function that contains pc: of the last
+	 * function label at or before it. -1 if there is none.
+	 */
+	public int symbolIndex(long pc) {
+		buildSymbols();
+		int i = Arrays.binarySearch(symbolAddresses, pc);
+		if (i < 0)
+			return -i - 2;
+		while (i + 1 < symbolAddresses.length && symbolAddresses[i + 1] == pc)
+			i++;
+		return i;
+	}
+
+	public int symbolCount() {
+		buildSymbols();
+		return symbolNames.length;
+	}
+
+	public String symbolName(int index) {
+		buildSymbols();
+		return symbolNames[index];
+	}
+
+	public long symbolAddress(int index) {
+		buildSymbols();
+		return symbolAddresses[index];
+	}
+
 	public String getFunctionAt(long pc) {
-		String closestLabel = null;
-		long closestAddr = -1;
 		if (pc == 99999999999999L)
 			return "__start";
-		for (String label : labels.keySet()) {
-			m.reset(label);
-			if (m.matches()) continue;
-			Long addr = labels.get(label);
-			if (addr <= pc && addr > closestAddr) {
-				closestAddr = addr;
-				closestLabel = label;
-			}
-		}
-		return closestLabel == null ? "unknown" : closestLabel;
+		int i = symbolIndex(pc);
+		return i < 0 ? "unknown" : symbolNames[i];
 	}
 
 	public String dump() {
@@ -23,6 +23,24 @@ public class Sim {
 		String result = s.runForResult().result;
 		System.out.println("Static: " + p.countInstructions() + " instructions generated");
 		System.out.println("Dynamic: " + s.instructionsExecuted + " instructions executed");
+		if (s.timing != null)
+			System.out.println("Cycles: " + s.timing);
+		if (s.caches != null)
+			System.out.println("Caches: " + s.caches);
+		if (s.collector != null && s.collector.getCollections() > 0)
+			System.out.println("GC: " + s.collector);
+		return s;
+	}
+
+	/**
+	 * Simulate a program with a {@link Profiler}: see state.profiler for where
+	 * its instructions went.
+	 */
+	public static State profile(String program) {
+		Program p = SimParser.parse(program);
+		State s = new State(p);
+		s.profiler = new Profiler(p);
+		s.runForResult();
 		return s;
 	}
 }
@@ -4,154 +4,222 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintStream;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-
-import junit.framework.Assert;
+import java.util.Arrays;
 
 import x86_64sim.instruction.Instruction;
+import x86_64sim.jit.Jit;
 
 
 
 public class State {
-	public static final long HEAP_BASE = 0x1000L, HEAP_SIZE = 0x1000L;
-	public static final long STACK_BASE = 0x8000L, STACK_SIZE = 0x1000L;
+	/** The heap starts after an unmapped page, which catches null dereferences. */
+	public static final long HEAP_BASE = Memory.PAGE_SIZE;
+	public static final long DEFAULT_HEAP_SIZE = 64L << 20, DEFAULT_STACK_SIZE = 8L << 20;
+	private static long heapSize = DEFAULT_HEAP_SIZE, stackSize = DEFAULT_STACK_SIZE;
 	static final long DONE = 99999999999999L;
 	public boolean beVerbose = false;
 	public long maxInstructions = 10000000;
 	final static String[] regs = { Instruction.AX /*"%rax"*/, "%rbx", "%rcx", Instruction.DX /*"%rdx"*/, "%rsi", Instruction.ARG1 /*"%rdi"*/, Instruction.SP, Instruction.BP,
 		"%r8", "%r9", "%r10", "%r11", "%r12", "%r13", "%r14", "%r15" };
-	static {
-		Assert.assertTrue(HEAP_BASE + HEAP_SIZE < STACK_BASE - STACK_SIZE);
-	}
+	/** Numbers of the registers that instructions use implicitly (indices in regs). */
+	public static final int RAX = 0, RDX = 3, RDI = 5, RSP = 6, RBP = 7;
 	public Program p;
 	public Memory ram;
-	Map<String, Long> registers;
-	List<Map<String, Long>> registerstack;
+	/** The register file, indexed by register number (see {@link Program#register(String)}). */
+	public long[] registers;
+	/**
+	 * Code that hasn't been register allocated uses Temps as registers, and each call
+	 * gets a fresh set of them. Calls save the caller's Temps (the registers after the
+	 * machine registers) here, returns restore them.
+	 */
+	long[] savedTemps = new long[0];
+	int savedTop = 0;
 	public long conditionl;
 	public long conditionr;
 	public long pc;
 	public long hp;
+	/** Where the heap memory that hp allocates from ends. */
+	long heapLimit;
+	/** The program's allocation buffer (see {@link #alloc}), or {@link Program#UNDEFINED}. */
+	private long buffer;
 	public PrintStream out = System.out;
 	public long instructionsExecuted = 0L;
 	public String result;
+	/** Compiles the hot parts of the program, or null to only interpret. */
+	private Jit jit;
+	/** Set to profile the run (which is then only interpreted, instruction by instruction). */
+	public Profiler profiler;
+	/** Estimates the cycles the run takes, if a {@link CostModel} is enabled. */
+	public CostModel.Timing timing;
+	/** Simulates the caches, if a {@link CacheModel} is enabled. */
+	public CacheModel.Caches caches;
+	/** Collects the garbage, if the program has pointer maps (see {@link Collector}). */
+	public Collector collector;
 
 	public State(Program p) {
-		ram = new Memory(HEAP_BASE, HEAP_BASE + HEAP_SIZE, STACK_BASE - STACK_SIZE, STACK_BASE);
-		registers = new HashMap<String, Long>();
-		registerstack = new LinkedList<Map<String, Long>>();
+		ram = new Memory(HEAP_BASE, heapSize, stackSize);
+		p.predecode();
+		registers = new long[p.registerCount()];
 		pc = p.findMain();
 		this.p = p;
-		long sp = STACK_BASE - Memory.SIZEOF_LONG;
+		long sp = ram.maxstack - Memory.SIZEOF_LONG;
 		ram.write(sp, DONE);
-		setReg(Instruction.SP, sp);
+		setReg(RSP, sp);
 		hp = p.writeStatic(ram);
+		heapLimit = ram.maxheap;
+		collector = Collector.start(this);
+		if (Jit.isEnabled())
+			jit = p.getJit();
+		if (CostModel.getEnabled() != null)
+			timing = CostModel.getEnabled().start();
+		if (CacheModel.getEnabled() != null)
+			caches = CacheModel.getEnabled().start(this);
+		buffer = p.runtimeAddress("cs411heap");
+		refill();
+		ram.caches = caches;
 	}
 
+	/**
+	 * The sizes of the heap and the stack of simulations started from now on
+	 * (DEFAULT_HEAP_SIZE and DEFAULT_STACK_SIZE unless set). Memory is only allocated as it is used.
+	 */
+	public static void setMemorySize(long heap, long stack) {
+		heapSize = heap;
+		stackSize = stack;
+	}
+
+	private void checkHeap(long size) {
+		if (buffer != Program.UNDEFINED)
+			hp = ram.read(buffer);
+		if (collector != null && size >= 0 && collector.wanted(size))
+			collector.collect();
+		if (size < 0 || hp + size > heapLimit)
+			throw new Error("X86_64 simulator out of heap memory, allocating " + size + " bytes\n");
+	}
+	/**
+	 * Make the rest of the heap the program's allocation buffer: the two words
+	 * at cs411heap, where the next object goes (hp) and where the buffer ends.
+	 * <p>
+	 * Compiled code allocates from it inline, and only calls cs411newobject or
+	 * cs411newarray (alloc and allocArray) when that doesn't fit. They take hp
+	 * back from the buffer, allocate, maybe after collecting the garbage, and
+	 * refill it. When every allocation should be seen, by a stressed collector
+	 * or by the caches (for its allocation site), the buffer is left empty.
+	 */
+	private void refill() {
+		if (buffer == Program.UNDEFINED) return;
+		boolean everyAllocation = caches != null || collector != null && collector.isStressed();
+		ram.write(buffer, hp);
+		ram.write(buffer + Memory.SIZEOF_LONG, everyAllocation ? hp : heapLimit);
+	}
 	public long alloc(long size) {
-		Assert.assertTrue(hp + size <= HEAP_BASE + HEAP_SIZE);
+		checkHeap(size);
 		long answer = hp;
+		if (caches != null)
+			caches.allocated(answer);
 		hp += size;
+		refill();
 		return answer;
 	}
+	/**
+	 * An array, after a header and its length (and a word of padding if it is
+	 * empty, so that a reference to it is inside it); as compiled code allocates them.
+	 */
 	public long allocArray(long nElements) {
-		long size = (nElements + 1) * Memory.SIZEOF_LONG;
-		Assert.assertTrue(hp + size <= HEAP_BASE + HEAP_SIZE);
+		long size = ((nElements == 0 ? 1 : nElements) + 2) * Memory.SIZEOF_LONG;
+		checkHeap(size);
 		long answer = hp;
-		ram.write(answer, nElements);
+		if (caches != null)
+			caches.allocated(answer);
+		ram.write(answer, Collector.ARRAY_HEADER);
+		ram.write(answer + Memory.SIZEOF_LONG, nElements);
 		hp += size;
-		return answer + Memory.SIZEOF_LONG;
+		refill();
+		return answer + 2 * Memory.SIZEOF_LONG;
 	}
 	public void do_call() {
-		Map<String, Long> newregisters = new HashMap<String, Long>();
-		for (int i = 0; i < regs.length; ++i) 
-			newregisters.put(regs[i], registers.get(regs[i]));
-		registerstack.add(0, registers);
-		registers = newregisters;
+		int temps = registers.length - regs.length;
+		if (temps == 0) return;
+		if (savedTop + temps > savedTemps.length)
+			savedTemps = Arrays.copyOf(savedTemps, Math.max(2 * savedTemps.length, savedTop + temps));
+		System.arraycopy(registers, regs.length, savedTemps, savedTop, temps);
+		savedTop += temps;
+		Arrays.fill(registers, regs.length, registers.length, 0L);
 	}
 
 	public void do_return() {
 		// If there is nothing on the stack, we are returning off the end so do nothing
-		if (registerstack.size() > 0) {
-			Map<String, Long> oldregisters = registerstack.remove(0);
-			for (int i = 0; i < regs.length; ++i) 
-				oldregisters.put(regs[i], registers.get(regs[i]));
-			registers = oldregisters;
+		int temps = registers.length - regs.length;
+		if (savedTop >= temps && temps > 0) {
+			savedTop -= temps;
+			System.arraycopy(savedTemps, savedTop, registers, regs.length, temps);
 		}
 	}
 
-	public void setReg(String reg, long value) {
-		registers.put(reg, value);
+	public void setReg(int reg, long value) {
+		registers[reg] = value;
 	}
 
-	public long getReg(String reg) {
-		Long l = registers.get(reg);
-		return (l == null) ? 0 : l;
+	public long getReg(int reg) {
+		return registers[reg];
 	}
 
-	private static long unsignedCompare(long conditionl, long conditionr) {
-		if (conditionl < 0 && conditionr < 0) {
-			// more negative is smaller unsigned
-			return conditionl - conditionr;
-		} else if (conditionl < 0 && conditionr > 0) {
-			// negative is bigger than any positive
-			return 1;
-		} else if (conditionl > 0 && conditionr < 0) {
-			// negative is still bigger than any positive
-			return -1;
-		} else {
-			return conditionl - conditionr;
-		}
-	}
-	public static boolean conditionTrue(String condition, long conditionl, long conditionr) {
-		if (! (condition.equals("l") || condition.equals("e") ||
-				condition.equals("g") || condition.equals("le") ||
-				condition.equals("ne") || condition.equals("ge") ||
-				condition.equals("b") || condition.equals("be") ||
-				condition.equals("a") || condition.equals("ae"))) {
-			System.out.println("Illegal condition in branch " + condition);
-		}
-		return 
-				condition.equals("l") && conditionl < conditionr ||
-				condition.equals("b") && unsignedCompare(conditionl, conditionr) < 0 ||
-				condition.equals("e") && conditionl == conditionr ||
-				condition.equals("g") && conditionl > conditionr ||
-				condition.equals("a") && unsignedCompare(conditionl, conditionr) > 0 ||
-				condition.equals("le") && conditionl <= conditionr ||
-				condition.equals("be") && unsignedCompare(conditionl, conditionr) <= 0 ||
-				condition.equals("ne") && conditionl != conditionr ||
-				condition.equals("ge") && (conditionr < 0 || conditionl >= conditionr) ||
-				condition.equals("ae") && unsignedCompare(conditionl, conditionr) >= 0;
-	}
-	public boolean conditionTrue(String condition) {
-		return conditionTrue(condition, conditionl, conditionr);
-	}
 	public void jump(long address) {
 		this.pc = address;
 	}
-	public void jump(String label) {
-		this.pc = p.labels.get(label);
-	}
-	public long getLabel(String label) {
-		return p.labels.get(label);
+	/**
+	 * Jump to a label that {@link Program#predecode()} resolved to an address.
+	 */
+	public void jump(long address, String label) {
+		if (address == Program.UNDEFINED)
+			throw new Error("Jump to undefined label " + label);
+		this.pc = address;
 	}
 	public void step() {
-		Instruction i = p.instructions.get((int)pc);
+		step(p.code[(int)pc]);
+	}
+	/**
+	 * Execute i as the instruction at pc.
+	 */
+	void step(Instruction i) {
 		if (beVerbose)
 			System.out.println("" + pc + ": " + i);
 		pc = pc + 1;
 		i.execute(this);
 		instructionsExecuted ++;
 	}
+	/**
+	 * Run compiled code from here if there is any, and otherwise one instruction.
+	 * Verbose, profiled, timed and cached runs are only interpreted, to see every instruction.
+	 */
+	private void next() {
+		if (profiler != null || timing != null || caches != null)
+			observedStep();
+		else if (jit == null || beVerbose || !jit.run(this))
+			step();
+	}
+	/**
+	 * Step the instruction at pc as it was loaded (not fused), and show it to
+	 * the caches, the profiler and the timing model.
+	 */
+	private void observedStep() {
+		int at = (int) pc;
+		Instruction i = p.instruction(at);
+		if (caches != null)
+			caches.fetch(at);
+		step(i);
+		if (profiler != null)
+			profiler.executed(at, i, this);
+		if (timing != null)
+			timing.executed(at, i, this);
+	}
 	public String hex(long reg) {
 		return "0x" + Long.toString(reg, 16);
 	}
 
 	public void run() {
 		while (pc != DONE) {
-			step();
+			next();
 		}
 	}
 
@@ -162,7 +230,7 @@ public class State {
 			// do nothing, use System.out
 		}
 		while (pc != DONE && instructionsExecuted < maxInstructions) {
-			step();
+			next();
 		}
 		if (instructionsExecuted >= maxInstructions)
 			throw new Error("X86_64 simulator exceeded max instructions\n");
@@ -175,7 +243,7 @@ public class State {
 		this.out = new PrintStream(os);
 		try {
 			while (pc != DONE && instructionsExecuted < maxInstructions) {
-				step();
+				next();
 			}
 			if (instructionsExecuted >= maxInstructions)
 				throw new Error("X86_64 simulator exceeded max instructions\n");
@@ -1,12 +1,15 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class AddIM2R extends Instruction {
   
   long offset;
   String source;
   String target;
+  int sourceNo, targetNo;
 
   public AddIM2R(String offset, String source, String target) {
     this.offset = Long.parseLong(offset);
@@ -14,12 +17,31 @@ public class AddIM2R extends Instruction {
     this.target = target;
   }
   
+  @Override
+  public void predecode(Program p) {
+    sourceNo = p.register(source);
+    targetNo = p.register(target);
+  }
+
   @Override
   public void execute(State state) {
-    long value = state.ram.read(state.getReg(source) + offset) + state.getReg(target);
+    long value = state.ram.read(state.getReg(sourceNo) + offset) + state.getReg(targetNo);
     if (state.beVerbose)
       System.out.println(target + " <- " + value);
-    state.setReg(target, value);
+    state.setReg(targetNo, value);
+  }
+
+  @Override
+  public boolean compile(Emitter e) {
+    e.memory();
+    e.loadReg(sourceNo);
+    e.constant(offset);
+    e.add();
+    e.read();
+    e.loadReg(targetNo);
+    e.add();
+    e.storeReg(targetNo);
+    return true;
   }
 
   @Override
@@ -1,24 +1,42 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Condition;
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class CJmp extends Instruction {
-	String condition, label;
+	Condition condition;
+	String label;
+	long target;
 
 	public CJmp(String condition, String label) {
-		this.condition = condition;
+		this.condition = Condition.parse(condition);
 		this.label = label;
 	}
 
+	@Override
+	public void predecode(Program p) {
+		target = p.address(label);
+	}
+
 	@Override
 	public void execute(State state) {
-		if (state.conditionTrue(condition)) {
+		if (condition.holds(state.conditionl, state.conditionr)) {
 			if (state.beVerbose)
 				System.out.println("j" + condition + " taken -> " + label);
-			state.jump(label);
+			state.jump(target, label);
 		}
 	}
 
+	@Override
+	public boolean compile(Emitter e) {
+		if (target == Program.UNDEFINED)
+			return false;
+		e.jump(condition, target);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tj" + condition + "\t" + label;
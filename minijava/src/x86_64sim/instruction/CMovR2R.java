@@ -1,26 +1,46 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Condition;
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class CMovR2R extends Instruction {
-	String condition, target, source;
+	Condition condition;
+	String target, source;
+	int sourceNo, targetNo;
 
 	public CMovR2R(String condition, String source, String target) {
-		this.condition = condition;
+		this.condition = Condition.parse(condition);
 		this.source = source;
 		this.target = target;
 	}
 
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		if (state.conditionTrue(condition)) {
-			long value = state.getReg(source);
+		if (condition.holds(state.conditionl, state.conditionr)) {
+			long value = state.getReg(sourceNo);
 			if (state.beVerbose)
 				System.out.println("cmov" + condition + " true " + target + " <- " + value);
-			state.setReg(target, value);
+			state.setReg(targetNo, value);
 		}
 	}
 
+	@Override
+	public boolean compile(Emitter e) {
+		Emitter.Label skip = e.unless(condition);
+		e.loadReg(sourceNo);
+		e.storeReg(targetNo);
+		e.place(skip);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tcmov" + condition + "\t" + source + ", " + target;
@@ -2,6 +2,7 @@ package x86_64sim.instruction;
 
 import x86_64sim.Memory;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class CQTO extends Instruction {
 	public CQTO() {
@@ -9,12 +10,28 @@ public class CQTO extends Instruction {
 
 	@Override
 	public void execute(State state) {
-		long ax = state.getReg(Instruction.AX);
-		long dx = ax > 0 ? 0 : -1;
+		long ax = state.getReg(State.RAX);
+		long dx = signExtend(ax);
 		if (state.beVerbose) 
 			System.out.println(DX + " <- " +  dx);
-		state.setReg(DX, dx);
+		state.setReg(State.RDX, dx);
 	}
+
+	/**
+	 * What cqto puts in %rdx. Public for compiled code.
+	 */
+	public static long signExtend(long ax) {
+		return ax > 0 ? 0 : -1;
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(State.RAX);
+		e.call("x86_64sim/instruction/CQTO", "signExtend", "(J)J");
+		e.storeReg(State.RDX);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tcqto";
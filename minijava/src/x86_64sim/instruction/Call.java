@@ -1,20 +1,43 @@
 package x86_64sim.instruction;
 
 import x86_64sim.Memory;
+import x86_64sim.Program;
 import x86_64sim.State;
 
 public class Call extends Instruction {
+	/** What a call does: runtime functions are simulated rather than called. */
+	private enum Kind { CALL, PRINTLN, NEW_OBJECT, NEW_ARRAY, ERROR }
+
 	String label;
 	String register;
+	Kind kind = Kind.CALL;
+	long target;
+	int registerNo;
 
 	public Call(String label) {
 		this.label = label;
+		if (label.equals("_cs411println")  || label.equals("cs411println"))
+			kind = Kind.PRINTLN;
+		else if (label.equals("_cs411newobject") || label.equals("cs411newobject"))
+			kind = Kind.NEW_OBJECT;
+		else if (label.equals("_cs411newarray") || label.equals("cs411newarray"))
+			kind = Kind.NEW_ARRAY;
+		else if (label.equals("_cs411error") || label.equals("cs411error"))
+			kind = Kind.ERROR;
 	}
 
 	public Call(String star, String register) {
 		this.register = register;
 	}
 
+	@Override
+	public void predecode(Program p) {
+		if (register != null)
+			registerNo = p.register(register);
+		else if (kind == Kind.CALL)
+			target = p.address(label);
+	}
+
 	@Override
 	public void execute(State state) {
 		if (state.beVerbose)
@@ -22,42 +45,41 @@ public class Call extends Instruction {
 
 		if (register != null) {
 			// An indirect call
-			long sp = state.getReg(Instruction.SP) - Memory.SIZEOF_LONG;
+			long sp = state.getReg(State.RSP) - Memory.SIZEOF_LONG;
 			state.ram.write(sp, state.pc);
-			state.setReg(Instruction.SP, sp);
-			long value = state.getReg(register);
+			state.setReg(State.RSP, sp);
+			long value = state.getReg(registerNo);
 			state.do_call();
 			state.jump(value);
-		} else {
-			if (label.equals("_cs411println")  || label.equals("cs411println")) {
-				// Simulate println
-				state.out.println(state.getReg(Instruction.ARG1));
-				if (state.beVerbose)
-					System.out.println("Return to " + state.pc + " " + state.p.getFunctionAt(state.pc));
-			} else if (label.equals("_cs411newobject") || label.equals("cs411newobject")) {
-				// Simulate new object
-				state.setReg(Instruction.AX, state.alloc(state.getReg(Instruction.ARG1)));
-				if (state.beVerbose)
-					System.out.println("Return to " + state.pc + " " + state.p.getFunctionAt(state.pc));
-			} else if (label.equals("_cs411newarray") || label.equals("cs411newarray")) {
-				// Simulate new array
-				state.setReg(Instruction.AX, state.allocArray(state.getReg(Instruction.ARG1)));
-				if (state.beVerbose)
-					System.out.println("Return to " + state.pc + " " + state.p.getFunctionAt(state.pc));
-			} else if (label.equals("_cs411error") || label.equals("cs411error")) {
-				// Simulate error
-				// System.err.println("MiniJava failure " + state.getReg(Instruction.ARG1));
-				throw new Error("MiniJava failure " + state.getReg(Instruction.ARG1) + "\n");
-				// Bail
-			} else {
-				// push ra
-				long sp = state.getReg(Instruction.SP) - Memory.SIZEOF_LONG;
-				state.ram.write(sp, state.pc);
-				state.setReg(Instruction.SP, sp);
-				state.do_call();
-				state.jump(label);
-			}
+			return;
 		}
+		switch (kind) {
+		case PRINTLN:
+			// Simulate println
+			state.out.println(state.getReg(State.RDI));
+			break;
+		case NEW_OBJECT:
+			// Simulate new object
+			state.setReg(State.RAX, state.alloc(state.getReg(State.RDI)));
+			break;
+		case NEW_ARRAY:
+			// Simulate new array
+			state.setReg(State.RAX, state.allocArray(state.getReg(State.RDI)));
+			break;
+		case ERROR:
+			// Simulate error
+			throw new Error("MiniJava failure " + state.getReg(State.RDI) + "\n");
+		default:
+			// push ra
+			long sp = state.getReg(State.RSP) - Memory.SIZEOF_LONG;
+			state.ram.write(sp, state.pc);
+			state.setReg(State.RSP, sp);
+			state.do_call();
+			state.jump(target, label);
+			return;
+		}
+		if (state.beVerbose)
+			System.out.println("Return to " + state.pc + " " + state.p.getFunctionAt(state.pc));
 	}
 
 	@Override
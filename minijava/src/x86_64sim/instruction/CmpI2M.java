@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class CmpI2M extends Instruction {
 	long source, offset;
 	String target;
+	int targetNo;
 	
 	public CmpI2M(String source, String offset, String target) {
 		this.source = Long.parseLong(source);
@@ -12,10 +15,27 @@ public class CmpI2M extends Instruction {
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
 		state.conditionr = source;
-		state.conditionl = state.ram.read(state.getReg(target) + offset);
+		state.conditionl = state.ram.read(state.getReg(targetNo) + offset);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(targetNo);
+		e.constant(offset);
+		e.add();
+		e.read();
+		e.constant(source);
+		e.compare();
+		return true;
 	}
 
 	@Override
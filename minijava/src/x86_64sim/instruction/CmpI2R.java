@@ -1,20 +1,36 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class CmpI2R extends Instruction {
 	long source;
 	String target;
+	int targetNo;
 	
 	public CmpI2R(String source, String target) {
 		this.source = Long.parseLong(source);
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
 		state.conditionr = source;
-		state.conditionl = state.getReg(target);
+		state.conditionl = state.getReg(targetNo);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(targetNo);
+		e.constant(source);
+		e.compare();
+		return true;
 	}
 
 	@Override
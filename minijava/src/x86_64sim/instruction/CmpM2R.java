@@ -1,9 +1,12 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class CmpM2R extends Instruction {
 	String target, source;
+	int sourceNo, targetNo;
 	long offset;
 	
 	public CmpM2R(String offset, String source, String target) {
@@ -12,12 +15,30 @@ public class CmpM2R extends Instruction {
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		long value = state.ram.read(state.getReg(source) + offset);
+		long value = state.ram.read(state.getReg(sourceNo) + offset);
 
 		state.conditionr = value;
-		state.conditionl = state.getReg(target);
+		state.conditionl = state.getReg(targetNo);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(targetNo);
+		e.memory();
+		e.loadReg(sourceNo);
+		e.constant(offset);
+		e.add();
+		e.read();
+		e.compare();
+		return true;
 	}
 
 	@Override
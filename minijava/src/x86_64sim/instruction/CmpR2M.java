@@ -1,9 +1,12 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class CmpR2M extends Instruction {
 	String target, source;
+	int sourceNo, targetNo;
 	long offset;
 	
 	public CmpR2M(String source, String offset, String target) {
@@ -12,14 +15,32 @@ public class CmpR2M extends Instruction {
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		long value = state.ram.read(state.getReg(target) + offset);
+		long value = state.ram.read(state.getReg(targetNo) + offset);
 
-		state.conditionr = state.getReg(source);
+		state.conditionr = state.getReg(sourceNo);
 		state.conditionl = value;
 	}
 
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(targetNo);
+		e.constant(offset);
+		e.add();
+		e.read();
+		e.loadReg(sourceNo);
+		e.compare();
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tcmpq\t" + source + ", " + offset + "(" + target + ")";
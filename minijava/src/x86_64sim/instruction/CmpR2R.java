@@ -1,19 +1,36 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class CmpR2R extends Instruction {
 	String target, source;
+	int sourceNo, targetNo;
 	
 	public CmpR2R(String source, String target) {
 		this.source = source;
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		state.conditionr = state.getReg(source);
-		state.conditionl = state.getReg(target);
+		state.conditionr = state.getReg(sourceNo);
+		state.conditionl = state.getReg(targetNo);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(targetNo);
+		e.loadReg(sourceNo);
+		e.compare();
+		return true;
 	}
 
 	@Override
@@ -1,20 +1,37 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class Dec extends Instruction {
 	String reg;
+	int regNo;
 	
 	public Dec(String reg) {
 		this.reg = reg;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		regNo = p.register(reg);
+	}
+
 	@Override
 	public void execute(State state) {
-		long value = state.getReg(reg) - 1;
+		long value = state.getReg(regNo) - 1;
 		if (state.beVerbose)
 			System.out.println(reg + " <- " + value);
-		state.setReg(reg, value);
+		state.setReg(regNo, value);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(regNo);
+		e.constant(1);
+		e.sub();
+		e.storeReg(regNo);
+		return true;
 	}
 
 	@Override
@@ -1,24 +1,45 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class DivR extends Instruction {
 	String source;
+	int sourceNo;
 	
 	public DivR(String source) {
 		this.source = source;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+	}
+
 	@Override
 	public void execute(State state) {
-		long ax = state.getReg(Instruction.AX);
-		long src = state.getReg(source);
+		long ax = state.getReg(State.RAX);
+		long src = state.getReg(sourceNo);
 		long quot = ax / src;
 		long rem = ax % src;
 		if (state.beVerbose) 
 			System.out.println(Instruction.AX + " <- " + quot + "; " + Instruction.DX + " <- " + rem);
-		state.setReg(Instruction.AX, quot);
-		state.setReg(Instruction.DX, rem);
+		state.setReg(State.RAX, quot);
+		state.setReg(State.RDX, rem);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(State.RAX);
+		e.loadReg(sourceNo);
+		e.rem();
+		e.loadReg(State.RAX);
+		e.loadReg(sourceNo);
+		e.div();
+		e.storeReg(State.RAX);
+		e.storeReg(State.RDX);
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,228 @@
+package x86_64sim.instruction;
+
+import x86_64sim.State;
+
+/**
+ * A superinstruction: a few instructions from the same basic block, which the simulator
+ * runs with a single dispatch. Only the last of them may jump, call or return, and only
+ * the first may have a label (see {@link x86_64sim.Fusion}).
+ * <p>
+ * This class runs any sequence, one part after the other. The common sequences
+ * have subclasses of their own (see {@link #of(Instruction...)}), that know the types
+ * of their parts, so that the calls to their execute methods can be inlined.
+ * Either way, pc and instructionsExecuted end up as if each part had been stepped.
+ */
+public class Fused extends Instruction {
+	final Instruction[] parts;
+
+	Fused(Instruction... parts) {
+		this.parts = parts;
+	}
+
+	/**
+	 * The superinstruction for a sequence of (predecoded) instructions.
+	 */
+	public static Fused of(Instruction... parts) {
+		if (matches(parts, CmpI2R.class, CJmp.class))
+			return new CompareImmediateAndJump(parts);
+		if (matches(parts, CmpR2R.class, CJmp.class))
+			return new CompareAndJump(parts);
+		if (matches(parts, CmpR2R.class, MoveI2R.class, CMovR2R.class))
+			return new CompareAndSet(parts);
+		if (matches(parts, MoveM2R.class, CmpR2R.class))
+			return new LoadAndCompare(parts);
+		if (matches(parts, MoveM2R.class, MoveM2R.class))
+			return new LoadLoad(parts);
+		if (matches(parts, MoveR2R.class, AddI2R.class))
+			return new MoveAndAdd(parts);
+		if (matches(parts, Push.class, MoveR2R.class, SubI2R.class))
+			return new Prologue(parts);
+		if (matches(parts, Leave.class, Ret.class))
+			return new Epilogue(parts);
+		return new Fused(parts);
+	}
+
+	private static boolean matches(Instruction[] parts, Class<?>... types) {
+		if (parts.length != types.length) return false;
+		for (int i = 0; i < parts.length; i++)
+			if (parts[i].getClass() != types[i]) return false;
+		return true;
+	}
+
+	public int length() {
+		return parts.length;
+	}
+
+	@Override
+	public void execute(State state) {
+		parts[0].execute(state);
+		for (int i = 1; i < parts.length; i++) {
+			next(state);
+			parts[i].execute(state);
+		}
+	}
+
+	/**
+	 * Move on to the next part, counting the one before (State.step counts the last).
+	 */
+	static void next(State state) {
+		state.pc++;
+		state.instructionsExecuted++;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < parts.length; i++) {
+			if (i > 0) s.append('\n');
+			s.append(parts[i]);
+		}
+		return s.toString();
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// The usual code of X86_64Muncher and X86_64Frame
+
+	/** cmpq $i, r; jcc (loop and if conditions) */
+	static class CompareImmediateAndJump extends Fused {
+		final CmpI2R compare;
+		final CJmp jump;
+		CompareImmediateAndJump(Instruction[] parts) {
+			super(parts);
+			compare = (CmpI2R) parts[0];
+			jump = (CJmp) parts[1];
+		}
+		@Override
+		public void execute(State state) {
+			compare.execute(state);
+			next(state);
+			jump.execute(state);
+		}
+	}
+
+	/** cmpq r, r; jcc */
+	static class CompareAndJump extends Fused {
+		final CmpR2R compare;
+		final CJmp jump;
+		CompareAndJump(Instruction[] parts) {
+			super(parts);
+			compare = (CmpR2R) parts[0];
+			jump = (CJmp) parts[1];
+		}
+		@Override
+		public void execute(State state) {
+			compare.execute(state);
+			next(state);
+			jump.execute(state);
+		}
+	}
+
+	/** cmpq r, r; movq $i, r; cmovcc r, r (a boolean from a comparison) */
+	static class CompareAndSet extends Fused {
+		final CmpR2R compare;
+		final MoveI2R move;
+		final CMovR2R cmov;
+		CompareAndSet(Instruction[] parts) {
+			super(parts);
+			compare = (CmpR2R) parts[0];
+			move = (MoveI2R) parts[1];
+			cmov = (CMovR2R) parts[2];
+		}
+		@Override
+		public void execute(State state) {
+			compare.execute(state);
+			next(state);
+			move.execute(state);
+			next(state);
+			cmov.execute(state);
+		}
+	}
+
+	/** movq i(r), r; cmpq r, r (array bounds checks) */
+	static class LoadAndCompare extends Fused {
+		final MoveM2R load;
+		final CmpR2R compare;
+		LoadAndCompare(Instruction[] parts) {
+			super(parts);
+			load = (MoveM2R) parts[0];
+			compare = (CmpR2R) parts[1];
+		}
+		@Override
+		public void execute(State state) {
+			load.execute(state);
+			next(state);
+			compare.execute(state);
+		}
+	}
+
+	/** movq i(r), r; movq i(r), r (reloading spilled Temps, fields of this) */
+	static class LoadLoad extends Fused {
+		final MoveM2R first, second;
+		LoadLoad(Instruction[] parts) {
+			super(parts);
+			first = (MoveM2R) parts[0];
+			second = (MoveM2R) parts[1];
+		}
+		@Override
+		public void execute(State state) {
+			first.execute(state);
+			next(state);
+			second.execute(state);
+		}
+	}
+
+	/** movq r, r; addq $i, r (two address arithmetic) */
+	static class MoveAndAdd extends Fused {
+		final MoveR2R move;
+		final AddI2R add;
+		MoveAndAdd(Instruction[] parts) {
+			super(parts);
+			move = (MoveR2R) parts[0];
+			add = (AddI2R) parts[1];
+		}
+		@Override
+		public void execute(State state) {
+			move.execute(state);
+			next(state);
+			add.execute(state);
+		}
+	}
+
+	/** pushq %rbp; movq %rsp, %rbp; subq $n, %rsp */
+	static class Prologue extends Fused {
+		final Push push;
+		final MoveR2R move;
+		final SubI2R sub;
+		Prologue(Instruction[] parts) {
+			super(parts);
+			push = (Push) parts[0];
+			move = (MoveR2R) parts[1];
+			sub = (SubI2R) parts[2];
+		}
+		@Override
+		public void execute(State state) {
+			push.execute(state);
+			next(state);
+			move.execute(state);
+			next(state);
+			sub.execute(state);
+		}
+	}
+
+	/** leave; ret */
+	static class Epilogue extends Fused {
+		final Leave leave;
+		final Ret ret;
+		Epilogue(Instruction[] parts) {
+			super(parts);
+			leave = (Leave) parts[0];
+			ret = (Ret) parts[1];
+		}
+		@Override
+		public void execute(State state) {
+			leave.execute(state);
+			next(state);
+			ret.execute(state);
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public abstract class Instruction {
 	public static final String SP = "%rsp";
@@ -9,6 +11,24 @@ public abstract class Instruction {
 	public static final String AX = "%rax";
 	public static final String DX = "%rdx";
 
+	/**
+	 * Called once the whole program has been loaded: resolve register names to
+	 * register numbers, and labels to addresses, so that execute doesn't have to
+	 * look anything up by name.
+	 */
+	public void predecode(Program p) {
+	}
+
 	abstract public void execute(State state);
+
+	/**
+	 * Emit bytecode that does what execute does (except for the verbose output),
+	 * for the {@link x86_64sim.jit.Jit}. Returns false, without emitting anything,
+	 * if the instruction should be left to the interpreter.
+	 */
+	public boolean compile(Emitter e) {
+		return false;
+	}
+
 	abstract public String toString();
 }
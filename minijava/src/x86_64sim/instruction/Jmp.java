@@ -1,21 +1,37 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class Jmp extends Instruction {
 	String label;
+	long target;
 
 	public Jmp(String label) {
 		this.label = label;
 	}
 
+	@Override
+	public void predecode(Program p) {
+		target = p.address(label);
+	}
+
 	@Override
 	public void execute(State state) {
 		if (state.beVerbose)
 			System.out.println("jmp -> " + label);
-		state.jump(label);
+		state.jump(target, label);
 	}
 	
+	@Override
+	public boolean compile(Emitter e) {
+		if (target == Program.UNDEFINED)
+			return false;
+		e.jump(target);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tjmp\t" + label;
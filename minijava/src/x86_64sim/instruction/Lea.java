@@ -1,10 +1,14 @@
 package x86_64sim.instruction;
 
 import junit.framework.Assert;
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class Lea extends Instruction {
 	String base, index, target, id;
+	int baseNo, indexNo, targetNo;
+	long labelAddress;
 	long offset, scale;
 	
 	public Lea(String offset, String base, String target, String index, String scale) {
@@ -29,17 +33,47 @@ public class Lea extends Instruction {
 		this.scale = 1;
 	}
 		
+	@Override
+	public void predecode(Program p) {
+		if (id != null)
+			labelAddress = p.address(id);
+		else
+			baseNo = p.register(base);
+		if (index != null)
+			indexNo = p.register(index);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
 		long value;
 		if (id != null) {
-			value = state.p.getLabel(id);
+			value = labelAddress;
 		} else {
-			value = offset + state.getReg(base) + (index == null ? 0 : state.getReg(index) * scale);
+			value = offset + state.getReg(baseNo) + (index == null ? 0 : state.getReg(indexNo) * scale);
 		}
 		if (state.beVerbose)
 			System.out.println(target + " <- " + value);
-		state.setReg(target, value);
+		state.setReg(targetNo, value);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		if (id != null) {
+			e.constant(labelAddress);
+		} else {
+			e.constant(offset);
+			e.loadReg(baseNo);
+			e.add();
+			if (index != null) {
+				e.loadReg(indexNo);
+				e.constant(scale);
+				e.mul();
+				e.add();
+			}
+		}
+		e.storeReg(targetNo);
+		return true;
 	}
 
 	@Override
@@ -2,6 +2,7 @@ package x86_64sim.instruction;
 
 import x86_64sim.Memory;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class Leave extends Instruction {
 	public Leave() {
@@ -9,16 +10,29 @@ public class Leave extends Instruction {
 
 	@Override
 	public void execute(State state) {
-		long sp = state.getReg(BP);
+		long sp = state.getReg(State.RBP);
 		long bp = state.ram.read(sp);
 		long newsp = sp + Memory.SIZEOF_LONG;
 		if (state.beVerbose) {
 			System.out.println(BP + " <- " +  state.hex(bp));
 			System.out.println(SP + " <- " +  state.hex(newsp));
 		}
-		state.setReg(BP, bp);
-		state.setReg(SP, newsp);
+		state.setReg(State.RBP, bp);
+		state.setReg(State.RSP, newsp);
 	}
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(State.RBP);
+		e.read();
+		e.loadReg(State.RBP);
+		e.constant(Memory.SIZEOF_LONG);
+		e.add();
+		e.storeReg(State.RSP);
+		e.storeReg(State.RBP);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tleave";
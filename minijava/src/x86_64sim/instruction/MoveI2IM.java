@@ -1,6 +1,8 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class MoveI2IM extends Instruction {
 	long offset, scale;
@@ -8,6 +10,8 @@ public class MoveI2IM extends Instruction {
 	boolean isNumber = true;
 	long source;
 	String id;
+	long labelAddress;
+	int targetNo, indexNo;
 
 	public MoveI2IM(String offset, String source, String target, String index, String scale) {
 		this.offset = Long.parseLong(offset);
@@ -23,20 +27,43 @@ public class MoveI2IM extends Instruction {
 		this.scale = Long.parseLong(scale);
 	}
 
+	@Override
+	public void predecode(Program p) {
+		if (!isNumber)
+			labelAddress = p.address(id);
+		targetNo = p.register(target);
+		indexNo = p.register(index);
+	}
+
 	@Override
 	public void execute(State state) {
-		long address = state.getReg(target) + offset + state.getReg(index) * scale;
+		long address = state.getReg(targetNo) + offset + state.getReg(indexNo) * scale;
 		long value;
 		if (isNumber) 
 			value = source;
 		else {
-			value = state.getLabel(id);
+			value = labelAddress;
 		}
 		if (state.beVerbose)
 			System.out.println("M[" + state.hex(address) + "] <- " + value);
 
 		state.ram.write(address, value);
 	}
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(targetNo);
+		e.constant(offset);
+		e.add();
+		e.loadReg(indexNo);
+		e.constant(scale);
+		e.mul();
+		e.add();
+		e.constant(isNumber ? source : labelAddress);
+		e.write();
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tmovq\t" + source + ", " + (offset == 0 ? "" : offset) + "(" + target + ", " + index + ", " + scale + ")";
@@ -1,6 +1,8 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class MoveI2M extends Instruction {
 	long offset;
@@ -8,6 +10,8 @@ public class MoveI2M extends Instruction {
 	boolean isNumber = true;
 	long source;
 	String id;
+	long labelAddress;
+	int targetNo;
 
 	public MoveI2M(String offset, String source, String target) {
 		this.offset = Long.parseLong(offset);
@@ -21,19 +25,37 @@ public class MoveI2M extends Instruction {
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		if (!isNumber)
+			labelAddress = p.address(id);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		long address = state.getReg(target) + offset;
+		long address = state.getReg(targetNo) + offset;
 		long value;
 		if (isNumber) 
 			value = source;
 		else {
-			value = state.getLabel(id);
+			value = labelAddress;
 		}
 		if (state.beVerbose)
 			System.out.println("M[" + state.hex(address) + "] <- " + value);
 		state.ram.write(address, value);
 	}
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(targetNo);
+		e.constant(offset);
+		e.add();
+		e.constant(isNumber ? source : labelAddress);
+		e.write();
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tmovq\t" + source + ", " + (offset == 0 ? "" : offset) + "(" + target + ")";
@@ -1,12 +1,16 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class MoveI2R extends Instruction {
 	boolean isNumber = true;
 	long source;
 	String id;
+	long labelAddress;
 	String target;
+	int targetNo;
 	
 	public MoveI2R(String source, String target) {
 		try {
@@ -19,18 +23,32 @@ public class MoveI2R extends Instruction {
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		if (!isNumber)
+			labelAddress = p.address(id);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
 		long value;
 		if (isNumber) 
 			value = source;
 		else {
-			value = state.getLabel(id);
+			value = labelAddress;
 		}
 		if (state.beVerbose)
 			System.out.println(target + " <- " +  value);
 
-		state.setReg(target, value);
+		state.setReg(targetNo, value);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.constant(isNumber ? source : labelAddress);
+		e.storeReg(targetNo);
+		return true;
 	}
 
 	@Override
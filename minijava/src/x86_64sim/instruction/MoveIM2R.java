@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class MoveIM2R extends Instruction {
 	long offset, scale;
 	String source, target, index;
+	int sourceNo, targetNo, indexNo;
 	
 	public MoveIM2R(String offset, String source, String target, String index, String scale) {
 		this.offset = Long.parseLong(offset);
@@ -14,12 +17,34 @@ public class MoveIM2R extends Instruction {
 		this.scale = Long.parseLong(scale);
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+		indexNo = p.register(index);
+	}
+
 	@Override
 	public void execute(State state) {
-		long value = state.ram.read(state.getReg(source) + offset + state.getReg(index) * scale);
+		long value = state.ram.read(state.getReg(sourceNo) + offset + state.getReg(indexNo) * scale);
 		if (state.beVerbose) 
 			System.out.println(target + " <- " + value);
-		state.setReg(target, value);
+		state.setReg(targetNo, value);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(sourceNo);
+		e.constant(offset);
+		e.add();
+		e.loadReg(indexNo);
+		e.constant(scale);
+		e.mul();
+		e.add();
+		e.read();
+		e.storeReg(targetNo);
+		return true;
 	}
 
 	@Override
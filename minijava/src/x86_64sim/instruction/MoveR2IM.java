@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class MoveR2IM extends Instruction {
 	long offset, scale;
 	String source, target, index;
+	int sourceNo, targetNo, indexNo;
 
 	public MoveR2IM(String offset, String source, String target, String index, String scale) {
 		this.offset = Long.parseLong(offset);
@@ -14,15 +17,37 @@ public class MoveR2IM extends Instruction {
 		this.scale = Long.parseLong(scale);
 	}
 
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+		indexNo = p.register(index);
+	}
+
 	@Override
 	public void execute(State state) {
-		long address = state.getReg(target) + offset + state.getReg(index) * scale;
-		long value = state.getReg(source);
+		long address = state.getReg(targetNo) + offset + state.getReg(indexNo) * scale;
+		long value = state.getReg(sourceNo);
 		if (state.beVerbose)
 			System.out.println("M[" + state.hex(address) + "] <- " + value);
 
 		state.ram.write(address, value);
 	}
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(targetNo);
+		e.constant(offset);
+		e.add();
+		e.loadReg(indexNo);
+		e.constant(scale);
+		e.mul();
+		e.add();
+		e.loadReg(sourceNo);
+		e.write();
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tmovq\t" + source + ", " + (offset == 0 ? "" : offset) + "(" + target + ", " + index + ", " + scale + ")";
@@ -1,10 +1,13 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class MoveR2M extends Instruction {
 	long offset;
 	String source, target;
+	int sourceNo, targetNo;
 	
 	public MoveR2M(String offset, String source, String target) {
 		this.offset = Long.parseLong(offset);
@@ -12,14 +15,31 @@ public class MoveR2M extends Instruction {
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		long address = state.getReg(target) + offset;
-		long value = state.getReg(source);
+		long address = state.getReg(targetNo) + offset;
+		long value = state.getReg(sourceNo);
 		if (state.beVerbose)
 			System.out.println("M[" + state.hex(address) + "] <- " + value);
 		state.ram.write(address, value);
 	}
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(targetNo);
+		e.constant(offset);
+		e.add();
+		e.loadReg(sourceNo);
+		e.write();
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tmovq\t" + source + ", " + (offset == 0 ? "" : offset) + "(" + target + ")";
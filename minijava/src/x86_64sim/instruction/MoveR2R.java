@@ -1,21 +1,37 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class MoveR2R extends Instruction {
 	String target, source;
+	int sourceNo, targetNo;
 	
 	public MoveR2R(String source, String target) {
 		this.source = source;
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		long value = state.getReg(source);
+		long value = state.getReg(sourceNo);
 		if (state.beVerbose)
 			System.out.println(target + " <- " + value);
-		state.setReg(target, value);
+		state.setReg(targetNo, value);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(sourceNo);
+		e.storeReg(targetNo);
+		return true;
 	}
 
 	@Override
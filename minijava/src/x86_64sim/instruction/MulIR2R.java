@@ -1,11 +1,14 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class MulIR2R extends Instruction {
 	long immediate;
 	String source;
 	String target;
+	int sourceNo, targetNo;
 	
 	public MulIR2R(String immediate, String source, String target) {
 		this.immediate = Long.parseLong(immediate);
@@ -13,13 +16,28 @@ public class MulIR2R extends Instruction {
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		long value = state.getReg(source) * immediate;
+		long value = state.getReg(sourceNo) * immediate;
 		if (state.beVerbose)
 			System.out.println(target + " <- " + value);
-		state.setReg(target, value);
+		state.setReg(targetNo, value);
 	}
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(sourceNo);
+		e.constant(immediate);
+		e.mul();
+		e.storeReg(targetNo);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\timulq\t$" + immediate + ", " + source + ", " + target;
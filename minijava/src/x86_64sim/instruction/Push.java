@@ -1,26 +1,49 @@
 package x86_64sim.instruction;
 
 import x86_64sim.Memory;
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class Push extends Instruction {
 	String reg;
+	int regNo;
 	
 	public Push(String reg) {
 		this.reg = reg;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		regNo = p.register(reg);
+	}
+
 	@Override
 	public void execute(State state) {
-		long sp = state.getReg(SP);
+		long sp = state.getReg(State.RSP);
 		long newsp = sp - Memory.SIZEOF_LONG;
-		long value = state.getReg(reg);
+		long value = state.getReg(regNo);
 		if (state.beVerbose) {
 			System.out.println("M[" + state.hex(newsp) + "] <- " + value);
 			System.out.println(SP + " <- " +  state.hex(newsp));
 		}
 		state.ram.write(newsp, value);
-		state.setReg(SP, newsp);
+		state.setReg(State.RSP, newsp);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.memory();
+		e.loadReg(State.RSP);
+		e.constant(Memory.SIZEOF_LONG);
+		e.sub();
+		e.loadReg(regNo);
+		e.write();
+		e.loadReg(State.RSP);
+		e.constant(Memory.SIZEOF_LONG);
+		e.sub();
+		e.storeReg(State.RSP);
+		return true;
 	}
 
 	@Override
@@ -9,14 +9,14 @@ public class Ret extends Instruction {
 
 	@Override
 	public void execute(State state) {
-		long sp = state.getReg(SP);
+		long sp = state.getReg(State.RSP);
 		long ra = state.ram.read(sp);
 		long newsp = sp + Memory.SIZEOF_LONG;
 		if (state.beVerbose) {
 			System.out.println("Return to " + ra + " " + state.p.getFunctionAt(ra));
 			System.out.println(SP + " <- " +  state.hex(newsp));
 		}
-		state.setReg(SP, newsp);
+		state.setReg(State.RSP, newsp);
 		state.do_return();
 		state.jump(ra);
 	}
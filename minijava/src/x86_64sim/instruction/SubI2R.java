@@ -1,23 +1,40 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class SubI2R extends Instruction {
 	long source;
 	String target;
+	int targetNo;
 	
 	public SubI2R(String source, String target) {
 		this.source = Long.parseLong(source);
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		long value = state.getReg(target) - source;
+		long value = state.getReg(targetNo) - source;
 		if (state.beVerbose)
 			System.out.println(target + " <- " + value);
-		state.setReg(target, value);
+		state.setReg(targetNo, value);
 	}
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(targetNo);
+		e.constant(source);
+		e.sub();
+		e.storeReg(targetNo);
+		return true;
+	}
+
 	@Override
 	public String toString() {
 		return "\tsubq\t$" + source + ", " + target;
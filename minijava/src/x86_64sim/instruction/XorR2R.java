@@ -1,22 +1,40 @@
 package x86_64sim.instruction;
 
+import x86_64sim.Program;
 import x86_64sim.State;
+import x86_64sim.jit.Emitter;
 
 public class XorR2R extends Instruction {
 	String source;
 	String target;
+	int sourceNo, targetNo;
 	
 	public XorR2R(String source, String target) {
 		this.source = source;
 		this.target = target;
 	}
 	
+	@Override
+	public void predecode(Program p) {
+		sourceNo = p.register(source);
+		targetNo = p.register(target);
+	}
+
 	@Override
 	public void execute(State state) {
-		long value = state.getReg(target) ^ state.getReg(source);
+		long value = state.getReg(targetNo) ^ state.getReg(sourceNo);
 		if (state.beVerbose)
 			System.out.println(target + " <- " + value);
-		state.setReg(target, value);
+		state.setReg(targetNo, value);
+	}
+
+	@Override
+	public boolean compile(Emitter e) {
+		e.loadReg(targetNo);
+		e.loadReg(sourceNo);
+		e.xor();
+		e.storeReg(targetNo);
+		return true;
 	}
 
 	@Override
@@ -0,0 +1,18 @@
+package x86_64sim.jit;
+
+import x86_64sim.State;
+
+/**
+ * A function of the simulated program, translated to JVM bytecode by the
+ * {@link Jit}. Subclasses are generated at run time.
+ */
+public abstract class CompiledCode {
+
+	/**
+	 * Run from state.pc (which must be one of the entry points the code was
+	 * compiled with) until control leaves the compiled code: at a call, a return,
+	 * an instruction the compiler doesn't handle, or a jump out of the function.
+	 * The state is then just as if the interpreter had run the same instructions.
+	 */
+	public abstract void run(State state);
+}
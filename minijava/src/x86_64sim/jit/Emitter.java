@@ -0,0 +1,605 @@
+package x86_64sim.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import x86_64sim.Condition;
+
+/**
+ * Generates the JVM bytecode for a {@link CompiledCode} subclass, one simulated
+ * instruction at a time. The public methods are what instructions use to compile
+ * themselves (see {@link x86_64sim.instruction.Instruction#compile(Emitter)}): they
+ * work on an operand stack of longs, like the JVM itself, with the simulated
+ * registers and the condition code kept in local variables.
+ * <p>
+ * The class files have version 49, which doesn't need stack map frames: the JVM
+ * verifies them by type inference. That keeps this simple enough to write by hand.
+ */
+public class Emitter {
+
+	/**
+	 * A position in the code, possibly not known yet when a branch to it is emitted.
+	 */
+	public static class Label {
+		int position = -1;
+		/** Branches to this label: where the branch instruction starts, and where its offset goes. */
+		List<int[]> uses = new ArrayList<int[]>();
+	}
+
+	/** Thrown when the code doesn't fit the limits of a JVM method. */
+	static class TooBig extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+	// Local variables of the generated run(State) method.
+	static final int STATE = 1, RAM = 2, REGISTERS = 3;
+	static final int CONDITIONL = 4, CONDITIONR = 6, COUNT = 8, LIMIT = 10, NEXT = 12, EXCEPTION = 14;
+	private static final int FIRST_REGISTER = 15;
+
+	private static final String STATE_CLASS = "x86_64sim/State";
+	private static final String MEMORY_CLASS = "x86_64sim/Memory";
+	private static final String CONDITION_CLASS = "x86_64sim/Condition";
+
+	private Code body = new Code();
+	/** Simulated register number -> local variable. */
+	private Map<Integer, Integer> registers = new LinkedHashMap<Integer, Integer>();
+	private int nextLocal = FIRST_REGISTER;
+	private ConstantPool pool = new ConstantPool();
+	private boolean countPending;
+	private final Label exit = new Label();
+
+	/////////////////////////////////////////////////////////////////////
+	// For instructions
+
+	public void loadReg(int reg) {
+		op(0x16); body.u1(local(reg)); // lload
+	}
+
+	public void storeReg(int reg) {
+		op(0x37); body.u1(local(reg)); // lstore
+	}
+
+	public void constant(long value) {
+		if (value == 0)
+			op(0x09); // lconst_0
+		else if (value == 1)
+			op(0x0a); // lconst_1
+		else {
+			op(0x14); body.u2(pool.longConstant(value)); // ldc2_w
+		}
+	}
+
+	public void add() { op(0x61); }
+	public void sub() { op(0x65); }
+	public void mul() { op(0x69); }
+	public void div() { op(0x6d); }
+	public void rem() { op(0x71); }
+	public void and() { op(0x7f); }
+	public void xor() { op(0x83); }
+
+	/**
+	 * Arithmetic shift right of the long on the stack.
+	 */
+	public void shiftRight(long amount) {
+		intConstant((int) (amount & 63)); // as Java (and x86) shift
+		op(0x7b); // lshr
+	}
+
+	/**
+	 * Push the simulated memory. Do this before computing the address for
+	 * {@link #read()} or {@link #write()}.
+	 */
+	public void memory() {
+		op(0x19); body.u1(RAM); // aload
+	}
+
+	/**
+	 * memory, address -> value at that address
+	 */
+	public void read() {
+		op(0xb6); body.u2(pool.method(MEMORY_CLASS, "read", "(J)J")); // invokevirtual
+	}
+
+	/**
+	 * memory, address, value ->
+	 */
+	public void write() {
+		op(0xb6); body.u2(pool.method(MEMORY_CLASS, "write", "(JJ)V")); // invokevirtual
+	}
+
+	/**
+	 * Call a public static method, with longs for arguments and result.
+	 */
+	public void call(String owner, String name, String descriptor) {
+		op(0xb8); body.u2(pool.method(owner, name, descriptor)); // invokestatic
+	}
+
+	/**
+	 * conditionl, conditionr -> (as the operands of a cmp instruction)
+	 */
+	public void compare() {
+		op(0x37); body.u1(CONDITIONR);
+		op(0x37); body.u1(CONDITIONL);
+	}
+
+	/**
+	 * Go to another instruction of the simulated program.
+	 */
+	public void jump(long target) {
+		Label label = compiler.labelFor(target);
+		if (label == null)
+			exit(target);
+		else
+			branch(0xa7, label); // goto
+	}
+
+	/**
+	 * Go to another instruction of the simulated program, if the condition
+	 * holds for the operands of the last compare.
+	 */
+	public void jump(Condition condition, long target) {
+		Label label = compiler.labelFor(target);
+		if (label != null) {
+			branch(condition, label);
+			return;
+		}
+		Label taken = new Label();
+		branch(condition, taken);
+		Label notTaken = new Label();
+		branch(0xa7, notTaken);
+		place(taken);
+		jump(target);
+		place(notTaken);
+	}
+
+	/**
+	 * Skip the code up to {@link #place(Label)} of the returned label, unless
+	 * the condition holds for the operands of the last compare.
+	 */
+	public Label unless(Condition condition) {
+		Label holds = new Label();
+		Label skip = new Label();
+		branch(condition, holds);
+		branch(0xa7, skip);
+		place(holds);
+		return skip;
+	}
+
+	public void place(Label label) {
+		flushCount();
+		label.position = body.length;
+		for (int[] use : label.uses)
+			body.patch(use[1], label.position - use[0]);
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// For the Jit
+
+	private final Jit.FunctionCompiler compiler;
+
+	Emitter(Jit.FunctionCompiler compiler) {
+		this.compiler = compiler;
+	}
+
+	/**
+	 * Start the code for the next instruction. Its execution is counted as
+	 * soon as it emits anything.
+	 */
+	void beginInstruction() {
+		countPending = true;
+	}
+
+	void endInstruction() {
+		flushCount();
+	}
+
+	/**
+	 * Forget about counting the current instruction: it didn't emit anything,
+	 * the interpreter will run it.
+	 */
+	void dropInstruction() {
+		countPending = false;
+	}
+
+	/**
+	 * Leave the compiled code, to continue at the given pc.
+	 */
+	void exit(long pc) {
+		constant(pc);
+		op(0x37); body.u1(NEXT); // lstore
+		branch(0xa7, exit);
+	}
+
+	/**
+	 * Leave the compiled code unless it may execute some more instructions before
+	 * the next check: as many as {@link #setLimitCheck} says, later. Returns where
+	 * that number goes.
+	 */
+	int checkLimit(long pc) {
+		Label ok = new Label();
+		op(0x16); body.u1(COUNT);
+		op(0x11); // sipush
+		int at = body.length;
+		body.u2(0);
+		op(0x85); // i2l
+		op(0x61); // ladd
+		op(0x16); body.u1(LIMIT);
+		op(0x94); // lcmp
+		branch(0x9e, ok); // ifle
+		exit(pc);
+		place(ok);
+		return at;
+	}
+
+	void setLimitCheck(int at, int instructions) {
+		if (instructions > Short.MAX_VALUE) throw new TooBig();
+		body.bytes[at] = (byte) (instructions >> 8);
+		body.bytes[at + 1] = (byte) instructions;
+	}
+
+	int position() {
+		return body.length;
+	}
+
+	/**
+	 * Finish the code and make a class file out of it. The compiled code can be
+	 * entered at each of the given pcs, at the given position in the code.
+	 */
+	byte[] toClass(String name, Map<Long, Integer> entries) {
+		// Epilogue: write everything back to the State.
+		int tryEnd = body.length;
+		place(exit);
+		writeBack();
+		op(0x2b); // aload_1
+		op(0x16); body.u1(NEXT);
+		op(0xb5); body.u2(pool.field(STATE_CLASS, "pc", "J")); // putfield
+		op(0xb1); // return
+
+		// Exceptions (e.g. from Memory) leave the State as the interpreter would,
+		// which doesn't count the instruction that failed.
+		int handler = body.length;
+		op(0x3a); body.u1(EXCEPTION); // astore
+		op(0x16); body.u1(COUNT);
+		op(0x0a); // lconst_1
+		op(0x65); // lsub
+		op(0x37); body.u1(COUNT);
+		writeBack();
+		op(0x19); body.u1(EXCEPTION); // aload
+		op(0xbf); // athrow
+
+		// Entering somewhere else can't happen: just return.
+		int unknown = body.length;
+		op(0xb1);
+
+		Code prologue = prologue(entries, unknown);
+		int shift = prologue.length;
+		if (shift + body.length > 65535) throw new TooBig();
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			int thisClass = pool.classRef(name);
+			int superClass = pool.classRef("x86_64sim/jit/CompiledCode");
+			int init = pool.method("x86_64sim/jit/CompiledCode", "<init>", "()V");
+			int code = pool.utf8("Code");
+			int initName = pool.utf8("<init>");
+			int initType = pool.utf8("()V");
+			int runName = pool.utf8("run");
+			int runType = pool.utf8("(L" + STATE_CLASS + ";)V");
+
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(49);
+			pool.write(out);
+			out.writeShort(0x0021); // public super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(2); // methods
+
+			// public <init>() { super(); }
+			out.writeShort(0x0001);
+			out.writeShort(initName);
+			out.writeShort(initType);
+			out.writeShort(1);
+			out.writeShort(code);
+			out.writeInt(2 + 2 + 4 + 5 + 2 + 2);
+			out.writeShort(1); // max stack
+			out.writeShort(1); // max locals
+			out.writeInt(5);
+			out.writeByte(0x2a); // aload_0
+			out.writeByte(0xb7); // invokespecial
+			out.writeShort(init);
+			out.writeByte(0xb1); // return
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+
+			// public void run(State state)
+			int length = shift + body.length;
+			out.writeShort(0x0001);
+			out.writeShort(runName);
+			out.writeShort(runType);
+			out.writeShort(1);
+			out.writeShort(code);
+			out.writeInt(2 + 2 + 4 + length + 2 + 8 + 2);
+			out.writeShort(16); // max stack: a few longs and the memory
+			out.writeShort(nextLocal);
+			out.writeInt(length);
+			out.write(prologue.bytes, 0, prologue.length);
+			out.write(body.bytes, 0, body.length);
+			out.writeShort(1);
+			out.writeShort(shift);
+			out.writeShort(shift + tryEnd);
+			out.writeShort(shift + handler);
+			out.writeShort(0); // any exception
+			out.writeShort(0); // attributes
+
+			out.writeShort(0); // class attributes
+			out.flush();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * Load the State into local variables and go to the entry point for state.pc.
+	 */
+	private Code prologue(Map<Long, Integer> entries, int unknown) {
+		Code code = new Code();
+		code.u1(0x2b); code.u1(0xb4); code.u2(pool.field(STATE_CLASS, "ram", "L" + MEMORY_CLASS + ";")); // getfield
+		code.u1(0x4d); // astore_2
+		code.u1(0x2b); code.u1(0xb4); code.u2(pool.field(STATE_CLASS, "registers", "[J"));
+		code.u1(0x4e); // astore_3
+		for (Map.Entry<Integer, Integer> reg : registers.entrySet()) {
+			code.u1(0x2d); // aload_3
+			code.u1(0x11); code.u2(reg.getKey()); // sipush
+			code.u1(0x2f); // laload
+			code.u1(0x37); code.u1(reg.getValue());
+		}
+		loadField(code, "conditionl", CONDITIONL);
+		loadField(code, "conditionr", CONDITIONR);
+		loadField(code, "instructionsExecuted", COUNT);
+		loadField(code, "maxInstructions", LIMIT);
+		code.u1(0x2b); code.u1(0xb4); code.u2(pool.field(STATE_CLASS, "pc", "J"));
+		code.u1(0x88); // l2i
+
+		// lookupswitch: padded to a multiple of 4, then default, count, sorted (key, offset) pairs.
+		int switchAt = code.length;
+		int padding = 3 - switchAt % 4;
+		int length = switchAt + 1 + padding + 8 + 8 * entries.size();
+		code.u1(0xab);
+		for (int i = 0; i < padding; i++) code.u1(0);
+		code.u4(length + unknown - switchAt);
+		code.u4(entries.size());
+		java.util.List<Long> pcs = new ArrayList<Long>(entries.keySet());
+		java.util.Collections.sort(pcs);
+		for (Long pc : pcs) {
+			code.u4((int) (long) pc);
+			code.u4(length + entries.get(pc) - switchAt);
+		}
+		return code;
+	}
+
+	private void loadField(Code code, String field, int local) {
+		code.u1(0x2b); code.u1(0xb4); code.u2(pool.field(STATE_CLASS, field, "J"));
+		code.u1(0x37); code.u1(local);
+	}
+
+	private void writeBack() {
+		for (Map.Entry<Integer, Integer> reg : registers.entrySet()) {
+			op(0x2d); // aload_3
+			intConstant(reg.getKey());
+			op(0x16); body.u1(reg.getValue());
+			op(0x50); // lastore
+		}
+		storeField("conditionl", CONDITIONL);
+		storeField("conditionr", CONDITIONR);
+		storeField("instructionsExecuted", COUNT);
+	}
+
+	private void storeField(String field, int local) {
+		op(0x2b);
+		op(0x16); body.u1(local);
+		op(0xb5); body.u2(pool.field(STATE_CLASS, field, "J"));
+	}
+
+	/////////////////////////////////////////////////////////////////////
+	// Helpers
+
+	private int local(int reg) {
+		Integer local = registers.get(reg);
+		if (local == null) {
+			if (nextLocal > 253) throw new TooBig(); // lload/lstore take a byte
+			local = nextLocal;
+			nextLocal += 2;
+			registers.put(reg, local);
+		}
+		return local;
+	}
+
+	private void intConstant(int value) {
+		if (value < Short.MIN_VALUE || value > Short.MAX_VALUE) throw new TooBig();
+		op(0x11); body.u2(value); // sipush
+	}
+
+	/**
+	 * Branch if the condition holds for the operands of the last compare.
+	 */
+	private void branch(Condition condition, Label target) {
+		switch (condition) {
+		case GE:
+			// As in the interpreter: also when conditionr is negative.
+			op(0x16); body.u1(CONDITIONR);
+			op(0x09);
+			op(0x94);
+			branch(0x9b, target); // iflt
+			op(0x16); body.u1(CONDITIONL);
+			op(0x16); body.u1(CONDITIONR);
+			op(0x94);
+			branch(0x9c, target); // ifge
+			return;
+		case B: case A: case BE: case AE:
+			op(0x16); body.u1(CONDITIONL);
+			op(0x16); body.u1(CONDITIONR);
+			call(CONDITION_CLASS, "unsignedCompare", "(JJ)J");
+			op(0x09);
+			break;
+		default:
+			op(0x16); body.u1(CONDITIONL);
+			op(0x16); body.u1(CONDITIONR);
+		}
+		op(0x94); // lcmp
+		switch (condition) {
+		case L: case B:   branch(0x9b, target); break; // iflt
+		case E:           branch(0x99, target); break; // ifeq
+		case G: case A:   branch(0x9d, target); break; // ifgt
+		case LE: case BE: branch(0x9e, target); break; // ifle
+		case NE:          branch(0x9a, target); break; // ifne
+		case AE:          branch(0x9c, target); break; // ifge
+		default: throw new Error("Unexpected condition " + condition);
+		}
+	}
+
+	private void branch(int opcode, Label target) {
+		flushCount();
+		int at = body.length;
+		body.u1(opcode);
+		if (target.position >= 0) {
+			int offset = target.position - at;
+			if (offset < Short.MIN_VALUE) throw new TooBig();
+			body.u2(offset);
+		} else {
+			target.uses.add(new int[] { at, body.length });
+			body.u2(0);
+		}
+	}
+
+	private void op(int opcode) {
+		flushCount();
+		body.u1(opcode);
+	}
+
+	/**
+	 * Count the current instruction: COUNT++
+	 */
+	private void flushCount() {
+		if (!countPending) return;
+		countPending = false;
+		body.u1(0x16); body.u1(COUNT);
+		body.u1(0x0a);
+		body.u1(0x61);
+		body.u1(0x37); body.u1(COUNT);
+	}
+
+	/**
+	 * A growing array of bytes.
+	 */
+	private static class Code {
+		byte[] bytes = new byte[256];
+		int length;
+
+		void u1(int b) {
+			if (length == bytes.length)
+				bytes = java.util.Arrays.copyOf(bytes, 2 * length);
+			bytes[length++] = (byte) b;
+		}
+		void u2(int v) {
+			u1(v >> 8);
+			u1(v);
+		}
+		void u4(int v) {
+			u2(v >> 16);
+			u2(v);
+		}
+		void patch(int at, int offset) {
+			if (offset > Short.MAX_VALUE) throw new TooBig();
+			bytes[at] = (byte) (offset >> 8);
+			bytes[at + 1] = (byte) offset;
+		}
+	}
+
+	/**
+	 * The constant pool of the class file. Equal constants share an entry.
+	 */
+	private static class ConstantPool {
+		private ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private DataOutputStream out = new DataOutputStream(bytes);
+		private Map<String, Integer> index = new HashMap<String, Integer>();
+		private int count = 1;
+
+		int utf8(String s) {
+			Integer i = index.get("U" + s);
+			if (i != null) return i;
+			try {
+				out.writeByte(1);
+				out.writeUTF(s);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			return add("U" + s, 1);
+		}
+
+		int longConstant(long value) {
+			Integer i = index.get("J" + value);
+			if (i != null) return i;
+			try {
+				out.writeByte(5);
+				out.writeLong(value);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			return add("J" + value, 2);
+		}
+
+		int classRef(String name) {
+			return ref("C" + name, 7, utf8(name), -1);
+		}
+
+		int field(String owner, String name, String type) {
+			return ref("F" + owner + "." + name, 9, classRef(owner), nameAndType(name, type));
+		}
+
+		int method(String owner, String name, String type) {
+			return ref("M" + owner + "." + name + type, 10, classRef(owner), nameAndType(name, type));
+		}
+
+		private int nameAndType(String name, String type) {
+			return ref("N" + name + ":" + type, 12, utf8(name), utf8(type));
+		}
+
+		private int ref(String key, int tag, int a, int b) {
+			Integer i = index.get(key);
+			if (i != null) return i;
+			try {
+				out.writeByte(tag);
+				out.writeShort(a);
+				if (b >= 0) out.writeShort(b);
+			} catch (IOException e) {
+				throw new Error(e);
+			}
+			return add(key, 1);
+		}
+
+		private int add(String key, int slots) {
+			int i = count;
+			count += slots;
+			if (count > 65535) throw new TooBig();
+			index.put(key, i);
+			return i;
+		}
+
+		void write(DataOutputStream to) throws IOException {
+			out.flush();
+			to.writeShort(count);
+			bytes.writeTo(to);
+		}
+	}
+}
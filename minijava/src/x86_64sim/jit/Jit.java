@@ -0,0 +1,176 @@
+package x86_64sim.jit;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import x86_64sim.Program;
+import x86_64sim.State;
+
+/**
+ * A second tier for the simulator: functions of the simulated program that the
+ * interpreter finds itself in often get translated to JVM bytecode, so that HotSpot
+ * can compile them to machine code.
+ * <p>
+ * A function is compiled as a whole into one {@link CompiledCode} class, with the
+ * simulated registers in local variables. Each instruction emits its own bytecode (see
+ * {@link x86_64sim.instruction.Instruction#compile(Emitter)}). Calls, returns, jumps
+ * out of the function and instructions that can't be compiled leave the compiled code,
+ * so the interpreter runs them. The compiled code can be entered again at labels and
+ * right after such instructions.
+ * <p>
+ * Compiled code counts instructions just like the interpreter. At each label it checks
+ * that the instructions up to the next label can't take it past
+ * {@link State#maxInstructions}, and otherwise leaves the rest to the interpreter,
+ * which stops at the limit exactly.
+ */
+public class Jit {
+
+	private static boolean enabled = true;
+
+	/**
+	 * Turn the compiler on or off for simulations started from now on.
+	 */
+	public static void setEnabled(boolean enabled) {
+		Jit.enabled = enabled;
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * How often the interpreter must get to a label before the function is compiled.
+	 */
+	private static final int THRESHOLD = 50;
+
+	private static final AtomicInteger classes = new AtomicInteger();
+
+	private final Program p;
+	/** The compiled code to run from each address that it can be entered at. */
+	private final CompiledCode[] compiled;
+	private final int[] heat;
+	/** Functions (by their first address) that have been compiled or couldn't be. */
+	private final BitSet tried = new BitSet();
+
+	public Jit(Program p) {
+		this.p = p;
+		this.compiled = new CompiledCode[p.countInstructions()];
+		this.heat = new int[p.countInstructions()];
+	}
+
+	/**
+	 * Run compiled code from the current pc, if there is any. Returns false
+	 * if the interpreter should execute the next instruction instead.
+	 */
+	public boolean run(State state) {
+		long pc = state.pc;
+		if (pc < 0 || pc >= compiled.length || state.instructionsExecuted >= state.maxInstructions)
+			return false;
+		CompiledCode code = compiled[(int) pc];
+		if (code != null) {
+			long before = state.instructionsExecuted;
+			code.run(state);
+			// Close to the limit, the interpreter goes on one instruction at a time.
+			return state.instructionsExecuted != before || state.pc != pc;
+		}
+		if (p.isLabelled((int) pc) && ++heat[(int) pc] == THRESHOLD)
+			compile(p.functionStart((int) pc));
+		return false;
+	}
+
+	private synchronized void compile(int start) {
+		if (tried.get(start)) return;
+		tried.set(start);
+		FunctionCompiler compiler = new FunctionCompiler(start, p.functionEnd(start));
+		try {
+			CompiledCode code = compiler.compile();
+			for (Long entry : compiler.entries.keySet())
+				compiled[(int) (long) entry] = code;
+		} catch (Emitter.TooBig e) {
+			// Leave it to the interpreter.
+		}
+	}
+
+	/**
+	 * Compiles the instructions from start up to (not including) end.
+	 */
+	class FunctionCompiler {
+		final int start, end;
+		final Emitter.Label[] labels;
+		/** Address -> position in the code, for the addresses the code can be entered at. */
+		final Map<Long, Integer> entries = new HashMap<Long, Integer>();
+
+		FunctionCompiler(int start, int end) {
+			this.start = start;
+			this.end = end;
+			this.labels = new Emitter.Label[end - start];
+			for (int i = 0; i < labels.length; i++)
+				labels[i] = new Emitter.Label();
+		}
+
+		/**
+		 * Where to go in the compiled code for an address, or null if the address
+		 * isn't in this function.
+		 */
+		Emitter.Label labelFor(long pc) {
+			return start <= pc && pc < end ? labels[(int) (pc - start)] : null;
+		}
+
+		CompiledCode compile() {
+			Emitter e = new Emitter(this);
+			boolean afterExit = true;
+			// Instructions since the last limit check: at most this many run before the next.
+			int check = -1, segment = 0;
+			for (int pc = start; pc < end; pc++) {
+				e.place(labels[pc - start]);
+				if (afterExit || p.isLabelled(pc)) {
+					if (check >= 0) e.setLimitCheck(check, segment);
+					entries.put((long) pc, e.position());
+					check = e.checkLimit(pc);
+					segment = 0;
+				}
+				e.beginInstruction();
+				if (p.instruction(pc).compile(e)) {
+					e.endInstruction();
+					segment++;
+					afterExit = false;
+				} else {
+					// Entering here would only leave again, without getting anywhere.
+					entries.remove((long) pc);
+					e.dropInstruction();
+					e.exit(pc);
+					afterExit = true;
+				}
+			}
+			e.exit(end);
+			if (check >= 0) e.setLimitCheck(check, segment);
+
+			String name = "x86_64sim/jit/Compiled" + classes.incrementAndGet();
+			byte[] bytes = e.toClass(name, entries);
+			try {
+				Class<?> c = new Loader().define(name.replace('/', '.'), bytes);
+				return (CompiledCode) c.getDeclaredConstructor().newInstance();
+			} catch (InstantiationException ex) {
+				throw new Error(ex);
+			} catch (IllegalAccessException ex) {
+				throw new Error(ex);
+			} catch (InvocationTargetException ex) {
+				throw new Error(ex);
+			} catch (NoSuchMethodException ex) {
+				throw new Error(ex);
+			}
+		}
+	}
+
+	private static class Loader extends ClassLoader {
+		Loader() {
+			super(CompiledCode.class.getClassLoader());
+		}
+		Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+}